@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+/**
+ * The aggregate functions supported by {@link PersistentCache#aggregate(SearchTerm[], Aggregate, String, String...)}.
+ * As in SQL, <code>null</code> values are ignored by every function except a field-less {@link #COUNT}.
+ */
+public enum Aggregate {
+    /**
+     * The number of matching objects, or of matching objects with a non-null value for the field.
+     */
+    COUNT,
+    /**
+     * The total of a numeric field.
+     */
+    SUM,
+    /**
+     * The smallest value of a field.
+     */
+    MIN,
+    /**
+     * The largest value of a field.
+     */
+    MAX,
+    /**
+     * The arithmetic mean of a numeric field.
+     */
+    AVG;
+
+    /**
+     * @return true if this function only applies to numeric fields
+     */
+    public boolean isNumeric() {
+        return (this == SUM || this == AVG);
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Reads entity documents written by {@link BinaryStreamWriter}. Integers come back as {@link Integer} or
+ * {@link Long} and nested structures as {@link JSONObject} and {@link JSONArray}, just as they would from
+ * the equivalent JSON, while exact decimals come back as {@link BigDecimal}.
+ */
+public class BinaryStreamReader implements StateReader {
+    private byte[]      buffer = new byte[4096];
+    private int         limit  = 0;
+    private int         pos    = 0;
+    private InputStream source;
+    private int         tag    = -1;
+
+    public BinaryStreamReader(@Nonnull InputStream source) {
+        this.source = source;
+    }
+
+    /**
+     * Reads and validates the document header.
+     * @throws IOException the source is not a binary document or was written in an unsupported format version
+     */
+    public void beginObject() throws IOException {
+        if( read() != BinaryStreamWriter.MAGIC[0] || read() != BinaryStreamWriter.MAGIC[1] ) {
+            throw new IOException("Not a binary entity document");
+        }
+        int version = read();
+
+        if( version != BinaryStreamWriter.FORMAT_VERSION ) {
+            throw new IOException("Unsupported binary entity format version: " + version);
+        }
+        tag = -1;
+    }
+
+    public void endObject() throws IOException {
+        if( nextTag() != BinaryStreamWriter.END ) {
+            throw new IOException("Expected the end of the document");
+        }
+        tag = -1;
+    }
+
+    public boolean hasNext() throws IOException {
+        return (nextTag() != BinaryStreamWriter.END);
+    }
+
+    public @Nonnull String nextName() throws IOException {
+        nextTag();
+        return string();
+    }
+
+    public @Nullable Object nextValue() throws IOException {
+        int t = nextTag();
+
+        tag = -1;
+        Object value = payload(t);
+
+        return (value == JSONObject.NULL ? null : value);
+    }
+
+    private boolean fill() throws IOException {
+        limit = source.read(buffer, 0, buffer.length);
+        pos = 0;
+        if( limit < 1 ) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private int nextTag() throws IOException {
+        if( tag == -1 ) {
+            tag = read();
+        }
+        return tag;
+    }
+
+    private @Nonnull Object payload(int t) throws IOException {
+        try {
+            switch( t ) {
+                case BinaryStreamWriter.NULL: return JSONObject.NULL;
+                case BinaryStreamWriter.FALSE: return Boolean.FALSE;
+                case BinaryStreamWriter.TRUE: return Boolean.TRUE;
+                case BinaryStreamWriter.INT:
+                    long raw = varint();
+                    long l = (raw >>> 1) ^ -(raw & 1);
+
+                    if( l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE ) {
+                        return (int)l;
+                    }
+                    return l;
+                case BinaryStreamWriter.DOUBLE:
+                    long bits = 0L;
+
+                    for( int i=0; i<8; i++ ) {
+                        bits = (bits << 8) | read();
+                    }
+                    return Double.longBitsToDouble(bits);
+                case BinaryStreamWriter.STRING: return string();
+                case BinaryStreamWriter.DECIMAL: return new BigDecimal(string());
+                case BinaryStreamWriter.ARRAY:
+                    JSONArray arr = new JSONArray();
+                    long len = varint();
+
+                    for( long i=0; i<len; i++ ) {
+                        arr.put(payload(read()));
+                    }
+                    return arr;
+                case BinaryStreamWriter.OBJECT:
+                    JSONObject ob = new JSONObject();
+
+                    for( int member = read(); member != BinaryStreamWriter.END; member = read() ) {
+                        String name = string();
+
+                        ob.put(name, payload(member));
+                    }
+                    return ob;
+                default: throw new IOException("Unknown value tag: " + t);
+            }
+        }
+        catch( JSONException e ) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private int read() throws IOException {
+        if( pos >= limit && !fill() ) {
+            throw new IOException("Unexpected end of binary entity document");
+        }
+        return (buffer[pos++] & 0xff);
+    }
+
+    private @Nonnull String string() throws IOException {
+        int len = (int)varint();
+
+        if( limit - pos < len ) {
+            // make the whole string contiguous in the buffer
+            byte[] target = (len > buffer.length ? new byte[len] : buffer);
+            int have = limit - pos;
+
+            System.arraycopy(buffer, pos, target, 0, have);
+            buffer = target;
+            pos = 0;
+            limit = have;
+            while( limit < len ) {
+                int r = source.read(buffer, limit, buffer.length - limit);
+
+                if( r < 1 ) {
+                    throw new IOException("Unexpected end of binary entity document");
+                }
+                limit += r;
+            }
+        }
+        char[] chars = new char[len];
+        int end = pos + len;
+        int n = 0;
+
+        while( pos < end ) {
+            int b = buffer[pos++] & 0xff;
+
+            if( b < 0x80 ) {
+                chars[n++] = (char)b;
+            }
+            else if( b < 0xe0 ) {
+                chars[n++] = (char)(((b & 0x1f) << 6) | (buffer[pos++] & 0x3f));
+            }
+            else {
+                chars[n++] = (char)(((b & 0x0f) << 12) | ((buffer[pos++] & 0x3f) << 6) | (buffer[pos++] & 0x3f));
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    private long varint() throws IOException {
+        long value = 0L;
+
+        for( int shift=0; shift<64; shift += 7 ) {
+            int b = read();
+
+            value |= ((long)(b & 0x7f)) << shift;
+            if( (b & 0x80) == 0 ) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
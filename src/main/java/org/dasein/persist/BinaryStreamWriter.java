@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Writes entity documents in the compact binary form read by {@link BinaryStreamReader}. A document starts with
+ * {@link #MAGIC} and the {@link #FORMAT_VERSION} it was written with, followed by tagged members and an end tag.
+ * Integers are zig-zag varints, doubles are eight bytes and strings are length prefixed UTF-8, so a document
+ * carries the same information as its JSON equivalent without any of the text parsing.
+ */
+public class BinaryStreamWriter implements StateWriter {
+    static public final byte[] MAGIC          = { 'D', 'P' };
+    static public final byte   FORMAT_VERSION = 1;
+
+    static final int END     = 0;
+    static final int NULL    = 1;
+    static final int FALSE   = 2;
+    static final int TRUE    = 3;
+    static final int INT     = 4;
+    static final int DOUBLE  = 5;
+    static final int STRING  = 6;
+    static final int DECIMAL = 7;
+    static final int ARRAY   = 8;
+    static final int OBJECT  = 9;
+
+    private byte[]       buffer = new byte[1024];
+    private int          count  = 0;
+    private OutputStream out;
+
+    public BinaryStreamWriter(@Nonnull OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Starts a new document by writing the format header.
+     * @throws IOException an error occurred writing to the destination
+     */
+    public void beginObject() throws IOException {
+        write(MAGIC[0]);
+        write(MAGIC[1]);
+        write(FORMAT_VERSION);
+    }
+
+    public void endObject() throws IOException {
+        write(END);
+    }
+
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    public void member(@Nonnull String name, @Nullable Object value) throws IOException, JSONException {
+        int tag = tagOf(value);
+
+        write(tag);
+        string(name);
+        payload(tag, value);
+    }
+
+    private void drain() throws IOException {
+        if( count > 0 ) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if( count + bytes > buffer.length ) {
+            drain();
+            if( bytes > buffer.length ) {
+                buffer = new byte[bytes];
+            }
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void payload(int tag, @Nullable Object value) throws IOException, JSONException {
+        switch( tag ) {
+            case NULL: case FALSE: case TRUE: break;
+            case INT:
+                long l = ((Number)value).longValue();
+
+                varint((l << 1) ^ (l >> 63));
+                break;
+            case DOUBLE:
+                long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+
+                ensure(8);
+                for( int shift=56; shift>=0; shift -= 8 ) {
+                    buffer[count++] = (byte)(bits >>> shift);
+                }
+                break;
+            case DECIMAL: string(value.toString()); break;
+            case ARRAY:
+                if( value instanceof JSONArray ) {
+                    JSONArray arr = (JSONArray)value;
+                    int len = arr.length();
+
+                    varint(len);
+                    for( int i=0; i<len; i++ ) {
+                        value(arr.opt(i));
+                    }
+                }
+                else {
+                    Object[] arr = (value instanceof Collection ? ((Collection)value).toArray() : (Object[])value);
+
+                    varint(arr.length);
+                    for( Object item : arr ) {
+                        value(item);
+                    }
+                }
+                break;
+            case OBJECT:
+                JSONObject ob = (value instanceof JSONObject ? (JSONObject)value : new JSONObject((Map)value));
+                Iterator<?> names = ob.keys();
+
+                while( names.hasNext() ) {
+                    String name = names.next().toString();
+
+                    member(name, ob.opt(name));
+                }
+                write(END);
+                break;
+            default: string(value.toString());
+        }
+    }
+
+    private void string(@Nonnull String str) throws IOException {
+        int len = str.length();
+
+        // worst case is three bytes per char plus the length prefix
+        ensure(len*3 + 5);
+        int start = count;
+
+        count += 5;
+        for( int i=0; i<len; i++ ) {
+            char c = str.charAt(i);
+
+            if( c < 0x80 ) {
+                buffer[count++] = (byte)c;
+            }
+            else if( c < 0x800 ) {
+                buffer[count++] = (byte)(0xc0 | (c >> 6));
+                buffer[count++] = (byte)(0x80 | (c & 0x3f));
+            }
+            else {
+                buffer[count++] = (byte)(0xe0 | (c >> 12));
+                buffer[count++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        // shift the encoded bytes down behind the real length prefix
+        int encoded = count - start - 5;
+        int prefix = 1;
+
+        for( long v = encoded >>> 7; v != 0; v >>>= 7 ) {
+            prefix++;
+        }
+        System.arraycopy(buffer, start + 5, buffer, start + prefix, encoded);
+        count = start;
+        putVarint(encoded);
+        count += encoded;
+    }
+
+    private int tagOf(@Nullable Object value) {
+        if( value == null || value == JSONObject.NULL ) {
+            return NULL;
+        }
+        else if( value instanceof Boolean ) {
+            return (((Boolean)value) ? TRUE : FALSE);
+        }
+        else if( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte ) {
+            return INT;
+        }
+        else if( value instanceof Double || value instanceof Float ) {
+            return DOUBLE;
+        }
+        else if( value instanceof Number ) {
+            // BigDecimal, BigInteger and anything else keep their exact decimal text
+            return DECIMAL;
+        }
+        else if( value instanceof JSONArray || value instanceof Object[] || value instanceof Collection ) {
+            return ARRAY;
+        }
+        else if( value instanceof JSONObject || value instanceof Map ) {
+            return OBJECT;
+        }
+        return STRING;
+    }
+
+    private void value(@Nullable Object value) throws IOException, JSONException {
+        int tag = tagOf(value);
+
+        write(tag);
+        payload(tag, value);
+    }
+
+    private void varint(long value) throws IOException {
+        ensure(10);
+        putVarint(value);
+    }
+
+    private void putVarint(long value) {
+        while( (value & ~0x7fL) != 0 ) {
+            buffer[count++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[count++] = (byte)value;
+    }
+
+    private void write(int b) throws IOException {
+        ensure(1);
+        buffer[count++] = (byte)b;
+    }
+}
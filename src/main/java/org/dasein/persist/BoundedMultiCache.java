@@ -0,0 +1,740 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.CacheLoader;
+import org.dasein.util.CacheManagementException;
+import org.dasein.util.CachedItem;
+import org.dasein.util.ConcurrentMultiCache;
+import org.dasein.util.MapLoader;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link ConcurrentMultiCache} holding no more than a fixed number of entries or a fixed total weight. When
+ * the cache is full, an {@link EvictionPolicy} picks the entry to evict and may refuse to cache the new object
+ * altogether. Each entry remembers the key values it was indexed under, so evicting or releasing it removes it
+ * from every key map even if the object's own key values have changed since it was cached.
+ * <p>Entries may also be given a limited lifetime (see {@link #setExpiry(long, long)}). An entry older than its
+ * time to live is discarded and loaded again as if it had never been cached. An entry older than its refresh
+ * interval is still returned, but the first such read hands the lookup's {@link CacheLoader} to a background
+ * thread that swaps in a fresh copy, so readers never wait on a refresh.</p>
+ * <p>An {@link OffHeapStore} may be placed under the cache (see {@link #setOffHeapStore(OffHeapStore, Codec)}).
+ * Evicted entries are then serialized into it, and a lookup by primary key that misses on the heap is answered
+ * from it before falling back on the lookup's {@link CacheLoader}. An object lives in only one of the two tiers
+ * at a time.</p>
+ * <p>A {@link CacheSnapshot} left by a previous run may be attached as well (see
+ * {@link #setSnapshot(CacheSnapshot, Codec)}), in which case primary key lookups that miss both tiers are
+ * answered from the snapshot. Each object is taken from the snapshot at most once.</p>
+ * @param <T> the type of object being cached
+ */
+public class BoundedMultiCache<T> extends ConcurrentMultiCache<T> {
+    static private final Logger logger = Logger.getLogger(BoundedMultiCache.class);
+
+    static private final int REFRESH_THREADS = 2;
+
+    /**
+     * Converts cached objects to and from the serialized form held in an {@link OffHeapStore}.
+     * @param <T> the type of object being cached
+     */
+    static public interface Codec<T> {
+        public @Nonnull T decode(@Nonnull byte[] data) throws PersistenceException;
+
+        public @Nonnull byte[] encode(@Nonnull T item) throws PersistenceException;
+    }
+
+    static private class Entry<T> {
+        public T        item;
+        public Object[] keys;
+        public long     loaded;
+        public boolean  refreshing;
+        public int      weight;
+    }
+
+    static private ExecutorService refresher = null;
+
+    static private synchronized @Nonnull ExecutorService getRefresher() {
+        if( refresher == null ) {
+            refresher = Executors.newFixedThreadPool(REFRESH_THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+
+                    t.setName("DASEIN CACHE REFRESH");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return refresher;
+    }
+
+    private Codec<T>                            codec;
+    private LinkedHashMap<Object,Entry<T>>      demotions    = new LinkedHashMap<Object,Entry<T>>();
+    private long                                evictions    = 0L;
+    private long                                expirations  = 0L;
+    private long                                expireAfter  = 0L;
+    private ArrayList<HashMap<Object,Entry<T>>> indexes      = new ArrayList<HashMap<Object,Entry<T>>>();
+    private String[]                            keyNames;
+    private long                                maxEntries;
+    private long                                maxWeight;
+    private OffHeapStore                        offHeap;
+    private EvictionPolicy                      policy;
+    private long                                refreshAfter = 0L;
+    private long                                refreshes    = 0L;
+    private long                                rejections   = 0L;
+    private CacheSnapshot                       snapshot;
+    private Weigher<? super T>                  weigher;
+    private long                                weight       = 0L;
+
+    /**
+     * Constructs a cache bounded by entry count.
+     * @param target the class of objects being cached
+     * @param keys the unique identifiers under which objects are cached, primary key first
+     * @param policy the policy determining which entries to evict
+     * @param maxEntries the maximum number of entries to hold
+     */
+    public BoundedMultiCache(@Nonnull Class<T> target, @Nonnull Collection<String> keys, @Nonnull EvictionPolicy policy, long maxEntries) {
+        this(target, keys, policy, maxEntries, null, 0L);
+    }
+
+    /**
+     * Constructs a cache bounded by entry count, total weight, or both.
+     * @param target the class of objects being cached
+     * @param keys the unique identifiers under which objects are cached, primary key first
+     * @param policy the policy determining which entries to evict
+     * @param maxEntries the maximum number of entries to hold or 0 for no limit on entries
+     * @param weigher the weigher calculating the weight of each object or <code>null</code> to weigh each object as 1
+     * @param maxWeight the maximum total weight to hold or 0 for no limit on weight
+     */
+    public BoundedMultiCache(@Nonnull Class<T> target, @Nonnull Collection<String> keys, @Nonnull EvictionPolicy policy, long maxEntries, @Nullable Weigher<? super T> weigher, long maxWeight) {
+        super(target, keys);
+        ArrayList<String> names = new ArrayList<String>();
+
+        for( String key : keys ) {
+            if( !names.contains(key) ) {
+                names.add(key);
+                indexes.add(new HashMap<Object,Entry<T>>());
+            }
+        }
+        this.keyNames = names.toArray(new String[names.size()]);
+        this.policy = policy;
+        this.maxEntries = maxEntries;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+    }
+
+    @Override
+    public T cache(T item) {
+        if( item == null ) {
+            throw new NullPointerException("Multi caches may not have null values.");
+        }
+        Object[] keys = keysFor(item);
+
+        synchronized( this ) {
+            item = insert(item, keys, System.currentTimeMillis());
+        }
+        demote();
+        return item;
+    }
+
+    @Override
+    public T find(Map<String,Object> state) {
+        Object val = normalize(state.get(keyNames[0]));
+
+        if( val == null ) {
+            throw new CacheManagementException("No value specified for key: " + keyNames[0]);
+        }
+        Entry<T> stale = null;
+
+        synchronized( this ) {
+            Entry<T> entry = indexes.get(0).get(val);
+
+            policy.accessed(val);
+            if( entry != null ) {
+                if( !isStale(entry, System.currentTimeMillis()) ) {
+                    return entry.item;
+                }
+                stale = entry;
+            }
+        }
+        // the state was just read from the data store, so a stale entry is rebuilt from it on the spot
+        T item = new MapLoader<T>(getTarget()).load(state);
+
+        if( item == null ) {
+            return null;
+        }
+        Object[] keys = keysFor(item);
+
+        synchronized( this ) {
+            item = replace(stale, item, keys);
+        }
+        demote();
+        return item;
+    }
+
+    @Override
+    public T find(String key, Object val, CacheLoader<T> loader, Object ... args) {
+        int idx = indexOf(key);
+        Entry<T> refresh = null;
+        T item = null;
+
+        val = normalize(val);
+        if( idx > -1 ) {
+            synchronized( this ) {
+                Entry<T> entry = indexes.get(idx).get(val);
+
+                if( entry != null ) {
+                    long age = System.currentTimeMillis() - entry.loaded;
+
+                    if( expireAfter > 0L && age >= expireAfter ) {
+                        remove(entry);
+                        expirations++;
+                    }
+                    else {
+                        policy.accessed(entry.keys[0]);
+                        item = entry.item;
+                        if( refreshAfter > 0L && age >= refreshAfter && !entry.refreshing && loader != null ) {
+                            entry.refreshing = true;
+                            refresh = entry;
+                        }
+                    }
+                }
+                else if( idx == 0 && val != null ) {
+                    policy.accessed(val);
+                }
+            }
+        }
+        if( refresh != null ) {
+            refresh(refresh, loader, args);
+        }
+        if( item == null && idx == 0 && val != null && offHeap != null ) {
+            item = promote(val);
+        }
+        if( item == null && idx == 0 && val != null && snapshot != null ) {
+            item = restore(val);
+        }
+        if( item == null && loader != null ) {
+            item = loader.load(args);
+            if( item == null ) {
+                return null;
+            }
+            Object[] keys = keysFor(item);
+
+            synchronized( this ) {
+                item = insert(item, keys, System.currentTimeMillis());
+            }
+            demote();
+        }
+        return item;
+    }
+
+    /**
+     * @return the number of entries evicted to make room for new ones since this cache was created
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of entries discarded for outliving their time to live since this cache was created
+     */
+    public synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    /**
+     * @return the time to live of cached entries in milliseconds or 0 if entries do not expire
+     */
+    public long getExpireAfter() {
+        return expireAfter;
+    }
+
+    public long getMaximumEntries() {
+        return maxEntries;
+    }
+
+    public long getMaximumWeight() {
+        return maxWeight;
+    }
+
+    public @Nonnull EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the age in milliseconds after which a read triggers a background refresh or 0 if entries are not refreshed
+     */
+    public long getRefreshAfter() {
+        return refreshAfter;
+    }
+
+    /**
+     * @return the number of background refreshes completed since this cache was created
+     */
+    public synchronized long getRefreshCount() {
+        return refreshes;
+    }
+
+    /**
+     * @return the number of objects the eviction policy declined to cache since this cache was created
+     */
+    public synchronized long getRejectionCount() {
+        return rejections;
+    }
+
+    /**
+     * @return the total weight of everything currently cached
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public @Nullable OffHeapStore getOffHeapStore() {
+        return offHeap;
+    }
+
+    @Override
+    public void release(T item) {
+        if( item == null ) {
+            return;
+        }
+        Object[] keys = keysFor(item);
+
+        synchronized( this ) {
+            if( offHeap != null && keys[0] != null ) {
+                demotions.remove(keys[0]);
+                offHeap.remove(keys[0]);
+            }
+            if( snapshot != null && keys[0] != null ) {
+                snapshot.discard(keys[0]);
+            }
+            for( int i=0; i<keys.length; i++ ) {
+                Entry<T> entry = (keys[i] == null ? null : indexes.get(i).get(keys[i]));
+
+                if( entry != null ) {
+                    remove(entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void releaseAll() {
+        synchronized( this ) {
+            for( HashMap<Object,Entry<T>> index : indexes ) {
+                index.clear();
+            }
+            policy.clear();
+            weight = 0L;
+            if( offHeap != null ) {
+                demotions.clear();
+                offHeap.clear();
+            }
+            if( snapshot != null ) {
+                snapshot.discardAll();
+            }
+        }
+    }
+
+    /**
+     * Sets how long entries may be served from this cache. Call before the cache is in use.
+     * @param expireAfter the age in milliseconds at which entries are discarded or 0 for no limit
+     * @param refreshAfter the age in milliseconds at which a read triggers a background refresh or 0 for no refreshes
+     */
+    public void setExpiry(long expireAfter, long refreshAfter) {
+        this.expireAfter = Math.max(0L, expireAfter);
+        this.refreshAfter = Math.max(0L, refreshAfter);
+    }
+
+    /**
+     * Places an off-heap tier under this cache. Call before the cache is in use.
+     * @param store the store holding entries evicted from the heap
+     * @param codec the codec serializing entries for the store
+     */
+    public void setOffHeapStore(@Nullable OffHeapStore store, @Nullable Codec<T> codec) {
+        this.offHeap = (codec == null ? null : store);
+        this.codec = codec;
+    }
+
+    /**
+     * Attaches a snapshot from a previous run. Call before the cache is in use.
+     * @param snapshot the snapshot to answer misses from
+     * @param codec the codec that decodes the snapshot's records
+     */
+    public void setSnapshot(@Nullable CacheSnapshot snapshot, @Nullable Codec<T> codec) {
+        this.snapshot = (codec == null ? null : snapshot);
+        if( codec != null ) {
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Writes everything this cache holds, on the heap, off the heap, and not yet taken from the attached snapshot,
+     * to a new snapshot that replaces the attached snapshot's file. Only the copy of the heap's references happens
+     * under the cache lock; serialization and IO do not block readers.
+     * @throws PersistenceException no snapshot is attached or the snapshot could not be written
+     */
+    public void writeSnapshot() throws PersistenceException {
+        CacheSnapshot current = snapshot;
+        ArrayList<Object> keys;
+        ArrayList<T> items;
+        long[] stamps;
+
+        if( current == null ) {
+            throw new PersistenceException("No snapshot is attached to this cache");
+        }
+        synchronized( this ) {
+            HashMap<Object,Entry<T>> primary = indexes.get(0);
+            int i = 0;
+
+            keys = new ArrayList<Object>(primary.size());
+            items = new ArrayList<T>(primary.size());
+            stamps = new long[primary.size()];
+            for( Map.Entry<Object,Entry<T>> entry : primary.entrySet() ) {
+                keys.add(entry.getKey());
+                items.add(entry.getValue().item);
+                stamps[i++] = entry.getValue().loaded;
+            }
+        }
+        CacheSnapshot.Output out;
+
+        try {
+            out = current.open();
+        }
+        catch( IOException e ) {
+            throw new PersistenceException(e);
+        }
+        try {
+            for( int i=0; i<keys.size(); i++ ) {
+                out.write(keys.get(i), codec.encode(items.get(i)), stamps[i]);
+            }
+            if( offHeap != null ) {
+                for( Object key : offHeap.keys() ) {
+                    OffHeapStore.Record record = offHeap.peek(key);
+
+                    if( record != null ) {
+                        out.write(key, record.getData(), record.getStamp());
+                    }
+                }
+            }
+            for( Object key : current.keys() ) {
+                OffHeapStore.Record record = current.peek(key);
+
+                if( record != null ) {
+                    out.write(key, record.getData(), record.getStamp());
+                }
+            }
+            out.commit();
+        }
+        catch( IOException e ) {
+            throw new PersistenceException(e);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the number of entries currently cached
+     */
+    public synchronized int size() {
+        return indexes.get(0).size();
+    }
+
+    private int indexOf(@Nullable String key) {
+        for( int i=0; i<keyNames.length; i++ ) {
+            if( keyNames[i].equals(key) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Serializes entries evicted to the off-heap tier. This happens outside the cache lock; an entry is only
+     * written if it was not released or cached again in the meantime.
+     */
+    private void demote() {
+        if( offHeap == null ) {
+            return;
+        }
+        ArrayList<Entry<T>> batch;
+
+        synchronized( this ) {
+            if( demotions.isEmpty() ) {
+                return;
+            }
+            batch = new ArrayList<Entry<T>>(demotions.values());
+        }
+        for( Entry<T> entry : batch ) {
+            byte[] data = null;
+
+            try {
+                data = codec.encode(entry.item);
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to move " + entry.item + " off the heap: " + t.getMessage());
+            }
+            synchronized( this ) {
+                if( demotions.get(entry.keys[0]) == entry ) {
+                    demotions.remove(entry.keys[0]);
+                    if( data != null ) {
+                        offHeap.put(entry.keys[0], data, entry.loaded);
+                    }
+                }
+            }
+        }
+    }
+
+    private @Nonnull T insert(@Nonnull T item, @Nonnull Object[] keys, long loaded) {
+        for( int i=0; i<keys.length; i++ ) {
+            Entry<T> current = (keys[i] == null ? null : indexes.get(i).get(keys[i]));
+
+            if( current != null ) {
+                if( !(current.item instanceof CachedItem) || ((CachedItem)current.item).isValidForCache() ) {
+                    policy.accessed(current.keys[0]);
+                    return current.item;
+                }
+                remove(current);
+            }
+        }
+        if( keys[0] == null ) {
+            return item;
+        }
+        Entry<T> entry = new Entry<T>();
+
+        entry.item = item;
+        entry.keys = keys;
+        entry.loaded = loaded;
+        entry.weight = (weigher == null ? 1 : Math.max(0, weigher.weigh(item)));
+        policy.accessed(keys[0]);
+        if( offHeap != null ) {
+            demotions.remove(keys[0]);
+            offHeap.remove(keys[0]);
+        }
+        if( (maxWeight > 0L && entry.weight > maxWeight) || !makeRoom(entry) ) {
+            rejections++;
+            if( offHeap != null ) {
+                demotions.put(keys[0], entry);
+            }
+            return item;
+        }
+        for( int i=0; i<keys.length; i++ ) {
+            if( keys[i] != null ) {
+                indexes.get(i).put(keys[i], entry);
+            }
+        }
+        weight += entry.weight;
+        policy.added(keys[0]);
+        return item;
+    }
+
+    private boolean isFull(int adding) {
+        return ((maxEntries > 0L && indexes.get(0).size() + 1 > maxEntries) || (maxWeight > 0L && weight + adding > maxWeight));
+    }
+
+    private @Nonnull Object[] keysFor(@Nonnull T item) {
+        Map<String,Object> values = getKeys(item);
+        Object[] keys = new Object[keyNames.length];
+
+        for( int i=0; i<keyNames.length; i++ ) {
+            keys[i] = normalize(values.get(keyNames[i]));
+        }
+        return keys;
+    }
+
+    private boolean isStale(@Nonnull Entry<T> entry, long now) {
+        long age = now - entry.loaded;
+
+        return ((expireAfter > 0L && age >= expireAfter) || (refreshAfter > 0L && age >= refreshAfter));
+    }
+
+    private boolean makeRoom(@Nonnull Entry<T> entry) {
+        boolean admitted = false;
+
+        while( isFull(entry.weight) ) {
+            Object victim = policy.victim();
+            Entry<T> evicted = (victim == null ? null : indexes.get(0).get(victim));
+
+            if( evicted == null ) {
+                return !isFull(entry.weight);
+            }
+            if( !admitted ) {
+                if( !policy.admit(entry.keys[0], victim) ) {
+                    return false;
+                }
+                admitted = true;
+            }
+            remove(evicted);
+            evictions++;
+            if( offHeap != null ) {
+                demotions.put(evicted.keys[0], evicted);
+            }
+        }
+        return true;
+    }
+
+    private @Nullable Object normalize(@Nullable Object val) {
+        if( val instanceof BigDecimal ) {
+            return ((BigDecimal)val).longValue();
+        }
+        return val;
+    }
+
+    /**
+     * Moves an entry from the off-heap tier back onto the heap.
+     * @param key the primary key value
+     * @return the entry's object or <code>null</code> if the tier does not hold a live copy
+     */
+    private @Nullable T promote(@Nonnull Object key) {
+        OffHeapStore.Record record = offHeap.get(key);
+
+        if( record == null ) {
+            return null;
+        }
+        if( expireAfter > 0L && System.currentTimeMillis() - record.getStamp() >= expireAfter ) {
+            offHeap.remove(key);
+            return null;
+        }
+        T item;
+
+        try {
+            item = codec.decode(record.getData());
+        }
+        catch( Throwable t ) {
+            logger.warn("Unable to restore " + key + " from off the heap: " + t.getMessage());
+            offHeap.remove(key);
+            return null;
+        }
+        Object[] keys = keysFor(item);
+
+        synchronized( this ) {
+            item = insert(item, keys, record.getStamp());
+        }
+        demote();
+        return item;
+    }
+
+    /**
+     * Loads an object from the attached snapshot.
+     * @param key the primary key value
+     * @return the object or <code>null</code> if the snapshot does not hold a usable copy
+     */
+    private @Nullable T restore(@Nonnull Object key) {
+        OffHeapStore.Record record = snapshot.take(key);
+
+        if( record == null ) {
+            return null;
+        }
+        long stamp = record.getStamp();
+
+        if( expireAfter > 0L && System.currentTimeMillis() - stamp >= expireAfter ) {
+            return null;
+        }
+        T item;
+
+        try {
+            item = codec.decode(record.getData());
+        }
+        catch( Throwable t ) {
+            logger.warn("Unable to restore " + key + " from a snapshot: " + t.getMessage());
+            return null;
+        }
+        Object[] keys = keysFor(item);
+
+        synchronized( this ) {
+            item = insert(item, keys, stamp);
+        }
+        demote();
+        return item;
+    }
+
+    private void refresh(@Nonnull final Entry<T> entry, @Nonnull final CacheLoader<T> loader, final Object ... args) {
+        getRefresher().execute(new Runnable() {
+            public void run() {
+                try {
+                    T item = loader.load(args);
+
+                    synchronized( BoundedMultiCache.this ) {
+                        if( item == null ) {
+                            if( indexes.get(0).get(entry.keys[0]) == entry ) {
+                                remove(entry);
+                            }
+                        }
+                        else {
+                            replace(entry, item, keysFor(item));
+                        }
+                        refreshes++;
+                    }
+                    demote();
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to refresh " + entry.item + ": " + t.getMessage());
+                }
+                finally {
+                    synchronized( BoundedMultiCache.this ) {
+                        entry.refreshing = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private void remove(@Nonnull Entry<T> entry) {
+        for( int i=0; i<entry.keys.length; i++ ) {
+            HashMap<Object,Entry<T>> index = indexes.get(i);
+
+            // a key value may have been claimed by a newer entry since this one was cached
+            if( entry.keys[i] != null && index.get(entry.keys[i]) == entry ) {
+                index.remove(entry.keys[i]);
+            }
+        }
+        weight -= entry.weight;
+        policy.removed(entry.keys[0]);
+    }
+
+    private @Nonnull T replace(@Nullable Entry<T> stale, @Nonnull T item, @Nonnull Object[] keys) {
+        if( stale != null && indexes.get(0).get(stale.keys[0]) == stale ) {
+            if( stale.item == item ) {
+                stale.loaded = System.currentTimeMillis();
+                return item;
+            }
+            remove(stale);
+        }
+        return insert(item, keys, System.currentTimeMillis());
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "BoundedMultiCache[" + policy + ",entries=" + size() + ",maxEntries=" + maxEntries + ",weight=" + getWeight() + ",maxWeight=" + maxWeight + "]";
+    }
+}
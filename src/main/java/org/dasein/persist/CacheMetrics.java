@@ -0,0 +1,425 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.ConcurrentMultiCache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Counters and latency histograms for a single {@link PersistentCache}, exposed as a JMX MBean named
+ * <code>org.dasein.persist:type=PersistentCache,name=&lt;entity class&gt;</code>. Recording is a handful of
+ * atomic increments; everything else, including the cache's own counters, is read only when the MBean is polled.
+ * <p>Registration is on unless <code>dasein.persist.jmx</code> is <code>false</code>. Latencies are reported in
+ * microseconds.</p>
+ */
+public class CacheMetrics implements DynamicMBean {
+    static private final Logger logger = Logger.getLogger(CacheMetrics.class);
+
+    static public final String DOMAIN = "org.dasein.persist";
+
+    /**
+     * The timed operations.
+     */
+    static public enum Operation {
+        GET("Get"), FIND("Find"), AGGREGATE("Aggregate"), CREATE("Create"), UPDATE("Update"), REMOVE("Remove"), LOAD("Load");
+
+        private String label;
+
+        private Operation(@Nonnull String label) {
+            this.label = label;
+        }
+
+        public @Nonnull String getLabel() {
+            return label;
+        }
+    }
+
+    static private final String[] COUNTERS = {
+        "LookupCount", "HitCount", "MissCount", "CoalescedLoadCount", "FailedLoadCount", "NegativeHitCount",
+        "QueryHitCount", "BackendCallCount", "BytesWritten", "BytesRead", "EvictionCount", "ExpirationCount", "RefreshCount"
+    };
+
+    static private final String[] STATISTICS = { "Count", "MeanMicros", "P50Micros", "P99Micros", "MaxMicros" };
+
+    static private MBeanInfo info = null;
+
+    static private synchronized @Nonnull MBeanInfo getInfo() {
+        if( info == null ) {
+            ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+            attributes.add(new MBeanAttributeInfo("Entity", String.class.getName(), "The entity class", true, false, false));
+            attributes.add(new MBeanAttributeInfo("CacheSize", long.class.getName(), "Objects cached, or -1 for an unbounded cache", true, false, false));
+            attributes.add(new MBeanAttributeInfo("HitRatio", double.class.getName(), "Fraction of lookups answered from memory", true, false, false));
+            for( String counter : COUNTERS ) {
+                attributes.add(new MBeanAttributeInfo(counter, long.class.getName(), counter, true, false, false));
+            }
+            for( String stat : new String[] { "Count", "Mean", "P50", "P99", "Max" } ) {
+                attributes.add(new MBeanAttributeInfo("ResultSize" + stat, (stat.equals("Mean") ? double.class : long.class).getName(), "Rows per backend query", true, false, false));
+            }
+            for( Operation op : Operation.values() ) {
+                for( String stat : STATISTICS ) {
+                    String name = op.getLabel() + stat;
+
+                    attributes.add(new MBeanAttributeInfo(name, (stat.equals("MeanMicros") ? double.class : long.class).getName(), name, true, false, false));
+                }
+            }
+            MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Zeroes the latency histograms and backend counters", new MBeanParameterInfo[0], void.class.getName(), MBeanOperationInfo.ACTION);
+
+            info = new MBeanInfo(CacheMetrics.class.getName(), "Dasein persistent cache metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[] { reset }, null);
+        }
+        return info;
+    }
+
+    private AtomicLong                       bytesRead    = new AtomicLong(0L);
+    private AtomicLong                       bytesWritten = new AtomicLong(0L);
+    private PersistentCache<?>               cache;
+    private AtomicLong                       calls        = new AtomicLong(0L);
+    private EnumMap<Operation,Histogram>     latencies    = new EnumMap<Operation,Histogram>(Operation.class);
+    private AtomicLong                       lookups      = new AtomicLong(0L);
+    private AtomicLong                       misses       = new AtomicLong(0L);
+    private ObjectName                       name;
+    private Histogram                        results      = new Histogram();
+
+    public CacheMetrics(@Nonnull PersistentCache<?> cache) {
+        this.cache = cache;
+        for( Operation op : Operation.values() ) {
+            latencies.put(op, new Histogram());
+        }
+    }
+
+    /**
+     * Records a call to the data store.
+     * @param written the bytes sent, or a negative number if unknown
+     * @param read the bytes received, or a negative number if unknown
+     */
+    public void backendCall(long written, long read) {
+        calls.incrementAndGet();
+        if( written > 0L ) {
+            bytesWritten.addAndGet(written);
+        }
+        if( read > 0L ) {
+            bytesRead.addAndGet(read);
+        }
+    }
+
+    public long getBackendCallCount() {
+        return calls.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return the number of objects in the in-memory cache or -1 if the cache does not track its size
+     */
+    public long getCacheSize() {
+        ConcurrentMultiCache<?> c = cache.getCache();
+
+        return (c instanceof BoundedMultiCache ? ((BoundedMultiCache<?>)c).size() : -1L);
+    }
+
+    /**
+     * @return the number of primary key lookups answered from memory
+     */
+    public long getHitCount() {
+        return Math.max(0L, lookups.get() - misses.get());
+    }
+
+    public @Nonnull Histogram getLatency(@Nonnull Operation op) {
+        return latencies.get(op);
+    }
+
+    /**
+     * @return the number of primary key lookups
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * @return the number of primary key lookups that went past the in-memory cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the name under which this MBean is registered or <code>null</code> if it is not registered
+     */
+    public @Nullable ObjectName getObjectName() {
+        return name;
+    }
+
+    /**
+     * @return the distribution of the number of rows or objects returned by backend queries
+     */
+    public @Nonnull Histogram getResultSizes() {
+        return results;
+    }
+
+    /**
+     * Counts a primary key lookup.
+     */
+    public void lookup() {
+        lookups.incrementAndGet();
+    }
+
+    /**
+     * Counts a primary key lookup that missed the in-memory cache.
+     */
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Records the latency of an operation.
+     * @param op the operation
+     * @param start the value of {@link System#nanoTime()} when the operation started
+     */
+    public void record(@Nonnull Operation op, long start) {
+        latencies.get(op).record((System.nanoTime() - start)/1000L);
+    }
+
+    /**
+     * Registers this MBean with the platform MBean server unless <code>dasein.persist.jmx</code> is
+     * <code>false</code>. A failure to register is logged and otherwise ignored.
+     */
+    public synchronized void register() {
+        String prop = PersistentCache.getProperties().getProperty("dasein.persist.jmx");
+
+        if( name != null || (prop != null && prop.trim().equalsIgnoreCase("false")) ) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String base = DOMAIN + ":type=PersistentCache,name=" + ObjectName.quote(cache.getEntityClassName());
+            ObjectName n = new ObjectName(base);
+            int instance = 1;
+
+            if( cache.getEntityName() != null ) {
+                n = new ObjectName(base + ",entity=" + ObjectName.quote(cache.getEntityName()));
+            }
+            while( server.isRegistered(n) ) {
+                n = new ObjectName(base + ",instance=" + (instance++));
+            }
+            server.registerMBean(this, n);
+            name = n;
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to register cache metrics for " + cache.getEntityClassName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Zeroes the latency and result size histograms and the backend counters. Counters owned by the cache itself
+     * are not affected.
+     */
+    public void reset() {
+        for( Histogram h : latencies.values() ) {
+            h.reset();
+        }
+        results.reset();
+        calls.set(0L);
+        bytesRead.set(0L);
+        bytesWritten.set(0L);
+        lookups.set(0L);
+        misses.set(0L);
+    }
+
+    /**
+     * Records the number of rows or objects returned by a backend query.
+     * @param count the number of results
+     */
+    public void results(int count) {
+        results.record(count);
+    }
+
+    public synchronized void unregister() {
+        if( name != null ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch( Exception e ) {
+                logger.warn("Unable to unregister " + name + ": " + e.getMessage());
+            }
+            name = null;
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        ConcurrentMultiCache<?> c = cache.getCache();
+        BoundedMultiCache<?> bounded = (c instanceof BoundedMultiCache ? (BoundedMultiCache<?>)c : null);
+
+        if( attribute.equals("Entity") ) {
+            return cache.getEntityClassName();
+        }
+        else if( attribute.equals("CacheSize") ) {
+            return getCacheSize();
+        }
+        else if( attribute.equals("HitRatio") ) {
+            long n = lookups.get();
+
+            return (n == 0L ? 0.0 : ((double)getHitCount())/n);
+        }
+        else if( attribute.equals("LookupCount") ) {
+            return getLookupCount();
+        }
+        else if( attribute.equals("HitCount") ) {
+            return getHitCount();
+        }
+        else if( attribute.equals("MissCount") ) {
+            return getMissCount();
+        }
+        else if( attribute.equals("CoalescedLoadCount") ) {
+            return cache.getCoalescedLoadCount();
+        }
+        else if( attribute.equals("FailedLoadCount") ) {
+            return cache.getFailedLoadCount();
+        }
+        else if( attribute.equals("NegativeHitCount") ) {
+            return cache.getNegativeHitCount();
+        }
+        else if( attribute.equals("QueryHitCount") ) {
+            return cache.getQueryHitCount();
+        }
+        else if( attribute.equals("BackendCallCount") ) {
+            return getBackendCallCount();
+        }
+        else if( attribute.equals("BytesWritten") ) {
+            return getBytesWritten();
+        }
+        else if( attribute.equals("BytesRead") ) {
+            return getBytesRead();
+        }
+        else if( attribute.equals("EvictionCount") ) {
+            return (bounded == null ? 0L : bounded.getEvictionCount());
+        }
+        else if( attribute.equals("ExpirationCount") ) {
+            return (bounded == null ? 0L : bounded.getExpirationCount());
+        }
+        else if( attribute.equals("RefreshCount") ) {
+            return (bounded == null ? 0L : bounded.getRefreshCount());
+        }
+        else if( attribute.startsWith("ResultSize") ) {
+            Object value = getStatistic(results, attribute.substring("ResultSize".length()));
+
+            if( value != null ) {
+                return value;
+            }
+        }
+        else {
+            for( Operation op : Operation.values() ) {
+                if( attribute.startsWith(op.getLabel()) && attribute.endsWith("Micros") ) {
+                    String stat = attribute.substring(op.getLabel().length(), attribute.length() - "Micros".length());
+                    Object value = getStatistic(latencies.get(op), stat);
+
+                    if( value != null ) {
+                        return value;
+                    }
+                }
+                else if( attribute.equals(op.getLabel() + "Count") ) {
+                    return latencies.get(op).getCount();
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private @Nullable Object getStatistic(@Nonnull Histogram histogram, @Nonnull String stat) {
+        if( stat.equals("Count") ) {
+            return histogram.getCount();
+        }
+        else if( stat.equals("Mean") ) {
+            return histogram.getMean();
+        }
+        else if( stat.equals("P50") ) {
+            return histogram.getPercentile(0.5);
+        }
+        else if( stat.equals("P99") ) {
+            return histogram.getPercentile(0.99);
+        }
+        else if( stat.equals("Max") ) {
+            return histogram.getMax();
+        }
+        return null;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+
+        for( String attribute : attributes ) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            }
+            catch( AttributeNotFoundException ignore ) {
+                // left out of the list as the JMX contract expects
+            }
+        }
+        return list;
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        return getInfo();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if( actionName.equals("reset") ) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public @Nonnull String toString() {
+        return "CacheMetrics[" + cache.getEntityClassName() + ",lookups=" + lookups.get() + ",misses=" + misses.get() + ",calls=" + calls.get() + "]";
+    }
+}
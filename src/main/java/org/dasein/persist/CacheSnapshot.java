@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A file holding the serialized contents of an entity cache so that a restarted JVM can serve lookups from it
+ * instead of the data store. The file is written to a temporary file and renamed into place, so readers only
+ * ever see complete snapshots. It is memory mapped and indexed lazily on the first lookup, and each record is
+ * handed out at most once; after that the cache itself holds the object.
+ * <p>A snapshot written under a different schema version, or older than its maximum age, is ignored.</p>
+ */
+public class CacheSnapshot {
+    static private final Logger logger = Logger.getLogger(CacheSnapshot.class);
+
+    static private final int MAGIC   = 0x44505331;
+    static private final int VERSION = 1;
+
+    /**
+     * Receives the records of a new snapshot. Nothing replaces the existing file until {@link #commit()}.
+     */
+    public class Output {
+        private DataOutputStream out;
+        private File             temp;
+        private HashSet<String>  written = new HashSet<String>();
+
+        private Output() throws IOException {
+            temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(schemaVersion == null ? "" : schemaVersion);
+        }
+
+        /**
+         * Discards the snapshot unless it was committed.
+         */
+        public void close() {
+            if( out != null ) {
+                try {
+                    out.close();
+                }
+                catch( IOException ignore ) {
+                    // nothing to do
+                }
+                out = null;
+                if( !temp.delete() ) {
+                    logger.warn("Unable to delete " + temp);
+                }
+            }
+        }
+
+        /**
+         * Moves the completed snapshot into place.
+         * @throws IOException the snapshot could not be moved into place
+         */
+        public void commit() throws IOException {
+            out.close();
+            out = null;
+            if( !temp.renameTo(file) ) {
+                if( !file.delete() || !temp.renameTo(file) ) {
+                    if( !temp.delete() ) {
+                        logger.warn("Unable to delete " + temp);
+                    }
+                    throw new IOException("Unable to replace " + file);
+                }
+            }
+        }
+
+        /**
+         * Adds a record to the snapshot. Later records for a key already written are skipped.
+         * @param key the primary key value
+         * @param data the serialized object
+         * @param stamp the time the object was loaded from the data store
+         * @throws IOException an error occurred writing the record
+         */
+        public void write(@Nonnull Object key, @Nonnull byte[] data, long stamp) throws IOException {
+            String str = key.toString();
+
+            if( !written.add(str) ) {
+                return;
+            }
+            byte[] k = str.getBytes("utf-8");
+
+            out.writeInt(k.length);
+            out.write(k);
+            out.writeLong(stamp);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    static private final ArrayList<BoundedMultiCache<?>> scheduled = new ArrayList<BoundedMultiCache<?>>();
+    static private Timer                                 timer     = null;
+
+    /**
+     * Writes a snapshot of the specified cache periodically and when the JVM shuts down.
+     * @param cache a cache with a snapshot attached
+     * @param interval the milliseconds between snapshots
+     */
+    static public void schedule(@Nonnull final BoundedMultiCache<?> cache, long interval) {
+        synchronized( scheduled ) {
+            if( timer == null ) {
+                timer = new Timer("DASEIN CACHE SNAPSHOT", true);
+                Runtime.getRuntime().addShutdownHook(new Thread("DASEIN CACHE SNAPSHOT") {
+                    public void run() {
+                        ArrayList<BoundedMultiCache<?>> caches;
+
+                        synchronized( scheduled ) {
+                            caches = new ArrayList<BoundedMultiCache<?>>(scheduled);
+                        }
+                        for( BoundedMultiCache<?> c : caches ) {
+                            save(c);
+                        }
+                    }
+                });
+            }
+            scheduled.add(cache);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    save(cache);
+                }
+            }, interval, interval);
+        }
+    }
+
+    static private void save(@Nonnull BoundedMultiCache<?> cache) {
+        try {
+            cache.writeSnapshot();
+        }
+        catch( Throwable t ) {
+            logger.error("Unable to write a snapshot of " + cache + ": " + t.getMessage(), t);
+        }
+    }
+
+    private ByteBuffer              buffer;
+    private File                    file;
+    private HashMap<String,Integer> index;
+    private long                    maxAge;
+    private long                    restores = 0L;
+    private String                  schemaVersion;
+
+    /**
+     * @param file the snapshot file, which need not exist yet
+     * @param schemaVersion the schema version of the objects being cached
+     * @param maxAge the age in milliseconds beyond which an existing snapshot is ignored, 0 for any age
+     */
+    public CacheSnapshot(@Nonnull File file, @Nullable String schemaVersion, long maxAge) {
+        this.file = file;
+        this.schemaVersion = schemaVersion;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Forgets the record for the specified key, for example because the object changed. The snapshot is indexed
+     * first if no lookup has done so yet, so that a later lookup cannot find the record.
+     * @param key the primary key value
+     */
+    public synchronized void discard(@Nonnull Object key) {
+        load();
+        index.remove(key.toString());
+    }
+
+    /**
+     * Forgets every remaining record.
+     */
+    public synchronized void discardAll() {
+        index = new HashMap<String,Integer>();
+        buffer = null;
+    }
+
+    public @Nonnull File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of objects handed out from the snapshot
+     */
+    public synchronized long getRestoreCount() {
+        return restores;
+    }
+
+    /**
+     * @return the keys of the records not yet handed out
+     */
+    public synchronized @Nonnull ArrayList<String> keys() {
+        load();
+        return new ArrayList<String>(index.keySet());
+    }
+
+    /**
+     * Opens a new snapshot for writing.
+     * @return the output receiving the new snapshot's records
+     * @throws IOException the snapshot file could not be created
+     */
+    public @Nonnull Output open() throws IOException {
+        return new Output();
+    }
+
+    /**
+     * Provides the record stored under the specified key while leaving it in the snapshot.
+     * @param key the primary key value
+     * @return the record or <code>null</code> if the snapshot holds none for the key
+     */
+    public synchronized @Nullable OffHeapStore.Record peek(@Nonnull Object key) {
+        load();
+        Integer position = index.get(key.toString());
+
+        return (position == null ? null : read(position));
+    }
+
+    /**
+     * Removes the record stored under the specified key from the snapshot.
+     * @param key the primary key value
+     * @return the record or <code>null</code> if the snapshot holds none for the key
+     */
+    public synchronized @Nullable OffHeapStore.Record take(@Nonnull Object key) {
+        load();
+        Integer position = index.remove(key.toString());
+
+        if( position == null ) {
+            return null;
+        }
+        OffHeapStore.Record record = read(position);
+
+        restores++;
+        if( index.isEmpty() ) {
+            buffer = null;
+        }
+        return record;
+    }
+
+    private void load() {
+        if( index != null ) {
+            return;
+        }
+        index = new HashMap<String,Integer>();
+        if( !file.exists() ) {
+            return;
+        }
+        if( file.length() > Integer.MAX_VALUE ) {
+            logger.warn("Ignoring " + file + " because it is too large to map");
+            return;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            ByteBuffer b;
+
+            try {
+                b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, raf.length());
+            }
+            finally {
+                raf.close();
+            }
+            if( b.getInt() != MAGIC || b.getInt() != VERSION ) {
+                logger.warn("Ignoring " + file + " because it is not a cache snapshot");
+                return;
+            }
+            long timestamp = b.getLong();
+            byte[] v = new byte[b.getShort() & 0xffff];
+
+            b.get(v);
+            String version = new String(v, "utf-8");
+
+            if( maxAge > 0L && System.currentTimeMillis() - timestamp > maxAge ) {
+                logger.info("Ignoring " + file + " because it is older than " + (maxAge/1000L) + " seconds");
+                return;
+            }
+            if( !version.equals(schemaVersion == null ? "" : schemaVersion) ) {
+                logger.info("Ignoring " + file + " because it was written under schema version " + version);
+                return;
+            }
+            HashMap<String,Integer> positions = new HashMap<String,Integer>();
+
+            while( b.hasRemaining() ) {
+                byte[] k = new byte[b.getInt()];
+
+                b.get(k);
+                positions.put(new String(k, "utf-8"), b.position());
+                b.position(b.position() + 8);
+                b.position(b.position() + 4 + b.getInt(b.position()));
+            }
+            buffer = b;
+            index = positions;
+        }
+        catch( Exception e ) {
+            logger.warn("Ignoring " + file + " because it could not be read: " + e.getMessage());
+        }
+    }
+
+    private @Nonnull OffHeapStore.Record read(int position) {
+        ByteBuffer b = buffer.duplicate();
+
+        b.position(position);
+        long stamp = b.getLong();
+        byte[] data = new byte[b.getInt()];
+
+        b.get(data);
+        return new OffHeapStore.Record(data, stamp);
+    }
+
+    public @Nonnull String toString() {
+        return file.toString();
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.persist.annotations.Schema;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Describes what the persistence annotations on an entity class say about it: its schema, its keys and, for
+ * descriptors generated at build time by {@link org.dasein.persist.apt.EntityProcessor}, its persistent field
+ * layout. A generated descriptor is a subclass named after the entity with the {@link #SUFFIX} appended; when
+ * none is present, the descriptor is built by reflecting over the entity class.
+ */
+public class EntityDescriptor {
+    static private final Logger logger = Logger.getLogger(EntityDescriptor.class);
+
+    static public final String SUFFIX = "_Metadata";
+
+    static private final EntityDescriptor                   NONE        = new EntityDescriptor(Object.class, null, null, null);
+    static private final Map<Class<?>,EntityDescriptor>     descriptors = new ConcurrentHashMap<Class<?>,EntityDescriptor>();
+    static private final Map<Class<?>,EntityDescriptor>     generated   = new ConcurrentHashMap<Class<?>,EntityDescriptor>();
+
+    /**
+     * Provides the descriptor for an entity class, preferring one generated at build time.
+     * @param cls the entity class
+     * @return the descriptor for the entity class
+     */
+    static public @Nonnull EntityDescriptor forClass(@Nonnull Class<? extends CachedItem> cls) {
+        EntityDescriptor descriptor = getGenerated(cls);
+
+        if( descriptor == null ) {
+            descriptor = descriptors.get(cls);
+            if( descriptor == null ) {
+                descriptor = reflect(cls);
+                descriptors.put(cls, descriptor);
+            }
+        }
+        return descriptor;
+    }
+
+    /**
+     * @param cls the class being described
+     * @return the descriptor generated for the class at build time or <code>null</code> if there is none
+     */
+    static public @Nullable EntityDescriptor getGenerated(@Nonnull Class<?> cls) {
+        EntityDescriptor descriptor = generated.get(cls);
+
+        if( descriptor == null ) {
+            descriptor = NONE;
+            if( cls.getClassLoader() != null ) {
+                try {
+                    Object ob = Class.forName(cls.getName() + SUFFIX, true, cls.getClassLoader()).newInstance();
+
+                    if( ob instanceof EntityDescriptor && ((EntityDescriptor)ob).entity.equals(cls) ) {
+                        descriptor = (EntityDescriptor)ob;
+                    }
+                }
+                catch( ClassNotFoundException ignore ) {
+                    // no generated metadata, use reflection
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to load generated metadata for " + cls.getName() + ": " + t.getMessage());
+                }
+            }
+            generated.put(cls, descriptor);
+        }
+        return (descriptor == NONE ? null : descriptor);
+    }
+
+    static private @Nonnull EntityDescriptor reflect(@Nonnull Class<? extends CachedItem> forClass) {
+        EntityDescriptor descriptor;
+        Schema schema = null;
+
+        for( Annotation annotation : forClass.getDeclaredAnnotations() ) {
+            if( annotation instanceof Schema ) {
+                schema = (Schema)annotation;
+            }
+        }
+        if( schema == null ) {
+            descriptor = new EntityDescriptor(forClass, null, null, null);
+        }
+        else {
+            descriptor = new EntityDescriptor(forClass, schema.entity(), schema.value(), null);
+            for( Class<? extends SchemaMapper> mapper : schema.mappers() ) {
+                descriptor.mapper(mapper);
+            }
+        }
+        Class<?> cls = forClass;
+
+        while( !cls.getName().equals(Object.class.getName()) ) {
+            for( Field field : cls.getDeclaredFields() ) {
+                for( Annotation annotation : field.getDeclaredAnnotations() ) {
+                    if( annotation instanceof Index ) {
+                        Index idx = (Index)annotation;
+
+                        if( idx.type().equals(IndexType.PRIMARY) ) {
+                            if( descriptor.primaryKey == null ) {
+                                descriptor.primaryKey = field.getName();
+                            }
+                        }
+                        else if( idx.multi() != null && idx.multi().length > 0 ) {
+                            descriptor.index(field.getName(), idx.cascade(), idx.multi());
+                        }
+                        else if( idx.type().equals(IndexType.FOREIGN) && !idx.identifies().equals(CachedItem.class) ) {
+                            descriptor.key(idx.identifies(), field.getName());
+                        }
+                        else {
+                            descriptor.key(field.getName());
+                        }
+                    }
+                }
+            }
+            cls = cls.getSuperclass();
+        }
+        return descriptor;
+    }
+
+    private Class<?>                                entity;
+    private String                                  entityName;
+    private List<Class<? extends LookupDelegate>>   fieldDelegates = new ArrayList<Class<? extends LookupDelegate>>();
+    private List<Integer>                           fieldLevels    = new ArrayList<Integer>();
+    private List<String>                            fieldNames     = new ArrayList<String>();
+    private TreeSet<Key>                            keys           = new TreeSet<Key>();
+    private List<Class<? extends SchemaMapper>>     mappers        = new ArrayList<Class<? extends SchemaMapper>>();
+    private String                                  primaryKey;
+    private String                                  schemaVersion;
+
+    /**
+     * Constructs a descriptor. Generated subclasses pass the values from the entity's annotations and then
+     * register its mappers, keys and fields.
+     * @param entity the entity class
+     * @param entityName the entity name from {@link Schema#entity()} or <code>null</code> if the class has no schema
+     * @param schemaVersion the schema version or <code>null</code> if the class has no schema
+     * @param primaryKey the name of the primary key field
+     */
+    protected EntityDescriptor(@Nonnull Class<?> entity, @Nullable String entityName, @Nullable String schemaVersion, @Nullable String primaryKey) {
+        this.entity = entity;
+        this.entityName = entityName;
+        this.schemaVersion = schemaVersion;
+        this.primaryKey = primaryKey;
+    }
+
+    /**
+     * Registers the next persistent field in the entity's layout.
+     * @param level the number of superclasses between the entity and the class declaring the field
+     * @param name the field name
+     * @param delegate the {@link org.dasein.persist.annotations.Lookup} delegate for the field, if any
+     */
+    protected void field(int level, @Nonnull String name, @Nullable Class<? extends LookupDelegate> delegate) {
+        fieldLevels.add(level);
+        fieldNames.add(name);
+        fieldDelegates.add(delegate);
+    }
+
+    /**
+     * Registers the keys for an index spanning several fields.
+     * @param field the indexed field
+     * @param cascade true if every leading subset of the fields is a key of its own
+     * @param multi the remaining fields making up the index
+     */
+    protected void index(@Nonnull String field, boolean cascade, @Nonnull String ... multi) {
+        if( cascade ) {
+            keys.add(new Key(field));
+            for( int i=0; i<multi.length; i++ ) {
+                String[] parts = new String[i+2];
+
+                parts[0] = field;
+                System.arraycopy(multi, 0, parts, 1, i+1);
+                keys.add(new Key(parts));
+            }
+        }
+        else {
+            String[] parts = new String[multi.length + 1];
+
+            parts[0] = field;
+            System.arraycopy(multi, 0, parts, 1, multi.length);
+            keys.add(new Key(parts));
+        }
+    }
+
+    protected void key(@Nonnull String ... fields) {
+        keys.add(new Key(fields));
+    }
+
+    protected void key(@Nonnull Class<? extends CachedItem> identifies, @Nonnull String field) {
+        keys.add(new Key(identifies, field));
+    }
+
+    protected void mapper(@Nonnull Class<? extends SchemaMapper> mapper) {
+        mappers.add(mapper);
+    }
+
+    /**
+     * @return the entity name from the schema annotation, which may be empty, or <code>null</code> if the entity has no schema
+     */
+    public @Nullable String getEntityName() {
+        return entityName;
+    }
+
+    /**
+     * @return the secondary and foreign keys of the entity, in key order
+     */
+    public @Nonnull Key[] getKeys() {
+        return keys.toArray(new Key[keys.size()]);
+    }
+
+    /**
+     * Instantiates the schema mappers declared for the entity.
+     * @return new instances of the entity's mappers or <code>null</code> if it declares none
+     * @throws PersistenceException a mapper could not be instantiated
+     */
+    public @Nullable SchemaMapper[] getMappers() throws PersistenceException {
+        if( mappers.isEmpty() ) {
+            return null;
+        }
+        SchemaMapper[] instances = new SchemaMapper[mappers.size()];
+
+        for( int i=0; i<instances.length; i++ ) {
+            try {
+                instances[i] = mappers.get(i).newInstance();
+            }
+            catch( Throwable t ) {
+                throw new PersistenceException(t.getMessage());
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * @return the name of the field annotated as the primary index or <code>null</code> if there is none
+     */
+    public @Nullable String getPrimaryKey() {
+        return primaryKey;
+    }
+
+    /**
+     * @return the schema version of the entity, <code>0</code> if it has no schema
+     */
+    public @Nonnull String getSchemaVersion() {
+        return (schemaVersion == null ? "0" : schemaVersion);
+    }
+
+    /**
+     * Resolves the generated field layout against the entity class.
+     * @return the persistent fields of the entity, most derived class first, or <code>null</code> if this
+     * descriptor carries no layout or the layout no longer matches the class
+     */
+    public @Nullable Field[] getFields() {
+        if( fieldNames.isEmpty() ) {
+            return null;
+        }
+        Field[] fields = new Field[fieldNames.size()];
+        Class<?> cls = entity;
+        int level = 0;
+
+        for( int i=0; i<fields.length; i++ ) {
+            while( level < fieldLevels.get(i) && cls != null ) {
+                cls = cls.getSuperclass();
+                level++;
+            }
+            if( cls == null ) {
+                return null;
+            }
+            try {
+                fields[i] = cls.getDeclaredField(fieldNames.get(i));
+            }
+            catch( NoSuchFieldException e ) {
+                logger.warn("Generated metadata for " + entity.getName() + " is out of date, falling back to reflection");
+                return null;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @param index the position of a field in the array returned by {@link #getFields()}
+     * @return the lookup delegate class for the field or <code>null</code> if it has none
+     */
+    public @Nullable Class<? extends LookupDelegate> getLookupDelegate(int index) {
+        return fieldDelegates.get(index);
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.dasein.persist.annotations.Lookup;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Describes the persistent state of an entity class. The field layout comes from the entity's generated
+ * {@link EntityDescriptor} when there is one; otherwise the class hierarchy is walked exactly once when the
+ * metadata is built. Mapping and key extraction then work from the resulting field table.
+ * @param <T> the entity class being described
+ */
+public class EntityMetadata<T> {
+    static private final Logger logger = Logger.getLogger(EntityMetadata.class);
+
+    /**
+     * A single non-static, non-transient field of an entity along with everything needed to read or write it.
+     */
+    static public class PersistentField {
+        private ValueConverter    converter;
+        private LookupDelegate    delegate;
+        private Field             field;
+        private int               index;
+        private String            name;
+        private ParameterizedType parameterizedType;
+        private int               slot;
+        private Class<?>          type;
+
+        private PersistentField(@Nonnull Field field, int index) {
+            Type generic = field.getGenericType();
+
+            field.setAccessible(true);
+            this.field = field;
+            this.index = index;
+            this.slot = index;
+            this.name = field.getName();
+            this.type = field.getType();
+            this.parameterizedType = (generic instanceof ParameterizedType ? (ParameterizedType)generic : null);
+            this.converter = ValueConverter.getInstance(type, parameterizedType);
+        }
+
+        public Object get(@Nonnull Object target) throws IllegalAccessException {
+            return field.get(target);
+        }
+
+        public @Nonnull ValueConverter getConverter() {
+            return converter;
+        }
+
+        public @Nullable LookupDelegate getDelegate() {
+            return delegate;
+        }
+
+        public @Nonnull Field getField() {
+            return field;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        public @Nullable ParameterizedType getParameterizedType() {
+            return parameterizedType;
+        }
+
+        /**
+         * @return the index of the field that owns this field's name, which differs from {@link #getIndex()} only for shadowed fields
+         */
+        public int getSlot() {
+            return slot;
+        }
+
+        public @Nonnull Class<?> getType() {
+            return type;
+        }
+
+        public boolean isPrimitive() {
+            return type.isPrimitive();
+        }
+
+        public void set(@Nonnull Object target, @Nullable Object value) throws IllegalAccessException {
+            field.set(target, value);
+        }
+
+        public @Nonnull String toString() {
+            return name + " (" + type.getName() + ")";
+        }
+    }
+
+    static private final Map<Class<?>,EntityMetadata<?>> shared = new ConcurrentHashMap<Class<?>,EntityMetadata<?>>();
+
+    /**
+     * Provides shared, keyless metadata for classes that are mapped as values rather than managed by a cache
+     * (such as {@link org.dasein.persist.annotations.AutoJSON} classes).
+     * @param cls the class being mapped
+     * @return metadata for the specified class
+     */
+    @SuppressWarnings("unchecked")
+    static public @Nonnull <C> EntityMetadata<C> forClass(@Nonnull Class<C> cls) {
+        EntityMetadata<C> metadata = (EntityMetadata<C>)shared.get(cls);
+
+        if( metadata == null ) {
+            metadata = new EntityMetadata<C>(cls);
+            shared.put(cls, metadata);
+        }
+        return metadata;
+    }
+
+    private Map<String,PersistentField> byName;
+    private PersistentField[]           fields;
+    private Key[]                       keys;
+    private PersistentField[][]         keyFields;
+    private Map<String,LookupDelegate>  lookups;
+    private Class<T>                    target;
+
+    /**
+     * Builds the field table for the specified class and resolves the fields backing each of the specified keys.
+     * @param target the entity class
+     * @param keys the keys whose field positions should be resolved up front
+     */
+    public EntityMetadata(@Nonnull Class<T> target, @Nullable Key ... keys) {
+        ArrayList<PersistentField> list = new ArrayList<PersistentField>();
+        HashMap<String,PersistentField> names = new HashMap<String,PersistentField>();
+        HashMap<String,LookupDelegate> delegates = new HashMap<String,LookupDelegate>();
+        EntityDescriptor descriptor = EntityDescriptor.getGenerated(target);
+        Field[] layout = (descriptor == null ? null : descriptor.getFields());
+
+        this.target = target;
+        if( layout != null ) {
+            for( int i=0; i<layout.length; i++ ) {
+                add(layout[i], descriptor.getLookupDelegate(i), list, names, delegates);
+            }
+        }
+        else {
+            Class<?> current = target;
+
+            while( current != null && !current.equals(Object.class) ) {
+                for( Field f : current.getDeclaredFields() ) {
+                    int modifiers = f.getModifiers();
+
+                    if( Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ) {
+                        continue;
+                    }
+                    Class<? extends LookupDelegate> delegate = null;
+
+                    for( Annotation annotation : f.getDeclaredAnnotations() ) {
+                        if( annotation instanceof Lookup ) {
+                            delegate = ((Lookup)annotation).delegate();
+                        }
+                    }
+                    add(f, delegate, list, names, delegates);
+                }
+                current = current.getSuperclass();
+            }
+        }
+        fields = list.toArray(new PersistentField[list.size()]);
+        byName = Collections.unmodifiableMap(names);
+        lookups = Collections.unmodifiableMap(delegates);
+        if( keys == null ) {
+            keys = new Key[0];
+        }
+        this.keys = new Key[keys.length];
+        keyFields = new PersistentField[keys.length][];
+        for( int i=0; i<keys.length; i++ ) {
+            this.keys[i] = keys[i];
+            keyFields[i] = resolve(keys[i]);
+        }
+    }
+
+    private void add(@Nonnull Field f, @Nullable Class<? extends LookupDelegate> delegate, @Nonnull ArrayList<PersistentField> list, @Nonnull Map<String,PersistentField> names, @Nonnull Map<String,LookupDelegate> delegates) {
+        PersistentField field = new PersistentField(f, list.size());
+
+        if( delegate != null ) {
+            try {
+                field.delegate = delegate.newInstance();
+                delegates.put(field.name, field.delegate);
+            }
+            catch( Throwable t ) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+        list.add(field);
+        // subclass fields shadow superclass fields of the same name
+        if( !names.containsKey(field.name) ) {
+            names.put(field.name, field);
+        }
+        else {
+            field.slot = names.get(field.name).index;
+        }
+    }
+
+    /**
+     * @param name the name of the desired field
+     * @return the persistent field with the specified name or <code>null</code> if no such field exists
+     */
+    public @Nullable PersistentField getField(@Nonnull String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return all persistent fields in declaration order, starting with the most derived class
+     */
+    public @Nonnull PersistentField[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Provides the fields that make up the specified key. Keys registered at construction are answered
+     * from a precomputed table.
+     * @param key the key being examined
+     * @return the fields making up the key or <code>null</code> if any of the key's fields is not a persistent field
+     */
+    public @Nullable PersistentField[] getKeyFields(@Nonnull Key key) {
+        for( int i=0; i<keys.length; i++ ) {
+            if( keys[i] == key ) {
+                return keyFields[i];
+            }
+        }
+        return resolve(key);
+    }
+
+    public @Nullable LookupDelegate getLookupDelegate(@Nonnull String field) {
+        return lookups.get(field);
+    }
+
+    public @Nonnull Class<T> getTarget() {
+        return target;
+    }
+
+    public @Nonnull T newInstance() throws InstantiationException, IllegalAccessException {
+        return target.newInstance();
+    }
+
+    private @Nullable PersistentField[] resolve(@Nullable Key key) {
+        if( key == null ) {
+            return null;
+        }
+        String[] names = key.getFields();
+        PersistentField[] resolved = new PersistentField[names.length];
+
+        for( int i=0; i<names.length; i++ ) {
+            resolved[i] = byName.get(names[i]);
+            if( resolved[i] == null ) {
+                return null;
+            }
+        }
+        return resolved;
+    }
+
+    public @Nonnull String toString() {
+        return target.getName() + byName.keySet();
+    }
+}
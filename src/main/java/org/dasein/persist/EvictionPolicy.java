@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Decides which entries a {@link BoundedMultiCache} keeps once it is full. Entries are identified by their
+ * primary key value. A policy is only ever called while its cache holds its own lock, so implementations
+ * need not be thread safe.
+ */
+public interface EvictionPolicy {
+    /**
+     * Records a lookup of the specified key, whether or not the key is currently cached.
+     * @param key the primary key value that was looked up
+     */
+    public void accessed(@Nonnull Object key);
+
+    /**
+     * Records that the specified key is now cached.
+     * @param key the primary key value of the new entry
+     */
+    public void added(@Nonnull Object key);
+
+    /**
+     * Decides whether a new entry is worth keeping at the expense of the current eviction candidate.
+     * @param candidate the primary key value of the entry being added
+     * @param victim the primary key value of the entry that would be evicted to make room for it
+     * @return true if the candidate should be cached and the victim evicted
+     */
+    public boolean admit(@Nonnull Object candidate, @Nonnull Object victim);
+
+    /**
+     * Records that the specified key is no longer cached.
+     * @param key the primary key value of the removed entry
+     */
+    public void removed(@Nonnull Object key);
+
+    /**
+     * Discards everything the policy knows about cached keys.
+     */
+    public void clear();
+
+    /**
+     * @return the primary key value of the entry that should be evicted next or <code>null</code> if nothing is cached
+     */
+    public @Nullable Object victim();
+}
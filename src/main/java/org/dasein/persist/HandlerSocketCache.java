@@ -28,13 +28,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
 import org.dasein.persist.l10n.LocalizationGroup;
 import org.dasein.util.CachedItem;
 import org.dasein.util.Jiterator;
@@ -160,44 +163,31 @@ public class HandlerSocketCache<T extends CachedItem> extends PersistentCache<T>
 
 		populator = new PopulatorThread<T>(new JiteratorPopulator<T>() {
 			public void populate(Jiterator<T> iterator) throws PersistenceException {
-				ResultSet rs = null;
-				try {             
-					String index = null;
-					String[] values = new String[terms.length];
-					FindOperator operator = null;
+				ArrayList<SearchTerm> lookups = new ArrayList<SearchTerm>();
 
-					for (int i = 0; i < terms.length; i++) {
-						// since no other way to get index, just assume column
-						index = terms[i].getColumn(); 
-						values[i] = terms[i].getValue().toString();		
-						
-						switch (terms[i].getOperator()) {
-							case EQUALS: operator = FindOperator.EQ; break;
-							case GREATER_THAN: operator = FindOperator.GT; break;
-							case GREATER_THAN_OR_EQUAL_TO: operator = FindOperator.GE; break;
-							case LESS_THAN: operator = FindOperator.LT; break;
-							case LESS_THAN_OR_EQUAL_TO: operator = FindOperator.LE; break;
-							default: throw new PersistenceException("Operator " + operator + " not supported!");							
-						}						
+				for (SearchTerm term : terms) {
+					if (term.getOperator().equals(Operator.IN) || term.getOperator().equals(Operator.OR)) {
+						if (terms.length > 1) {
+							throw new PersistenceException("IN and OR must be the only search term");
+						}
+						expand(term, lookups);
 					}
+				}
+				// resolve the keys together so that only the cache misses go back to HandlerSocket
+				LinkedHashSet<Object> keys = new LinkedHashSet<Object>();
 
-					// open a session to retrieve the primary key of the table by the values of the specified index
-					rs = getSession(index, getPrimaryKeyField()).find(values, operator, 1, 0);
-
-					// for each row, get the object from cache
-					while (rs.next()) {
-						T object = get(getValue(getPrimaryKeyField(), 1, rs));
-						if (object != null) {
-							iterator.push(object);
-						}
+				if (lookups.isEmpty()) {
+					findKeys(terms, keys);
+				}
+				else {
+					// there is no multi-value find, so each value is looked up on its own and the keys are merged
+					for (SearchTerm lookup : lookups) {
+						findKeys(new SearchTerm[] { lookup }, keys);
 					}
-				} catch (Exception e) {
-					throw new PersistenceException(e.getMessage());
-				} finally {
-					try {
-						rs.close();
-					} catch (SQLException e) {
-						throw new PersistenceException(e.getMessage());
+				}
+				for (T object : getAll(keys)) {
+					if (object != null) {
+						iterator.push(object);
 					}
 				}
 			}
@@ -206,6 +196,63 @@ public class HandlerSocketCache<T extends CachedItem> extends PersistentCache<T>
 		return populator.getResult();
 	}
 
+	/**
+	 * Breaks IN terms and OR groups down into single value terms.
+	 */
+	private void expand(SearchTerm term, List<SearchTerm> lookups) {
+		if (term.getOperator().equals(Operator.OR)) {
+			for (SearchTerm alternative : term.getAlternatives()) {
+				expand(alternative, lookups);
+			}
+		}
+		else if (term.getOperator().equals(Operator.IN)) {
+			for (Object value : term.getValues()) {
+				lookups.add(new SearchTerm(term.getColumn(), Operator.EQUALS, value));
+			}
+		}
+		else {
+			lookups.add(term);
+		}
+	}
+
+	private void findKeys(SearchTerm[] terms, Set<Object> keys) throws PersistenceException {
+		ResultSet rs = null;
+		try {             
+			String index = null;
+			String[] values = new String[terms.length];
+			FindOperator operator = null;
+
+			for (int i = 0; i < terms.length; i++) {
+				// since no other way to get index, just assume column
+				index = terms[i].getColumn(); 
+				values[i] = terms[i].getValue().toString();		
+				
+				switch (terms[i].getOperator()) {
+					case EQUALS: operator = FindOperator.EQ; break;
+					case GREATER_THAN: operator = FindOperator.GT; break;
+					case GREATER_THAN_OR_EQUAL_TO: operator = FindOperator.GE; break;
+					case LESS_THAN: operator = FindOperator.LT; break;
+					case LESS_THAN_OR_EQUAL_TO: operator = FindOperator.LE; break;
+					default: throw new PersistenceException("Operator " + operator + " not supported!");							
+				}						
+			}
+
+			// open a session to retrieve the primary key of the table by the values of the specified index
+			rs = getSession(index, getPrimaryKeyField()).find(values, operator, 1, 0);
+			while (rs.next()) {
+				keys.add(getValue(getPrimaryKeyField(), 1, rs));
+			}
+		} catch (Exception e) {
+			throw new PersistenceException(e.getMessage());
+		} finally {
+			try {
+				rs.close();
+			} catch (SQLException e) {
+				throw new PersistenceException(e.getMessage());
+			}
+		}
+	}
+
 	@Override
 	public T get(Object valueOfPrimaryKey) throws PersistenceException {
 		T item = getCache().find(getPrimaryKeyField(), valueOfPrimaryKey.toString());
@@ -242,6 +289,43 @@ public class HandlerSocketCache<T extends CachedItem> extends PersistentCache<T>
         return item;
 	}
 
+	/**
+	 * Reads the objects over a single session on the PRIMARY index. HandlerSocket answers one key per
+	 * find, so the lookups are issued back to back on that session.
+	 */
+	@Override
+	protected Collection<T> loadAll(List<Object> keys) throws PersistenceException {
+		ArrayList<T> items = new ArrayList<T>();
+		IndexSession session = getSession("PRIMARY", columns);
+
+		for (Object key : keys) {
+			ResultSet rs = null;
+
+			try {
+				rs = session.find(new String[] {key.toString()});
+				if (rs.next()) {
+					HashMap<String,Object> state = new HashMap<String,Object>();
+
+					for( int i=1; i<=columns.length; i++) {
+						state.put(columns[i-1], getValue(columns[i-1], i, rs));
+					}
+					items.add(getCache().find(state));
+				}
+			} catch (Exception e) {
+				throw new PersistenceException(e);
+			} finally {
+				try {
+					if (rs != null) {
+						rs.close();
+					}
+				} catch (SQLException e) {
+					throw new PersistenceException(e);
+				}
+			}
+		}
+		return items;
+	}
+
 	@Override
 	public Collection<T> list() throws PersistenceException {
 		//TODO not implemented b/c HandlerSocket doesn't support getting records w/o lookup value
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A lock-free histogram of non-negative values in power-of-two buckets. Recording costs a few atomic
+ * increments; percentiles are estimated from the buckets only when asked for, and are accurate to within a
+ * factor of two.
+ */
+public class Histogram {
+    static private final int BUCKETS = 64;
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private AtomicLong      count   = new AtomicLong(0L);
+    private AtomicLong      max     = new AtomicLong(0L);
+    private AtomicLong      total   = new AtomicLong(0L);
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+
+        return (n == 0L ? 0.0 : ((double)total.get())/n);
+    }
+
+    /**
+     * Estimates the value below which the specified fraction of recorded values fall.
+     * @param fraction the fraction, between 0 and 1
+     * @return the upper bound of the bucket holding the percentile, capped at the largest value recorded
+     */
+    public long getPercentile(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long n = 0L;
+
+        for( int i=0; i<BUCKETS; i++ ) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if( n == 0L ) {
+            return 0L;
+        }
+        long target = (long)Math.ceil(fraction * n);
+        long seen = 0L;
+
+        for( int i=0; i<BUCKETS; i++ ) {
+            seen += counts[i];
+            if( seen >= target && counts[i] > 0L ) {
+                long bound = (i == 0 ? 0L : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1L));
+
+                return Math.min(bound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param value the value to record
+     */
+    public void record(long value) {
+        if( value < 0L ) {
+            value = 0L;
+        }
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+
+        while( value > current && !max.compareAndSet(current, value) ) {
+            current = max.get();
+        }
+    }
+
+    public void reset() {
+        for( int i=0; i<BUCKETS; i++ ) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        total.set(0L);
+        max.set(0L);
+    }
+
+    public @Nonnull String toString() {
+        return "count=" + getCount() + ",mean=" + Math.round(getMean()) + ",p50=" + getPercentile(0.5) + ",p99=" + getPercentile(0.99) + ",max=" + getMax();
+    }
+}
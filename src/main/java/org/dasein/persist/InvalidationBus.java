@@ -0,0 +1,369 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Broadcasts the primary keys of created, updated and removed objects to the other JVMs sharing a data store
+ * so that each can release its own cached copy. Events are coalesced and sent in batches every
+ * <code>dasein.persist.invalidation.batchMillis</code> milliseconds (default {@link #DEFAULT_BATCH_MILLIS}).
+ * Delivery is best effort; cache expiry remains the backstop for lost messages.
+ * <p>Subclasses supply the transport by implementing {@link #send(byte[])} and passing whatever they receive to
+ * {@link #receive(byte[], int, int)}. A node ignores its own messages.</p>
+ */
+public abstract class InvalidationBus {
+    static private final Logger logger = Logger.getLogger(InvalidationBus.class);
+
+    static public final long DEFAULT_BATCH_MILLIS = 20L;
+    static public final int  MAXIMUM_PACKET       = 1400;
+
+    static private final int MAGIC = 0x44504942;
+
+    /**
+     * Receives invalidations for a single entity.
+     */
+    static public interface Listener {
+        /**
+         * @param key the primary key value of the object that changed, or <code>null</code> if any object may have changed
+         */
+        public void invalidated(@Nullable String key);
+    }
+
+    static private final HashMap<String,InvalidationBus> buses = new HashMap<String,InvalidationBus>();
+
+    /**
+     * Provides the shared bus for the specified transport, starting it on first use.
+     * @param type <code>multicast</code> or the name of an {@link InvalidationBus} subclass with a public no-arg constructor
+     * @return the bus or <code>null</code> if it could not be started
+     */
+    static public @Nullable InvalidationBus getInstance(@Nonnull String type) {
+        synchronized( buses ) {
+            InvalidationBus bus = buses.get(type);
+
+            if( bus == null ) {
+                try {
+                    if( type.equalsIgnoreCase("multicast") ) {
+                        bus = new MulticastInvalidationBus();
+                    }
+                    else {
+                        bus = (InvalidationBus)Class.forName(type).newInstance();
+                    }
+                    bus.start();
+                }
+                catch( Exception e ) {
+                    logger.error("Unable to start the " + type + " invalidation bus: " + e.getMessage(), e);
+                    return null;
+                }
+                buses.put(type, bus);
+            }
+            return bus;
+        }
+    }
+
+    private long                                                     batchMillis;
+    private AtomicLong                                               coalesced   = new AtomicLong(0L);
+    private Thread                                                   flusher;
+    private ConcurrentHashMap<String,CopyOnWriteArrayList<Listener>> listeners   = new ConcurrentHashMap<String,CopyOnWriteArrayList<Listener>>();
+    private final Object                                             lock        = new Object();
+    private long                                                     node;
+    private LinkedHashMap<String,LinkedHashSet<String>>              pending     = new LinkedHashMap<String,LinkedHashSet<String>>();
+    private AtomicLong                                               published   = new AtomicLong(0L);
+    private AtomicLong                                               received    = new AtomicLong(0L);
+    private volatile boolean                                         running     = false;
+    private AtomicLong                                               sent        = new AtomicLong(0L);
+    private HashSet<String>                                          wide        = new HashSet<String>();
+
+    public InvalidationBus() {
+        String prop = PersistentCache.getProperties().getProperty("dasein.persist.invalidation.batchMillis");
+        long millis = DEFAULT_BATCH_MILLIS;
+
+        if( prop != null ) {
+            try {
+                millis = Long.parseLong(prop.trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid dasein.persist.invalidation.batchMillis, using " + DEFAULT_BATCH_MILLIS);
+            }
+        }
+        batchMillis = Math.max(1L, millis);
+        node = new SecureRandom().nextLong();
+    }
+
+    /**
+     * Stops sending and receiving. Pending events are sent first.
+     */
+    public void close() {
+        running = false;
+        if( flusher != null ) {
+            flusher.interrupt();
+            try {
+                flusher.join(1000L);
+            }
+            catch( InterruptedException ignore ) {
+                // give up waiting
+            }
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of published events dropped because an identical or broader event was already pending
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of events published by this node
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return the number of events received from other nodes
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of packets sent
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * Queues an invalidation for the other nodes.
+     * @param entity the name of the entity class
+     * @param key the primary key value of the object that changed, or <code>null</code> if any object may have changed
+     */
+    public void publish(@Nonnull String entity, @Nullable Object key) {
+        published.incrementAndGet();
+        synchronized( lock ) {
+            if( wide.contains(entity) ) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            if( key == null ) {
+                LinkedHashSet<String> keys = pending.remove(entity);
+
+                if( keys != null ) {
+                    coalesced.addAndGet(keys.size());
+                }
+                wide.add(entity);
+                pending.put(entity, new LinkedHashSet<String>());
+                return;
+            }
+            LinkedHashSet<String> keys = pending.get(entity);
+
+            if( keys == null ) {
+                keys = new LinkedHashSet<String>();
+                pending.put(entity, keys);
+            }
+            if( !keys.add(key.toString()) ) {
+                coalesced.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Decodes a packet from another node and notifies the affected listeners.
+     * @param data the buffer holding the packet
+     * @param offset the start of the packet in the buffer
+     * @param length the length of the packet
+     */
+    protected void receive(@Nonnull byte[] data, int offset, int length) {
+        ArrayList<String> entities = new ArrayList<String>();
+        ArrayList<String> keys = new ArrayList<String>();
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+
+            if( in.readInt() != MAGIC || in.readLong() == node ) {
+                return;
+            }
+            int count = in.readUnsignedShort();
+
+            for( int i=0; i<count; i++ ) {
+                entities.add(in.readUTF());
+                keys.add(in.readBoolean() ? in.readUTF() : null);
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Ignoring a malformed invalidation packet: " + e.getMessage());
+            return;
+        }
+        for( int i=0; i<entities.size(); i++ ) {
+            CopyOnWriteArrayList<Listener> list = listeners.get(entities.get(i));
+
+            received.incrementAndGet();
+            if( list != null ) {
+                for( Listener listener : list ) {
+                    try {
+                        listener.invalidated(keys.get(i));
+                    }
+                    catch( Throwable t ) {
+                        logger.error("Invalidation of " + entities.get(i) + " " + keys.get(i) + " failed: " + t.getMessage(), t);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a packet to the other nodes.
+     * @param packet the packet, no larger than {@link #MAXIMUM_PACKET} bytes
+     * @throws IOException an error occurred sending the packet
+     */
+    protected abstract void send(@Nonnull byte[] packet) throws IOException;
+
+    /**
+     * Starts batching published events. Subclasses start receiving before calling this.
+     * @throws IOException the transport could not be started
+     */
+    public void start() throws IOException {
+        running = true;
+        flusher = new Thread("DASEIN INVALIDATION") {
+            public void run() {
+                while( running ) {
+                    try {
+                        Thread.sleep(batchMillis);
+                    }
+                    catch( InterruptedException e ) {
+                        // flush and check whether we are still running
+                    }
+                    flush();
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void subscribe(@Nonnull String entity, @Nonnull Listener listener) {
+        CopyOnWriteArrayList<Listener> list = listeners.get(entity);
+
+        if( list == null ) {
+            listeners.putIfAbsent(entity, new CopyOnWriteArrayList<Listener>());
+            list = listeners.get(entity);
+        }
+        list.addIfAbsent(listener);
+    }
+
+    public void unsubscribe(@Nonnull String entity, @Nonnull Listener listener) {
+        CopyOnWriteArrayList<Listener> list = listeners.get(entity);
+
+        if( list != null ) {
+            list.remove(listener);
+        }
+    }
+
+    private void flush() {
+        LinkedHashMap<String,LinkedHashSet<String>> events;
+        HashSet<String> all;
+
+        synchronized( lock ) {
+            if( pending.isEmpty() ) {
+                return;
+            }
+            events = pending;
+            all = wide;
+            pending = new LinkedHashMap<String,LinkedHashSet<String>>();
+            wide = new HashSet<String>();
+        }
+        try {
+            ByteArrayOutputStream packet = null;
+            DataOutputStream out = null;
+            int count = 0;
+
+            for( Map.Entry<String,LinkedHashSet<String>> entry : events.entrySet() ) {
+                String entity = entry.getKey();
+                ArrayList<String> keys = new ArrayList<String>(entry.getValue());
+
+                if( all.contains(entity) ) {
+                    keys.clear();
+                    keys.add(null);
+                }
+                for( String key : keys ) {
+                    ByteArrayOutputStream event = new ByteArrayOutputStream();
+                    DataOutputStream e = new DataOutputStream(event);
+
+                    e.writeUTF(entity);
+                    e.writeBoolean(key != null);
+                    if( key != null ) {
+                        e.writeUTF(key);
+                    }
+                    e.flush();
+                    if( packet != null && (packet.size() + event.size() > MAXIMUM_PACKET || count == 0xffff) ) {
+                        send(packet, count);
+                        packet = null;
+                    }
+                    if( packet == null ) {
+                        packet = new ByteArrayOutputStream();
+                        out = new DataOutputStream(packet);
+                        out.writeInt(MAGIC);
+                        out.writeLong(node);
+                        out.writeShort(0);
+                        count = 0;
+                    }
+                    event.writeTo(out);
+                    count++;
+                }
+            }
+            if( packet != null ) {
+                send(packet, count);
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to send cache invalidations: " + e.getMessage());
+        }
+    }
+
+    private void send(@Nonnull ByteArrayOutputStream packet, int count) throws IOException {
+        byte[] data = packet.toByteArray();
+
+        // the event count sits right after the magic number and node
+        data[12] = (byte)(count >>> 8);
+        data[13] = (byte)count;
+        send(data);
+        sent.incrementAndGet();
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A pull parser for JSON text. Top-level structures are walked token by token so callers can copy values
+ * straight into their destination; only nested objects and arrays are materialized, as {@link JSONObject}
+ * and {@link JSONArray} instances. Scalar values are typed exactly as org.json would type them.
+ */
+public class JSONStreamReader implements StateReader {
+    private char[] buffer = new char[4096];
+    private int    limit  = 0;
+    private int    pos    = 0;
+    private Reader source;
+
+    public JSONStreamReader(@Nonnull Reader source) {
+        this.source = source;
+    }
+
+    public void beginArray() throws IOException, JSONException {
+        expect('[');
+    }
+
+    public void beginObject() throws IOException, JSONException {
+        expect('{');
+    }
+
+    public void endArray() throws IOException, JSONException {
+        expect(']');
+    }
+
+    public void endObject() throws IOException, JSONException {
+        expect('}');
+    }
+
+    /**
+     * Indicates whether the current object or array has more members, consuming any separating comma.
+     * @return true if another name or value follows
+     * @throws IOException an error occurred reading from the source
+     * @throws JSONException the source ended unexpectedly
+     */
+    public boolean hasNext() throws IOException, JSONException {
+        int c = peek();
+
+        if( c == ',' ) {
+            pos++;
+            c = peek();
+        }
+        if( c == -1 ) {
+            throw new JSONException("Unexpected end of JSON input");
+        }
+        return (c != '}' && c != ']');
+    }
+
+    /**
+     * @return true if the next token is the start of an array
+     * @throws IOException an error occurred reading from the source
+     */
+    public boolean isArray() throws IOException {
+        return (peek() == '[');
+    }
+
+    public @Nonnull String nextName() throws IOException, JSONException {
+        if( peek() != '"' ) {
+            throw syntax("Expected a member name");
+        }
+        pos++;
+        String name = readString();
+
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Reads the next value. JSON <code>null</code> is returned as <code>null</code> at this level, while
+     * nested structures carry {@link JSONObject#NULL} as org.json trees do.
+     * @return the next value
+     * @throws IOException an error occurred reading from the source
+     * @throws JSONException the source is not valid JSON
+     */
+    public @Nullable Object nextValue() throws IOException, JSONException {
+        Object value = readValue();
+
+        return (value == JSONObject.NULL ? null : value);
+    }
+
+    /**
+     * Skips over the next value, including any nested structure.
+     * @throws IOException an error occurred reading from the source
+     * @throws JSONException the source is not valid JSON
+     */
+    public void skipValue() throws IOException, JSONException {
+        readValue();
+    }
+
+    private void expect(char c) throws IOException, JSONException {
+        if( peek() != c ) {
+            throw syntax("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private boolean fill() throws IOException {
+        limit = source.read(buffer, 0, buffer.length);
+        pos = 0;
+        if( limit < 1 ) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private int peek() throws IOException {
+        while( true ) {
+            if( pos >= limit && !fill() ) {
+                return -1;
+            }
+            char c = buffer[pos];
+
+            if( c == ' ' || c == '\n' || c == '\r' || c == '\t' ) {
+                pos++;
+            }
+            else {
+                return c;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if( pos >= limit && !fill() ) {
+            return -1;
+        }
+        return buffer[pos++];
+    }
+
+    private @Nonnull String readString() throws IOException, JSONException {
+        StringBuilder str = null;
+        int start = pos;
+
+        while( true ) {
+            // fast path: copy straight out of the buffer until an escape or a refill
+            while( pos < limit ) {
+                char c = buffer[pos];
+
+                if( c == '"' ) {
+                    String value;
+
+                    if( str == null ) {
+                        value = new String(buffer, start, pos - start);
+                    }
+                    else {
+                        str.append(buffer, start, pos - start);
+                        value = str.toString();
+                    }
+                    pos++;
+                    return value;
+                }
+                if( c == '\\' ) {
+                    break;
+                }
+                pos++;
+            }
+            if( str == null ) {
+                str = new StringBuilder();
+            }
+            str.append(buffer, start, pos - start);
+            if( pos >= limit ) {
+                if( !fill() ) {
+                    throw new JSONException("Unterminated string");
+                }
+            }
+            else {
+                pos++;
+                readEscape(str);
+            }
+            start = pos;
+        }
+    }
+
+    private void readEscape(@Nonnull StringBuilder str) throws IOException, JSONException {
+        int c = read();
+
+        switch( c ) {
+            case 'b': str.append('\b'); break;
+            case 't': str.append('\t'); break;
+            case 'n': str.append('\n'); break;
+            case 'f': str.append('\f'); break;
+            case 'r': str.append('\r'); break;
+            case 'u':
+                char[] hex = new char[4];
+
+                for( int i=0; i<4; i++ ) {
+                    int h = read();
+
+                    if( h == -1 ) {
+                        throw new JSONException("Unterminated string");
+                    }
+                    hex[i] = (char)h;
+                }
+                try {
+                    str.append((char)Integer.parseInt(new String(hex), 16));
+                }
+                catch( NumberFormatException e ) {
+                    throw syntax("Illegal escape");
+                }
+                break;
+            case -1: throw new JSONException("Unterminated string");
+            default: str.append((char)c);
+        }
+    }
+
+    private @Nonnull Object readValue() throws IOException, JSONException {
+        int c = peek();
+
+        if( c == '"' ) {
+            pos++;
+            return readString();
+        }
+        else if( c == '{' ) {
+            JSONObject ob = new JSONObject();
+
+            beginObject();
+            while( hasNext() ) {
+                String name = nextName();
+
+                ob.put(name, readValue());
+            }
+            endObject();
+            return ob;
+        }
+        else if( c == '[' ) {
+            JSONArray arr = new JSONArray();
+
+            beginArray();
+            while( hasNext() ) {
+                arr.put(readValue());
+            }
+            endArray();
+            return arr;
+        }
+        else if( c == -1 ) {
+            throw new JSONException("Unexpected end of JSON input");
+        }
+        StringBuilder token = new StringBuilder();
+
+        while( true ) {
+            if( pos >= limit && !fill() ) {
+                break;
+            }
+            c = buffer[pos];
+            if( c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\n' || c == '\r' || c == '\t' ) {
+                break;
+            }
+            token.append((char)c);
+            pos++;
+        }
+        if( token.length() < 1 ) {
+            throw syntax("Missing value");
+        }
+        return JSONObject.stringToValue(token.toString());
+    }
+
+    private @Nonnull JSONException syntax(@Nonnull String message) throws IOException {
+        int c = peek();
+
+        return new JSONException(message + " but found " + (c == -1 ? "end of input" : ("'" + (char)c + "'")));
+    }
+}
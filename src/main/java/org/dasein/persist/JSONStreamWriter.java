@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Writes JSON text directly to a {@link Writer}. Values are expected to already be JSON friendly
+ * (see {@link PersistentCache#toJSONValue(Object)}) and are rendered the same way org.json renders them.
+ */
+public class JSONStreamWriter implements StateWriter {
+    private boolean first = true;
+    private Writer  out;
+
+    public JSONStreamWriter(@Nonnull Writer out) {
+        this.out = out;
+    }
+
+    public void beginObject() throws IOException {
+        out.write('{');
+        first = true;
+    }
+
+    public void endObject() throws IOException {
+        out.write('}');
+        first = false;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes a single member of the current object.
+     * @param name the member name
+     * @param value the JSON friendly value of the member
+     * @throws IOException an error occurred writing to the underlying writer
+     * @throws JSONException the value cannot be represented in JSON
+     */
+    public void member(@Nonnull String name, @Nullable Object value) throws IOException, JSONException {
+        if( !first ) {
+            out.write(',');
+        }
+        first = false;
+        string(name);
+        out.write(':');
+        value(value);
+    }
+
+    private void string(@Nonnull String str) throws IOException {
+        int len = str.length();
+        char previous = 0;
+
+        out.write('"');
+        for( int i=0; i<len; i++ ) {
+            char c = str.charAt(i);
+
+            switch( c ) {
+                case '\\': case '"': out.write('\\'); out.write(c); break;
+                case '/':
+                    if( previous == '<' ) {
+                        out.write('\\');
+                    }
+                    out.write(c);
+                    break;
+                case '\b': out.write("\\b"); break;
+                case '\t': out.write("\\t"); break;
+                case '\n': out.write("\\n"); break;
+                case '\f': out.write("\\f"); break;
+                case '\r': out.write("\\r"); break;
+                default:
+                    if( c < ' ' || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100) ) {
+                        String hex = Integer.toHexString(c);
+
+                        out.write("\\u");
+                        for( int j=hex.length(); j<4; j++ ) {
+                            out.write('0');
+                        }
+                        out.write(hex);
+                    }
+                    else {
+                        out.write(c);
+                    }
+            }
+            previous = c;
+        }
+        out.write('"');
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void value(@Nullable Object value) throws IOException, JSONException {
+        if( value == null || value == JSONObject.NULL ) {
+            out.write("null");
+        }
+        else if( value instanceof String ) {
+            string((String)value);
+        }
+        else if( value instanceof Number ) {
+            out.write(JSONObject.numberToString((Number)value));
+        }
+        else if( value instanceof Boolean ) {
+            out.write(value.toString());
+        }
+        else if( value instanceof JSONObject ) {
+            ((JSONObject)value).write(out);
+        }
+        else if( value instanceof JSONArray ) {
+            ((JSONArray)value).write(out);
+        }
+        else if( value instanceof Object[] ) {
+            boolean f = true;
+
+            out.write('[');
+            for( Object item : (Object[])value ) {
+                if( !f ) {
+                    out.write(',');
+                }
+                f = false;
+                value(item);
+            }
+            out.write(']');
+        }
+        else if( value instanceof Collection ) {
+            value(((Collection)value).toArray());
+        }
+        else if( value instanceof Map ) {
+            ((new JSONObject((Map)value))).write(out);
+        }
+        else {
+            string(value.toString());
+        }
+    }
+}
@@ -98,7 +98,7 @@ public final class Key implements Comparable<Key> {
             boolean present = false;
             
             for( String field : fields ) {
-                if( term.getColumn().equals(field) ) {
+                if( field.equals(term.getColumn()) ) {
                     present = true;
                     break;
                 }
@@ -111,7 +111,7 @@ public final class Key implements Comparable<Key> {
             boolean present = false;
             
             for( SearchTerm term : terms ) {
-                if( term.getColumn().equals(field) ) {
+                if( field.equals(term.getColumn()) ) {
                     present = true;
                     break;
                 }                
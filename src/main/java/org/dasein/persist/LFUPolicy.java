@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Evicts the least frequently used entry and only admits a new entry when it has been asked for more often
+ * than the entry it would displace. Frequencies of cached and uncached keys alike are estimated with a small
+ * count-min sketch, so one-off lookups during a scan cannot flush out the working set. All counts are halved
+ * periodically so that formerly hot entries eventually age out.
+ */
+public class LFUPolicy implements EvictionPolicy {
+    static private final int DEPTH         = 4;
+    static private final int MAXIMUM_COUNT = 15;
+    static private final int MINIMUM_WIDTH = 256;
+
+    static private final int[] SEEDS = { 0x97cb3127, 0xb3e63cd5, 0x5c5a8f3d, 0xe3c6a7b1 };
+
+    // cached keys grouped by frequency, ties broken by insertion order
+    private TreeMap<Integer,LinkedHashSet<Object>> buckets     = new TreeMap<Integer,LinkedHashSet<Object>>();
+    private int[][]                                sketch      = new int[DEPTH][MINIMUM_WIDTH];
+    private int                                    samples     = 0;
+    private HashMap<Object,Integer>                frequencies = new HashMap<Object,Integer>();
+
+    public void accessed(@Nonnull Object key) {
+        Integer f = frequencies.get(key);
+
+        increment(key);
+        if( f != null && f < MAXIMUM_COUNT ) {
+            unlink(key, f);
+            link(key, f + 1);
+        }
+    }
+
+    public void added(@Nonnull Object key) {
+        if( frequencies.size() * 4 >= sketch[0].length ) {
+            // the sketch is too narrow for the working set; widening it means starting the estimates over
+            sketch = new int[DEPTH][sketch[0].length * 2];
+            samples = 0;
+        }
+        link(key, Math.max(1, estimate(key)));
+    }
+
+    public boolean admit(@Nonnull Object candidate, @Nonnull Object victim) {
+        return (estimate(candidate) > estimate(victim));
+    }
+
+    public void clear() {
+        buckets.clear();
+        frequencies.clear();
+    }
+
+    public void removed(@Nonnull Object key) {
+        Integer f = frequencies.get(key);
+
+        if( f != null ) {
+            unlink(key, f);
+        }
+    }
+
+    public @Nullable Object victim() {
+        if( buckets.isEmpty() ) {
+            return null;
+        }
+        return buckets.firstEntry().getValue().iterator().next();
+    }
+
+    private void age() {
+        for( int[] row : sketch ) {
+            for( int i=0; i<row.length; i++ ) {
+                row[i] = row[i] >>> 1;
+            }
+        }
+        samples = samples/2;
+        Map<Object,Integer> current = new HashMap<Object,Integer>(frequencies);
+
+        buckets.clear();
+        frequencies.clear();
+        for( Map.Entry<Object,Integer> entry : current.entrySet() ) {
+            link(entry.getKey(), Math.max(1, entry.getValue() >>> 1));
+        }
+    }
+
+    private int estimate(@Nonnull Object key) {
+        int h = spread(key.hashCode());
+        int min = MAXIMUM_COUNT;
+
+        for( int i=0; i<DEPTH; i++ ) {
+            min = Math.min(min, sketch[i][index(h, i)]);
+        }
+        return min;
+    }
+
+    private void increment(@Nonnull Object key) {
+        int h = spread(key.hashCode());
+
+        for( int i=0; i<DEPTH; i++ ) {
+            int idx = index(h, i);
+
+            if( sketch[i][idx] < MAXIMUM_COUNT ) {
+                sketch[i][idx]++;
+            }
+        }
+        if( ++samples >= sketch[0].length * 10 ) {
+            age();
+        }
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+
+        return ((h ^ (h >>> 16)) & (sketch[row].length - 1));
+    }
+
+    private void link(@Nonnull Object key, int frequency) {
+        LinkedHashSet<Object> bucket = buckets.get(frequency);
+
+        if( bucket == null ) {
+            bucket = new LinkedHashSet<Object>();
+            buckets.put(frequency, bucket);
+        }
+        bucket.add(key);
+        frequencies.put(key, frequency);
+    }
+
+    private int spread(int h) {
+        h ^= (h >>> 17);
+        h *= 0xed5ad4bb;
+        return (h ^ (h >>> 11));
+    }
+
+    private void unlink(@Nonnull Object key, int frequency) {
+        LinkedHashSet<Object> bucket = buckets.get(frequency);
+
+        if( bucket != null ) {
+            bucket.remove(key);
+            if( bucket.isEmpty() ) {
+                buckets.remove(frequency);
+            }
+        }
+        frequencies.remove(key);
+    }
+
+    public @Nonnull String toString() {
+        return "LFU";
+    }
+}
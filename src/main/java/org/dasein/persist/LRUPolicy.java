@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Evicts the least recently used entry. Every new entry is admitted.
+ */
+public class LRUPolicy implements EvictionPolicy {
+    private LinkedHashMap<Object,Boolean> order = new LinkedHashMap<Object,Boolean>(64, 0.75f, true);
+
+    public void accessed(@Nonnull Object key) {
+        order.get(key);
+    }
+
+    public void added(@Nonnull Object key) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    public boolean admit(@Nonnull Object candidate, @Nonnull Object victim) {
+        return true;
+    }
+
+    public void clear() {
+        order.clear();
+    }
+
+    public void removed(@Nonnull Object key) {
+        order.remove(key);
+    }
+
+    public @Nullable Object victim() {
+        Iterator<Object> it = order.keySet().iterator();
+
+        return (it.hasNext() ? it.next() : null);
+    }
+
+    public @Nonnull String toString() {
+        return "LRU";
+    }
+}
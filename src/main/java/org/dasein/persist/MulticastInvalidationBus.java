@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An {@link InvalidationBus} that sends its batches as UDP multicast datagrams. Every JVM joining the same group
+ * and port, including several on one host, receives every other JVM's invalidations. The group comes from
+ * <code>dasein.persist.invalidation.group</code> (default {@link #DEFAULT_GROUP}), the port from
+ * <code>dasein.persist.invalidation.port</code> (default {@link #DEFAULT_PORT}), and the multicast time to live
+ * from <code>dasein.persist.invalidation.ttl</code> (default 1, which keeps datagrams on the local subnet).
+ */
+public class MulticastInvalidationBus extends InvalidationBus {
+    static private final Logger logger = Logger.getLogger(MulticastInvalidationBus.class);
+
+    static public final String DEFAULT_GROUP = "239.255.43.21";
+    static public final int    DEFAULT_PORT  = 45588;
+
+    static private int getInt(@Nonnull Properties props, @Nonnull String name, int def) {
+        String prop = props.getProperty(name);
+
+        if( prop == null ) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(prop.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid " + name + ", using " + def);
+            return def;
+        }
+    }
+
+    private InetAddress     group;
+    private int             port;
+    private Thread          receiver;
+    private MulticastSocket socket;
+    private int             ttl;
+
+    public MulticastInvalidationBus() throws IOException {
+        Properties props = PersistentCache.getProperties();
+
+        group = InetAddress.getByName(props.getProperty("dasein.persist.invalidation.group", DEFAULT_GROUP));
+        port = getInt(props, "dasein.persist.invalidation.port", DEFAULT_PORT);
+        ttl = getInt(props, "dasein.persist.invalidation.ttl", 1);
+    }
+
+    public MulticastInvalidationBus(@Nonnull InetAddress group, int port, int ttl) {
+        this.group = group;
+        this.port = port;
+        this.ttl = ttl;
+    }
+
+    public void close() {
+        super.close();
+        if( socket != null ) {
+            try {
+                socket.leaveGroup(group);
+            }
+            catch( IOException ignore ) {
+                // closing anyway
+            }
+            socket.close();
+        }
+    }
+
+    protected void send(@Nonnull byte[] packet) throws IOException {
+        socket.send(new DatagramPacket(packet, packet.length, group, port));
+    }
+
+    public void start() throws IOException {
+        socket = new MulticastSocket(port);
+        socket.setTimeToLive(ttl);
+        socket.setLoopbackMode(false);
+        socket.joinGroup(group);
+        receiver = new Thread("DASEIN INVALIDATION RECEIVER") {
+            public void run() {
+                byte[] buffer = new byte[65536];
+
+                while( !socket.isClosed() ) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+                    try {
+                        socket.receive(packet);
+                        receive(packet.getData(), packet.getOffset(), packet.getLength());
+                    }
+                    catch( SocketException e ) {
+                        if( !socket.isClosed() ) {
+                            logger.warn("Invalidation receiver failed: " + e.getMessage());
+                        }
+                    }
+                    catch( IOException e ) {
+                        logger.warn("Invalidation receiver failed: " + e.getMessage());
+                    }
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+        super.start();
+    }
+
+    public @Nonnull String toString() {
+        return "MulticastInvalidationBus[" + group.getHostAddress() + ":" + port + "]";
+    }
+}
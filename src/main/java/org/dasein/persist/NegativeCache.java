@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Remembers, for a short time, primary keys that were looked up and not found so that repeated lookups of a
+ * missing object do not go back to the data store. Entries are dropped when they expire, when the oldest
+ * entries must make way for new ones, or when the key is created.
+ * <p>A miss is only recorded if no key was created while the lookup that found it was in flight (see
+ * {@link #getGeneration()}), so a lookup racing a create cannot hide the new object.</p>
+ */
+public class NegativeCache {
+    private long                       expireAfter;
+    private long                       generation = 0L;
+    private long                       hits       = 0L;
+    private LinkedHashMap<String,Long> misses;
+
+    /**
+     * Constructs a negative cache.
+     * @param maxEntries the maximum number of missing keys to remember
+     * @param expireAfter the number of milliseconds for which a missing key is remembered
+     */
+    public NegativeCache(final int maxEntries, long expireAfter) {
+        this.expireAfter = expireAfter;
+        this.misses = new LinkedHashMap<String,Long>(64, 0.75f, false) {
+            private static final long serialVersionUID = -4129734285178493312L;
+
+            protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+                return (size() > maxEntries);
+            }
+        };
+    }
+
+    /**
+     * Records that the specified key was not found.
+     * @param key the primary key value that was looked up
+     * @param generation the value of {@link #getGeneration()} when the lookup started
+     */
+    public synchronized void add(@Nullable Object key, long generation) {
+        if( key == null || generation != this.generation ) {
+            return;
+        }
+        String k = key.toString();
+
+        misses.remove(k);
+        misses.put(k, System.currentTimeMillis() + expireAfter);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        misses.clear();
+    }
+
+    /**
+     * @param key the primary key value being looked up
+     * @return true if the key was recently found to be missing
+     */
+    public synchronized boolean contains(@Nullable Object key) {
+        if( key == null ) {
+            return false;
+        }
+        String k = key.toString();
+        Long expires = misses.get(k);
+
+        if( expires == null ) {
+            return false;
+        }
+        if( expires <= System.currentTimeMillis() ) {
+            misses.remove(k);
+            return false;
+        }
+        hits++;
+        return true;
+    }
+
+    public long getExpireAfter() {
+        return expireAfter;
+    }
+
+    /**
+     * @return a counter advanced every time a key is removed, to be captured before a lookup and passed to {@link #add(Object, long)}
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the number of lookups answered from this cache
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Forgets that the specified key was missing, generally because it was just created.
+     * @param key the primary key value
+     */
+    public synchronized void remove(@Nullable Object key) {
+        generation++;
+        if( key != null ) {
+            misses.remove(key.toString());
+        }
+    }
+
+    public synchronized int size() {
+        return misses.size();
+    }
+
+    public @Nonnull String toString() {
+        return "NegativeCache[entries=" + size() + ",expireAfter=" + expireAfter + "]";
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Holds serialized objects outside the Java heap, in direct buffers, indexed by primary key. The store is a
+ * log: records are appended to fixed-size segments and when the store is full the oldest segment is recycled,
+ * dropping whatever is still recorded in it. Replaced and removed records simply wait for their segment to be
+ * recycled, so no compaction is ever needed.
+ */
+public class OffHeapStore {
+    static public final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * A copy of a stored record.
+     */
+    static public class Record {
+        private byte[] data;
+        private long   stamp;
+
+        Record(@Nonnull byte[] data, long stamp) {
+            this.data = data;
+            this.stamp = stamp;
+        }
+
+        public @Nonnull byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the timestamp stored with the record
+         */
+        public long getStamp() {
+            return stamp;
+        }
+    }
+
+    static private class Slot {
+        public Object key;
+        public int    length;
+        public int    offset;
+        public int    segment;
+        public long   stamp;
+    }
+
+    private int                        current   = -1;
+    private long                       evictions = 0L;
+    private long                       hits      = 0L;
+    private HashMap<Object,Slot>       index     = new HashMap<Object,Slot>();
+    private long                       misses    = 0L;
+    private int                        position  = 0;
+    private ArrayList<ArrayList<Slot>> residents = new ArrayList<ArrayList<Slot>>();
+    private int                        segmentSize;
+    private ByteBuffer[]               segments;
+
+    /**
+     * Constructs a store with the default segment size (or smaller, if the capacity is small).
+     * @param capacity the maximum number of bytes to hold off the heap
+     */
+    public OffHeapStore(long capacity) {
+        this(capacity, (int)Math.max(1L, Math.min(DEFAULT_SEGMENT_SIZE, capacity/4)));
+    }
+
+    /**
+     * Constructs a store. Memory is allocated one segment at a time as the store fills.
+     * @param capacity the maximum number of bytes to hold off the heap
+     * @param segmentSize the size of each segment, which is also the largest record the store accepts
+     */
+    public OffHeapStore(long capacity, int segmentSize) {
+        int count = (int)Math.max(2L, Math.min(Integer.MAX_VALUE, capacity/segmentSize));
+
+        this.segmentSize = segmentSize;
+        this.segments = new ByteBuffer[count];
+        for( int i=0; i<count; i++ ) {
+            residents.add(new ArrayList<Slot>());
+        }
+    }
+
+    public long getCapacity() {
+        return ((long)segments.length) * segmentSize;
+    }
+
+    /**
+     * @return the number of records dropped because their segment was recycled
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Provides a copy of the record stored under the specified key.
+     * @param key the primary key value
+     * @return the record or <code>null</code> if nothing is stored under the key
+     */
+    public synchronized @Nullable Record get(@Nonnull Object key) {
+        Slot slot = index.get(key);
+
+        if( slot == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return read(slot);
+    }
+
+    /**
+     * Provides a copy of the record stored under the specified key without counting a hit or miss.
+     * @param key the primary key value
+     * @return the record or <code>null</code> if nothing is stored under the key
+     */
+    public synchronized @Nullable Record peek(@Nonnull Object key) {
+        Slot slot = index.get(key);
+
+        return (slot == null ? null : read(slot));
+    }
+
+    /**
+     * Stores a record, replacing anything already stored under the same key.
+     * @param key the primary key value
+     * @param data the serialized object
+     * @param stamp a timestamp to store with the record
+     * @return true if the record was stored, false if it is larger than a segment
+     */
+    public synchronized boolean put(@Nonnull Object key, @Nonnull byte[] data, long stamp) {
+        index.remove(key);
+        if( data.length > segmentSize ) {
+            return false;
+        }
+        if( current < 0 || position + data.length > segmentSize ) {
+            advance();
+        }
+        ByteBuffer buffer = segments[current].duplicate();
+        Slot slot = new Slot();
+
+        buffer.position(position);
+        buffer.put(data);
+        slot.key = key;
+        slot.segment = current;
+        slot.offset = position;
+        slot.length = data.length;
+        slot.stamp = stamp;
+        position += data.length;
+        index.put(key, slot);
+        residents.get(current).add(slot);
+        return true;
+    }
+
+    public synchronized void clear() {
+        index.clear();
+        for( ArrayList<Slot> list : residents ) {
+            list.clear();
+        }
+        current = -1;
+        position = 0;
+    }
+
+    /**
+     * @return a copy of the keys of all stored records
+     */
+    public synchronized @Nonnull ArrayList<Object> keys() {
+        return new ArrayList<Object>(index.keySet());
+    }
+
+    public synchronized void remove(@Nonnull Object key) {
+        index.remove(key);
+    }
+
+    /**
+     * @return the number of records currently stored
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    private @Nonnull Record read(@Nonnull Slot slot) {
+        ByteBuffer buffer = segments[slot.segment].duplicate();
+        byte[] data = new byte[slot.length];
+
+        buffer.position(slot.offset);
+        buffer.get(data);
+        return new Record(data, slot.stamp);
+    }
+
+    private void advance() {
+        current = (current + 1) % segments.length;
+        position = 0;
+        if( segments[current] == null ) {
+            segments[current] = ByteBuffer.allocateDirect(segmentSize);
+        }
+        ArrayList<Slot> recycled = residents.get(current);
+
+        for( Slot slot : recycled ) {
+            // skip records that were replaced or removed since they were written here
+            if( index.get(slot.key) == slot ) {
+                index.remove(slot.key);
+                evictions++;
+            }
+        }
+        recycled.clear();
+    }
+
+    public @Nonnull String toString() {
+        return "OffHeapStore[records=" + size() + ",capacity=" + getCapacity() + "]";
+    }
+}
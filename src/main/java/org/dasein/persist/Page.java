@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A single page of search results along with an opaque continuation token for fetching the page that
+ * follows it. Tokens are specific to the cache that issued them and should be handed back unchanged.
+ * @param <T> the type of object in the page
+ */
+public class Page<T> implements Iterable<T> {
+    static private final char KEYSET = 'k';
+    static private final char NATIVE = 'n';
+    static private final char OFFSET = 'o';
+
+    /**
+     * Builds a token that resumes after the row with the specified sort values.
+     * @param values the values of the ordering fields, ending with the primary key, of the last object in the page
+     * @return a keyset continuation token
+     */
+    static public @Nonnull String forKeys(@Nonnull Object ... values) {
+        try {
+            return KEYSET + Base64.encodeBase64URLSafeString(new JSONArray(values).toString().getBytes("utf-8"));
+        }
+        catch( JSONException e ) {
+            throw new RuntimeException(e);
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Wraps a continuation token issued by the data store itself.
+     * @param token the data store's token
+     * @return a continuation token
+     */
+    static public @Nonnull String forNative(@Nonnull String token) {
+        return NATIVE + token;
+    }
+
+    /**
+     * @param offset the position of the first object in the next page
+     * @return an offset continuation token
+     */
+    static public @Nonnull String forOffset(int offset) {
+        return OFFSET + String.valueOf(offset);
+    }
+
+    static public boolean isKeys(@Nullable String token) {
+        return (token != null && token.length() > 1 && token.charAt(0) == KEYSET);
+    }
+
+    static public boolean isNative(@Nullable String token) {
+        return (token != null && token.length() > 1 && token.charAt(0) == NATIVE);
+    }
+
+    static public boolean isOffset(@Nullable String token) {
+        return (token != null && token.length() > 1 && token.charAt(0) == OFFSET);
+    }
+
+    /**
+     * @param token a keyset continuation token
+     * @return the sort values recorded in the token in their JSON form
+     * @throws PersistenceException the token is not a valid keyset token
+     */
+    static public @Nonnull Object[] toKeys(@Nonnull String token) throws PersistenceException {
+        if( !isKeys(token) ) {
+            throw new PersistenceException("Invalid continuation: " + token);
+        }
+        try {
+            JSONArray arr = new JSONArray(new String(Base64.decodeBase64(token.substring(1)), "utf-8"));
+            Object[] values = new Object[arr.length()];
+
+            for( int i=0; i<values.length; i++ ) {
+                values[i] = (arr.isNull(i) ? null : arr.get(i));
+            }
+            return values;
+        }
+        catch( JSONException e ) {
+            throw new PersistenceException("Invalid continuation: " + token);
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * @param token a continuation token wrapping a data store token
+     * @return the data store's token
+     * @throws PersistenceException the token is not a native token
+     */
+    static public @Nonnull String toNative(@Nonnull String token) throws PersistenceException {
+        if( !isNative(token) ) {
+            throw new PersistenceException("Invalid continuation: " + token);
+        }
+        return token.substring(1);
+    }
+
+    /**
+     * @param token an offset continuation token
+     * @return the position of the first object in the page the token points to
+     * @throws PersistenceException the token is not a valid offset token
+     */
+    static public int toOffset(@Nonnull String token) throws PersistenceException {
+        if( !isOffset(token) ) {
+            throw new PersistenceException("Invalid continuation: " + token);
+        }
+        try {
+            return Integer.parseInt(token.substring(1));
+        }
+        catch( NumberFormatException e ) {
+            throw new PersistenceException("Invalid continuation: " + token);
+        }
+    }
+
+    private String        continuation;
+    private Collection<T> items;
+
+    /**
+     * @param items the objects in this page
+     * @param continuation the token for the next page or <code>null</code> if this is the last page
+     */
+    public Page(@Nonnull Collection<T> items, @Nullable String continuation) {
+        this.items = Collections.unmodifiableCollection(items);
+        this.continuation = continuation;
+    }
+
+    /**
+     * @return the token to pass back in for the next page or <code>null</code> if there are no more results
+     */
+    public @Nullable String getContinuation() {
+        return continuation;
+    }
+
+    public @Nonnull Collection<T> getItems() {
+        return items;
+    }
+
+    public boolean hasMore() {
+        return (continuation != null);
+    }
+
+    public @Nonnull Iterator<T> iterator() {
+        return items.iterator();
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public @Nonnull String toString() {
+        return "Page[size=" + items.size() + (continuation == null ? "" : ",continuation=" + continuation) + "]";
+    }
+}
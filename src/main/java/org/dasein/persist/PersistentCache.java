@@ -18,44 +18,48 @@
 
 package org.dasein.persist;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Currency;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.dasein.persist.annotations.AutoJSON;
-import org.dasein.persist.annotations.Index;
-import org.dasein.persist.annotations.IndexType;
-import org.dasein.persist.annotations.Lookup;
-import org.dasein.persist.annotations.Schema;
+import org.dasein.util.CacheLoader;
 import org.dasein.util.CachedItem;
 import org.dasein.util.ConcurrentMultiCache;
 import org.dasein.util.CursorPopulator;
 import org.dasein.util.ForwardCursor;
 import org.dasein.util.JiteratorFilter;
 import org.dasein.util.uom.Measured;
-import org.dasein.util.uom.UnitOfMeasure;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -65,6 +69,14 @@ import javax.annotation.Nullable;
 public abstract class PersistentCache<T extends CachedItem> {
     static private final Logger logger = Logger.getLogger(PersistentCache.class);
 
+    /**
+     * The key under which each row returned by {@link #aggregate(SearchTerm[], Aggregate, String, String...)} holds its aggregate value.
+     */
+    static public final String AGGREGATE = "--aggregate--";
+
+    static public final long DEFAULT_SNAPSHOT_INTERVAL = 300L;
+    static public final long DEFAULT_SNAPSHOT_MAX_AGE  = 3600L;
+
     static public class EntityJoin {
         public Class<? extends CachedItem> joinEntity;
         public String                      joinField;
@@ -73,80 +85,89 @@ public abstract class PersistentCache<T extends CachedItem> {
 
     static private final HashMap<String,PersistentCache<? extends CachedItem>> caches = new HashMap<String,PersistentCache<? extends CachedItem>>();
 
-    static public PersistentCache<? extends CachedItem> getCache(Class<? extends CachedItem> forClass) throws PersistenceException {
-        SchemaMapper[] mappers = null;
-        String schemaVersion = null;
-        String entityName = null;
+    static private volatile Properties properties = null;
 
-        for( Annotation annotation : forClass.getDeclaredAnnotations() ) {
-            if( annotation instanceof Schema ) {
-                schemaVersion = ((Schema)annotation).value();
-                entityName = ((Schema)annotation).entity();
+    /**
+     * Provides the contents of {@link DaseinSequencer#PROPERTIES}, which are read from the classpath only once.
+     * The returned properties are shared and must not be modified.
+     * @return the persistence configuration properties
+     */
+    static protected @Nonnull Properties getProperties() {
+        Properties props = properties;
 
-                Class<? extends SchemaMapper>[] mclasses = ((Schema)annotation).mappers();
+        if( props == null ) {
+            props = new Properties();
+            try {
+                InputStream is = DaseinSequencer.class.getResourceAsStream(DaseinSequencer.PROPERTIES);
 
-                if( mclasses != null && mclasses.length > 0 ) {
-                    mappers = new SchemaMapper[mclasses.length];
-                    for( int i=0; i<mclasses.length; i++ ) {
-                        try {
-                            mappers[i] = mclasses[i].newInstance();
-                        }
-                        catch( Throwable t ) {
-                            throw new PersistenceException(t.getMessage());
-                        }
+                if( is != null ) {
+                    try {
+                        props.load(is);
+                    }
+                    finally {
+                        is.close();
                     }
                 }
             }
+            catch( Exception e ) {
+                logger.error("Problem reading " + DaseinSequencer.PROPERTIES + ": " + e.getMessage(), e);
+            }
+            properties = props;
         }
-        return getCacheWithSchema(forClass, entityName, schemaVersion == null ? "0" : schemaVersion, mappers);
+        return props;
     }
-    
-    static public PersistentCache<? extends CachedItem> getCacheWithSchema(@Nonnull Class<? extends CachedItem> forClass, @Nullable String entityName, @Nonnull String schemaVersion, @Nullable SchemaMapper ... mappers) throws PersistenceException {
-        Class<?> cls = forClass;
 
-        while( !cls.getName().equals(Object.class.getName()) ) {
-            for( Field field : cls.getDeclaredFields() ) {
-                for( Annotation annotation : field.getDeclaredAnnotations() ) {
-                    if( annotation instanceof Index ) {
-                        Index idx = (Index)annotation;
+    /**
+     * Looks up a setting that may be overridden for individual entities. The most specific of
+     * <code>name.&lt;class name&gt;</code>, <code>name.&lt;package&gt;</code> (for each enclosing package) and
+     * <code>name</code> wins.
+     * @param name the name of the setting
+     * @param className the name of the entity class
+     * @return the trimmed value of the setting or <code>null</code> if it is not set
+     */
+    static protected @Nullable String getEntityProperty(@Nonnull String name, @Nonnull String className) {
+        Properties props = getProperties();
+        String cname = className;
 
-                        if( idx.type().equals(IndexType.PRIMARY) ) {
-                            return getCacheWithSchema(forClass, entityName, field.getName(), schemaVersion, mappers);
-                        }
-                    }
-                }
+        while( cname != null ) {
+            String prop = props.getProperty(name + "." + cname);
+
+            if( prop != null && prop.trim().length() > 0 ) {
+                return prop.trim();
+            }
+            int idx = cname.lastIndexOf(".");
+
+            if( idx < 1 ) {
+                cname = null;
+            }
+            else {
+                cname = cname.substring(0, idx);
             }
-            cls = cls.getSuperclass();
         }
-        throw new PersistenceException("No primary key field identified for: " + forClass.getName());
-    }
+        String prop = props.getProperty(name);
 
-    static public PersistentCache<? extends CachedItem> getCache(Class<? extends CachedItem> forClass, String primaryKey) throws PersistenceException {
-        SchemaMapper[] mappers = null;
-        String schemaVersion = null;
-        String entityName = null;
+        return ((prop == null || prop.trim().length() < 1) ? null : prop.trim());
+    }
 
-        for( Annotation annotation : forClass.getDeclaredAnnotations() ) {
-            if( annotation instanceof Schema ) {
-                schemaVersion = ((Schema)annotation).value();
-                entityName = ((Schema)annotation).entity();
+    static public PersistentCache<? extends CachedItem> getCache(Class<? extends CachedItem> forClass) throws PersistenceException {
+        EntityDescriptor descriptor = EntityDescriptor.forClass(forClass);
 
-                Class<? extends SchemaMapper>[] mclasses = ((Schema)annotation).mappers();
+        return getCacheWithSchema(forClass, descriptor.getEntityName(), descriptor.getSchemaVersion(), descriptor.getMappers());
+    }
+    
+    static public PersistentCache<? extends CachedItem> getCacheWithSchema(@Nonnull Class<? extends CachedItem> forClass, @Nullable String entityName, @Nonnull String schemaVersion, @Nullable SchemaMapper ... mappers) throws PersistenceException {
+        String primaryKey = EntityDescriptor.forClass(forClass).getPrimaryKey();
 
-                if( mclasses != null && mclasses.length > 0 ) {
-                    mappers = new SchemaMapper[mclasses.length];
-                    for( int i=0; i<mclasses.length; i++ ) {
-                        try {
-                            mappers[i] = mclasses[i].newInstance();
-                        }
-                        catch( Throwable t ) {
-                            throw new PersistenceException(t.getMessage());
-                        }
-                    }
-                }
-            }
+        if( primaryKey == null ) {
+            throw new PersistenceException("No primary key field identified for: " + forClass.getName());
         }
-        return getCacheWithSchema(forClass, entityName, primaryKey, schemaVersion == null ? "0" : schemaVersion, mappers);
+        return getCacheWithSchema(forClass, entityName, primaryKey, schemaVersion, mappers);
+    }
+
+    static public PersistentCache<? extends CachedItem> getCache(Class<? extends CachedItem> forClass, String primaryKey) throws PersistenceException {
+        EntityDescriptor descriptor = EntityDescriptor.forClass(forClass);
+
+        return getCacheWithSchema(forClass, descriptor.getEntityName(), primaryKey, descriptor.getSchemaVersion(), descriptor.getMappers());
     }
     
     @SuppressWarnings("unchecked")
@@ -160,77 +181,9 @@ public abstract class PersistentCache<T extends CachedItem> {
                 return cache;
             }
         }
+        Properties props = getProperties();
+        Key[] keys = EntityDescriptor.forClass(forClass).getKeys();
 
-        Properties props = new Properties();
-
-        try {
-            InputStream is = DaseinSequencer.class.getResourceAsStream(DaseinSequencer.PROPERTIES);
-
-            if( is != null ) {
-                props.load(is);
-            }
-        }
-        catch( Exception e ) {
-            logger.error("Problem reading " + DaseinSequencer.PROPERTIES + ": " + e.getMessage(), e);
-        }
-        
-        TreeSet<Key> keys = new TreeSet<Key>();
-        Class<?> cls = forClass;
-
-        while( !cls.getName().equals(Object.class.getName()) ) {
-            for( Field field : cls.getDeclaredFields() ) {
-                for( Annotation annotation : field.getDeclaredAnnotations() ) {
-                    if( annotation instanceof Index ) {
-                        Index idx = (Index)annotation;
-                        
-                        if( idx.type().equals(IndexType.SECONDARY) || idx.type().equals(IndexType.FOREIGN) ) {
-                            String keyName = field.getName();
-                            
-                            if( idx.multi() != null && idx.multi().length > 0 ) {
-                                if( idx.cascade() ) {
-                                    int len = idx.multi().length;
-
-                                    keys.add(new Key(keyName));
-                                    for( int i=0; i<len; i++ ) {
-                                        String[] parts = new String[i+2];
-                                        
-                                        parts[0] = keyName;
-                                        for( int j=0; j<=i; j++ ) {
-                                            parts[j+1] = idx.multi()[j];
-                                        }
-                                        keys.add(new Key(parts));
-                                    }
-                                }
-                                else {
-                                    String[] parts = new String[idx.multi().length + 1];
-                                    int i = 1;
-                                    
-                                    parts[0] = keyName;
-                                    for( String name : idx.multi() ) {
-                                        parts[i++] = name;
-                                    }
-                                    Key k = new Key(parts);
-                                    
-                                    keys.add(k);
-                                }
-                            }
-                            else {
-                                Key k;
-                                
-                                if( idx.type().equals(IndexType.FOREIGN) && !idx.identifies().equals(CachedItem.class) ) {
-                                    k = new Key(idx.identifies(), keyName);
-                                }
-                                else {
-                                    k = new Key(keyName);
-                                }   
-                                keys.add(k);
-                            }
-                        }
-                    }
-                }
-            }
-            cls = cls.getSuperclass();
-        }
         String propKey = "dsn.persistentCache." + className;
         String prop;
 
@@ -239,7 +192,7 @@ public abstract class PersistentCache<T extends CachedItem> {
             if( prop != null ) {
                 try {
                     cache = (PersistentCache<? extends CachedItem>)Class.forName(prop).newInstance();
-                    cache.initBase(forClass, alternateEntytName, schemaVersion, mappers, new Key(primaryKey), keys.toArray(new Key[keys.size()]));
+                    cache.initBase(forClass, alternateEntytName, schemaVersion, mappers, new Key(primaryKey), keys);
                     break;
                 }
                 catch( Throwable t ) {
@@ -258,7 +211,7 @@ public abstract class PersistentCache<T extends CachedItem> {
             }
             try {
                 cache = (PersistentCache<? extends CachedItem>)Class.forName(prop).newInstance();
-                cache.initBase(forClass, alternateEntytName, schemaVersion, mappers, new Key(primaryKey), keys.toArray(new Key[keys.size()]));
+                cache.initBase(forClass, alternateEntytName, schemaVersion, mappers, new Key(primaryKey), keys);
             }
             catch( Throwable t ) {
                 String err = "Unable to load persistence cache " + prop + ": " + t.getMessage();
@@ -270,6 +223,7 @@ public abstract class PersistentCache<T extends CachedItem> {
             PersistentCache<? extends CachedItem> c = caches.get(className);
 
             if( c != null ) {
+                cache.detach();
                 cache = c;
             }
             else {
@@ -279,11 +233,28 @@ public abstract class PersistentCache<T extends CachedItem> {
         return cache;
     }
 
+    private InvalidationBus                             bus             = null;
     private ConcurrentMultiCache<T>                     cache           = null;
     private String                                      entityName      = null;
+    private InvalidationBus.Listener                    invalidator     = new InvalidationBus.Listener() {
+        public void invalidated(@Nullable String key) {
+            PersistentCache.this.invalidated(key);
+        }
+    };
     private Map<Class<? extends CachedItem>,EntityJoin> joins           = new HashMap<Class<? extends CachedItem>,EntityJoin>();
-    private Map<String,LookupDelegate>                  lookups         = new HashMap<String,LookupDelegate>();
+    private SingleFlight<T>                             loads           = new SingleFlight<T>();
+    private NegativeCache                               missing         = null;
+    private Map<String,SchemaMapper[]>                  mapperChains    = new ConcurrentHashMap<String,SchemaMapper[]>();
+    private EntityMetadata<T>                           metadata        = null;
+    private CacheMetrics                                metrics         = new CacheMetrics(this);
+    private SchemaMigrator<T>                           migrator        = null;
     private Key                                         primaryKey      = null;
+    private QueryCache                                  queries         = null;
+    private volatile ResidentSet<T>                     resident        = null;
+    private boolean                                     residentLoading = false;
+    private final Object                                residentLock    = new Object();
+    private boolean                                     residentMode    = false;
+    private long                                        residentWrites  = 0L;
     private SchemaMapper[]                              schemaMappers   = null;
     private String                                      schemaVersion   = null;
     private Key[]                                       secondaryKeys   = null;
@@ -328,788 +299,1618 @@ public abstract class PersistentCache<T extends CachedItem> {
         else {
             secondaryKeys = new Key[0];
         }
-        cache = new ConcurrentMultiCache<T>(cls, primaryKey.getFields()[0]);
+        Key[] all = new Key[secondaryKeys.length + 1];
+
+        all[0] = primaryKey;
+        System.arraycopy(secondaryKeys, 0, all, 1, secondaryKeys.length);
+        metadata = new EntityMetadata<T>(cls, all);
+        cache = createCache(cls, primaryKey.getFields()[0]);
+        missing = createNegativeCache(cls.getName());
+        queries = createQueryCache(cls.getName());
+        residentMode = "true".equalsIgnoreCase(getEntityProperty("dasein.persist.cache.resident", cls.getName()));
+        mapperChains.clear();
+        migrator = (schemaMappers.length > 0 ? SchemaMigrator.getInstance(this) : null);
         init(cls, keys);
-        Class<?> current = cls;
-        
-        while( !current.getName().equals(Object.class.getName()) ) {
-            for( Field field : current.getDeclaredFields() ) {
-                for( Annotation annotation : field.getDeclaredAnnotations() ) {
-                    if( annotation instanceof Lookup ) {
-                        Class<? extends LookupDelegate> delegate = ((Lookup)annotation).delegate();
-                        
-                        if( delegate != null ) {
-                            try {
-                                lookups.put(field.getName(), delegate.newInstance());
-                            }
-                            catch( Throwable t ) {
-                                logger.error(t.getMessage(), t);
-                            }
-                        }
-                    }
-                }
-            }
-            current = current.getSuperclass();
-        }
-    }
-
-    protected void init(Class<T> cls, Key ... keys) {
-        // NO-OP
+        metrics.register();
+        bus = createInvalidationBus(cls.getName());
     }
 
-    public long count() throws PersistenceException {
-        return list().size();
-    }
+    /**
+     * Joins the invalidation bus named by <code>dasein.persist.invalidation</code> for this entity:
+     * <code>multicast</code> for a {@link MulticastInvalidationBus} or the name of an {@link InvalidationBus}
+     * subclass. Changes made through this cache are then published to the other nodes, and their changes release
+     * the affected objects here.
+     * @param cname the name of the entity class
+     * @return the bus or <code>null</code> if invalidations are not shared for this entity
+     */
+    private @Nullable InvalidationBus createInvalidationBus(@Nonnull String cname) {
+        String prop = getEntityProperty("dasein.persist.invalidation", cname);
 
-    public long count(SearchTerm ... terms) throws PersistenceException {
-        return find(terms).size();
-    }
+        if( prop == null || prop.equalsIgnoreCase("false") ) {
+            return null;
+        }
+        InvalidationBus b = InvalidationBus.getInstance(prop);
 
-    protected ConcurrentMultiCache<T> getCache() {
-        return cache;
+        if( b != null ) {
+            b.subscribe(cname, invalidator);
+        }
+        return b;
     }
 
-    public abstract T create(Transaction xaction, Map<String,Object> state) throws PersistenceException;
-
-    public Collection<T> find(SearchTerm ... terms) throws PersistenceException {
-        return find(terms, null, false);
+    /**
+     * Releases the resources held by a cache that lost the race to be registered for its entity.
+     */
+    private void detach() {
+        metrics.unregister();
+        if( bus != null ) {
+            bus.unsubscribe(getEntityClassName(), invalidator);
+        }
     }
 
-    public abstract @Nonnull Collection<T> find(@Nonnull SearchTerm[] terms, @Nullable JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException;
+    /**
+     * Releases whatever this cache holds for an object that another node changed.
+     * @param key the string form of the object's primary key value or <code>null</code> if any object may have changed
+     */
+    private void invalidated(@Nullable String key) {
+        NegativeCache negative = missing;
+        QueryCache qc = queries;
+        Object value = null;
 
-    public @Nonnull ForwardCursor<T> findAsCursor(@Nonnull SearchTerm[] terms, @Nullable JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
-        final Collection<T> items = find(terms, filter, orderDesc, orderFields);
+        if( key != null ) {
+            EntityMetadata.PersistentField[] fields = metadata.getKeyFields(primaryKey);
 
-        CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".findAsCursor", null) {
-            @Override
-            public void populate(ForwardCursor<T> cursor) {
-                for( T item : items ) {
-                    cursor.push(item);
-                }
+            try {
+                value = (fields == null || fields.length != 1 ? key : fields[0].getConverter().convert(fields[0].getName(), key));
+            }
+            catch( Exception e ) {
+                logger.warn("Unable to convert " + key + " to a key of " + getEntityClassName() + ", releasing everything: " + e.getMessage());
             }
-        };
-        populator.populate();
-        return populator.getCursor();
-    }
-
-    public abstract T get(Object keyValue) throws PersistenceException;
-
-    protected String getKeyValue(T object) throws PersistenceException {
-        return getKeyValue(object, getPrimaryKey());
-    }
-
-    @SuppressWarnings("rawtypes")
-    protected String getKeyValue(T object, Key key) throws PersistenceException {
-        if( object == null ) {
-            return null;
         }
-        try {
-            String value = "";
-
-            for( String fieldName : key.getFields() ) {
-                Class<? extends Object> t = getCache().getTarget();
-                Field field = null;
+        if( value == null ) {
+            releaseAll();
+            return;
+        }
+        T item = getCache().find(getPrimaryKeyField(), value);
 
-                while( field == null ) {
-                    try {
-                        field = t.getDeclaredField(fieldName);
-                    }
-                    catch( NoSuchFieldException ignore ) {
-                        // ignore
-                    }
-                    if( field == null ) {
-                        t = t.getSuperclass();
-                        if( t.getName().equals(Object.class.getName()) ) {
-                            return null;
-                        }
-                    }
-                }
-                field.setAccessible(true);
-                if( !value.equals("") ) {
-                    value = value + ":";
-                }
-                Object result = field.get(object);
+        // the new state of the object is only known to the other node
+        dropResidentSet();
 
-                if( result instanceof Enum ) {
-                    value = value + ((Enum)result).name();
+        if( negative != null ) {
+            negative.remove(value);
+        }
+        if( qc != null ) {
+            try {
+                if( item == null ) {
+                    qc.clear();
                 }
                 else {
-                    value = value + result.toString();
+                    qc.invalidate(this, item);
                 }
             }
-            return value;
+            catch( PersistenceException e ) {
+                qc.clear();
+            }
         }
-        catch( Exception e ) {
-            logger.error(e.getMessage(), e);
-            throw new PersistenceException(e);
+        if( item != null ) {
+            getCache().release(item);
         }
     }
 
-    @SuppressWarnings("rawtypes")
-    protected String getKeyValue(Map<String,Object> map, Key key) throws PersistenceException {
-        if( map == null ) {
-            return null;
-        }
-        try {
-            String value = "";
-
-            for( String fieldName : key.getFields() ) {
-                if( !value.equals("") ) {
-                    value = value + ":";
-                }
-                Object result = map.get(fieldName);
+    /**
+     * Tells the other nodes on the invalidation bus that an object changed. The message waits for the transaction
+     * making the change to commit, so that no node reloads the object before the change is visible.
+     * @param xaction the transaction making the change or <code>null</code> if the change is already visible
+     * @param key the primary key value of the object or <code>null</code> if any object may have changed
+     */
+    private void publish(@Nullable Transaction xaction, final @Nullable Object key) {
+        final InvalidationBus b = bus;
 
-                if( result instanceof Enum ) {
-                    value = value + ((Enum)result).name();
-                }
-                else {
-                    value = value + result.toString();
+        if( b != null ) {
+            afterCommit(xaction, new Runnable() {
+                public void run() {
+                    b.publish(getEntityClassName(), key);
                 }
-            }
-            return value;
-        }
-        catch( Exception e ) {
-            logger.error(e.getMessage(), e);
-            throw new PersistenceException(e);
+            });
         }
     }
 
-    protected Set<String> getKeyValues(int index, SearchTerm ... forTerms) {
-        HashSet<String> list = new HashSet<String>();
-        SearchTerm term = forTerms[index];
-        Object searchValue = term.getValue();
-        String keyValue;
-
-        if( searchValue instanceof Range ) {
-            keyValue = null;
-        }
-        else if( searchValue instanceof Enum ) {
-            keyValue = ((Enum<?>)searchValue).name();
+    /**
+     * Runs the specified work once the specified transaction commits.
+     * @param xaction the transaction or <code>null</code> to run the work now
+     * @param task the work to run
+     */
+    private void afterCommit(@Nullable Transaction xaction, @Nonnull Runnable task) {
+        if( xaction == null ) {
+            task.run();
         }
         else {
-            keyValue = searchValue.toString();
+            xaction.afterCommit(task);
         }
-        if( index < forTerms.length-1 ) {
-            for( String remainder : getKeyValues(index+1, forTerms) ) {
-                if( searchValue instanceof Range ) {
-                    for( int val : (Range)searchValue ) {
-                        list.add(String.valueOf(val) + ":" + remainder);
-                    }
-                }
-                else {
-                    list.add(keyValue + ":" + remainder);
-                }
+    }
+
+    /**
+     * Creates the in-memory cache for this entity. The cache is unbounded and never expires entries unless
+     * <code>dasein.persist.cache.maxEntries</code>, <code>dasein.persist.cache.maxWeight</code>,
+     * <code>dasein.persist.cache.expireAfter</code> or <code>dasein.persist.cache.refreshAfter</code> is set for
+     * the entity (see {@link #getEntityProperty(String, String)}), in which case a {@link BoundedMultiCache} is
+     * used with the policy named by <code>dasein.persist.cache.policy</code>: <code>lru</code> (the default),
+     * <code>lfu</code>, or the name of an {@link EvictionPolicy} class. Weights come from the {@link Weigher}
+     * class named by <code>dasein.persist.cache.weigher</code>. The expiry settings are in seconds. Setting
+     * <code>dasein.persist.cache.offHeapBytes</code> as well places an {@link OffHeapStore} of that many bytes
+     * under a bounded cache to hold what it evicts.
+     * <p>Setting <code>dasein.persist.cache.snapshotDir</code> to a local directory attaches a {@link CacheSnapshot}
+     * kept in that directory, written every <code>dasein.persist.cache.snapshotInterval</code> seconds (default
+     * {@link #DEFAULT_SNAPSHOT_INTERVAL}) and at shutdown. A snapshot older than
+     * <code>dasein.persist.cache.snapshotMaxAge</code> seconds (default {@link #DEFAULT_SNAPSHOT_MAX_AGE}) is
+     * ignored on startup.</p>
+     * @param cls the class of objects being cached
+     * @param key the key under which objects are cached
+     * @return a cache for the entity
+     */
+    @SuppressWarnings("unchecked")
+    private @Nonnull ConcurrentMultiCache<T> createCache(@Nonnull Class<T> cls, @Nonnull String key) {
+        String cname = cls.getName();
+        long maxEntries = getLongProperty("dasein.persist.cache.maxEntries", cname);
+        long maxWeight = getLongProperty("dasein.persist.cache.maxWeight", cname);
+        long expireAfter = getLongProperty("dasein.persist.cache.expireAfter", cname);
+        long refreshAfter = getLongProperty("dasein.persist.cache.refreshAfter", cname);
+        String snapshotDir = getEntityProperty("dasein.persist.cache.snapshotDir", cname);
+
+        if( maxEntries < 1L && maxWeight < 1L && expireAfter < 1L && refreshAfter < 1L && snapshotDir == null ) {
+            return new ConcurrentMultiCache<T>(cls, key);
+        }
+        String policyName = getEntityProperty("dasein.persist.cache.policy", cname);
+        String weigherName = getEntityProperty("dasein.persist.cache.weigher", cname);
+        EvictionPolicy policy;
+        Weigher<? super T> weigher = null;
+
+        try {
+            if( policyName == null || policyName.equalsIgnoreCase("lru") ) {
+                policy = new LRUPolicy();
             }
-        }
-        else {
-            if( searchValue instanceof Range ) {
-                for( int val : (Range)searchValue ) {
-                    list.add(String.valueOf(val));
-                }
+            else if( policyName.equalsIgnoreCase("lfu") ) {
+                policy = new LFUPolicy();
             }
             else {
-                list.add(keyValue);
+                policy = (EvictionPolicy)Class.forName(policyName).newInstance();
+            }
+            if( weigherName != null ) {
+                weigher = (Weigher<? super T>)Class.forName(weigherName).newInstance();
             }
         }
-        return list;
-    }
+        catch( Exception e ) {
+            logger.error("Unable to configure a bounded cache for " + cname + ", caching without bounds: " + e.getMessage(), e);
+            return new ConcurrentMultiCache<T>(cls, key);
+        }
+        BoundedMultiCache<T> bounded = new BoundedMultiCache<T>(cls, Collections.singletonList(key), policy, maxEntries, weigher, maxWeight);
 
-    public LookupDelegate getLookupDelegate(String field) {
-        return lookups.get(field);
-    }
-    
-    protected Key getPrimaryKey() {
-        return primaryKey;
-    }
+        long offHeapBytes = getLongProperty("dasein.persist.cache.offHeapBytes", cname);
 
-    protected String getPrimaryKeyField() {
-        return primaryKey.getFields()[0];
+        bounded.setExpiry(expireAfter * 1000L, refreshAfter * 1000L);
+        if( offHeapBytes > 0L ) {
+            bounded.setOffHeapStore(new OffHeapStore(offHeapBytes), createCodec());
+        }
+        if( snapshotDir != null ) {
+            File dir = new File(snapshotDir);
+            long interval = getLongProperty("dasein.persist.cache.snapshotInterval", cname);
+            long maxAge = getLongProperty("dasein.persist.cache.snapshotMaxAge", cname);
+
+            if( !dir.isDirectory() && !dir.mkdirs() ) {
+                logger.error("Unable to create snapshot directory " + dir + ", not snapshotting " + cname);
+                return bounded;
+            }
+            bounded.setSnapshot(new CacheSnapshot(new File(dir, cname + ".snapshot"), schemaVersion, (maxAge < 1L ? DEFAULT_SNAPSHOT_MAX_AGE : maxAge) * 1000L), createCodec());
+            CacheSnapshot.schedule(bounded, (interval < 1L ? DEFAULT_SNAPSHOT_INTERVAL : interval) * 1000L);
+        }
+        return bounded;
     }
 
-    public long getNewKeyValue() throws PersistenceException {
-        return Sequencer.getInstance(getEntityClassName() + "." + getPrimaryKeyField()).next();
+    private @Nonnull BoundedMultiCache.Codec<T> createCodec() {
+        return new BoundedMultiCache.Codec<T>() {
+            public @Nonnull T decode(@Nonnull byte[] data) throws PersistenceException {
+                return toTargetFromBinary(new ByteArrayInputStream(data));
+            }
+
+            public @Nonnull byte[] encode(@Nonnull T item) throws PersistenceException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                try {
+                    writeDataStoreBinary(item, out);
+                }
+                catch( IOException e ) {
+                    throw new PersistenceException(e);
+                }
+                return out.toByteArray();
+            }
+        };
     }
 
-    public abstract String getSchema() throws PersistenceException;
+    private long getLongProperty(@Nonnull String name, @Nonnull String className) {
+        String prop = getEntityProperty(name, className);
 
-    public @Nullable SchemaMapper getSchemaMapper(@Nonnull String fromVersion) {
-        if( schemaMappers.length < 1 || fromVersion.equalsIgnoreCase(schemaVersion) ) {
-            return null;
+        if( prop == null ) {
+            return 0L;
         }
-        for( SchemaMapper mapper : schemaMappers ) {
-            if( mapper.getSourceVersion().equalsIgnoreCase(fromVersion) ) {
-                return mapper;
-            }
+        try {
+            return Long.parseLong(prop);
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid value for " + name + " on " + className + ": " + prop);
+            return 0L;
         }
-        return null;
     }
 
-    public String getSchemaVersion() {
-        return schemaVersion;
+    protected void init(Class<T> cls, Key ... keys) {
+        // NO-OP
     }
 
-    protected Key[] getSecondaryKeys() {
-        return secondaryKeys;
+    public long count() throws PersistenceException {
+        return list().size();
     }
 
-    public Class<T> getTarget() {
-        return cache.getTarget();
+    public long count(SearchTerm ... terms) throws PersistenceException {
+        return find(terms).size();
     }
 
-    public Object getValue(T item, String field) {
-        Class<?> cls = item.getClass();
-        
-        while( !cls.equals(Object.class) ) {
-            for( Field f : cls.getDeclaredFields() ) {
-                if( f.getName().equals(field) ) {
-                    f.setAccessible(true);
-                    try {
-                        return f.get(item);
-                    }
-                    catch( Exception e ) {
-                        throw new RuntimeException(e);
-                    }
+    /**
+     * Wraps a cache-miss loader so that concurrent misses on the same key share a single load. If negative
+     * caching is enabled for this entity, keys recently found to be missing are not loaded at all. Each call
+     * counts as a lookup in this cache's {@link CacheMetrics}, and each use of the returned loader as a miss.
+     * @param key the value of the key being loaded
+     * @param loader the loader that reads the object from the data store
+     * @return a loader joining any load of the same key already in flight
+     */
+    protected @Nonnull CacheLoader<T> coalesce(@Nullable final Object key, @Nonnull final CacheLoader<T> loader) {
+        final CacheLoader<T> shared = loads.wrap(key, new CacheLoader<T>() {
+            public T load(Object ... args) {
+                long start = System.nanoTime();
+
+                try {
+                    return loader.load(args);
+                }
+                finally {
+                    metrics.record(CacheMetrics.Operation.LOAD, start);
                 }
             }
-            cls = cls.getSuperclass();
-        }
-        return null;
-    }
-    
-    public abstract Collection<T> list() throws PersistenceException;
+        });
+        final NegativeCache negative = missing;
 
-    public ForwardCursor<T> listAsCursor() throws PersistenceException {
-        final Collection<T> items = list();
+        metrics.lookup();
+        return new CacheLoader<T>() {
+            public T load(Object ... args) {
+                metrics.miss();
+                if( negative == null ) {
+                    return shared.load(args);
+                }
+                if( negative.contains(key) ) {
+                    return null;
+                }
+                long generation = negative.getGeneration();
+                T item = shared.load(args);
 
-        CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".listAsCursor", null) {
-            @Override
-            public void populate(ForwardCursor<T> cursor) {
-                for( T item : items ) {
-                    cursor.push(item);
+                if( item == null ) {
+                    negative.add(key, generation);
                 }
+                return item;
             }
         };
-        populator.populate();
-        return populator.getCursor();
     }
 
-    public Collection<T> list(boolean orderDesc, String ... orderFields) throws PersistenceException {
-        if( !orderDesc || (orderFields != null && orderFields.length > 0 ) ) {
-            return find(new SearchTerm[0], null, orderDesc, orderFields);
+    /**
+     * Reads the negative caching configuration for this entity. Negative caching is off unless
+     * <code>dasein.persist.cache.negative</code> is <code>true</code> for the entity. Missing keys are then
+     * remembered for <code>dasein.persist.cache.negativeExpireAfter</code> seconds (default 5), up to
+     * <code>dasein.persist.cache.negativeMaxEntries</code> keys (default 10,000).
+     * @param cname the name of the entity class
+     * @return a negative cache for the entity or <code>null</code> if negative caching is off
+     */
+    private @Nullable NegativeCache createNegativeCache(@Nonnull String cname) {
+        String prop = getEntityProperty("dasein.persist.cache.negative", cname);
+
+        if( prop == null || !prop.equalsIgnoreCase("true") ) {
+            return null;
         }
-        else {
-            return list();
+        long expireAfter = getLongProperty("dasein.persist.cache.negativeExpireAfter", cname);
+        long maxEntries = getLongProperty("dasein.persist.cache.negativeMaxEntries", cname);
+
+        return new NegativeCache((int)(maxEntries < 1L ? 10000L : Math.min(maxEntries, Integer.MAX_VALUE)), (expireAfter < 1L ? 5L : expireAfter) * 1000L);
+    }
+
+    /**
+     * Reads the query caching configuration for this entity. Query caching is off unless
+     * <code>dasein.persist.cache.queries</code> is <code>true</code> for the entity. Search results are then
+     * remembered for <code>dasein.persist.cache.queriesExpireAfter</code> seconds (default 60), for up to
+     * <code>dasein.persist.cache.queriesMaxEntries</code> searches (default 1,000).
+     * @param cname the name of the entity class
+     * @return a query cache for the entity or <code>null</code> if query caching is off
+     */
+    private @Nullable QueryCache createQueryCache(@Nonnull String cname) {
+        String prop = getEntityProperty("dasein.persist.cache.queries", cname);
+
+        if( prop == null || !prop.equalsIgnoreCase("true") ) {
+            return null;
         }
+        long expireAfter = getLongProperty("dasein.persist.cache.queriesExpireAfter", cname);
+        long maxEntries = getLongProperty("dasein.persist.cache.queriesMaxEntries", cname);
+
+        return new QueryCache((int)(maxEntries < 1L ? 1000L : Math.min(maxEntries, Integer.MAX_VALUE)), (expireAfter < 1L ? 60L : expireAfter) * 1000L);
     }
 
-    public ForwardCursor<T> listAsCursor(boolean orderDesc, String ... orderFields) throws PersistenceException {
-        if( !orderDesc || (orderFields != null && orderFields.length > 0 ) ) {
-            return findAsCursor(new SearchTerm[0], null, orderDesc, orderFields);
+    /**
+     * Answers a search from memory if the entity is resident (see {@link #getResidentSet()}) or from the query
+     * cache if it is enabled and has the search's results. Backends call this
+     * before running a search and pass the results of any search they do run to
+     * {@link #cacheResults(SearchTerm[], JiteratorFilter, Boolean, String[], Collection)}. Searches with a filter
+     * are never cached.
+     * @param terms the search terms
+     * @param filter the filter applied to the results
+     * @param orderDesc true if results are in descending order
+     * @param orderFields the fields on which results are ordered
+     * @return the results of the search or <code>null</code> if the search must be run against the data store
+     * @throws PersistenceException an error occurred loading one of the results
+     */
+    protected @Nullable Collection<T> getCachedResults(@Nonnull SearchTerm[] terms, @Nullable JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        ResidentSet<T> set = (ResidentSet.isSupported(terms) ? getResidentSet() : null);
+
+        if( set != null ) {
+            return set.find(terms, filter, orderDesc, orderFields);
         }
-        else {
-            return listAsCursor();
+        QueryCache qc = queries;
+
+        if( qc == null || filter != null ) {
+            return null;
         }
-    }
+        String key = QueryCache.getKey(terms, orderDesc, orderFields);
 
-    protected Key matchKeys(SearchTerm[] terms) {
-        if( terms == null ) {
+        if( key == null ) {
             return null;
         }
-        if( terms.length == 1 && terms[0].getColumn().equals(primaryKey.getFields()[0]) ) {
-            return primaryKey ;
+        List<Object> keys = qc.get(key);
+
+        if( keys == null ) {
+            return null;
         }
-        for( Key key : secondaryKeys ) {
-            if( key.matches(terms) ) {
-                return key;
+        ArrayList<T> results = new ArrayList<T>(keys.size());
+
+        for( Object keyValue : keys ) {
+            T item = get(keyValue);
+
+            if( item == null ) {
+                qc.evict(key);
+                return null;
             }
+            results.add(item);
         }
-        return null;
+        return results;
     }
 
-    public void reindex() throws PersistenceException {
-        // NO-OP
+    /**
+     * Counts the matching objects in memory if the entity is resident. Backends call this before counting in the
+     * data store.
+     * @param terms the search terms
+     * @return the number of matching objects or -1 if they must be counted in the data store
+     * @throws PersistenceException an error occurred loading the resident objects
+     */
+    protected long getCachedCount(@Nonnull SearchTerm ... terms) throws PersistenceException {
+        ResidentSet<T> set = (ResidentSet.isSupported(terms) ? getResidentSet() : null);
+
+        return (set == null ? -1L : set.count(terms));
     }
 
-    public abstract void remove(Transaction xaction, T item) throws PersistenceException;
+    /**
+     * Provides every object of this entity, held in memory and indexed on its keys, if
+     * <code>dasein.persist.cache.resident</code> is <code>true</code> for the entity. The objects are read with
+     * {@link #list()} on first use and kept up to date by writes through this cache as their transactions commit. A change reported by another
+     * node, or a write that races the read, causes them to be read again on next use.
+     * @return the resident objects or <code>null</code> if the entity is not resident or this thread is reading it
+     * @throws PersistenceException an error occurred reading the objects
+     */
+    protected @Nullable ResidentSet<T> getResidentSet() throws PersistenceException {
+        if( !residentMode ) {
+            return null;
+        }
+        ResidentSet<T> set = resident;
 
-    public abstract void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException;
+        if( set != null ) {
+            return set;
+        }
+        synchronized( residentLock ) {
+            if( resident != null ) {
+                return resident;
+            }
+            if( residentLoading ) {
+                // list() is answered by a search that lands back here
+                return null;
+            }
+            long writes;
 
-    public abstract void update(Transaction xaction, T item, Map<String,Object> state) throws PersistenceException;
-    
-    protected void set(Map<String,Object> map, String fieldName, Object value, Class<?> type) throws PersistenceException {
-        map.put(fieldName, mapValue(fieldName, value, type, null));
+            synchronized( this ) {
+                writes = residentWrites;
+            }
+            residentLoading = true;
+            try {
+                set = new ResidentSet<T>(this, getPrimaryKeyField(), secondaryKeys, list());
+            }
+            finally {
+                residentLoading = false;
+            }
+            synchronized( this ) {
+                if( writes != residentWrites ) {
+                    return null;
+                }
+                resident = set;
+            }
+            return set;
+        }
     }
-    
-    protected void set(T target, Field field, Object value) throws PersistenceException {
-        try {
-            ParameterizedType pt = null;
-            field.setAccessible(true);
-            if( field.getGenericType() instanceof ParameterizedType ) {
-                pt = (ParameterizedType)field.getGenericType();
+
+    /**
+     * @return the resident objects that a write must update, or <code>null</code> if none are loaded
+     */
+    private @Nullable ResidentSet<T> written() {
+        synchronized( this ) {
+            residentWrites++;
+            return resident;
+        }
+    }
+
+    private void dropResidentSet() {
+        synchronized( this ) {
+            residentWrites++;
+            resident = null;
+        }
+    }
+
+    /**
+     * A change to the resident objects that waits for its transaction to commit, so that a rollback leaves them
+     * alone. If the change cannot be applied, the resident objects are dropped and read again on next use.
+     */
+    private abstract class ResidentWrite implements Runnable {
+        public void run() {
+            ResidentSet<T> set = written();
+
+            if( set == null ) {
+                return;
+            }
+            boolean applied = false;
+
+            try {
+                apply(set);
+                applied = true;
+            }
+            catch( PersistenceException e ) {
+                logger.warn("Unable to update the resident " + getEntityClassName() + " objects, reading them again: " + e.getMessage());
+            }
+            finally {
+                if( !applied ) {
+                    dropResidentSet();
+                }
             }
-            field.set(target, mapValue(field.getName(), value, field.getType(), pt));
         }
-        catch( IllegalArgumentException e ) {
-            throw new PersistenceException(e);
+
+        protected abstract void apply(@Nonnull ResidentSet<T> set) throws PersistenceException;
+    }
+
+    /**
+     * Drops the cached searches a change affects once more after its transaction commits. A search running between
+     * the change and its commit reads the old data and may cache its keys after the first invalidation.
+     */
+    private abstract class QueryInvalidation implements Runnable {
+        public void run() {
+            QueryCache qc = queries;
+
+            if( qc == null ) {
+                return;
+            }
+            try {
+                invalidate(qc);
+            }
+            catch( PersistenceException e ) {
+                qc.clear();
+            }
         }
-        catch( IllegalAccessException e ) {
-            throw new PersistenceException(e);
+
+        protected abstract void invalidate(@Nonnull QueryCache qc) throws PersistenceException;
+    }
+
+    /**
+     * Provides the instance held by {@link #getCache()} for the object with the specified state, caching a new one
+     * if none is held, so that resident searches and lookups return the same objects.
+     * @param state the state of the object
+     * @return the cached object
+     * @throws PersistenceException the object could not be built from its state
+     */
+    private @Nonnull T toCached(@Nonnull Map<String,Object> state) throws PersistenceException {
+        T item = getCache().find(getPrimaryKeyField(), state.get(getPrimaryKeyField()));
+
+        if( item == null ) {
+            item = getCache().cache(toTargetFromMap(getSchemaVersion(), state));
         }
+        return item;
     }
-    
-    @SuppressWarnings({ "rawtypes", "unchecked" })
-    protected Object mapValue(String fieldName, Object dataStoreValue, Class<?> toType, ParameterizedType ptype) throws PersistenceException {
-        LookupDelegate delegate = getLookupDelegate(fieldName);
 
-        if( dataStoreValue != null && delegate != null && !delegate.validate(dataStoreValue.toString()) ) {
-            throw new PersistenceException("Value " + dataStoreValue + " for " + fieldName + " is not valid.");
+    /**
+     * Records the results of a search in the query cache if it is enabled. The results are read in full.
+     * @param terms the search terms
+     * @param filter the filter applied to the results
+     * @param orderDesc true if results are in descending order
+     * @param orderFields the fields on which results are ordered
+     * @param results the results of the search
+     * @return the results of the search, which should be returned in place of the original results
+     */
+    protected @Nonnull Collection<T> cacheResults(@Nonnull SearchTerm[] terms, @Nullable JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String[] orderFields, @Nonnull Collection<T> results) {
+        QueryCache qc = queries;
+
+        if( qc == null || filter != null ) {
+            return results;
         }
-        try {
-            if( toType.equals(String.class) ) {
-                if( dataStoreValue != null && !(dataStoreValue instanceof String) ) {
-                    dataStoreValue = dataStoreValue.toString();
-                }
+        String key = QueryCache.getKey(terms, orderDesc, orderFields);
+
+        if( key == null ) {
+            return results;
+        }
+        ArrayList<T> items = new ArrayList<T>();
+        ArrayList<Object> keys = new ArrayList<Object>();
+        String field = getPrimaryKeyField();
+
+        for( T item : results ) {
+            items.add(item);
+            keys.add(getValue(item, field));
+        }
+        qc.put(key, terms, keys);
+        return items;
+    }
+
+    /**
+     * Notes that an object was just written to the data store. Lookups stop treating its primary key as missing,
+     * both now and when the transaction commits, and cached searches it matches are dropped. Other nodes hear of it through the invalidation bus.
+     * @param xaction the transaction that wrote the object or <code>null</code> if the write is already visible
+     * @param state the state of the new object
+     * @throws PersistenceException the object could not be checked against cached searches
+     */
+    protected void created(@Nullable Transaction xaction, @Nonnull Map<String,Object> state) throws PersistenceException {
+        final HashMap<String,Object> created = new HashMap<String,Object>(state);
+        final NegativeCache negative = missing;
+        QueryCache qc = queries;
+
+        if( negative != null ) {
+            final Object key = state.get(getPrimaryKeyField());
+
+            negative.remove(key);
+            if( xaction != null ) {
+                // a lookup racing the commit does not see the object yet and may record it as missing again
+                xaction.afterCommit(new Runnable() {
+                    public void run() {
+                        negative.remove(key);
+                    }
+                });
             }
-            else if( Enum.class.isAssignableFrom(toType) ) {
-                if( dataStoreValue != null ) {
-                    Enum e = Enum.valueOf((Class<? extends Enum>)toType, dataStoreValue.toString());
-                    
-                    dataStoreValue = e;
-                }
+        }
+        if( qc != null ) {
+            qc.invalidate(this, state);
+            if( xaction != null ) {
+                xaction.afterCommit(new QueryInvalidation() {
+                    protected void invalidate(@Nonnull QueryCache qc) throws PersistenceException {
+                        qc.invalidate(PersistentCache.this, created);
+                    }
+                });
             }
-            else if( toType.equals(Boolean.class) || toType.equals(boolean.class) ) {
-                if( dataStoreValue == null ) {
-                    dataStoreValue = false;
+        }
+        if( residentMode ) {
+            afterCommit(xaction, new ResidentWrite() {
+                protected void apply(@Nonnull ResidentSet<T> set) throws PersistenceException {
+                    set.put(toCached(created));
                 }
-                else if( !(dataStoreValue instanceof Boolean) ) {
-                    if( Number.class.isAssignableFrom(dataStoreValue.getClass()) ) {
-                        dataStoreValue = (((Number)dataStoreValue).intValue() != 0);
-                    }
-                    else {
-                        dataStoreValue = (dataStoreValue.toString().trim().equalsIgnoreCase("true") || dataStoreValue.toString().trim().equalsIgnoreCase("y"));
+            });
+        }
+        publish(xaction, state.get(getPrimaryKeyField()));
+    }
+
+    /**
+     * Notes that an object is being removed, dropping any cached searches it matches now and again once the
+     * transaction commits, and publishing its key to the invalidation bus.
+     * @param xaction the transaction removing the object or <code>null</code> if the removal is already visible
+     * @param item the object being removed
+     * @throws PersistenceException the object could not be checked against cached searches
+     */
+    protected void removed(@Nullable Transaction xaction, final @Nonnull T item) throws PersistenceException {
+        QueryCache qc = queries;
+
+        if( qc != null ) {
+            qc.invalidate(this, item);
+            if( xaction != null ) {
+                xaction.afterCommit(new QueryInvalidation() {
+                    protected void invalidate(@Nonnull QueryCache qc) throws PersistenceException {
+                        qc.invalidate(PersistentCache.this, item);
                     }
-                }
+                });
             }
-            else if( Number.class.isAssignableFrom(toType) || toType.equals(byte.class) || toType.equals(short.class) ||
-                    toType.equals(long.class) || toType.equals(int.class) || toType.equals(float.class) || toType.equals(double.class) ) {
-                if( dataStoreValue == null ) {
-                    if( toType.equals(int.class) || toType.equals(short.class) || toType.equals(long.class) ) {
-                        dataStoreValue = 0;
-                    }
-                    else if( toType.equals(float.class) || toType.equals(double.class) ) {
-                        dataStoreValue = 0.0f;
-                    }
-                }
-                else if( toType.equals(Number.class) ) {
-                    if( !(dataStoreValue instanceof Number) ) {
-                        if( dataStoreValue instanceof String ) {
-                            try {
-                                dataStoreValue = Double.parseDouble((String)dataStoreValue);
-                            }
-                            catch( NumberFormatException e ) {
-                                throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                            }
-                        }
-                        else if( dataStoreValue instanceof Boolean ) {
-                            dataStoreValue = (((Boolean)dataStoreValue) ? 1 : 0);
-                        }
-                        else {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }                    
+        }
+        if( residentMode ) {
+            final Object key = getValue(item, getPrimaryKeyField());
+
+            afterCommit(xaction, new ResidentWrite() {
+                protected void apply(@Nonnull ResidentSet<T> set) {
+                    set.remove(key);
                 }
-                else if( toType.equals(Integer.class) || toType.equals(int.class) ) {
-                    if( dataStoreValue instanceof Number ) {
-                        if( !(dataStoreValue instanceof Integer) ) {
-                            dataStoreValue = ((Number)dataStoreValue).intValue();
-                        }
-                    }
-                    else if( dataStoreValue instanceof String ) {
-                        try {
-                            dataStoreValue = Integer.parseInt((String)dataStoreValue);
-                        }
-                        catch( NumberFormatException e ) {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }
-                    else if( dataStoreValue instanceof Boolean ) {
-                        dataStoreValue = (((Boolean)dataStoreValue) ? 1 : 0);
+            });
+        }
+        publish(xaction, getValue(item, getPrimaryKeyField()));
+    }
+
+    /**
+     * Notes that the objects matching the specified terms are being removed. Since they are not known
+     * individually, all cached searches are dropped here and again after the commit, and other nodes are told to
+     * release every object of this entity.
+     * @param xaction the transaction removing the objects or <code>null</code> if the removal is already visible
+     * @param terms the terms identifying the objects being removed
+     */
+    protected void removed(@Nullable Transaction xaction, final @Nonnull SearchTerm ... terms) {
+        QueryCache qc = queries;
+
+        if( qc != null ) {
+            qc.clear();
+            if( xaction != null ) {
+                xaction.afterCommit(new QueryInvalidation() {
+                    protected void invalidate(@Nonnull QueryCache qc) {
+                        qc.clear();
                     }
-                    else {
-                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
+                });
+            }
+        }
+        if( residentMode ) {
+            afterCommit(xaction, new ResidentWrite() {
+                protected void apply(@Nonnull ResidentSet<T> set) throws PersistenceException {
+                    if( !ResidentSet.isSupported(terms) ) {
+                        throw new PersistenceException("Terms on joined entities cannot be evaluated in memory");
                     }
+                    set.removeAll(terms);
                 }
-                else if( toType.equals(Long.class) || toType.equals(long.class) ) {
-                    if( dataStoreValue instanceof Number ) {
-                        if( !(dataStoreValue instanceof Long) ) {
-                            dataStoreValue = ((Number)dataStoreValue).longValue();
-                        }
-                    }
-                    else if( dataStoreValue instanceof String ) {
-                        try {
-                            dataStoreValue = Long.parseLong((String)dataStoreValue);
-                        }
-                        catch( NumberFormatException e ) {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }
-                    else if( dataStoreValue instanceof Boolean ) {
-                        dataStoreValue = (((Boolean)dataStoreValue) ? 1L : 0L);
-                    }
-                    else {
-                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
+            });
+        }
+        publish(xaction, null);
+    }
+
+    /**
+     * Notes that an object is being updated, dropping any cached searches that either its old or new state matches
+     * now and again once the transaction commits, and publishing its key to the invalidation bus.
+     * @param xaction the transaction updating the object or <code>null</code> if the update is already visible
+     * @param item the object being updated
+     * @param state the new state of the object
+     * @throws PersistenceException the object could not be checked against cached searches
+     */
+    protected void updated(@Nullable Transaction xaction, final @Nonnull T item, @Nonnull Map<String,Object> state) throws PersistenceException {
+        QueryCache qc = queries;
+
+        if( qc != null ) {
+            final HashMap<String,Object> changed = new HashMap<String,Object>(state);
+
+            qc.invalidate(this, item);
+            qc.invalidate(this, state);
+            if( xaction != null ) {
+                xaction.afterCommit(new QueryInvalidation() {
+                    protected void invalidate(@Nonnull QueryCache qc) throws PersistenceException {
+                        qc.invalidate(PersistentCache.this, item);
+                        qc.invalidate(PersistentCache.this, changed);
                     }
+                });
+            }
+        }
+        final Object key = getValue(item, getPrimaryKeyField());
+        Object newKey = state.get(getPrimaryKeyField());
+
+        if( residentMode ) {
+            final HashMap<String,Object> current = new HashMap<String,Object>();
+
+            // the new state may leave out fields that are not changing
+            for( EntityMetadata.PersistentField field : metadata.getFields() ) {
+                String name = field.getName();
+
+                current.put(name, state.containsKey(name) ? state.get(name) : getValue(item, name));
+            }
+            afterCommit(xaction, new ResidentWrite() {
+                protected void apply(@Nonnull ResidentSet<T> set) throws PersistenceException {
+                    // the cached instance holds the old state
+                    getCache().release(item);
+                    set.remove(key);
+                    set.put(toCached(current));
                 }
-                else if( toType.equals(Byte.class) || toType.equals(byte.class) ) {
-                    if( dataStoreValue instanceof Number ) {
-                        if( !(dataStoreValue instanceof Byte) ) {
-                            dataStoreValue = ((Number)dataStoreValue).byteValue();
-                        }
-                    }
-                    else if( dataStoreValue instanceof String ) {
-                        try {
-                            dataStoreValue = Byte.parseByte((String)dataStoreValue);
-                        }
-                        catch( NumberFormatException e ) {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }
-                    else if( dataStoreValue instanceof Boolean ) {
-                        dataStoreValue = (((Boolean)dataStoreValue) ? 1 : 0);
-                    }
-                    else {
-                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
-                    }
+            });
+        }
+
+        publish(xaction, key);
+        if( newKey != null && !newKey.toString().equals(String.valueOf(key)) ) {
+            publish(xaction, newKey);
+        }
+    }
+
+    protected ConcurrentMultiCache<T> getCache() {
+        return cache;
+    }
+
+    public abstract T create(Transaction xaction, Map<String,Object> state) throws PersistenceException;
+
+    public Collection<T> find(SearchTerm ... terms) throws PersistenceException {
+        return find(terms, null, false);
+    }
+
+    public abstract @Nonnull Collection<T> find(@Nonnull SearchTerm[] terms, @Nullable JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException;
+
+    public @Nonnull ForwardCursor<T> findAsCursor(@Nonnull SearchTerm[] terms, @Nullable JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        final Collection<T> items = find(terms, filter, orderDesc, orderFields);
+
+        CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".findAsCursor", null) {
+            @Override
+            public void populate(ForwardCursor<T> cursor) {
+                for( T item : items ) {
+                    cursor.push(item);
                 }
-                else if( toType.equals(Short.class) || toType.equals(short.class) ) {
-                    if( dataStoreValue instanceof Number ) {
-                        if( !(dataStoreValue instanceof Short) ) {
-                            dataStoreValue = ((Number)dataStoreValue).shortValue();
-                        }
-                    }
-                    else if( dataStoreValue instanceof String ) {
-                        try {
-                            dataStoreValue = Short.parseShort((String)dataStoreValue);
-                        }
-                        catch( NumberFormatException e ) {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }
-                    else if( dataStoreValue instanceof Boolean ) {
-                        dataStoreValue = (((Boolean)dataStoreValue) ? 1 : 0);
-                    }
-                    else {
-                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
-                    }
+            }
+        };
+        populator.populate();
+        return populator.getCursor();
+    }
+
+    /**
+     * Reads just the specified fields of the matching objects. The values come back in their field types, keyed by
+     * field name. Data stores that can select individual fields read only those and leave the entity cache alone;
+     * this implementation falls back to a full {@link #find(SearchTerm[], JiteratorFilter, Boolean, String...)}.
+     * @param terms the search criteria
+     * @param fields the fields to read
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return one read-only map of field values per matching object
+     * @throws PersistenceException an error occurred executing the search or a field does not exist
+     */
+    public @Nonnull Collection<Map<String,Object>> project(@Nonnull SearchTerm[] terms, @Nonnull String[] fields, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        ArrayList<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
+
+        checkProjection(fields);
+        for( T item : find(terms, null, orderDesc, orderFields) ) {
+            HashMap<String,Object> row = new HashMap<String,Object>();
+
+            for( String field : fields ) {
+                row.put(field, getValue(item, field));
+            }
+            results.add(Collections.unmodifiableMap(row));
+        }
+        return results;
+    }
+
+    /**
+     * Verifies that the fields of a projection are persistent fields of this cache's entity.
+     * @param fields the fields being projected
+     * @throws PersistenceException one or more fields are not persistent fields
+     */
+    protected void checkProjection(@Nonnull String[] fields) throws PersistenceException {
+        if( fields.length < 1 ) {
+            throw new PersistenceException("No fields specified for projection");
+        }
+        for( String field : fields ) {
+            if( metadata.getField(field) == null ) {
+                throw new PersistenceException("No such field in " + getEntityClassName() + ": " + field);
+            }
+        }
+    }
+
+    /**
+     * Computes an aggregate over the matching objects, optionally grouped by one or more fields. Each row in the
+     * result holds the values of the group-by fields keyed by field name and the aggregate value under
+     * {@link #AGGREGATE}; without group-by fields there is exactly one row. Data stores that can aggregate
+     * natively do so without loading any objects; this implementation falls back to looping over a
+     * {@link #find(SearchTerm[])}.
+     * @param terms the search criteria
+     * @param function the aggregate function
+     * @param field the field being aggregated, which may be <code>null</code> only for {@link Aggregate#COUNT}
+     * @param groupBy the fields on which to group the results
+     * @return one read-only row per group, in no particular order
+     * @throws PersistenceException an error occurred executing the search or the fields are not valid for the function
+     */
+    public @Nonnull Collection<Map<String,Object>> aggregate(@Nonnull SearchTerm[] terms, @Nonnull Aggregate function, @Nullable String field, @Nullable String ... groupBy) throws PersistenceException {
+        LinkedHashMap<List<Object>,Object[]> groups = new LinkedHashMap<List<Object>,Object[]>();
+
+        checkAggregate(function, field, groupBy);
+        if( groupBy == null ) {
+            groupBy = new String[0];
+        }
+        for( T item : find(terms) ) {
+            ArrayList<Object> group = new ArrayList<Object>();
+
+            for( String g : groupBy ) {
+                group.add(getValue(item, g));
+            }
+            // count, sum, extreme
+            Object[] state = groups.get(group);
+
+            if( state == null ) {
+                state = new Object[] { 0L, null, null };
+                groups.put(group, state);
+            }
+            Object value = (field == null ? null : getValue(item, field));
+
+            if( field != null && value == null ) {
+                continue;
+            }
+            state[0] = ((Long)state[0]) + 1L;
+            if( value != null ) {
+                if( function.isNumeric() ) {
+                    BigDecimal d = new BigDecimal(value.toString());
+
+                    state[1] = (state[1] == null ? d : ((BigDecimal)state[1]).add(d));
                 }
-                else if( toType.equals(Double.class) || toType.equals(double.class) ) {
-                    if( dataStoreValue instanceof Number ) {
-                        if( !(dataStoreValue instanceof Double) ) {
-                            dataStoreValue = ((Number)dataStoreValue).doubleValue();
-                        }
-                    }
-                    else if( dataStoreValue instanceof String ) {
-                        try {
-                            dataStoreValue = Double.parseDouble((String)dataStoreValue);
-                        }
-                        catch( NumberFormatException e ) {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }
-                    else if( dataStoreValue instanceof Boolean ) {
-                        dataStoreValue = (((Boolean)dataStoreValue) ? 1.0 : 0.0);
-                    }
-                    else {
-                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
-                    }
+                else if( function == Aggregate.MIN || function == Aggregate.MAX ) {
+                    state[2] = extreme(function, field, state[2], value);
                 }
-                else if( toType.equals(Float.class) || toType.equals(float.class) ) {
-                    if( dataStoreValue instanceof Number ) {
-                        if( !(dataStoreValue instanceof Float) ) {
-                            dataStoreValue = ((Number)dataStoreValue).floatValue();
-                        }
-                    }
-                    else if( dataStoreValue instanceof String ) {
-                        try {
-                            dataStoreValue = Float.parseFloat((String)dataStoreValue);
-                        }
-                        catch( NumberFormatException e ) {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }
-                    else if( dataStoreValue instanceof Boolean ) {
-                        dataStoreValue = (((Boolean)dataStoreValue) ? 1.0f : 0.0f);
-                    }
-                    else {
-                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
+            }
+        }
+        if( groups.isEmpty() && groupBy.length < 1 ) {
+            groups.put(new ArrayList<Object>(), new Object[] { 0L, null, null });
+        }
+        ArrayList<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
+
+        for( Map.Entry<List<Object>,Object[]> entry : groups.entrySet() ) {
+            HashMap<String,Object> row = new HashMap<String,Object>();
+            Object[] state = entry.getValue();
+            Object value;
+
+            for( int i=0; i<groupBy.length; i++ ) {
+                row.put(groupBy[i], entry.getKey().get(i));
+            }
+            switch( function ) {
+                case COUNT: value = state[0]; break;
+                case SUM: value = state[1]; break;
+                case AVG: value = (state[1] == null ? null : ((BigDecimal)state[1]).doubleValue()/((Long)state[0])); break;
+                default: value = state[2]; break;
+            }
+            row.put(AGGREGATE, toAggregateValue(function, field, value));
+            results.add(Collections.unmodifiableMap(row));
+        }
+        return results;
+    }
+
+    /**
+     * Verifies that the fields of an aggregate exist and suit the aggregate function.
+     * @param function the aggregate function
+     * @param field the field being aggregated
+     * @param groupBy the fields on which the results are grouped
+     * @throws PersistenceException one or more fields are missing or not valid for the function
+     */
+    protected void checkAggregate(@Nonnull Aggregate function, @Nullable String field, @Nullable String ... groupBy) throws PersistenceException {
+        if( field == null ) {
+            if( function != Aggregate.COUNT ) {
+                throw new PersistenceException("No field specified for " + function);
+            }
+        }
+        else {
+            EntityMetadata.PersistentField f = metadata.getField(field);
+
+            if( f == null ) {
+                throw new PersistenceException("No such field in " + getEntityClassName() + ": " + field);
+            }
+            if( function.isNumeric() && !isNumeric(f.getType()) ) {
+                throw new PersistenceException(function + " requires a numeric field, but " + field + " is " + f.getType().getName());
+            }
+        }
+        if( groupBy != null && groupBy.length > 0 ) {
+            checkProjection(groupBy);
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private @Nonnull Object extreme(@Nonnull Aggregate function, @Nonnull String field, @Nullable Object current, @Nonnull Object value) throws PersistenceException {
+        if( current == null ) {
+            return value;
+        }
+        if( !(value instanceof Comparable) ) {
+            throw new PersistenceException("Values of " + field + " cannot be compared");
+        }
+        int c = ((Comparable)value).compareTo(current);
+
+        return ((function == Aggregate.MIN ? c < 0 : c > 0) ? value : current);
+    }
+
+    static private boolean isNumeric(@Nonnull Class<?> type) {
+        if( type.isPrimitive() ) {
+            return !(type.equals(boolean.class) || type.equals(char.class));
+        }
+        return Number.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Normalizes a raw aggregate value from a data store: counts are longs and averages doubles. Sums are longs
+     * for integral fields, {@link BigDecimal} or {@link BigInteger} for big number fields and doubles otherwise.
+     * Minimums and maximums take the type of the field.
+     * @param function the aggregate function that produced the value
+     * @param field the field that was aggregated
+     * @param value the raw value
+     * @return the normalized value
+     * @throws PersistenceException the value could not be converted
+     */
+    protected @Nullable Object toAggregateValue(@Nonnull Aggregate function, @Nullable String field, @Nullable Object value) throws PersistenceException {
+        if( value == null ) {
+            return (function == Aggregate.COUNT ? Long.valueOf(0L) : null);
+        }
+        if( function == Aggregate.COUNT ) {
+            return (value instanceof Number ? ((Number)value).longValue() : Long.parseLong(value.toString()));
+        }
+        if( function == Aggregate.AVG ) {
+            return (value instanceof Number ? ((Number)value).doubleValue() : Double.parseDouble(value.toString()));
+        }
+        EntityMetadata.PersistentField f = metadata.getField(field);
+
+        if( function == Aggregate.SUM ) {
+            Class<?> type = f.getType();
+
+            if( type.equals(BigDecimal.class) ) {
+                return new BigDecimal(value.toString());
+            }
+            if( type.equals(BigInteger.class) ) {
+                return new BigDecimal(value.toString()).toBigInteger();
+            }
+            if( type.equals(Long.class) || type.equals(long.class) || type.equals(Integer.class) || type.equals(int.class) || type.equals(Short.class) || type.equals(short.class) || type.equals(Byte.class) || type.equals(byte.class) ) {
+                return (value instanceof Number ? ((Number)value).longValue() : new BigDecimal(value.toString()).longValue());
+            }
+            return (value instanceof Number ? ((Number)value).doubleValue() : Double.parseDouble(value.toString()));
+        }
+        return convert(f, value);
+    }
+
+    /**
+     * Builds a normalized aggregate row from the raw values returned by a data store.
+     * @param function the aggregate function that produced the row
+     * @param field the field that was aggregated
+     * @param groupBy the fields on which the results were grouped
+     * @param raw the raw group-by values keyed by field name and the raw aggregate under {@link #AGGREGATE}
+     * @return a read-only row with values in their field types
+     * @throws PersistenceException a value could not be converted
+     */
+    protected @Nonnull Map<String,Object> toAggregateRow(@Nonnull Aggregate function, @Nullable String field, @Nullable String[] groupBy, @Nonnull Map<String,Object> raw) throws PersistenceException {
+        HashMap<String,Object> row = new HashMap<String,Object>();
+
+        if( groupBy != null ) {
+            for( String g : groupBy ) {
+                row.put(g, convert(metadata.getField(g), raw.get(g)));
+            }
+        }
+        row.put(AGGREGATE, toAggregateValue(function, field, raw.get(AGGREGATE)));
+        return Collections.unmodifiableMap(row);
+    }
+
+    private @Nullable Object convert(@Nonnull EntityMetadata.PersistentField f, @Nullable Object value) throws PersistenceException {
+        try {
+            return f.getConverter().convert(f.getName(), value);
+        }
+        catch( PersistenceException e ) {
+            throw e;
+        }
+        catch( Exception e ) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Finds a single page of matching objects starting at the specified position.
+     * @param terms the search criteria
+     * @param limit the maximum number of objects in the page, or 0 for no limit
+     * @param offset the number of matching objects to skip
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return the page of results
+     * @throws PersistenceException an error occurred executing the search
+     */
+    public @Nonnull Page<T> findPage(@Nonnull SearchTerm[] terms, int limit, int offset, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        return findPage(terms, limit, (offset > 0 ? Page.forOffset(offset) : null), orderDesc, orderFields);
+    }
+
+    /**
+     * Finds a single page of matching objects. Pass <code>null</code> as the continuation for the first page and
+     * the continuation of each page for the one after it. The ordering must stay the same from page to page.
+     * This implementation runs the full search and slices out the page in memory; data stores that can page
+     * natively override it.
+     * @param terms the search criteria
+     * @param limit the maximum number of objects in the page, or 0 for no limit
+     * @param continuation the continuation token from the previous page or <code>null</code> for the first page
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return the page of results
+     * @throws PersistenceException an error occurred executing the search or the continuation is not valid
+     */
+    public @Nonnull Page<T> findPage(@Nonnull SearchTerm[] terms, int limit, @Nullable String continuation, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        int offset = (continuation == null ? 0 : Page.toOffset(continuation));
+        ArrayList<T> items = new ArrayList<T>();
+        int position = 0;
+
+        for( T item : find(terms, null, orderDesc, orderFields) ) {
+            if( position++ < offset ) {
+                continue;
+            }
+            if( limit > 0 && items.size() >= limit ) {
+                return new Page<T>(items, Page.forOffset(offset + limit));
+            }
+            items.add(item);
+        }
+        return new Page<T>(items, null);
+    }
+
+    public abstract T get(Object keyValue) throws PersistenceException;
+
+    /**
+     * Retrieves the objects with the specified primary key values. Objects already in the cache are used as is and
+     * the rest are read from the data store with a single call to {@link #loadAll(List)}. Keys recently found to be
+     * missing are not loaded again when negative caching is enabled.
+     * @param keys the primary key values
+     * @return a list the size of <code>keys</code> holding, at each position, the object for the key at that
+     * position or <code>null</code> if no such object exists
+     * @throws PersistenceException an error occurred talking to the data store
+     */
+    public @Nonnull List<T> getAll(@Nonnull Collection<?> keys) throws PersistenceException {
+        long start = System.nanoTime();
+
+        try {
+            NegativeCache negative = missing;
+            long generation = (negative == null ? 0L : negative.getGeneration());
+            ArrayList<T> results = new ArrayList<T>(keys.size());
+            ArrayList<Object> normalized = new ArrayList<Object>(keys.size());
+            LinkedHashMap<Object,Object> misses = new LinkedHashMap<Object,Object>();
+
+            for( Object key : keys ) {
+                T item = (key == null ? null : getCache().find(getPrimaryKeyField(), key));
+                Object value = toKeyValue(key);
+
+                metrics.lookup();
+                results.add(item);
+                normalized.add(value);
+                if( item == null && key != null ) {
+                    metrics.miss();
+                    if( negative == null || !negative.contains(key) ) {
+                        misses.put(value, key);
                     }
                 }
-                else if( toType.equals(BigDecimal.class) ) {
-                    if( dataStoreValue instanceof Number ) {
-                        if( !(dataStoreValue instanceof BigDecimal) ) {
-                            if( dataStoreValue instanceof BigInteger ) {
-                                dataStoreValue = new BigDecimal((BigInteger)dataStoreValue);
-                            }
-                            else {
-                                dataStoreValue = BigDecimal.valueOf(((Number)dataStoreValue).doubleValue());
-                            }
-                        }
-                    }
-                    else if( dataStoreValue instanceof String ) {
-                        try {
-                            dataStoreValue = new BigDecimal((String)dataStoreValue);
-                        }
-                        catch( NumberFormatException e ) {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }
-                    else if( dataStoreValue instanceof Boolean ) {
-                        dataStoreValue = new BigDecimal((((Boolean)dataStoreValue) ? 1.0 : 0.0));
-                    }
-                    else {
-                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
-                    }
+            }
+            if( misses.isEmpty() ) {
+                return results;
+            }
+            HashMap<Object,T> found = new HashMap<Object,T>();
+            long loading = System.nanoTime();
+
+            try {
+                for( T item : loadAll(new ArrayList<Object>(misses.keySet())) ) {
+                    found.put(toKeyValue(getValue(item, getPrimaryKeyField())), item);
                 }
-                else if( toType.equals(BigInteger.class) ) {
-                    if( dataStoreValue instanceof Number ) {
-                        if( !(dataStoreValue instanceof BigInteger) ) {
-                            if( dataStoreValue instanceof BigDecimal ) {
-                                dataStoreValue = ((BigDecimal)dataStoreValue).toBigInteger();
-                            }
-                            else {
-                                dataStoreValue = BigInteger.valueOf(((Number)dataStoreValue).longValue());
-                            }
-                        }
-                    }
-                    else if( dataStoreValue instanceof String ) {
-                        try {
-                            dataStoreValue = new BigDecimal((String)dataStoreValue);
-                        }
-                        catch( NumberFormatException e ) {
-                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
-                        }
-                    }
-                    else if( dataStoreValue instanceof Boolean ) {
-                        dataStoreValue = new BigDecimal((((Boolean)dataStoreValue) ? 1.0 : 0.0));
-                    }
-                    else {
-                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
+            }
+            finally {
+                metrics.record(CacheMetrics.Operation.LOAD, loading);
+            }
+            for( int i=0; i<results.size(); i++ ) {
+                Object value = normalized.get(i);
+
+                if( results.get(i) == null && misses.containsKey(value) ) {
+                    T item = found.get(value);
+
+                    results.set(i, item);
+                    if( item == null && negative != null ) {
+                        negative.add(misses.get(value), generation);
                     }
                 }
-                else if( dataStoreValue != null ) {
-                    logger.error("Type of dataStoreValue=" + dataStoreValue.getClass());
-                    throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);                        
-                }
             }
-            else if( toType.equals(Locale.class )) {
-                if( dataStoreValue != null && !(dataStoreValue instanceof Locale) ) {
-                    String[] parts = dataStoreValue.toString().split("_");
-                    
-                    if( parts != null && parts.length > 1 ) {
-                        dataStoreValue = new Locale(parts[0], parts[1]);
-                    }
-                    else {
-                        dataStoreValue = new Locale(parts[0]);
-                    }      
-                }
-            }
-            else if( Measured.class.isAssignableFrom(toType) ) {
-                if( dataStoreValue != null && ptype != null ) {
-                    if( Number.class.isAssignableFrom(dataStoreValue.getClass()) ) {
-                        Constructor<? extends Measured> constructor = null;
-                        double value = ((Number)dataStoreValue).doubleValue();
-                        
-                        for( Constructor<?> c : toType.getDeclaredConstructors() ) {
-                            Class[] args = c.getParameterTypes();
-                            
-                            if( args != null && args.length == 2 && Number.class.isAssignableFrom(args[0]) && UnitOfMeasure.class.isAssignableFrom(args[1]) ) {
-                                constructor = (Constructor<? extends Measured>)c;
-                                break;
-                            }
-                        }  
-                        if( constructor == null ) {
-                            throw new PersistenceException("Unable to map with no proper constructor");
-                        }
-                        dataStoreValue = constructor.newInstance(value, ((Class<?>)ptype.getActualTypeArguments()[0]).newInstance());
-                    }
-                    else if( !(dataStoreValue instanceof Measured) ) {
-                        try {
-                            dataStoreValue = Double.parseDouble(dataStoreValue.toString()); 
-                        }
-                        catch( NumberFormatException e ) {
-                            Method method = null;
-                            
-                            for( Method m : toType.getDeclaredMethods() ) {
-                                if( Modifier.isStatic(m.getModifiers()) && m.getName().equals("valueOf") ) {
-                                    if( m.getParameterTypes().length == 1 && m.getParameterTypes()[0].equals(String.class) ) {
-                                        method = m;
-                                        break;
-                                    }
-                                }
-                            }
-                            if( method == null ) {
-                                throw new PersistenceException("Don't know how to map " + dataStoreValue + " to " + toType + "<" + ptype + ">");
-                            }
-                            dataStoreValue = method.invoke(null, dataStoreValue.toString());
-                        }
-                    } 
-                    // just because we converted it to a measured object above doesn't mean
-                    // we have the unit of measure right
-                    if( dataStoreValue instanceof Measured ) {
-                        UnitOfMeasure targetUom = (UnitOfMeasure)((Class<?>)ptype.getActualTypeArguments()[0]).newInstance();
-                        
-                        if( !(((Measured)dataStoreValue).getUnitOfMeasure()).equals(targetUom) ) {
-                            dataStoreValue = ((Measured)dataStoreValue).convertTo((UnitOfMeasure)((Class<?>)ptype.getActualTypeArguments()[0]).newInstance());
-                        }
-                    } 
+            return results;
+        }
+        finally {
+            metrics.record(CacheMetrics.Operation.GET, start);
+        }
+    }
+
+    /**
+     * Reads the objects with the specified primary key values from the data store, caching each object read.
+     * Data stores that can fetch many keys at once override this; this implementation calls {@link #get(Object)}
+     * for each key.
+     * @param keys the primary key values of objects known not to be in the cache
+     * @return the objects that exist, in any order
+     * @throws PersistenceException an error occurred talking to the data store
+     */
+    protected @Nonnull Collection<T> loadAll(@Nonnull List<Object> keys) throws PersistenceException {
+        ArrayList<T> items = new ArrayList<T>();
+
+        for( Object key : keys ) {
+            T item = get(key);
+
+            if( item != null ) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Converts a primary key value to the type of the primary key field so that equal keys compare equal.
+     * @param key the key value as supplied
+     * @return the converted value, or the value as supplied if the key has several fields or cannot be converted
+     */
+    private @Nullable Object toKeyValue(@Nullable Object key) {
+        EntityMetadata.PersistentField[] fields = metadata.getKeyFields(primaryKey);
+
+        if( key == null || fields == null || fields.length != 1 ) {
+            return key;
+        }
+        try {
+            return fields[0].getConverter().convert(fields[0].getName(), key);
+        }
+        catch( Exception e ) {
+            return key;
+        }
+    }
+
+    protected String getKeyValue(T object) throws PersistenceException {
+        return getKeyValue(object, getPrimaryKey());
+    }
+
+    @SuppressWarnings("rawtypes")
+    protected String getKeyValue(T object, Key key) throws PersistenceException {
+        if( object == null ) {
+            return null;
+        }
+        EntityMetadata.PersistentField[] fields = metadata.getKeyFields(key);
+
+        if( fields == null ) {
+            return null;
+        }
+        try {
+            String value = "";
+
+            for( EntityMetadata.PersistentField field : fields ) {
+                if( !value.equals("") ) {
+                    value = value + ":";
+                }
+                Object result = field.get(object);
+
+                if( result instanceof Enum ) {
+                    value = value + ((Enum)result).name();
+                }
+                else {
+                    value = value + result.toString();
                 }
             }
-            else if( toType.equals(UUID.class) ) {
-                if( dataStoreValue != null && !(dataStoreValue instanceof UUID) ) {
-                    dataStoreValue = UUID.fromString(dataStoreValue.toString());
+            return value;
+        }
+        catch( Exception e ) {
+            logger.error(e.getMessage(), e);
+            throw new PersistenceException(e);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    protected String getKeyValue(Map<String,Object> map, Key key) throws PersistenceException {
+        if( map == null ) {
+            return null;
+        }
+        try {
+            String value = "";
+
+            for( String fieldName : key.getFields() ) {
+                if( !value.equals("") ) {
+                    value = value + ":";
+                }
+                Object result = map.get(fieldName);
+
+                if( result instanceof Enum ) {
+                    value = value + ((Enum)result).name();
+                }
+                else {
+                    value = value + result.toString();
                 }
             }
-            else if( toType.equals(TimeZone.class) ) {
-                if( dataStoreValue != null && !(dataStoreValue instanceof TimeZone) ) {
-                    dataStoreValue = TimeZone.getTimeZone(dataStoreValue.toString());
+            return value;
+        }
+        catch( Exception e ) {
+            logger.error(e.getMessage(), e);
+            throw new PersistenceException(e);
+        }
+    }
+
+    protected Set<String> getKeyValues(int index, SearchTerm ... forTerms) {
+        HashSet<String> list = new HashSet<String>();
+        SearchTerm term = forTerms[index];
+        Object searchValue = term.getValue();
+        String keyValue;
+
+        if( searchValue instanceof Range ) {
+            keyValue = null;
+        }
+        else if( searchValue instanceof Enum ) {
+            keyValue = ((Enum<?>)searchValue).name();
+        }
+        else {
+            keyValue = searchValue.toString();
+        }
+        if( index < forTerms.length-1 ) {
+            for( String remainder : getKeyValues(index+1, forTerms) ) {
+                if( searchValue instanceof Range ) {
+                    for( int val : (Range)searchValue ) {
+                        list.add(String.valueOf(val) + ":" + remainder);
+                    }
+                }
+                else {
+                    list.add(keyValue + ":" + remainder);
                 }
             }
-            else if( toType.equals(Currency.class) ) {
-                if( dataStoreValue != null && !(dataStoreValue instanceof Currency) ) {
-                    dataStoreValue = Currency.getInstance(dataStoreValue.toString());
+        }
+        else {
+            if( searchValue instanceof Range ) {
+                for( int val : (Range)searchValue ) {
+                    list.add(String.valueOf(val));
                 }
             }
-            else if( toType.isArray() ) {
-                Class<?> t = toType.getComponentType();
-                
-                if( dataStoreValue == null ) {
-                    dataStoreValue = Array.newInstance(t, 0);
+            else {
+                list.add(keyValue);
+            }
+        }
+        return list;
+    }
+
+    public LookupDelegate getLookupDelegate(String field) {
+        return metadata.getLookupDelegate(field);
+    }
+
+    protected @Nonnull EntityMetadata<T> getMetadata() {
+        return metadata;
+    }
+    
+    protected Key getPrimaryKey() {
+        return primaryKey;
+    }
+
+    protected String getPrimaryKeyField() {
+        return primaryKey.getFields()[0];
+    }
+
+    public long getNewKeyValue() throws PersistenceException {
+        return Sequencer.getInstance(getEntityClassName() + "." + getPrimaryKeyField()).next();
+    }
+
+    public abstract String getSchema() throws PersistenceException;
+
+    public @Nullable SchemaMapper getSchemaMapper(@Nonnull String fromVersion) {
+        if( schemaMappers.length < 1 || fromVersion.equalsIgnoreCase(schemaVersion) ) {
+            return null;
+        }
+        for( SchemaMapper mapper : schemaMappers ) {
+            if( mapper.getSourceVersion().equalsIgnoreCase(fromVersion) ) {
+                return mapper;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Provides the mappers that take stored state from the specified version to the current schema version, in
+     * the order they apply. Chains are resolved through {@link #getSchemaMapper(String)} the first time a
+     * version is seen and reused after that.
+     * @param fromVersion the schema version of the stored state
+     * @return the mappers to apply, empty if the state needs no mapping
+     */
+    public @Nonnull SchemaMapper[] getSchemaMapperChain(@Nonnull String fromVersion) {
+        SchemaMapper[] chain = mapperChains.get(fromVersion);
+
+        if( chain == null ) {
+            ArrayList<SchemaMapper> list = new ArrayList<SchemaMapper>();
+            HashSet<String> seen = new HashSet<String>();
+            String version = fromVersion;
+
+            while( !version.equals(schemaVersion) && seen.add(version) ) {
+                SchemaMapper mapper = getSchemaMapper(version);
+
+                if( mapper == null ) {
+                    break;
                 }
-                else if( dataStoreValue instanceof JSONArray ) {
-                    JSONArray arr = (JSONArray)dataStoreValue;
-                    
-                    if( long.class.isAssignableFrom(t)  ) {
-                        long[] replacement = (long[])Array.newInstance(long.class, arr.length());
-                        
-                        for( int i = 0; i<arr.length(); i++ ) {
-                            replacement[i] = (Long)mapValue(fieldName, arr.get(i), t, null);
-                        }
-                        dataStoreValue = replacement;
-                    }
-                    else if( int.class.isAssignableFrom(t)  ) {
-                        int[] replacement = (int[])Array.newInstance(int.class, arr.length());
+                list.add(mapper);
+                version = mapper.getTargetVersion();
+            }
+            chain = list.toArray(new SchemaMapper[list.size()]);
+            mapperChains.put(fromVersion, chain);
+        }
+        return chain;
+    }
 
-                        for( int i = 0; i<arr.length(); i++ ) {
-                            replacement[i] = (Integer)mapValue(fieldName, arr.get(i), t, null);
-                        }
-                        dataStoreValue = replacement;
-                    }
-                    else if( float.class.isAssignableFrom(t)  ) {
-                        float[] replacement = (float[])Array.newInstance(float.class, arr.length());
+    /**
+     * @return the number of cache-miss loads of this entity that were served by another thread's load of the same key
+     */
+    public long getCoalescedLoadCount() {
+        return loads.getCoalescedCount();
+    }
+
+    /**
+     * @return the number of lookups of this entity answered by the negative cache without going to the data store
+     */
+    public long getNegativeHitCount() {
+        NegativeCache negative = missing;
+
+        return (negative == null ? 0L : negative.getHitCount());
+    }
+
+    /**
+     * @return the number of searches of this entity answered by the query cache
+     */
+    public long getQueryHitCount() {
+        QueryCache qc = queries;
+
+        return (qc == null ? 0L : qc.getHitCount());
+    }
+
+    /**
+     * @return the number of cache-miss loads of this entity that failed
+     */
+    public long getFailedLoadCount() {
+        return loads.getFailureCount();
+    }
+
+    /**
+     * @return the number of cache-miss loads of this entity actually sent to the data store
+     */
+    public long getLoadCount() {
+        return loads.getLoadCount();
+    }
+
+    /**
+     * @return the number of objects of this entity read under an older schema version and still waiting to be
+     * written back, always 0 unless migration is enabled (see {@link SchemaMigrator})
+     */
+    public int getOutstandingMigrationCount() {
+        return (migrator == null ? 0 : migrator.getOutstandingCount());
+    }
+
+    /**
+     * @return the metrics recorded for this cache, which are also exposed through JMX
+     */
+    public @Nonnull CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of objects of this entity written back under the current schema version by this JVM
+     */
+    public long getMigratedCount() {
+        return (migrator == null ? 0L : migrator.getMigratedCount());
+    }
+
+    public String getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    protected Key[] getSecondaryKeys() {
+        return secondaryKeys;
+    }
+
+    public Class<T> getTarget() {
+        return cache.getTarget();
+    }
+
+    public Object getValue(T item, String field) {
+        EntityMetadata.PersistentField f = (item.getClass().equals(metadata.getTarget()) ? metadata.getField(field) : EntityMetadata.forClass(item.getClass()).getField(field));
+
+        if( f == null ) {
+            return null;
+        }
+        try {
+            return f.get(item);
+        }
+        catch( Exception e ) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public abstract Collection<T> list() throws PersistenceException;
+
+    public ForwardCursor<T> listAsCursor() throws PersistenceException {
+        final Collection<T> items = list();
+
+        CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".listAsCursor", null) {
+            @Override
+            public void populate(ForwardCursor<T> cursor) {
+                for( T item : items ) {
+                    cursor.push(item);
+                }
+            }
+        };
+        populator.populate();
+        return populator.getCursor();
+    }
 
-                        for( int i = 0; i<arr.length(); i++ ) {
-                            replacement[i] = (Float)mapValue(fieldName, arr.get(i), t, null);
-                        }
-                        dataStoreValue = replacement;
-                    }
-                    else if( double.class.isAssignableFrom(t)  ) {
-                        double[] replacement = (double[])Array.newInstance(double.class, arr.length());
+    public Collection<T> list(boolean orderDesc, String ... orderFields) throws PersistenceException {
+        if( !orderDesc || (orderFields != null && orderFields.length > 0 ) ) {
+            return find(new SearchTerm[0], null, orderDesc, orderFields);
+        }
+        else {
+            return list();
+        }
+    }
 
-                        for( int i = 0; i<arr.length(); i++ ) {
-                            replacement[i] = (Double)mapValue(fieldName, arr.get(i), t, null);
-                        }
-                        dataStoreValue = replacement;
-                    }
-                    else if( boolean.class.isAssignableFrom(t)  ) {
-                        boolean[] replacement = (boolean[])Array.newInstance(boolean.class, arr.length());
+    public ForwardCursor<T> listAsCursor(boolean orderDesc, String ... orderFields) throws PersistenceException {
+        if( !orderDesc || (orderFields != null && orderFields.length > 0 ) ) {
+            return findAsCursor(new SearchTerm[0], null, orderDesc, orderFields);
+        }
+        else {
+            return listAsCursor();
+        }
+    }
 
-                        for( int i = 0; i<arr.length(); i++ ) {
-                            replacement[i] = (Boolean)mapValue(fieldName, arr.get(i), t, null);
-                        }
-                        dataStoreValue = replacement;
-                    }
-                    else {
-                        Object[] replacement = (Object[])Array.newInstance(t, arr.length());
-                    
-                        for( int i = 0; i<arr.length(); i++ ) {
-                            replacement[i] = mapValue(fieldName, arr.get(i), t, null);
-                        }
-                        dataStoreValue = replacement;
-                    }
-                }
-                else if( !dataStoreValue.getClass().isArray() ) {
-                    logger.error("Unable to map data store type " + dataStoreValue.getClass().getName() + " to " + toType.getName());
-                    logger.error("Value of " + fieldName + "=" + dataStoreValue);
-                    throw new PersistenceException("Data store type=" + dataStoreValue.getClass().getName());
-                }
+    protected Key matchKeys(SearchTerm[] terms) {
+        if( terms == null ) {
+            return null;
+        }
+        if( terms.length == 1 && primaryKey.getFields()[0].equals(terms[0].getColumn()) ) {
+            return primaryKey ;
+        }
+        for( Key key : secondaryKeys ) {
+            if( key.matches(terms) ) {
+                return key;
             }
-            else if( dataStoreValue != null && !toType.isAssignableFrom(dataStoreValue.getClass()) ) {
-                Annotation[] alist = toType.getDeclaredAnnotations();
-                boolean autoJSON = false;
+        }
+        return null;
+    }
 
-                for( Annotation a : alist ) {
-                    if( a instanceof AutoJSON ) {
-                        autoJSON = true;
-                    }
-                }
-                if( autoJSON ) {
-                    dataStoreValue = autoDeJSON(toType, (JSONObject)dataStoreValue);
-                }
-                else {
-                    try {
-                        Method m = toType.getDeclaredMethod("valueOf", JSONObject.class);
+    public void reindex() throws PersistenceException {
+        // NO-OP
+    }
 
-                        dataStoreValue = m.invoke(null, dataStoreValue);
-                    }
-                    catch( NoSuchMethodException ignore ) {
-                        try {
-                            Method m = toType.getDeclaredMethod("valueOf", String.class);
+    public abstract void remove(Transaction xaction, T item) throws PersistenceException;
 
-                            if( m != null ) {
-                                dataStoreValue = m.invoke(null, dataStoreValue.toString());
-                            }
-                            else {
-                                throw new PersistenceException("No valueOf() field in " + toType + " for mapping " + fieldName);
-                            }
-                        }
-                        catch( NoSuchMethodException e ) {
-                            throw new PersistenceException("No valueOf() field in " + toType + " for mapping " + fieldName + " with " + dataStoreValue + ": (" + dataStoreValue.getClass().getName() + " vs " + toType.getName() + ")");
-                        }
-                    }
-                }
+    public abstract void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException;
+
+    public abstract void update(Transaction xaction, T item, Map<String,Object> state) throws PersistenceException;
+    
+    protected void set(Map<String,Object> map, String fieldName, Object value, Class<?> type) throws PersistenceException {
+        map.put(fieldName, mapValue(fieldName, value, type, null));
+    }
+    
+    protected void set(T target, Field field, Object value) throws PersistenceException {
+        try {
+            ParameterizedType pt = null;
+            field.setAccessible(true);
+            if( field.getGenericType() instanceof ParameterizedType ) {
+                pt = (ParameterizedType)field.getGenericType();
             }
+            field.set(target, mapValue(field.getName(), value, field.getType(), pt));
+        }
+        catch( IllegalArgumentException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( IllegalAccessException e ) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    protected void set(T target, EntityMetadata.PersistentField field, Object value) throws PersistenceException {
+        try {
+            field.set(target, convert(field.getName(), field.getDelegate(), field.getConverter(), value, field.getType()));
+        }
+        catch( IllegalArgumentException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( IllegalAccessException e ) {
+            throw new PersistenceException(e);
+        }
+    }
+    
+    protected Object mapValue(String fieldName, Object dataStoreValue, Class<?> toType, ParameterizedType ptype) throws PersistenceException {
+        return convert(fieldName, getLookupDelegate(fieldName), ValueConverter.getInstance(toType, ptype), dataStoreValue, toType);
+    }
+
+    private Object convert(@Nonnull String fieldName, @Nullable LookupDelegate delegate, @Nonnull ValueConverter converter, @Nullable Object dataStoreValue, @Nonnull Class<?> toType) throws PersistenceException {
+        if( dataStoreValue != null && delegate != null && !delegate.validate(dataStoreValue.toString()) ) {
+            throw new PersistenceException("Value " + dataStoreValue + " for " + fieldName + " is not valid.");
+        }
+        try {
+            return converter.convert(fieldName, dataStoreValue);
         }
         catch( Exception e ) {
             String err = "Error mapping field in " + toType + " for " + fieldName + ": " + e.getMessage();
             logger.error(err, e);
-            throw new PersistenceException();
+            throw new PersistenceException(err);
         }
-        return dataStoreValue;
     }
-    
+
     protected String toDataStoreJSONFromCurrentState(Map<String,Object> state) {
-        HashMap<String,Object> friendlyState = new HashMap<String,Object>();
-        Class<? extends Object> t = getTarget();
-        
-        while( !t.equals(Object.class) ) {
-            for( Field field : t.getDeclaredFields()) {
-                int modifiers = field.getModifiers();
-                
-                if( Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ) {
+        StringWriter json = new StringWriter();
+
+        try {
+            writeDataStoreJSON(state, json);
+        }
+        catch( IOException e ) {
+            // StringWriter does not throw I/O exceptions
+            throw new RuntimeException(e);
+        }
+        return json.toString();
+    }
+
+    /**
+     * Streams the data store representation of the specified state, including its <code>SCHEMA_VERSION</code>,
+     * to the specified writer.
+     * @param state the state to be written
+     * @param out the destination for the JSON
+     * @throws IOException an error occurred writing to the destination
+     */
+    protected void writeDataStoreJSON(@Nonnull Map<String,Object> state, @Nonnull Writer out) throws IOException {
+        writeDataStore(state, new JSONStreamWriter(out));
+    }
+
+    /**
+     * Streams the data store representation of the current values of the specified item to the specified writer.
+     * @param item the item to be written
+     * @param out the destination for the JSON
+     * @throws IOException an error occurred writing to the destination
+     */
+    protected void writeDataStoreJSON(@Nonnull T item, @Nonnull Writer out) throws IOException {
+        writeDataStore(item, new JSONStreamWriter(out));
+    }
+
+    /**
+     * Writes the data store representation of the specified state in the compact binary form read by
+     * {@link #toTargetFromBinary(InputStream)}. The document carries the same members as its JSON equivalent.
+     * @param state the state to be written
+     * @param out the destination for the document
+     * @throws IOException an error occurred writing to the destination
+     */
+    protected void writeDataStoreBinary(@Nonnull Map<String,Object> state, @Nonnull OutputStream out) throws IOException {
+        writeDataStore(state, new BinaryStreamWriter(out));
+    }
+
+    /**
+     * Writes the current values of the specified item in the compact binary form read by
+     * {@link #toTargetFromBinary(InputStream)}.
+     * @param item the item to be written
+     * @param out the destination for the document
+     * @throws IOException an error occurred writing to the destination
+     */
+    protected void writeDataStoreBinary(@Nonnull T item, @Nonnull OutputStream out) throws IOException {
+        writeDataStore(item, new BinaryStreamWriter(out));
+    }
+
+    private void writeDataStore(@Nonnull Map<String,Object> state, @Nonnull StateWriter writer) throws IOException {
+        try {
+            writer.beginObject();
+            for( EntityMetadata.PersistentField field : metadata.getFields() ) {
+                if( field.getSlot() != field.getIndex() ) {
                     continue;
                 }
                 Object value = state.get(field.getName());
-                
+
                 if( value != null ) {
-                    friendlyState.put(field.getName(), toJSONValue(value));
+                    writer.member(field.getName(), toJSONValue(value));
                 }
             }
-            t = t.getSuperclass();
+            writer.member("SCHEMA_VERSION", getSchemaVersion());
+            writer.endObject();
+            writer.flush();
+        }
+        catch( JSONException e ) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private void writeDataStore(@Nonnull T item, @Nonnull StateWriter writer) throws IOException {
+        try {
+            writer.beginObject();
+            for( EntityMetadata.PersistentField field : metadata.getFields() ) {
+                if( field.getSlot() != field.getIndex() ) {
+                    continue;
+                }
+                Object value = field.get(item);
+
+                if( value != null ) {
+                    writer.member(field.getName(), toJSONValue(value));
+                }
+            }
+            writer.member("SCHEMA_VERSION", getSchemaVersion());
+            writer.endObject();
+            writer.flush();
+        }
+        catch( IllegalAccessException e ) {
+            throw new IOException(e.getMessage());
+        }
+        catch( JSONException e ) {
+            throw new IOException(e.getMessage());
         }
-        friendlyState.put("SCHEMA_VERSION", getSchemaVersion());
-        return new JSONObject(friendlyState).toString();
     }
-    
 
     @SuppressWarnings("rawtypes")
     protected Object toJSONValue(Object value) {
@@ -1260,102 +2061,157 @@ public abstract class PersistentCache<T extends CachedItem> {
         HashMap<String,Object> json = new HashMap<String, Object>();
         Class<?> cls = ob.getClass();
 
-        while( !(cls.getName().equals(Object.class.getName())) ) {
-            Field[] fields = cls.getDeclaredFields();
-
-            for( Field field : fields ) {
-                int modifiers = field.getModifiers();
-
-                if( Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ) {
-                    continue;
-                }
-                field.setAccessible(true);
-                try {
-                    Object value = field.get(ob);
+        for( EntityMetadata.PersistentField field : EntityMetadata.forClass(cls).getFields() ) {
+            try {
+                Object value = field.get(ob);
 
-                    value = toJSONValue(value);
-                    json.put(field.getName(), value);
-                }
-                catch( IllegalAccessException e ) {
-                    // this should not happen, don't map
-                    logger.warn("Illegal access exception mapping " + cls.getName() + "." + field.getName() + ": " + e.getMessage(), e);
-                }
+                value = toJSONValue(value);
+                json.put(field.getName(), value);
+            }
+            catch( IllegalAccessException e ) {
+                // this should not happen, don't map
+                logger.warn("Illegal access exception mapping " + cls.getName() + "." + field.getName() + ": " + e.getMessage(), e);
             }
-            cls = cls.getSuperclass();
         }
         return new JSONObject(json);
     }
 
-    private @Nonnull <T> T autoDeJSON(@Nonnull Class<T> targetClass, @Nonnull JSONObject ob) throws PersistenceException {
-        Class<?> cls = targetClass;
+    protected Map<String,Object> toMapFromJSON(String json) throws PersistenceException {
+        try {
+            HashMap<String,Object> values = new HashMap<String,Object>();
+            JSONObject j = new JSONObject(json);
 
-        T item;
+            for( EntityMetadata.PersistentField field : metadata.getFields() ) {
+                String fieldName = field.getName();
 
+                values.put(fieldName, convert(fieldName, field.getDelegate(), field.getConverter(), j.has(fieldName) ? j.get(fieldName) : null, field.getType()));
+            }
+            return values;
+        }
+        catch( JSONException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( RuntimeException e ) {
+            logger.error(e.getMessage(), e);
+            throw new PersistenceException(e);
+        }
+        catch( Error e ) {
+            logger.error(e.getMessage(), e);
+            throw new PersistenceException(e.getMessage());
+        }
+    }
+    
+    protected @Nonnull T toTargetFromJSON(@Nonnull String schemaVersion, @Nonnull String json) throws PersistenceException {
         try {
-            item = targetClass.newInstance();
+            return toTargetFromJSON(schemaVersion, new JSONObject(json));
         }
-        catch( Exception e ) {
+        catch( JSONException e ) {
+            throw new PersistenceException(e);
+        }        
+    }
+    
+    /**
+     * Decodes a UTF-8 JSON document straight into a new instance of the target class. The schema version is
+     * read from the document's <code>SCHEMA_VERSION</code> and defaults to <code>0</code>.
+     * @param json the JSON document
+     * @return the decoded item
+     * @throws PersistenceException the document could not be read or mapped
+     */
+    protected @Nonnull T toTargetFromJSON(@Nonnull InputStream json) throws PersistenceException {
+        try {
+            return toTargetFromJSON(new JSONStreamReader(new InputStreamReader(json, "utf-8")));
+        }
+        catch( UnsupportedEncodingException e ) {
             throw new PersistenceException(e);
         }
-        while( !(cls.getName().equals(Object.class.getName())) ) {
-            Field[] fields = cls.getDeclaredFields();
+    }
+
+    /**
+     * Decodes the next JSON object from the specified reader into a new instance of the target class. Values
+     * are converted directly into their fields unless the document is at an older schema version with a
+     * registered {@link SchemaMapper}, in which case the document is handed to the mapper chain first.
+     * @param reader a reader positioned at the start of an object
+     * @return the decoded item
+     * @throws PersistenceException the document could not be read or mapped
+     */
+    protected @Nonnull T toTargetFromJSON(@Nonnull JSONStreamReader reader) throws PersistenceException {
+        return toTarget(reader);
+    }
 
-            for( Field field : fields ) {
-                int modifiers = field.getModifiers();
+    /**
+     * Decodes a document written by {@link #writeDataStoreBinary(Map, OutputStream)} into a new instance of the
+     * target class, applying any registered {@link SchemaMapper} chain exactly as for JSON documents.
+     * @param in the binary document
+     * @return the decoded item
+     * @throws PersistenceException the document could not be read or mapped
+     */
+    protected @Nonnull T toTargetFromBinary(@Nonnull InputStream in) throws PersistenceException {
+        return toTarget(new BinaryStreamReader(in));
+    }
 
-                if( Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ) {
-                    continue;
-                }
-                field.setAccessible(true);
-                Object value = null;
+    private @Nonnull T toTarget(@Nonnull StateReader reader) throws PersistenceException {
+        try {
+            EntityMetadata.PersistentField[] fields = metadata.getFields();
+            Object[] values = new Object[fields.length];
+            Map<String,Object> unmapped = null;
+            String version = "0";
 
-                if( ob.has(field.getName()) ) {
-                    try {
-                        value = mapValue(field.getName(), ob.get(field.getName()), field.getType(), null);
+            reader.beginObject();
+            while( reader.hasNext() ) {
+                String name = reader.nextName();
+                EntityMetadata.PersistentField field = metadata.getField(name);
+                Object value = reader.nextValue();
+
+                if( field != null ) {
+                    values[field.getIndex()] = value;
+                }
+                else {
+                    if( name.equals("SCHEMA_VERSION") && value != null ) {
+                        version = value.toString();
                     }
-                    catch( JSONException e ) {
-                        logger.warn("JSON error mapping " + targetClass.getName() + "." + field.getName() + ": " + e.getMessage(), e);
+                    if( unmapped == null ) {
+                        unmapped = new HashMap<String,Object>();
                     }
+                    unmapped.put(name, value);
                 }
-                if( value != null || !field.getType().isPrimitive() ) {
-                    try {
-                        field.set(item, value);
+            }
+            reader.endObject();
+            if( !version.equals(schemaVersion) && getSchemaMapperChain(version).length > 0 ) {
+                JSONObject j = new JSONObject();
+
+                if( unmapped != null ) {
+                    for( Map.Entry<String,Object> entry : unmapped.entrySet() ) {
+                        if( entry.getValue() != null ) {
+                            j.put(entry.getKey(), entry.getValue());
+                        }
                     }
-                    catch( IllegalAccessException e ) {
-                        logger.warn("Could not set " + targetClass.getName() + "." + field.getName() + ": " + e.getMessage(), e);
+                }
+                for( EntityMetadata.PersistentField field : fields ) {
+                    if( values[field.getIndex()] != null ) {
+                        j.put(field.getName(), values[field.getIndex()]);
                     }
                 }
+                return toTargetFromJSON(version, j);
             }
-            cls = cls.getSuperclass();
-        }
-        return item;
-    }
-
-    protected Map<String,Object> toMapFromJSON(String json) throws PersistenceException {
-        try {
-            HashMap<String,Object> values = new HashMap<String,Object>();
-            JSONObject j = new JSONObject(json);
-            Class<T> targetClass = getTarget();
-            Class<? extends Object> t = targetClass;
-            
+            T item = metadata.newInstance();
 
-            while( !t.getName().equals(Object.class.getName()) ) {
-                for( Field field : t.getDeclaredFields() ) {
-                    int modifiers = field.getModifiers();
-                    
-                    if( !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) ) {
-                        String fieldName = field.getName();
-                        
-                        set(values, fieldName, j.has(fieldName) ? j.get(fieldName) : null, field.getType());
-                    }
-                }
-                t = t.getSuperclass();
+            for( EntityMetadata.PersistentField field : fields ) {
+                set(item, field, values[field.getSlot()]);
             }
-            return values;
+            return item;
+        }
+        catch( IOException e ) {
+            throw new PersistenceException(e);
         }
         catch( JSONException e ) {
             throw new PersistenceException(e);
         }
+        catch( InstantiationException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( IllegalAccessException e ) {
+            throw new PersistenceException(e);
+        }
         catch( RuntimeException e ) {
             logger.error(e.getMessage(), e);
             throw new PersistenceException(e);
@@ -1365,42 +2221,24 @@ public abstract class PersistentCache<T extends CachedItem> {
             throw new PersistenceException(e.getMessage());
         }
     }
-    
-    protected @Nonnull T toTargetFromJSON(@Nonnull String schemaVersion, @Nonnull String json) throws PersistenceException {
-        try {
-            return toTargetFromJSON(schemaVersion, new JSONObject(json));
-        }
-        catch( JSONException e ) {
-            throw new PersistenceException(e);
-        }        
-    }
-    
+
     protected @Nonnull T toTargetFromJSON(@Nonnull String sourceVersion, @Nonnull JSONObject j) throws PersistenceException {
         try {
-            while( !sourceVersion.equals(schemaVersion) ) {
-                SchemaMapper mapper = getSchemaMapper(sourceVersion);
+            SchemaMapper[] chain = getSchemaMapperChain(sourceVersion);
 
-                if( mapper == null ) {
-                    break;
-                }
+            for( SchemaMapper mapper : chain ) {
                 j = mapper.map(sourceVersion, j);
                 sourceVersion = mapper.getTargetVersion();
             }
-            Class<T> targetClass = getTarget();
-            Class<? extends Object> t = targetClass;
-            T item = targetClass.newInstance();
+            T item = metadata.newInstance();
 
-            while( !t.getName().equals(Object.class.getName()) ) {
-                for( Field field : t.getDeclaredFields() ) {
-                    int modifiers = field.getModifiers();
-                    
-                    if( !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) ) {
-                        Object value = (j.has(field.getName()) ? j.get(field.getName()) : null);
+            for( EntityMetadata.PersistentField field : metadata.getFields() ) {
+                Object value = (j.has(field.getName()) ? j.get(field.getName()) : null);
 
-                        set(item, field, value);
-                    }
-                }
-                t = t.getSuperclass();
+                set(item, field, value);
+            }
+            if( chain.length > 0 && migrator != null ) {
+                migrator.queue(item);
             }
             return item;
         }
@@ -1425,30 +2263,21 @@ public abstract class PersistentCache<T extends CachedItem> {
     
     protected @Nonnull T toTargetFromMap(@Nonnull String dataStoreVersion, @Nonnull Map<String,Object> dataStoreState) throws PersistenceException {
         try {
-            while( !dataStoreVersion.equals(schemaVersion) ) {
-                SchemaMapper mapper = getSchemaMapper(dataStoreVersion);
+            SchemaMapper[] chain = getSchemaMapperChain(dataStoreVersion);
 
-                if( mapper == null ) {
-                    break;
-                }
+            for( SchemaMapper mapper : chain ) {
                 dataStoreState = mapper.map(dataStoreVersion, dataStoreState);
                 dataStoreVersion = mapper.getTargetVersion();
             }
-            Class<T> targetClass = getTarget();
-            Class<? extends Object> t = targetClass;
-            T item = targetClass.newInstance();
+            T item = metadata.newInstance();
 
-            while( !t.getName().equals(Object.class.getName()) ) {
-                for( Field field : t.getDeclaredFields() ) {
-                    int modifiers = field.getModifiers();
-                    
-                    if( !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) ) {
-                        Object value = dataStoreState.get(field.getName());
+            for( EntityMetadata.PersistentField field : metadata.getFields() ) {
+                Object value = dataStoreState.get(field.getName());
 
-                        set(item, field, value);
-                    }
-                }
-                t = t.getSuperclass();
+                set(item, field, value);
+            }
+            if( chain.length > 0 && migrator != null ) {
+                migrator.queue(item);
             }
             return item;
         }
@@ -1482,6 +2311,13 @@ public abstract class PersistentCache<T extends CachedItem> {
      */
     public void releaseAll() {
     	getCache().releaseAll();
+        dropResidentSet();
+        if( missing != null ) {
+            missing.clear();
+        }
+        if( queries != null ) {
+            queries.clear();
+        }
     }
 
     static public void main(String ... args) throws Exception {
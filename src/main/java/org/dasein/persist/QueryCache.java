@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Remembers the primary keys matched by recent searches of a single entity so that repeating a search only
+ * costs a lookup of each key in the entity cache. Searches are identified by their terms, in any order, and
+ * their ordering. An entry is dropped as soon as an object that matches its terms is created, updated or
+ * removed, when it expires, or when the least recently used entries must make way for new ones.
+ * <p>Results are only recorded if no write was seen while the search that produced them was running, so a
+ * search racing a write cannot cache results that miss the write.</p>
+ */
+public class QueryCache {
+    static private class CachedSearch {
+        public long              expires;
+        public List<Object>      keys;
+        public SearchTermMatcher matcher;
+    }
+
+    /**
+     * Identifies a search. Searches whose terms reach into joined entities or that contain OR groups are not
+     * cacheable.
+     * @param terms the search terms
+     * @param orderDesc true if results are in descending order
+     * @param orderFields the fields on which results are ordered
+     * @return a key identifying the search or <code>null</code> if the search cannot be cached
+     */
+    static public @Nullable String getKey(@Nonnull SearchTerm[] terms, @Nullable Boolean orderDesc, @Nullable String ... orderFields) {
+        String[] parts = new String[terms.length];
+
+        for( int i=0; i<terms.length; i++ ) {
+            SearchTerm term = terms[i];
+            StringBuilder value = new StringBuilder();
+
+            if( term.getJoinEntity() != null || term.getOperator().equals(Operator.OR) ) {
+                return null;
+            }
+            if( term.getOperator().equals(Operator.IN) ) {
+                // the values may arrive as any collection or array
+                for( Object v : term.getValues() ) {
+                    describe(value, v);
+                    value.append("\u0002");
+                }
+            }
+            else {
+                describe(value, term.getValue());
+            }
+            parts[i] = term.getColumn() + "\u0000" + term.getOperator().name() + "\u0000" + value;
+        }
+        Arrays.sort(parts);
+        StringBuilder key = new StringBuilder();
+
+        for( String part : parts ) {
+            key.append(part);
+            key.append("\u0001");
+        }
+        key.append(orderDesc != null && orderDesc ? "desc" : "asc");
+        if( orderFields != null ) {
+            for( String field : orderFields ) {
+                key.append("\u0000");
+                key.append(field);
+            }
+        }
+        return key.toString();
+    }
+
+    static private void describe(@Nonnull StringBuilder str, @Nullable Object value) {
+        if( value != null ) {
+            str.append(value.getClass().getName());
+            str.append(":");
+            str.append(value);
+        }
+    }
+
+    private LinkedHashMap<String,CachedSearch> entries;
+    private long                               expireAfter;
+    private long                               generation    = 0L;
+    private long                               hits          = 0L;
+    private long                               invalidations = 0L;
+    private int                                maxEntries;
+    private HashMap<String,Long>               pending       = new HashMap<String,Long>();
+
+    /**
+     * Constructs a query cache.
+     * @param maxEntries the maximum number of searches to remember
+     * @param expireAfter the number of milliseconds for which search results are remembered
+     */
+    public QueryCache(final int maxEntries, long expireAfter) {
+        this.maxEntries = maxEntries;
+        this.expireAfter = expireAfter;
+        this.entries = new LinkedHashMap<String,CachedSearch>(64, 0.75f, true) {
+            private static final long serialVersionUID = 3527961004876204517L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CachedSearch> eldest) {
+                return (size() > maxEntries);
+            }
+        };
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        pending.clear();
+    }
+
+    /**
+     * Drops a search whose results turned out to be unusable, for example because one of its objects has vanished.
+     * @param key the key identifying the search
+     */
+    public synchronized void evict(@Nonnull String key) {
+        entries.remove(key);
+        start(key);
+    }
+
+    /**
+     * Provides the primary keys recorded for a search. On a miss, the search is noted as running so that its
+     * results can be recorded by {@link #put(String, SearchTerm[], List)}.
+     * @param key the key identifying the search
+     * @return the primary keys matching the search in result order or <code>null</code> if the search is not cached
+     */
+    public synchronized @Nullable List<Object> get(@Nonnull String key) {
+        CachedSearch entry = entries.get(key);
+
+        if( entry != null ) {
+            if( entry.expires > System.currentTimeMillis() ) {
+                hits++;
+                return entry.keys;
+            }
+            entries.remove(key);
+        }
+        start(key);
+        return null;
+    }
+
+    public long getExpireAfter() {
+        return expireAfter;
+    }
+
+    /**
+     * @return the number of searches answered from this cache
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of searches dropped because a matching object changed
+     */
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * Drops every search matched by an object that is being created, updated or removed.
+     * @param cache the cache managing the object
+     * @param state the state of the object
+     * @throws PersistenceException the object could not be checked against a search
+     */
+    public synchronized void invalidate(@Nonnull PersistentCache<?> cache, @Nonnull Map<String,Object> state) throws PersistenceException {
+        generation++;
+        Iterator<CachedSearch> it = entries.values().iterator();
+
+        while( it.hasNext() ) {
+            CachedSearch entry = it.next();
+
+            // a partial state cannot prove the object is unaffected
+            if( !containsAll(state, entry.matcher) || entry.matcher.matches(cache, state) ) {
+                it.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drops every search matched by an object that is being updated or removed.
+     * @param cache the cache managing the object
+     * @param item the object
+     * @throws PersistenceException the object could not be checked against a search
+     */
+    public synchronized <T extends CachedItem> void invalidate(@Nonnull PersistentCache<T> cache, @Nonnull T item) throws PersistenceException {
+        generation++;
+        Iterator<CachedSearch> it = entries.values().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().matcher.matches(cache, item) ) {
+                it.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Records the results of a search started after a miss in {@link #get(String)}. The results are discarded
+     * if an object changed while the search was running.
+     * @param key the key identifying the search
+     * @param terms the search terms
+     * @param keys the primary keys of the results in result order
+     */
+    public synchronized void put(@Nonnull String key, @Nonnull SearchTerm[] terms, @Nonnull List<Object> keys) {
+        Long started = pending.remove(key);
+
+        if( started == null || started != generation ) {
+            return;
+        }
+        CachedSearch entry = new CachedSearch();
+
+        entry.expires = System.currentTimeMillis() + expireAfter;
+        entry.keys = Collections.unmodifiableList(new ArrayList<Object>(keys));
+        entry.matcher = new SearchTermMatcher(terms);
+        entries.put(key, entry);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean containsAll(@Nonnull Map<String,Object> state, @Nonnull SearchTermMatcher matcher) {
+        for( String column : matcher.getColumns() ) {
+            if( !state.containsKey(column) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void start(@Nonnull String key) {
+        if( pending.size() >= maxEntries * 2 ) {
+            // searches that failed never report back
+            pending.clear();
+        }
+        if( !pending.containsKey(key) ) {
+            pending.put(key, generation);
+        }
+    }
+
+    public @Nonnull String toString() {
+        return "QueryCache[entries=" + size() + ",expireAfter=" + expireAfter + "]";
+    }
+}
@@ -19,38 +19,64 @@
 package org.dasein.persist;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.dasein.persist.jdbc.Aggregator;
+import org.dasein.persist.jdbc.AutomatedSql;
 import org.dasein.persist.jdbc.Counter;
 import org.dasein.persist.jdbc.Creator;
 import org.dasein.persist.jdbc.Deleter;
 import org.dasein.persist.jdbc.Loader;
+import org.dasein.persist.jdbc.QueryTemplates;
+import org.dasein.persist.jdbc.RowLayout;
 import org.dasein.persist.jdbc.Updater;
 import org.dasein.persist.jdbc.AutomatedSql.Operator;
 import org.dasein.persist.jdbc.AutomatedSql.TranslationMethod;
 import org.dasein.util.CacheLoader;
 import org.dasein.util.CachedItem;
 import org.dasein.util.CacheManagementException;
+import org.dasein.util.CursorPopulator;
+import org.dasein.util.ForwardCursor;
 import org.dasein.util.DaseinUtilTasks;
 import org.dasein.util.JitCollection;
 import org.dasein.util.Jiterator;
 import org.dasein.util.JiteratorFilter;
+import org.dasein.util.Translator;
 import org.dasein.util.DaseinUtilTasks;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 public final class RelationalCache<T extends CachedItem> extends PersistentCache<T> {
     static public final Logger logger = Logger.getLogger(RelationalCache.class);
 
+    /**
+     * The most primary key values bound into a single <code>IN</code> list by {@link #loadAll(List)}.
+     */
+    static public final int MAX_KEY_BATCH = 500;
+
+    static public final int DEFAULT_CURSOR_BUFFER  = 1000;
+    static public final int DEFAULT_CURSOR_TIMEOUT = 300;
+
     static public class OrderedColumn {
         public String  column;
         public boolean descending = false;
+
+        public String toString() {
+            return (descending ? column + " DESC" : column);
+        }
     }
     
-    private String            readDataSource    = null;
-    private TranslationMethod translationMethod = TranslationMethod.NONE;
-    private String            writeDataSource   = null;
+    private String             readDataSource    = null;
+    private volatile RowMapper rowMapper         = null;
+    private final QueryTemplates templates       = new QueryTemplates();
+    private TranslationMethod  translationMethod = TranslationMethod.NONE;
+    private String             writeDataSource   = null;
     
     public RelationalCache() { }
     
@@ -75,18 +101,86 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     	this.translationMethod = translationMethod;
     }
     
+    /**
+     * @param keyCount the number of primary key values in each batch
+     * @return a loader for the objects whose primary key is one of a batch of values
+     */
+    private Loader getLoader(final int keyCount) {
+        final RelationalCache<T> self = this;
+        String key = QueryTemplates.getKey("keys", null, keyCount, translationMethod);
+        Loader loader = templates.acquire(key);
+
+        if( loader != null ) {
+            return loader;
+        }
+        loader = new Loader() {
+            public void init() {
+                setTarget(self.getEntityClassName());
+                setEntityJoins(getJoins());
+                setKeys(self.getPrimaryKeyField(), keyCount);
+                switch (translationMethod) {
+                case CUSTOM: setCustomTranslating(); break;
+                case STANDARD: setTranslating(true); break;
+                case NONE: setTranslating(false); break;
+                }
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+        templates.register(key, loader);
+        return loader;
+    }
+
+    private Aggregator getAggregator(SearchTerm[] whereTerms, final Aggregate function, final String field, final String[] groupBy) {
+        final SearchTerm[] terms = whereTerms;
+        final RelationalCache<T> self = this;
+        String key = QueryTemplates.getKey("aggregate", terms, function, field, groupBy, translationMethod);
+        Aggregator aggregator = templates.acquire(key);
+
+        if( aggregator != null ) {
+            return aggregator;
+        }
+        aggregator = new Aggregator() {
+            public void init() {
+                setTarget(self.getEntityClassName());
+                setAggregate(function, field, groupBy);
+                if( terms != null && terms.length > 0 ) {
+                    ArrayList<Criterion> criteria = new ArrayList<Criterion>();
+
+                    for( SearchTerm term : terms ) {
+                        criteria.add(new Criterion(term));
+                    }
+                    setCriteria(criteria.toArray(new Criterion[criteria.size()]));
+                }
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+        templates.register(key, aggregator);
+        return aggregator;
+    }
+
     private Counter getCounter(SearchTerm[] whereTerms) {
         final SearchTerm[] terms = whereTerms;
         final RelationalCache<T> self = this;
-        
-        Counter counter = new Counter() {
+        String key = QueryTemplates.getKey("count", terms, translationMethod);
+        Counter counter = templates.acquire(key);
+
+        if( counter != null ) {
+            return counter;
+        }
+        counter = new Counter() {
             public void init() {
                 setTarget(self.getEntityClassName());
                 if( terms != null && terms.length > 0 ) {
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>();
                 
                     for( SearchTerm term : terms ) {
-                        criteria.add(new Criterion(term.getColumn(), term.getOperator()));
+                        criteria.add(new Criterion(term));
                     }
                     setCriteria(criteria.toArray(new Criterion[criteria.size()]));
                 }
@@ -96,13 +190,19 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                 return true;
             }
         };
+        templates.register(key, counter);
         return counter;
     }
     
     private Creator getCreator() {
         final RelationalCache<T> self = this;
-        
-        Creator creator = new Creator() {
+        String key = QueryTemplates.getKey("create", null, translationMethod);
+        Creator creator = templates.acquire(key);
+
+        if( creator != null ) {
+            return creator;
+        }
+        creator = new Creator() {
             public void init() {
                 setTarget(self.getEntityClassName());
                 switch (translationMethod) {
@@ -116,14 +216,20 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                 return false;
             }
         };
+        templates.register(key, creator);
         return creator;
     }
     
     private Deleter getDeleter(SearchTerm ... terms) {
         final SearchTerm[] killTerms = terms;
         final RelationalCache<T> self = this;
-        
-        Deleter deleter = new Deleter() {
+        String key = QueryTemplates.getKey("delete", terms, translationMethod);
+        Deleter deleter = templates.acquire(key);
+
+        if( deleter != null ) {
+            return deleter;
+        }
+        deleter = new Deleter() {
             public void init() {
                 setTarget(self.getEntityClassName());
                 if( killTerms != null && killTerms.length > 0 ) {
@@ -149,15 +255,29 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                 return false;
             }
         };
+        templates.register(key, deleter);
         return deleter;
     }
     
     private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy) {
+        return getLoader(whereTerms, orderBy, false, false);
+    }
+
+    private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy, final boolean limited, final boolean seeking) {
+        return getLoader(whereTerms, orderBy, limited, seeking, null);
+    }
+
+    private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy, final boolean limited, final boolean seeking, final String[] projection) {
         final SearchTerm[] terms = whereTerms;
         final OrderedColumn[] order = orderBy;
         final RelationalCache<T> self = this;
-        
-        Loader loader = new Loader() {
+        String key = QueryTemplates.getKey("load", terms, order, limited, seeking, projection, translationMethod);
+        Loader loader = templates.acquire(key);
+
+        if( loader != null ) {
+            return loader;
+        }
+        loader = new Loader() {
             public void init() {
                 setTarget(self.getEntityClassName());
                 setEntityJoins(getJoins());
@@ -165,7 +285,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>();
                 
                     for( SearchTerm term : terms ) {
-                        criteria.add(new Criterion(term.getJoinEntity(), term.getColumn(), term.getOperator()));
+                        criteria.add(new Criterion(term));
                     }
                     setCriteria(criteria.toArray(new Criterion[criteria.size()]));
                 }
@@ -178,24 +298,38 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                     }
                     setOrder(desc, cols.toArray(new String[cols.size()]));
                 }
+                if( projection != null ) {
+                    setProjection(projection);
+                }
+                setPaging(limited, seeking);
                 switch (translationMethod) {
                 case CUSTOM: setCustomTranslating(); break;
                 case STANDARD: setTranslating(true); break;
                 case NONE: setTranslating(false); break;
                 }
+                if( projection != null ) {
+                    // translations are not columns and cannot be projected
+                    setTranslating(false);
+                }
             }
             
             public boolean isReadOnly() {
                 return true;
             }
         };
+        templates.register(key, loader);
         return loader;
     }
     
     private Updater getUpdater() {
         final RelationalCache<T> self = this;
-        
-        Updater updater = new Updater() {
+        String key = QueryTemplates.getKey("update", null, translationMethod);
+        Updater updater = templates.acquire(key);
+
+        if( updater != null ) {
+            return updater;
+        }
+        updater = new Updater() {
             public void init() {
                 setTarget(self.getEntityClassName());
                 setCriteria(self.getPrimaryKey().getFields());
@@ -210,6 +344,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                 return false;
             }
         };
+        templates.register(key, updater);
         return updater;
     }
     
@@ -222,6 +357,11 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     public long count() throws PersistenceException {
         logger.debug("enter - count()");
         try {
+            long cached = getCachedCount();
+
+            if( cached > -1L ) {
+                return cached;
+            }
             Transaction xaction = Transaction.getInstance(true);
             Counter counter = getCounter(null);            
             
@@ -230,6 +370,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                 long count;
     
                 results = xaction.execute(counter, new HashMap<String,Object>(), readDataSource);
+                getMetrics().backendCall(-1L, -1L);
                 count = ((Number)results.get("count")).longValue();
                 xaction.commit();
                 return count;
@@ -247,6 +388,11 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     public long count(SearchTerm ... terms) throws PersistenceException {
         logger.debug("enter - count(SearchTerm...)");
         try {
+            long cached = getCachedCount(terms);
+
+            if( cached > -1L ) {
+                return cached;
+            }
             Transaction xaction = Transaction.getInstance(true);
             Counter counter = getCounter(terms);            
             
@@ -256,6 +402,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                 long count;
     
                 results = xaction.execute(counter, params, readDataSource);
+                getMetrics().backendCall(-1L, -1L);
                 count = ((Number)results.get("count")).longValue();
                 xaction.commit();
                 return count;
@@ -279,35 +426,412 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
      */
     @Override
     public T create(Transaction xaction, Map<String,Object> state) throws PersistenceException {
-        state.put("--key--", getPrimaryKey().getFields()[0]);
-        xaction.execute(getCreator(), state, writeDataSource);
-        return getCache().find(state);
+        long start = System.nanoTime();
+
+        try {
+            state.put("--key--", getPrimaryKey().getFields()[0]);
+            xaction.execute(getCreator(), state, writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            created(xaction, state);
+            return getCache().find(state);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.CREATE, start);
+        }
     }
     
     @Override
     public Collection<T> find(SearchTerm[] terms, JiteratorFilter<T> filter, Boolean orderDesc, String ... orderFields) throws PersistenceException {
         logger.debug("enter - find(SearchTerm[], JiteratorFilter, Boolean, String)");
+        long start = System.nanoTime();
+
         try {
-            OrderedColumn[] order;
-            
-            if( orderFields == null ) {
-                order = new OrderedColumn[0];
+            Collection<T> cached = getCachedResults(terms, filter, orderDesc, orderFields);
+
+            if( cached != null ) {
+                return cached;
             }
-            else {
-                int i = 0;
-                
-                order = new OrderedColumn[orderFields.length];
+            return cacheResults(terms, filter, orderDesc, orderFields, this.load(getLoader(terms, toOrder(orderDesc, orderFields)), filter, toParams(terms)));
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+            logger.debug("exit - find(SearchTerm[], JiteratorFilter, Boolean, String...)");
+        }
+    }
+
+    /**
+     * Computes the aggregate with a single SQL aggregate query, so no objects are loaded or cached. Translated
+     * fields are not columns and can be neither aggregated nor grouped on.
+     * @param terms the search criteria
+     * @param function the aggregate function
+     * @param field the field being aggregated, which may be <code>null</code> only for {@link Aggregate#COUNT}
+     * @param groupBy the fields on which to group the results
+     * @return one read-only row per group, in no particular order
+     * @throws PersistenceException an error occurred executing the query or the fields are not valid for the function
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public @Nonnull Collection<Map<String,Object>> aggregate(@Nonnull SearchTerm[] terms, @Nonnull Aggregate function, @Nullable String field, @Nullable String ... groupBy) throws PersistenceException {
+        logger.debug("enter - aggregate(SearchTerm[], Aggregate, String, String...)");
+        long start = System.nanoTime();
+
+        try {
+            ArrayList<String> columns = new ArrayList<String>();
+
+            checkAggregate(function, field, groupBy);
+            if( field != null ) {
+                columns.add(field);
+            }
+            if( groupBy != null ) {
+                columns.addAll(Arrays.asList(groupBy));
+            }
+            for( String column : columns ) {
+                if( Translator.class.isAssignableFrom(getMetadata().getField(column).getType()) ) {
+                    throw new PersistenceException("Unable to aggregate " + column);
+                }
+            }
+            Aggregator aggregator = getAggregator(terms, function, field, groupBy);
+            Transaction xaction = Transaction.getInstance(true);
+
+            try {
+                ArrayList<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
+                Collection<Map<String,Object>> rows;
+
+                rows = (Collection<Map<String,Object>>)xaction.execute(aggregator, toParams(terms), readDataSource).get(Loader.LISTING);
+                getMetrics().backendCall(-1L, -1L);
+                for( Map<String,Object> row : rows ) {
+                    results.add(toAggregateRow(function, field, groupBy, row));
+                }
+                if( results.isEmpty() && (groupBy == null || groupBy.length < 1) ) {
+                    results.add(toAggregateRow(function, field, groupBy, new HashMap<String,Object>()));
+                }
+                getMetrics().results(results.size());
+                xaction.commit();
+                return results;
+            }
+            finally {
+                xaction.rollback();
+            }
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.AGGREGATE, start);
+            logger.debug("exit - aggregate(SearchTerm[], Aggregate, String, String...)");
+        }
+    }
+
+    /**
+     * Selects only the columns for the specified fields and returns the rows as they are read, without
+     * hydrating or caching any objects.
+     * @param terms the search criteria
+     * @param fields the fields to read
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return one read-only row view per matching row
+     * @throws PersistenceException an error occurred executing the query or a field cannot be projected
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public @Nonnull Collection<Map<String,Object>> project(@Nonnull SearchTerm[] terms, @Nonnull String[] fields, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        logger.debug("enter - project(SearchTerm[], String[], Boolean, String...)");
+        long start = System.nanoTime();
+
+        try {
+            checkProjection(fields);
+            Loader loader = getLoader(terms, toOrder(orderDesc, orderFields), false, false, fields);
+            Map<String,Object> params = toParams(terms);
+            Transaction xaction;
+
+            for( int i=0; i<loader.getLayout().getColumnCount(); i++ ) {
+                if( loader.getLayout().getType(i) == null ) {
+                    throw new PersistenceException("Unable to project " + loader.getLayout().getColumn(i));
+                }
+            }
+            params.put(Loader.ROW_ARRAYS, true);
+            xaction = Transaction.getInstance(true);
+            try {
+                Collection<Map<String,Object>> rows;
+
+                rows = (Collection<Map<String,Object>>)xaction.execute(loader, params, readDataSource).get(Loader.LISTING);
+                getMetrics().backendCall(-1L, -1L);
+                getMetrics().results(rows.size());
+                xaction.commit();
+                return rows;
+            }
+            finally {
+                xaction.rollback();
+            }
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+            logger.debug("exit - project(SearchTerm[], String[], Boolean, String...)");
+        }
+    }
+
+    /**
+     * Reads a single page with LIMIT and OFFSET. The ordering always ends with the primary key so that pages are
+     * stable, and continuations from a first page (or from earlier keyset pages) resume with a keyset predicate on
+     * the ordering fields instead of an ever growing offset. Pages started at an explicit offset keep paging by offset,
+     * as do orderings on fields that can hold <code>null</code> (anything other than the primary key and primitive
+     * fields), because a keyset predicate cannot tell where the database sorts nulls.
+     * @param terms the search criteria
+     * @param limit the maximum number of objects in the page, or 0 for no limit
+     * @param continuation the continuation token from the previous page or <code>null</code> for the first page
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return the page of results
+     * @throws PersistenceException an error occurred executing the query or the continuation is not valid
+     */
+    @Override
+    public @Nonnull Page<T> findPage(@Nonnull SearchTerm[] terms, int limit, @Nullable String continuation, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        logger.debug("enter - findPage(SearchTerm[], int, String, Boolean, String...)");
+        long start = System.nanoTime();
+
+        try {
+            if( limit < 1 ) {
+                return super.findPage(terms, limit, continuation, orderDesc, orderFields);
+            }
+            ArrayList<String> cols = new ArrayList<String>();
+            String pk = getPrimaryKeyField();
+            Object[] seek = null;
+            int offset = 0;
+
+            if( orderFields != null ) {
                 for( String field : orderFields ) {
-                    order[i] = new OrderedColumn();
-                    order[i].column = field;
-                    order[i].descending = (orderDesc != null && orderDesc);
-                    i++;
+                    cols.add(field);
                 }
             }
-            return this.load(getLoader(terms, order), filter, toParams(terms));
+            if( !cols.contains(pk) ) {
+                cols.add(pk);
+            }
+            if( Page.isOffset(continuation) ) {
+                offset = Page.toOffset(continuation);
+            }
+            else if( continuation != null ) {
+                seek = toSeek(cols, Page.toKeys(continuation));
+            }
+            Map<String,Object> params = toParams(terms);
+            Loader loader = getLoader(terms, toOrder(orderDesc, cols.toArray(new String[cols.size()])), true, seek != null);
+
+            params.put(Loader.LIMIT, limit + 1);
+            params.put(Loader.OFFSET, offset);
+            if( seek != null ) {
+                params.put(Loader.SEEK, seek);
+            }
+            ArrayList<T> items = new ArrayList<T>(load(loader, null, params));
+
+            if( items.size() <= limit ) {
+                return new Page<T>(items, null);
+            }
+            while( items.size() > limit ) {
+                items.remove(items.size()-1);
+            }
+            return new Page<T>(items, getContinuation(items.get(limit-1), cols, offset, limit));
         }
         finally {
-            logger.debug("exit - find(SearchTerm[], JiteratorFilter, Boolean, String...)");
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+            logger.debug("exit - findPage(SearchTerm[], int, String, Boolean, String...)");
+        }
+    }
+
+    private @Nonnull String getContinuation(@Nonnull T last, @Nonnull List<String> cols, int offset, int limit) throws PersistenceException {
+        if( offset > 0 || !isKeyset(cols) ) {
+            return Page.forOffset(offset + limit);
+        }
+        Object[] values = new Object[cols.size()];
+
+        for( int i=0; i<values.length; i++ ) {
+            values[i] = toJSONValue(getValue(last, cols.get(i)));
+        }
+        return Page.forKeys(values);
+    }
+
+    /**
+     * @param cols the ordering fields, ending with the primary key
+     * @return true if none of the fields can be <code>null</code>, so a keyset predicate sees every remaining row
+     */
+    private boolean isKeyset(@Nonnull List<String> cols) {
+        String pk = getPrimaryKeyField();
+
+        for( String col : cols ) {
+            if( col.equals(pk) ) {
+                continue;
+            }
+            EntityMetadata.PersistentField field = getMetadata().getField(col);
+
+            if( field == null || !field.isPrimitive() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private @Nonnull Object[] toSeek(@Nonnull List<String> cols, @Nonnull Object[] values) throws PersistenceException {
+        if( values.length != cols.size() ) {
+            throw new PersistenceException("Continuation does not match the ordering " + cols);
+        }
+        Object[] seek = new Object[values.length];
+
+        for( int i=0; i<values.length; i++ ) {
+            EntityMetadata.PersistentField field = getMetadata().getField(cols.get(i));
+
+            if( field == null ) {
+                throw new PersistenceException("No such field: " + cols.get(i));
+            }
+            try {
+                seek[i] = field.getConverter().convert(field.getName(), values[i]);
+            }
+            catch( PersistenceException e ) {
+                throw e;
+            }
+            catch( Exception e ) {
+                throw new PersistenceException(e);
+            }
+        }
+        return seek;
+    }
+
+    /**
+     * Streams the matching objects from the database into a cursor as the rows are read rather than loading
+     * the entire result first. Rows are read on a dedicated thread using the JDBC fetch size configured under
+     * <code>dasein.persist.jdbc.fetchSize</code> (a row count, or <code>stream</code> for drivers such as MySQL
+     * that stream only with a fetch size of {@link Integer#MIN_VALUE}). The reader stalls once
+     * <code>dasein.persist.jdbc.cursorBuffer</code> unread objects are waiting and gives up, releasing its connection,
+     * if the consumer does not read anything for <code>dasein.persist.jdbc.cursorTimeout</code> seconds or closes the
+     * cursor. Results already in the query cache are served from there.
+     * @param terms the search criteria
+     * @param filter an optional filter applied to each object before it goes into the cursor
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return a cursor that fills as the query is read
+     * @throws PersistenceException an error occurred preparing the query
+     */
+    @Override
+    public @Nonnull ForwardCursor<T> findAsCursor(@Nonnull SearchTerm[] terms, @Nullable final JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        logger.debug("enter - findAsCursor(SearchTerm[], JiteratorFilter, Boolean, String...)");
+        try {
+            String cname = getEntityClassName();
+            final Collection<T> cached = getCachedResults(terms, filter, orderDesc, orderFields);
+
+            if( cached != null ) {
+                CursorPopulator<T> populator = new CursorPopulator<T>(cname + ".findAsCursor", null) {
+                    @Override
+                    public void populate(ForwardCursor<T> cursor) {
+                        for( T item : cached ) {
+                            cursor.push(item);
+                        }
+                    }
+                };
+
+                populator.populate();
+                return populator.getCursor();
+            }
+            final long timeout = 1000L * getIntProperty("dasein.persist.jdbc.cursorTimeout", cname, DEFAULT_CURSOR_TIMEOUT);
+            final StreamingCursor<T> cursor = new StreamingCursor<T>(cname + ".findAsCursor", getIntProperty("dasein.persist.jdbc.cursorBuffer", cname, DEFAULT_CURSOR_BUFFER), timeout);
+            final Map<String,Object> params = toParams(terms);
+            final Loader loader = getLoader(terms, toOrder(orderDesc, orderFields));
+            Integer fetchSize = getFetchSize(cname);
+
+            params.put("--key--", getPrimaryKey().getFields()[0]);
+            if( fetchSize != null ) {
+                params.put(Loader.FETCH_SIZE, fetchSize);
+            }
+            params.put(Loader.ROW_HANDLER, new Loader.RowHandler() {
+                private RowMapper mapper = null;
+
+                public boolean handle(Map<String,Object> row) throws PersistenceException {
+                    if( mapper == null && row instanceof RowLayout.Row ) {
+                        mapper = getRowMapper(((RowLayout.Row)row).getLayout());
+                    }
+                    T item = toTarget(row, mapper);
+
+                    try {
+                        if( filter != null && !filter.filter(item) ) {
+                            return !cursor.isClosed();
+                        }
+                    }
+                    catch( PersistenceException e ) {
+                        throw e;
+                    }
+                    catch( Exception e ) {
+                        throw new PersistenceException(e);
+                    }
+                    catch( Throwable t ) {
+                        throw new PersistenceException(new RuntimeException(t));
+                    }
+                    return cursor.offer(item);
+                }
+            });
+            Thread reader = new Thread("DASEIN CURSOR " + cname) {
+                public void run() {
+                    long start = System.nanoTime();
+                    Transaction xaction = Transaction.getInstance(true);
+
+                    try {
+                        xaction.execute(loader, params, readDataSource);
+                        getMetrics().backendCall(-1L, -1L);
+                        if( cursor.isTimedOut() ) {
+                            // the loader stopped early, so what the consumer has seen is not the full result
+                            throw new PersistenceException("Gave up streaming " + cursor.getName() + " after the consumer read nothing for " + (timeout/1000L) + " seconds");
+                        }
+                        xaction.commit();
+                        cursor.complete();
+                    }
+                    catch( Throwable t ) {
+                        logger.error("Failed streaming " + cursor.getName() + ": " + t.getMessage(), t);
+                        cursor.error(t);
+                    }
+                    finally {
+                        xaction.rollback();
+                        getMetrics().record(CacheMetrics.Operation.FIND, start);
+                    }
+                }
+            };
+
+            reader.setDaemon(true);
+            reader.start();
+            return cursor;
+        }
+        finally {
+            logger.debug("exit - findAsCursor(SearchTerm[], JiteratorFilter, Boolean, String...)");
+        }
+    }
+
+    /**
+     * @param cname the name of the entity class
+     * @return the JDBC fetch size to use when streaming or <code>null</code> to leave it to the driver
+     */
+    private @Nullable Integer getFetchSize(@Nonnull String cname) {
+        String prop = getEntityProperty("dasein.persist.jdbc.fetchSize", cname);
+
+        if( prop == null ) {
+            return null;
+        }
+        if( prop.equalsIgnoreCase("stream") ) {
+            return Integer.MIN_VALUE;
+        }
+        try {
+            return Integer.parseInt(prop);
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid value for dasein.persist.jdbc.fetchSize: " + prop);
+            return null;
+        }
+    }
+
+    private int getIntProperty(@Nonnull String name, @Nonnull String cname, int def) {
+        String prop = getEntityProperty(name, cname);
+
+        if( prop == null ) {
+            return def;
+        }
+        try {
+            int value = Integer.parseInt(prop);
+
+            return (value > 0 ? value : def);
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid value for " + name + ": " + prop);
+            return def;
         }
     }
     
@@ -319,6 +843,8 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
      */
     @Override
     public T get(Object primaryKeyValue) throws PersistenceException {
+        long start = System.nanoTime();
+
         try {
             CacheLoader<T> loader;
             
@@ -350,7 +876,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
             };
             logger.debug("Executing cache find...");
             try {
-                return getCache().find(getPrimaryKeyField(), primaryKeyValue, loader, getPrimaryKeyField(), primaryKeyValue);
+                return getCache().find(getPrimaryKeyField(), primaryKeyValue, coalesce(primaryKeyValue, loader), getPrimaryKeyField(), primaryKeyValue);
             }
             catch( CacheManagementException e ) {
                 throw new PersistenceException(e);
@@ -371,10 +897,32 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
             }
         }
         finally {
+            getMetrics().record(CacheMetrics.Operation.GET, start);
             logger.debug("exit - get(String,Object)");
         }
     }
 
+    /**
+     * Reads the objects in batches of up to {@link #MAX_KEY_BATCH} keys, each with a single
+     * <code>SELECT ... WHERE pk IN (...)</code>.
+     * @param keys the primary key values of objects known not to be in the cache
+     * @return the objects that exist, in any order
+     * @throws PersistenceException an error occurred executing a query
+     */
+    @Override
+    protected @Nonnull Collection<T> loadAll(@Nonnull List<Object> keys) throws PersistenceException {
+        ArrayList<T> items = new ArrayList<T>();
+
+        for( int i=0; i<keys.size(); i += MAX_KEY_BATCH ) {
+            List<Object> batch = keys.subList(i, Math.min(keys.size(), i + MAX_KEY_BATCH));
+            HashMap<String,Object> params = new HashMap<String,Object>();
+
+            params.put(Loader.KEYS, batch);
+            items.addAll(load(getLoader(batch.size()), null, params));
+        }
+        return items;
+    }
+
     @Override
     public String getSchema() throws PersistenceException {
         StringBuilder schema = new StringBuilder();
@@ -436,15 +984,55 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
             logger.debug("exit - list()");
         }
     }
+
+    /**
+     * Streams every element of this class from the data store (see {@link #findAsCursor(SearchTerm[], JiteratorFilter, Boolean, String...)}).
+     * @return a cursor that fills as the rows are read
+     * @throws PersistenceException an error occurred preparing the query
+     */
+    @Override
+    public ForwardCursor<T> listAsCursor() throws PersistenceException {
+        return findAsCursor(new SearchTerm[0], null, false);
+    }
+    
+    private OrderedColumn[] toOrder(Boolean orderDesc, String ... orderFields) {
+        OrderedColumn[] order;
+
+        if( orderFields == null ) {
+            order = new OrderedColumn[0];
+        }
+        else {
+            int i = 0;
+            
+            order = new OrderedColumn[orderFields.length];
+            for( String field : orderFields ) {
+                order[i] = new OrderedColumn();
+                order[i].column = field;
+                order[i].descending = (orderDesc != null && orderDesc);
+                i++;
+            }
+        }
+        return order;
+    }
     
     private Map<String,Object> toParams(SearchTerm ... searchTerms) {
         HashMap<String,Object> params = new HashMap<String,Object>();
-        
+        boolean positional = false;
+
         if( searchTerms != null ) {
             for( SearchTerm term : searchTerms ) {
-                params.put(term.getColumn(), term.getValue());
+                if( term.getOperator().equals(Operator.IN) || term.getOperator().equals(Operator.OR) ) {
+                    positional = true;
+                }
+                else {
+                    params.put(term.getColumn(), term.getValue());
+                }
             }
         }
+        if( positional ) {
+            // several values share a column, so the criteria are bound in order instead of by name
+            params.put(AutomatedSql.VALUES, AutomatedSql.toValues(searchTerms));
+        }
         return params;
     }
 
@@ -460,15 +1048,13 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
         @Override
         public void run() {
             try {
-                for( Map<String,Object> map: (Collection<Map<String,Object>>)this.results.get(Loader.LISTING) ) {
-                    for( String fieldName : map.keySet() ) {
-                        LookupDelegate delegate = getLookupDelegate(fieldName);
+                RowMapper mapper = null;
 
-                        if( delegate != null && !delegate.validate((String)map.get(fieldName)) ) {
-                            throw new PersistenceException("Unable to validate " + fieldName + " value of " + map.get(fieldName));
-                        }
+                for( Map<String,Object> map: (Collection<Map<String,Object>>)this.results.get(Loader.LISTING) ) {
+                    if( mapper == null && map instanceof RowLayout.Row ) {
+                        mapper = getRowMapper(((RowLayout.Row)map).getLayout());
                     }
-                    this.it.push(getCache().find(map));
+                    this.it.push(toTarget(map, mapper));
                 }
                 this.it.complete();
             }
@@ -481,6 +1067,107 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
         }
     }
     
+    /**
+     * Hydrates objects straight from the value arrays of rows sharing a single layout, with the
+     * column for each persistent field worked out once for the whole result.
+     */
+    private class RowMapper {
+        private int[]                            columns;
+        private EntityMetadata.PersistentField[] delegated;
+        private int[]                            delegatedColumns;
+        private EntityMetadata.PersistentField[] fields;
+        private int                              key;
+        private RowLayout                        layout;
+
+        private RowMapper(@Nonnull RowLayout layout) {
+            ArrayList<EntityMetadata.PersistentField> lookups = new ArrayList<EntityMetadata.PersistentField>();
+            EntityMetadata<T> metadata = getMetadata();
+
+            this.layout = layout;
+            fields = metadata.getFields();
+            columns = new int[fields.length];
+            for( int i=0; i<fields.length; i++ ) {
+                columns[i] = layout.indexOf(fields[i].getName());
+                if( columns[i] > -1 && fields[i].getDelegate() != null ) {
+                    lookups.add(fields[i]);
+                }
+            }
+            delegated = lookups.toArray(new EntityMetadata.PersistentField[lookups.size()]);
+            delegatedColumns = new int[delegated.length];
+            for( int i=0; i<delegated.length; i++ ) {
+                delegatedColumns[i] = layout.indexOf(delegated[i].getName());
+            }
+            key = layout.indexOf(getPrimaryKeyField());
+        }
+
+        private @Nonnull T toTarget(@Nonnull Object[] values) throws PersistenceException {
+            Object keyValue = (key < 0 ? null : values[key]);
+            T item;
+
+            if( keyValue == null ) {
+                return getCache().find(new RowLayout.Row(layout, values));
+            }
+            item = getCache().find(getPrimaryKeyField(), keyValue);
+            if( item != null ) {
+                // hydration validates lookups as it goes, so only cache hits need checking here
+                for( int i=0; i<delegated.length; i++ ) {
+                    Object value = values[delegatedColumns[i]];
+
+                    if( value != null && !delegated[i].getDelegate().validate(value.toString()) ) {
+                        throw new PersistenceException("Unable to validate " + delegated[i].getName() + " value of " + value);
+                    }
+                }
+                return item;
+            }
+            try {
+                item = getMetadata().newInstance();
+            }
+            catch( InstantiationException e ) {
+                throw new PersistenceException(e);
+            }
+            catch( IllegalAccessException e ) {
+                throw new PersistenceException(e);
+            }
+            for( int i=0; i<fields.length; i++ ) {
+                if( columns[i] > -1 ) {
+                    set(item, fields[i], values[columns[i]]);
+                }
+            }
+            return getCache().cache(item);
+        }
+    }
+
+    private @Nonnull RowMapper getRowMapper(@Nonnull RowLayout layout) {
+        RowMapper mapper = rowMapper;
+
+        if( mapper == null || mapper.layout != layout ) {
+            mapper = new RowMapper(layout);
+            rowMapper = mapper;
+        }
+        return mapper;
+    }
+
+    /**
+     * Provides the cached object for a row just read from the database, hydrating it if it is not yet cached.
+     * @param row the row
+     * @param mapper the mapper for the row's layout if the row is a {@link RowLayout.Row}
+     * @return the matching object
+     * @throws PersistenceException a lookup field failed validation or the object could not be hydrated
+     */
+    private @Nonnull T toTarget(@Nonnull Map<String,Object> row, @Nullable RowMapper mapper) throws PersistenceException {
+        if( mapper != null && row instanceof RowLayout.Row ) {
+            return mapper.toTarget(((RowLayout.Row)row).getValues());
+        }
+        for( String fieldName : row.keySet() ) {
+            LookupDelegate delegate = getLookupDelegate(fieldName);
+
+            if( delegate != null && !delegate.validate((String)row.get(fieldName)) ) {
+                throw new PersistenceException("Unable to validate " + fieldName + " value of " + row.get(fieldName));
+            }
+        }
+        return getCache().find(row);
+    }
+
     @SuppressWarnings("unchecked")
     private Collection<T> load(Loader loader, JiteratorFilter<T> filter, Map<String,Object> params) throws PersistenceException {
         logger.debug("enter - load(Class,SearchTerm...)");
@@ -489,10 +1176,15 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
             final Jiterator<T> it = new Jiterator<T>(filter);
 
             params.put("--key--", getPrimaryKey().getFields()[0]);
+            params.put(Loader.ROW_ARRAYS, true);
             try {
                 final Map<String,Object> results;
                 
                 results = xaction.execute(loader, params, readDataSource);
+                getMetrics().backendCall(-1L, -1L);
+                if( results.get(Loader.LISTING) instanceof Collection ) {
+                    getMetrics().results(((Collection<?>)results.get(Loader.LISTING)).size());
+                }
                 xaction.commit();
 
                 DaseinUtilTasks.submit(new RelationalCacheTask(it, results));
@@ -530,13 +1222,31 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
      */
     @Override
     public void remove(Transaction xaction, T item) throws PersistenceException {
-        xaction.execute(getDeleter(), getCache().getKeys(item), writeDataSource);
-        getCache().release(item);
+        long start = System.nanoTime();
+
+        try {
+            xaction.execute(getDeleter(), getCache().getKeys(item), writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            removed(xaction, item);
+            getCache().release(item);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.REMOVE, start);
+        }
     }
     
     @Override
     public void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException {
-        xaction.execute(getDeleter(terms), toParams(terms), writeDataSource);
+        long start = System.nanoTime();
+
+        try {
+            xaction.execute(getDeleter(terms), toParams(terms), writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            removed(xaction, terms);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.REMOVE, start);
+        }
     }
     
     public String toString() {
@@ -554,7 +1264,16 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
      */
     @Override
     public void update(Transaction xaction, T item, Map<String,Object> state) throws PersistenceException {     
-        state.put("--key--", getPrimaryKey().getFields()[0]);
-        xaction.execute(getUpdater(), state, writeDataSource);
+        long start = System.nanoTime();
+
+        try {
+            state.put("--key--", getPrimaryKey().getFields()[0]);
+            xaction.execute(getUpdater(), state, writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            updated(xaction, item, state);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.UPDATE, start);
+        }
     }    
 }
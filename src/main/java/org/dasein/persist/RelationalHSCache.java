@@ -37,6 +37,8 @@ import java.util.UUID;
 import org.apache.log4j.Logger;
 import org.dasein.persist.jdbc.AutomatedSql.Operator;
 import org.dasein.persist.jdbc.AutomatedSql.TranslationMethod;
+import org.dasein.persist.jdbc.Aggregator;
+import org.dasein.persist.jdbc.AutomatedSql;
 import org.dasein.persist.jdbc.Counter;
 import org.dasein.persist.jdbc.Creator;
 import org.dasein.persist.jdbc.Deleter;
@@ -56,6 +58,9 @@ import com.google.code.hs4j.HSClient;
 import com.google.code.hs4j.IndexSession;
 import com.google.code.hs4j.impl.HSClientImpl;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 /**
  * <p>A relational AND HandlerSocket cache.  Only use this if you are running Percona MySQL!.</p>
  * 
@@ -73,6 +78,11 @@ import com.google.code.hs4j.impl.HSClientImpl;
 public final class RelationalHSCache<T extends CachedItem> extends PersistentCache<T> {
 	static public final Logger logger = Logger.getLogger(RelationalCache.class);
 
+    /**
+     * The most primary key values bound into a single <code>IN</code> list by {@link #loadAll(List)}.
+     */
+    static public final int MAX_KEY_BATCH = 500;
+
     static public class OrderedColumn {
         public String  column;
         public boolean descending = false;
@@ -160,6 +170,57 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
         }        
     }
     
+    /**
+     * @param keyCount the number of primary key values in each batch
+     * @return a loader for the objects whose primary key is one of a batch of values
+     */
+    private Loader getLoader(final int keyCount) {
+        final RelationalHSCache<T> self = this;
+
+        Loader loader = new Loader() {
+            public void init() {
+                setTarget(self.getEntityClassName());
+                setEntityJoins(getJoins());
+                setKeys(self.getPrimaryKeyField(), keyCount);
+                switch (translationMethod) {
+                case CUSTOM: setCustomTranslating(); break;
+                case STANDARD: setTranslating(true); break;
+                case NONE: setTranslating(false); break;
+                }
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+        return loader;
+    }
+
+    private Aggregator getAggregator(SearchTerm[] whereTerms, final Aggregate function, final String field, final String[] groupBy) {
+        final SearchTerm[] terms = whereTerms;
+        final RelationalHSCache<T> self = this;
+
+        Aggregator aggregator = new Aggregator() {
+            public void init() {
+                setTarget(self.getEntityClassName());
+                setAggregate(function, field, groupBy);
+                if( terms != null && terms.length > 0 ) {
+                    ArrayList<Criterion> criteria = new ArrayList<Criterion>();
+
+                    for( SearchTerm term : terms ) {
+                        criteria.add(new Criterion(term));
+                    }
+                    setCriteria(criteria.toArray(new Criterion[criteria.size()]));
+                }
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+        return aggregator;
+    }
+
     private Counter getCounter(SearchTerm[] whereTerms) {
         final SearchTerm[] terms = whereTerms;
         final RelationalHSCache<T> self = this;
@@ -171,7 +232,7 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>();
                 
                     for( SearchTerm term : terms ) {
-                        criteria.add(new Criterion(term.getColumn(), term.getOperator()));
+                        criteria.add(new Criterion(term));
                     }
                     setCriteria(criteria.toArray(new Criterion[criteria.size()]));
                 }
@@ -226,6 +287,14 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     }
     
     private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy) {
+        return getLoader(whereTerms, orderBy, false);
+    }
+
+    private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy, final boolean limited) {
+        return getLoader(whereTerms, orderBy, limited, null);
+    }
+
+    private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy, final boolean limited, final String[] projection) {
         final SearchTerm[] terms = whereTerms;
         final OrderedColumn[] order = orderBy;
         final RelationalHSCache<T> self = this;
@@ -238,7 +307,7 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>();
                 
                     for( SearchTerm term : terms ) {
-                        criteria.add(new Criterion(term.getJoinEntity(), term.getColumn(), term.getOperator()));
+                        criteria.add(new Criterion(term));
                     }
                     setCriteria(criteria.toArray(new Criterion[criteria.size()]));
                 }
@@ -251,11 +320,19 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                     }
                     setOrder(desc, cols.toArray(new String[cols.size()]));
                 }
+                if( projection != null ) {
+                    setProjection(projection);
+                }
+                setPaging(limited, false);
                 switch (translationMethod) {
                 case CUSTOM: setCustomTranslating(); break;
                 case STANDARD: setTranslating(true); break;
                 case NONE: setTranslating(false); break;
                 }
+                if( projection != null ) {
+                    // translations are not columns and cannot be projected
+                    setTranslating(false);
+                }
             }
             
             public boolean isReadOnly() {
@@ -303,6 +380,7 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                 long count;
     
                 results = xaction.execute(counter, new HashMap<String,Object>(), readDataSource);
+                getMetrics().backendCall(-1L, -1L);
                 count = ((Number)results.get("count")).longValue();
                 xaction.commit();
                 return count;
@@ -329,6 +407,7 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                 long count;
     
                 results = xaction.execute(counter, params, readDataSource);
+                getMetrics().backendCall(-1L, -1L);
                 count = ((Number)results.get("count")).longValue();
                 xaction.commit();
                 return count;
@@ -352,40 +431,198 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
      */
     @Override
     public T create(Transaction xaction, Map<String,Object> state) throws PersistenceException {
-        state.put("--key--", getPrimaryKey().getFields()[0]);
-        xaction.execute(getCreator(), state, writeDataSource);
-        return getCache().find(state);
+        long start = System.nanoTime();
+
+        try {
+            state.put("--key--", getPrimaryKey().getFields()[0]);
+            xaction.execute(getCreator(), state, writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            created(xaction, state);
+            return getCache().find(state);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.CREATE, start);
+        }
     }
     
     @Override
     public Collection<T> find(SearchTerm[] terms, JiteratorFilter<T> filter, Boolean orderDesc, String ... orderFields) throws PersistenceException {
         logger.debug("enter - find(SearchTerm[], JiteratorFilter, Boolean, String)");
+        long start = System.nanoTime();
+
         try {
-            OrderedColumn[] order;
-            
-            if( orderFields == null ) {
-                order = new OrderedColumn[0];
-            }
-            else {
-                int i = 0;
-                
-                order = new OrderedColumn[orderFields.length];
-                for( String field : orderFields ) {
-                    order[i] = new OrderedColumn();
-                    order[i].column = field;
-                    order[i].descending = (orderDesc != null && orderDesc);
-                    i++;
-                }
-            }
+            OrderedColumn[] order = toOrder(orderDesc, orderFields);
             Loader loader = getLoader(terms, order);
             
             return this.load(loader, filter, toParams(terms));
         }
         finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
             logger.debug("exit - find(SearchTerm[], JiteratorFilter, Boolean, String...)");
         }
     }
     
+    /**
+     * Computes the aggregate with a single SQL aggregate query, so no objects are loaded or cached. Translated
+     * fields are not columns and can be neither aggregated nor grouped on.
+     * @param terms the search criteria
+     * @param function the aggregate function
+     * @param field the field being aggregated, which may be <code>null</code> only for {@link Aggregate#COUNT}
+     * @param groupBy the fields on which to group the results
+     * @return one read-only row per group, in no particular order
+     * @throws PersistenceException an error occurred executing the query or the fields are not valid for the function
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public @Nonnull Collection<Map<String,Object>> aggregate(@Nonnull SearchTerm[] terms, @Nonnull Aggregate function, @Nullable String field, @Nullable String ... groupBy) throws PersistenceException {
+        logger.debug("enter - aggregate(SearchTerm[], Aggregate, String, String...)");
+        long start = System.nanoTime();
+
+        try {
+            ArrayList<String> columns = new ArrayList<String>();
+
+            checkAggregate(function, field, groupBy);
+            if( field != null ) {
+                columns.add(field);
+            }
+            if( groupBy != null ) {
+                columns.addAll(Arrays.asList(groupBy));
+            }
+            for( String column : columns ) {
+                if( Translator.class.isAssignableFrom(getMetadata().getField(column).getType()) ) {
+                    throw new PersistenceException("Unable to aggregate " + column);
+                }
+            }
+            Aggregator aggregator = getAggregator(terms, function, field, groupBy);
+            Transaction xaction = Transaction.getInstance(true);
+
+            try {
+                ArrayList<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
+                Collection<Map<String,Object>> rows;
+
+                rows = (Collection<Map<String,Object>>)xaction.execute(aggregator, toParams(terms), readDataSource).get(Loader.LISTING);
+                getMetrics().backendCall(-1L, -1L);
+                for( Map<String,Object> row : rows ) {
+                    results.add(toAggregateRow(function, field, groupBy, row));
+                }
+                if( results.isEmpty() && (groupBy == null || groupBy.length < 1) ) {
+                    results.add(toAggregateRow(function, field, groupBy, new HashMap<String,Object>()));
+                }
+                getMetrics().results(results.size());
+                xaction.commit();
+                return results;
+            }
+            finally {
+                xaction.rollback();
+            }
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.AGGREGATE, start);
+            logger.debug("exit - aggregate(SearchTerm[], Aggregate, String, String...)");
+        }
+    }
+
+    /**
+     * Selects only the columns for the specified fields and returns the rows as they are read, without
+     * hydrating or caching any objects.
+     * @param terms the search criteria
+     * @param fields the fields to read
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return one read-only row view per matching row
+     * @throws PersistenceException an error occurred executing the query or a field cannot be projected
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public @Nonnull Collection<Map<String,Object>> project(@Nonnull SearchTerm[] terms, @Nonnull String[] fields, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        logger.debug("enter - project(SearchTerm[], String[], Boolean, String...)");
+        long start = System.nanoTime();
+
+        try {
+            checkProjection(fields);
+            Loader loader = getLoader(terms, toOrder(orderDesc, orderFields), false, fields);
+            Map<String,Object> params = toParams(terms);
+            Transaction xaction;
+
+            for( int i=0; i<loader.getLayout().getColumnCount(); i++ ) {
+                if( loader.getLayout().getType(i) == null ) {
+                    throw new PersistenceException("Unable to project " + loader.getLayout().getColumn(i));
+                }
+            }
+            params.put(Loader.ROW_ARRAYS, true);
+            xaction = Transaction.getInstance(true);
+            try {
+                Collection<Map<String,Object>> rows;
+
+                rows = (Collection<Map<String,Object>>)xaction.execute(loader, params, readDataSource).get(Loader.LISTING);
+                getMetrics().backendCall(-1L, -1L);
+                getMetrics().results(rows.size());
+                xaction.commit();
+                return rows;
+            }
+            finally {
+                xaction.rollback();
+            }
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+            logger.debug("exit - project(SearchTerm[], String[], Boolean, String...)");
+        }
+    }
+
+    /**
+     * Reads a single page with LIMIT and OFFSET, continuing by offset from page to page. The ordering always ends
+     * with the primary key so that pages are stable.
+     * @param terms the search criteria
+     * @param limit the maximum number of objects in the page, or 0 for no limit
+     * @param continuation the continuation token from the previous page or <code>null</code> for the first page
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return the page of results
+     * @throws PersistenceException an error occurred executing the query or the continuation is not valid
+     */
+    @Override
+    public @Nonnull Page<T> findPage(@Nonnull SearchTerm[] terms, int limit, @Nullable String continuation, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        logger.debug("enter - findPage(SearchTerm[], int, String, Boolean, String...)");
+        long start = System.nanoTime();
+
+        try {
+            if( limit < 1 ) {
+                return super.findPage(terms, limit, continuation, orderDesc, orderFields);
+            }
+            int offset = (continuation == null ? 0 : Page.toOffset(continuation));
+            ArrayList<OrderedColumn> order = new ArrayList<OrderedColumn>();
+            boolean hasKey = false;
+
+            if( orderFields != null ) {
+                for( String field : orderFields ) {
+                    OrderedColumn col = new OrderedColumn();
+
+                    col.column = field;
+                    col.descending = (orderDesc != null && orderDesc);
+                    hasKey = hasKey || field.equals(getPrimaryKeyField());
+                    order.add(col);
+                }
+            }
+            if( !hasKey ) {
+                OrderedColumn col = new OrderedColumn();
+
+                col.column = getPrimaryKeyField();
+                col.descending = (orderDesc != null && orderDesc);
+                order.add(col);
+            }
+            Map<String,Object> params = toParams(terms);
+
+            params.put(Loader.LIMIT, limit + 1);
+            params.put(Loader.OFFSET, offset);
+            return toPage(new ArrayList<T>(load(getLoader(terms, order.toArray(new OrderedColumn[order.size()]), true), null, params)), limit, offset);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+            logger.debug("exit - findPage(SearchTerm[], int, String, Boolean, String...)");
+        }
+    }
+
     /**
      * Retrieves the object uniquely identified by the value for the specified ID field.
      * @param primaryKeyValue the ID field identifying the object
@@ -394,6 +631,8 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
      */
     @Override
     public T get(Object primaryKeyValue) throws PersistenceException {
+        long start = System.nanoTime();
+
         try {
             CacheLoader<T> loader;
             
@@ -425,7 +664,7 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
             };
             logger.debug("Executing cache find...");
             try {
-                return getCache().find(getPrimaryKeyField(), primaryKeyValue, loader, getPrimaryKeyField(), primaryKeyValue);
+                return getCache().find(getPrimaryKeyField(), primaryKeyValue, coalesce(primaryKeyValue, loader), getPrimaryKeyField(), primaryKeyValue);
             }
             catch( CacheManagementException e ) {
                 throw new PersistenceException(e);
@@ -446,9 +685,31 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
             }
         }
         finally {
+            getMetrics().record(CacheMetrics.Operation.GET, start);
             logger.debug("exit - get(String,Object)");
         }
     }    
+
+    /**
+     * Reads the objects in batches of up to {@link #MAX_KEY_BATCH} keys, each with a single
+     * <code>SELECT ... WHERE pk IN (...)</code>.
+     * @param keys the primary key values of objects known not to be in the cache
+     * @return the objects that exist, in any order
+     * @throws PersistenceException an error occurred executing a query
+     */
+    @Override
+    protected @Nonnull Collection<T> loadAll(@Nonnull List<Object> keys) throws PersistenceException {
+        ArrayList<T> items = new ArrayList<T>();
+
+        for( int i=0; i<keys.size(); i += MAX_KEY_BATCH ) {
+            List<Object> batch = keys.subList(i, Math.min(keys.size(), i + MAX_KEY_BATCH));
+            HashMap<String,Object> params = new HashMap<String,Object>();
+
+            params.put(Loader.KEYS, batch);
+            items.addAll(load(getLoader(batch.size()), null, params));
+        }
+        return items;
+    }
     
     /**
      * Loads all elements of this class from the data store. Use this method only when you know
@@ -467,14 +728,44 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
         }
     }
     
+    private OrderedColumn[] toOrder(Boolean orderDesc, String ... orderFields) {
+        OrderedColumn[] order;
+
+        if( orderFields == null ) {
+            order = new OrderedColumn[0];
+        }
+        else {
+            int i = 0;
+            
+            order = new OrderedColumn[orderFields.length];
+            for( String field : orderFields ) {
+                order[i] = new OrderedColumn();
+                order[i].column = field;
+                order[i].descending = (orderDesc != null && orderDesc);
+                i++;
+            }
+        }
+        return order;
+    }
+    
     private Map<String,Object> toParams(SearchTerm ... searchTerms) {
         HashMap<String,Object> params = new HashMap<String,Object>();
-        
+        boolean positional = false;
+
         if( searchTerms != null ) {
             for( SearchTerm term : searchTerms ) {
-                params.put(term.getColumn(), term.getValue());
+                if( term.getOperator().equals(Operator.IN) || term.getOperator().equals(Operator.OR) ) {
+                    positional = true;
+                }
+                else {
+                    params.put(term.getColumn(), term.getValue());
+                }
             }
         }
+        if( positional ) {
+            // several values share a column, so the criteria are bound in order instead of by name
+            params.put(AutomatedSql.VALUES, AutomatedSql.toValues(searchTerms));
+        }
         return params;
     }
     
@@ -490,6 +781,10 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                 final Map<String,Object> results;
                 
                 results = xaction.execute(loader, params, readDataSource);
+                getMetrics().backendCall(-1L, -1L);
+                if( results.get(Loader.LISTING) instanceof Collection ) {
+                    getMetrics().results(((Collection<?>)results.get(Loader.LISTING)).size());
+                }
                 xaction.commit();
                 Thread t = new Thread() {
                     public void run() {
@@ -545,8 +840,17 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
      */
     @Override
     public void remove(Transaction xaction, T item) throws PersistenceException {
-        xaction.execute(getDeleter(), getCache().getKeys(item), writeDataSource);
-        getCache().release(item);
+        long start = System.nanoTime();
+
+        try {
+            xaction.execute(getDeleter(), getCache().getKeys(item), writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            removed(xaction, item);
+            getCache().release(item);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.REMOVE, start);
+        }
     }
     
     public void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException {
@@ -570,8 +874,17 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
      */
     @Override
     public void update(Transaction xaction, T item, Map<String,Object> state) throws PersistenceException {     
-        state.put("--key--", getPrimaryKey().getFields()[0]);
-        xaction.execute(getUpdater(), state, writeDataSource);
+        long start = System.nanoTime();
+
+        try {
+            state.put("--key--", getPrimaryKey().getFields()[0]);
+            xaction.execute(getUpdater(), state, writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            updated(xaction, item, state);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.UPDATE, start);
+        }
     }   
     
     public Collection<T> hsFind(String index, String... indexValues) throws PersistenceException {
@@ -582,6 +895,41 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     	return hsFind(index, Operator.EQUALS, 1, 0, indexValues);    	
     }
     
+    /**
+     * Reads a single page straight from a HandlerSocket index, continuing by offset from page to page.
+     * @param index one of the table's indexes to hit
+     * @param operator the comparison the lookup makes
+     * @param limit the maximum number of objects in the page
+     * @param continuation the continuation token from the previous page or <code>null</code> for the first page
+     * @param indexValues the values of the index to find values for; may not be empty
+     * @return the page of results
+     * @throws PersistenceException an error occurred talking to HandlerSocket or the continuation is not valid
+     */
+    public @Nonnull Page<T> hsFindPage(@Nonnull String index, @Nonnull Operator operator, int limit, @Nullable String continuation, @Nonnull String... indexValues) throws PersistenceException {
+        int offset = (continuation == null ? 0 : Page.toOffset(continuation));
+
+        if( limit < 1 ) {
+            throw new PersistenceException("HandlerSocket pages require a limit");
+        }
+        return toPage(new ArrayList<T>(hsFind(index, operator, limit + 1, offset, indexValues)), limit, offset);
+    }
+
+    /**
+     * @param items the objects read for a page, including one beyond the limit if there is more to read
+     * @param limit the size of the page
+     * @param offset the position of the page
+     * @return the page
+     */
+    private @Nonnull Page<T> toPage(@Nonnull ArrayList<T> items, int limit, int offset) {
+        if( items.size() <= limit ) {
+            return new Page<T>(items, null);
+        }
+        while( items.size() > limit ) {
+            items.remove(items.size()-1);
+        }
+        return new Page<T>(items, Page.forOffset(offset + limit));
+    }
+
     /**
      * Hits the HandlerSocket index directly, caching objects it finds.
      * 
@@ -19,12 +19,16 @@
 package org.dasein.persist;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.dasein.util.Jiterator;
+import org.dasein.persist.jdbc.Aggregator;
+import org.dasein.persist.jdbc.AutomatedSql;
 import org.dasein.persist.jdbc.Counter;
 import org.dasein.persist.jdbc.Creator;
 import org.dasein.persist.jdbc.Deleter;
@@ -37,6 +41,10 @@ import org.dasein.util.CachedItem;
 import org.dasein.util.CacheManagementException;
 import org.dasein.util.JitCollection;
 import org.dasein.util.JiteratorFilter;
+import org.dasein.util.Translator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * A relational cache that will periodically dump its cache.  This is useful for managed objects that are created and then
@@ -50,6 +58,11 @@ import org.dasein.util.JiteratorFilter;
 public final class RelationalReleaseCache<T extends CachedItem> extends PersistentCache<T> {
     static public final Logger logger = Logger.getLogger(RelationalReleaseCache.class);
 
+    /**
+     * The most primary key values bound into a single <code>IN</code> list by {@link #loadAll(List)}.
+     */
+    static public final int MAX_KEY_BATCH = 500;
+
     static public class OrderedColumn {
         public String  column;
         public boolean descending = false;
@@ -69,7 +82,10 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
 				try {
 					while (true) {
 						sleep(60 * 60 * 1000); // wait an hour
-						getCache().releaseAll();
+						// a bounded or expiring cache already drops what it no longer needs
+						if( !(getCache() instanceof BoundedMultiCache) ) {
+							getCache().releaseAll();
+						}
 					}
 
 				} catch (InterruptedException e) {
@@ -99,6 +115,57 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
         }
     }
 
+    /**
+     * @param keyCount the number of primary key values in each batch
+     * @return a loader for the objects whose primary key is one of a batch of values
+     */
+    private Loader getLoader(final int keyCount) {
+        final RelationalReleaseCache<T> self = this;
+
+        Loader loader = new Loader() {
+            public void init() {
+                setTarget(self.getEntityClassName());
+                setEntityJoins(getJoins());
+                setKeys(self.getPrimaryKeyField(), keyCount);
+                switch (translationMethod) {
+                case CUSTOM: setCustomTranslating(); break;
+                case STANDARD: setTranslating(true); break;
+                case NONE: setTranslating(false); break;
+                }
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+        return loader;
+    }
+
+    private Aggregator getAggregator(SearchTerm[] whereTerms, final Aggregate function, final String field, final String[] groupBy) {
+        final SearchTerm[] terms = whereTerms;
+        final RelationalReleaseCache<T> self = this;
+
+        Aggregator aggregator = new Aggregator() {
+            public void init() {
+                setTarget(self.getEntityClassName());
+                setAggregate(function, field, groupBy);
+                if( terms != null && terms.length > 0 ) {
+                    ArrayList<Criterion> criteria = new ArrayList<Criterion>();
+
+                    for( SearchTerm term : terms ) {
+                        criteria.add(new Criterion(term));
+                    }
+                    setCriteria(criteria.toArray(new Criterion[criteria.size()]));
+                }
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+        return aggregator;
+    }
+
     private Counter getCounter(SearchTerm[] whereTerms) {
         final SearchTerm[] terms = whereTerms;
         final RelationalReleaseCache<T> self = this;
@@ -110,7 +177,7 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>();
 
                     for( SearchTerm term : terms ) {
-                        criteria.add(new Criterion(term.getColumn(), term.getOperator()));
+                        criteria.add(new Criterion(term));
                     }
                     setCriteria(criteria.toArray(new Criterion[criteria.size()]));
                 }
@@ -177,6 +244,10 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
     }
 
     private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy) {
+        return getLoader(whereTerms, orderBy, null);
+    }
+
+    private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy, final String[] projection) {
         final SearchTerm[] terms = whereTerms;
         final OrderedColumn[] order = orderBy;
         final RelationalReleaseCache<T> self = this;
@@ -189,7 +260,7 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>();
 
                     for( SearchTerm term : terms ) {
-                        criteria.add(new Criterion(term.getJoinEntity(), term.getColumn(), term.getOperator()));
+                        criteria.add(new Criterion(term));
                     }
                     setCriteria(criteria.toArray(new Criterion[criteria.size()]));
                 }
@@ -202,11 +273,18 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
                     }
                     setOrder(desc, cols.toArray(new String[cols.size()]));
                 }
+                if( projection != null ) {
+                    setProjection(projection);
+                }
                 switch (translationMethod) {
                 case CUSTOM: setCustomTranslating(); break;
                 case STANDARD: setTranslating(true); break;
                 case NONE: setTranslating(false); break;
                 }
+                if( projection != null ) {
+                    // translations are not columns and cannot be projected
+                    setTranslating(false);
+                }
             }
 
             public boolean isReadOnly() {
@@ -254,6 +332,7 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
                 long count;
 
                 results = xaction.execute(counter, new HashMap<String,Object>(), readDataSource);
+                getMetrics().backendCall(-1L, -1L);
                 count = ((Number)results.get("count")).longValue();
                 xaction.commit();
                 return count;
@@ -280,6 +359,7 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
                 long count;
 
                 results = xaction.execute(counter, params, readDataSource);
+                getMetrics().backendCall(-1L, -1L);
                 count = ((Number)results.get("count")).longValue();
                 xaction.commit();
                 return count;
@@ -303,35 +383,140 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
      */
     @Override
     public T create(Transaction xaction, Map<String,Object> state) throws PersistenceException {
-        state.put("--key--", getPrimaryKey().getFields()[0]);
-        xaction.execute(getCreator(), state, writeDataSource);
-        return getCache().find(state);
+        long start = System.nanoTime();
+
+        try {
+            state.put("--key--", getPrimaryKey().getFields()[0]);
+            xaction.execute(getCreator(), state, writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            created(xaction, state);
+            return getCache().find(state);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.CREATE, start);
+        }
     }
 
     @Override
     public Collection<T> find(SearchTerm[] terms, JiteratorFilter<T> filter, Boolean orderDesc, String ... orderFields) throws PersistenceException {
         logger.debug("enter - find(SearchTerm[], JiteratorFilter, Boolean, String)");
+        long start = System.nanoTime();
+
         try {
-            OrderedColumn[] order;
+            OrderedColumn[] order = toOrder(orderDesc, orderFields);
+            return this.load(getLoader(terms, order), filter, toParams(terms));
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+            logger.debug("exit - find(SearchTerm[], JiteratorFilter, Boolean, String...)");
+        }
+    }
+
+    /**
+     * Computes the aggregate with a single SQL aggregate query, so no objects are loaded or cached. Translated
+     * fields are not columns and can be neither aggregated nor grouped on.
+     * @param terms the search criteria
+     * @param function the aggregate function
+     * @param field the field being aggregated, which may be <code>null</code> only for {@link Aggregate#COUNT}
+     * @param groupBy the fields on which to group the results
+     * @return one read-only row per group, in no particular order
+     * @throws PersistenceException an error occurred executing the query or the fields are not valid for the function
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public @Nonnull Collection<Map<String,Object>> aggregate(@Nonnull SearchTerm[] terms, @Nonnull Aggregate function, @Nullable String field, @Nullable String ... groupBy) throws PersistenceException {
+        logger.debug("enter - aggregate(SearchTerm[], Aggregate, String, String...)");
+        long start = System.nanoTime();
 
-            if( orderFields == null ) {
-                order = new OrderedColumn[0];
+        try {
+            ArrayList<String> columns = new ArrayList<String>();
+
+            checkAggregate(function, field, groupBy);
+            if( field != null ) {
+                columns.add(field);
+            }
+            if( groupBy != null ) {
+                columns.addAll(Arrays.asList(groupBy));
             }
-            else {
-                int i = 0;
+            for( String column : columns ) {
+                if( Translator.class.isAssignableFrom(getMetadata().getField(column).getType()) ) {
+                    throw new PersistenceException("Unable to aggregate " + column);
+                }
+            }
+            Aggregator aggregator = getAggregator(terms, function, field, groupBy);
+            Transaction xaction = Transaction.getInstance(true);
 
-                order = new OrderedColumn[orderFields.length];
-                for( String field : orderFields ) {
-                    order[i] = new OrderedColumn();
-                    order[i].column = field;
-                    order[i].descending = (orderDesc != null && orderDesc);
-                    i++;
+            try {
+                ArrayList<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
+                Collection<Map<String,Object>> rows;
+
+                rows = (Collection<Map<String,Object>>)xaction.execute(aggregator, toParams(terms), readDataSource).get(Loader.LISTING);
+                getMetrics().backendCall(-1L, -1L);
+                for( Map<String,Object> row : rows ) {
+                    results.add(toAggregateRow(function, field, groupBy, row));
                 }
+                if( results.isEmpty() && (groupBy == null || groupBy.length < 1) ) {
+                    results.add(toAggregateRow(function, field, groupBy, new HashMap<String,Object>()));
+                }
+                getMetrics().results(results.size());
+                xaction.commit();
+                return results;
+            }
+            finally {
+                xaction.rollback();
             }
-            return this.load(getLoader(terms, order), filter, toParams(terms));
         }
         finally {
-            logger.debug("exit - find(SearchTerm[], JiteratorFilter, Boolean, String...)");
+            getMetrics().record(CacheMetrics.Operation.AGGREGATE, start);
+            logger.debug("exit - aggregate(SearchTerm[], Aggregate, String, String...)");
+        }
+    }
+
+    /**
+     * Selects only the columns for the specified fields and returns the rows as they are read, without
+     * hydrating or caching any objects.
+     * @param terms the search criteria
+     * @param fields the fields to read
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return one read-only row view per matching row
+     * @throws PersistenceException an error occurred executing the query or a field cannot be projected
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public @Nonnull Collection<Map<String,Object>> project(@Nonnull SearchTerm[] terms, @Nonnull String[] fields, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        logger.debug("enter - project(SearchTerm[], String[], Boolean, String...)");
+        long start = System.nanoTime();
+
+        try {
+            checkProjection(fields);
+            Loader loader = getLoader(terms, toOrder(orderDesc, orderFields), fields);
+            Map<String,Object> params = toParams(terms);
+            Transaction xaction;
+
+            for( int i=0; i<loader.getLayout().getColumnCount(); i++ ) {
+                if( loader.getLayout().getType(i) == null ) {
+                    throw new PersistenceException("Unable to project " + loader.getLayout().getColumn(i));
+                }
+            }
+            params.put(Loader.ROW_ARRAYS, true);
+            xaction = Transaction.getInstance(true);
+            try {
+                Collection<Map<String,Object>> rows;
+
+                rows = (Collection<Map<String,Object>>)xaction.execute(loader, params, readDataSource).get(Loader.LISTING);
+                getMetrics().backendCall(-1L, -1L);
+                getMetrics().results(rows.size());
+                xaction.commit();
+                return rows;
+            }
+            finally {
+                xaction.rollback();
+            }
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+            logger.debug("exit - project(SearchTerm[], String[], Boolean, String...)");
         }
     }
 
@@ -343,6 +528,8 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
      */
     @Override
     public T get(Object primaryKeyValue) throws PersistenceException {
+        long start = System.nanoTime();
+
         try {
             CacheLoader<T> loader;
 
@@ -374,7 +561,7 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
             };
             logger.debug("Executing cache find...");
             try {
-                return getCache().find(getPrimaryKeyField(), primaryKeyValue, loader, getPrimaryKeyField(), primaryKeyValue);
+                return getCache().find(getPrimaryKeyField(), primaryKeyValue, coalesce(primaryKeyValue, loader), getPrimaryKeyField(), primaryKeyValue);
             }
             catch( CacheManagementException e ) {
                 throw new PersistenceException(e);
@@ -395,10 +582,32 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
             }
         }
         finally {
+            getMetrics().record(CacheMetrics.Operation.GET, start);
             logger.debug("exit - get(String,Object)");
         }
     }
 
+    /**
+     * Reads the objects in batches of up to {@link #MAX_KEY_BATCH} keys, each with a single
+     * <code>SELECT ... WHERE pk IN (...)</code>.
+     * @param keys the primary key values of objects known not to be in the cache
+     * @return the objects that exist, in any order
+     * @throws PersistenceException an error occurred executing a query
+     */
+    @Override
+    protected @Nonnull Collection<T> loadAll(@Nonnull List<Object> keys) throws PersistenceException {
+        ArrayList<T> items = new ArrayList<T>();
+
+        for( int i=0; i<keys.size(); i += MAX_KEY_BATCH ) {
+            List<Object> batch = keys.subList(i, Math.min(keys.size(), i + MAX_KEY_BATCH));
+            HashMap<String,Object> params = new HashMap<String,Object>();
+
+            params.put(Loader.KEYS, batch);
+            items.addAll(load(getLoader(batch.size()), null, params));
+        }
+        return items;
+    }
+
     @Override
     public String getSchema() throws PersistenceException {
         StringBuilder schema = new StringBuilder();
@@ -427,14 +636,44 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
         }
     }
 
+    private OrderedColumn[] toOrder(Boolean orderDesc, String ... orderFields) {
+        OrderedColumn[] order;
+
+        if( orderFields == null ) {
+            order = new OrderedColumn[0];
+        }
+        else {
+            int i = 0;
+            
+            order = new OrderedColumn[orderFields.length];
+            for( String field : orderFields ) {
+                order[i] = new OrderedColumn();
+                order[i].column = field;
+                order[i].descending = (orderDesc != null && orderDesc);
+                i++;
+            }
+        }
+        return order;
+    }
+    
     private Map<String,Object> toParams(SearchTerm ... searchTerms) {
         HashMap<String,Object> params = new HashMap<String,Object>();
+        boolean positional = false;
 
         if( searchTerms != null ) {
             for( SearchTerm term : searchTerms ) {
-                params.put(term.getColumn(), term.getValue());
+                if( term.getOperator().equals(Operator.IN) || term.getOperator().equals(Operator.OR) ) {
+                    positional = true;
+                }
+                else {
+                    params.put(term.getColumn(), term.getValue());
+                }
             }
         }
+        if( positional ) {
+            // several values share a column, so the criteria are bound in order instead of by name
+            params.put(AutomatedSql.VALUES, AutomatedSql.toValues(searchTerms));
+        }
         return params;
     }
 
@@ -450,6 +689,10 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
                 final Map<String,Object> results;
 
                 results = xaction.execute(loader, params, readDataSource);
+                getMetrics().backendCall(-1L, -1L);
+                if( results.get(Loader.LISTING) instanceof Collection ) {
+                    getMetrics().results(((Collection<?>)results.get(Loader.LISTING)).size());
+                }
                 xaction.commit();
                 Thread t = new Thread() {
                     public void run() {
@@ -505,13 +748,31 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
      */
     @Override
     public void remove(Transaction xaction, T item) throws PersistenceException {
-        xaction.execute(getDeleter(), getCache().getKeys(item), writeDataSource);
-        getCache().release(item);
+        long start = System.nanoTime();
+
+        try {
+            xaction.execute(getDeleter(), getCache().getKeys(item), writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            removed(xaction, item);
+            getCache().release(item);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.REMOVE, start);
+        }
     }
 
     @Override
     public void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException {
-        xaction.execute(getDeleter(), toParams(terms), writeDataSource);
+        long start = System.nanoTime();
+
+        try {
+            xaction.execute(getDeleter(), toParams(terms), writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            removed(xaction, terms);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.REMOVE, start);
+        }
     }
 
     public String toString() {
@@ -529,7 +790,16 @@ public final class RelationalReleaseCache<T extends CachedItem> extends Persiste
      */
     @Override
     public void update(Transaction xaction, T item, Map<String,Object> state) throws PersistenceException {
-        state.put("--key--", getPrimaryKey().getFields()[0]);
-        xaction.execute(getUpdater(), state, writeDataSource);
+        long start = System.nanoTime();
+
+        try {
+            state.put("--key--", getPrimaryKey().getFields()[0]);
+            xaction.execute(getUpdater(), state, writeDataSource);
+            getMetrics().backendCall(-1L, -1L);
+            updated(xaction, item, state);
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.UPDATE, start);
+        }
     }
 }
@@ -0,0 +1,498 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.dasein.util.CachedItem;
+import org.dasein.util.JiteratorFilter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Holds every object of an entity in memory and answers searches against them. Each secondary key gets a hash
+ * index on its fields and each field of a key gets a sorted index, so equality, IN, NULL and range terms on
+ * key fields only examine the objects they select. The candidates are then checked against all of the terms
+ * with a {@link SearchTermMatcher}, which covers every {@link Operator}, and ordered like the data stores order
+ * them, with <code>null</code> values first. Many searches may run at once; writes wait for them.
+ * @param <T> the entity class
+ */
+public class ResidentSet<T extends CachedItem> {
+    static private final Comparator<Object> order = new Comparator<Object>() {
+        public int compare(Object left, Object right) {
+            return SearchTermMatcher.compare(left, right);
+        }
+    };
+
+    /**
+     * Normalizes a JSON friendly value so that values comparing equal under {@link SearchTermMatcher#compare(Object, Object)}
+     * are also equal as hash keys: whole numbers become longs, other numbers doubles and everything else strings.
+     */
+    static private @Nullable Object normalize(@Nullable Object value) {
+        if( value == null ) {
+            return null;
+        }
+        if( value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte ) {
+            return ((Number)value).longValue();
+        }
+        if( value instanceof Number ) {
+            double d = ((Number)value).doubleValue();
+
+            if( value instanceof BigInteger || value instanceof BigDecimal ) {
+                try {
+                    return new BigDecimal(value.toString()).longValueExact();
+                }
+                catch( ArithmeticException e ) {
+                    return d;
+                }
+            }
+            if( d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < Long.MAX_VALUE ) {
+                return (long)d;
+            }
+            return d;
+        }
+        return value.toString();
+    }
+
+    private PersistentCache<T>                                cache;
+    private Map<Key,Map<List<Object>,Set<Object>>>            hashes  = new HashMap<Key,Map<List<Object>,Set<Object>>>();
+    private LinkedHashMap<Object,T>                           items   = new LinkedHashMap<Object,T>();
+    private ReadWriteLock                                     lock    = new ReentrantReadWriteLock();
+    private Map<String,Set<Object>>                           nulls   = new HashMap<String,Set<Object>>();
+    private String                                            primaryKey;
+    private Map<String,TreeMap<Object,Set<Object>>>           sorted  = new HashMap<String,TreeMap<Object,Set<Object>>>();
+
+    /**
+     * @param cache the cache managing the entity
+     * @param primaryKey the primary key field
+     * @param keys the secondary keys to index
+     * @param contents every object of the entity
+     */
+    public ResidentSet(@Nonnull PersistentCache<T> cache, @Nonnull String primaryKey, @Nonnull Key[] keys, @Nonnull Collection<T> contents) {
+        this.cache = cache;
+        this.primaryKey = primaryKey;
+        for( Key key : keys ) {
+            hashes.put(key, new HashMap<List<Object>,Set<Object>>());
+            for( String field : key.getFields() ) {
+                if( !sorted.containsKey(field) ) {
+                    sorted.put(field, new TreeMap<Object,Set<Object>>(order));
+                    nulls.put(field, new LinkedHashSet<Object>());
+                }
+            }
+        }
+        for( T item : contents ) {
+            add(item);
+        }
+    }
+
+    private void add(@Nonnull T item) {
+        Object id = normalize(valueOf(item, primaryKey));
+
+        if( items.containsKey(id) ) {
+            unindex(id);
+        }
+        items.put(id, item);
+        for( Map.Entry<Key,Map<List<Object>,Set<Object>>> entry : hashes.entrySet() ) {
+            bucket(entry.getValue(), tuple(entry.getKey(), item)).add(id);
+        }
+        for( Map.Entry<String,TreeMap<Object,Set<Object>>> entry : sorted.entrySet() ) {
+            Object value = normalize(valueOf(item, entry.getKey()));
+
+            if( value == null ) {
+                nulls.get(entry.getKey()).add(id);
+            }
+            else {
+                bucket(entry.getValue(), value).add(id);
+            }
+        }
+    }
+
+    static private <K> Set<Object> bucket(@Nonnull Map<K,Set<Object>> index, @Nonnull K key) {
+        Set<Object> ids = index.get(key);
+
+        if( ids == null ) {
+            ids = new LinkedHashSet<Object>();
+            index.put(key, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * @param terms the search terms
+     * @return the number of objects matching the terms
+     * @throws PersistenceException the terms could not be evaluated
+     */
+    public long count(@Nonnull SearchTerm ... terms) throws PersistenceException {
+        SearchTermMatcher matcher = new SearchTermMatcher(terms);
+        long count = 0L;
+
+        lock.readLock().lock();
+        try {
+            for( Object id : all(candidates(terms)) ) {
+                if( matcher.matches(cache, items.get(id)) ) {
+                    count++;
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return count;
+    }
+
+    /**
+     * Finds the matching objects.
+     * @param terms the search terms
+     * @param filter an additional filter for the results
+     * @param orderDesc true if results are in descending order
+     * @param orderFields the fields on which results are ordered
+     * @return the matching objects
+     * @throws PersistenceException the terms could not be evaluated or the filter failed
+     */
+    public @Nonnull List<T> find(@Nonnull SearchTerm[] terms, @Nullable JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        SearchTermMatcher matcher = new SearchTermMatcher(terms);
+        final boolean desc = (orderDesc != null && orderDesc);
+        ArrayList<T> results = new ArrayList<T>();
+        Collection<Object> ids;
+        boolean ordered = false;
+
+        lock.readLock().lock();
+        try {
+            ids = candidates(terms);
+            if( ids == null && orderFields != null && orderFields.length == 1 && sorted.containsKey(orderFields[0]) ) {
+                // walk the sorted index instead of sorting everything
+                ids = inOrder(orderFields[0], desc);
+                ordered = true;
+            }
+            ids = all(ids);
+            for( Object id : ids ) {
+                T item = items.get(id);
+
+                if( matcher.matches(cache, item) && accept(filter, item) ) {
+                    results.add(item);
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        if( !ordered && orderFields != null && orderFields.length > 0 ) {
+            final String[] fields = orderFields;
+
+            Collections.sort(results, new Comparator<T>() {
+                public int compare(T left, T right) {
+                    for( String field : fields ) {
+                        Object l = valueOf(left, field);
+                        Object r = valueOf(right, field);
+                        int c;
+
+                        if( l == null || r == null ) {
+                            c = (l == null ? (r == null ? 0 : -1) : 1);
+                        }
+                        else {
+                            c = SearchTermMatcher.compare(l, r);
+                        }
+                        if( c != 0 ) {
+                            return (desc ? -c : c);
+                        }
+                    }
+                    return 0;
+                }
+            });
+        }
+        return results;
+    }
+
+    /**
+     * @param terms the search terms
+     * @return true if every term can be evaluated in memory, which excludes terms on joined entities
+     */
+    static public boolean isSupported(@Nonnull SearchTerm ... terms) {
+        for( SearchTerm term : terms ) {
+            if( term.getJoinEntity() != null ) {
+                return false;
+            }
+            if( term.getOperator().equals(Operator.OR) && !isSupported(term.getAlternatives()) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds or replaces an object.
+     * @param item the current state of the object
+     */
+    public void put(@Nonnull T item) {
+        lock.writeLock().lock();
+        try {
+            add(item);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an object.
+     * @param keyValue the primary key value of the object
+     */
+    public void remove(@Nullable Object keyValue) {
+        lock.writeLock().lock();
+        try {
+            unindex(normalize(cache.toJSONValue(keyValue)));
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the objects matching the specified terms.
+     * @param terms the search terms
+     * @throws PersistenceException the terms could not be evaluated
+     */
+    public void removeAll(@Nonnull SearchTerm ... terms) throws PersistenceException {
+        SearchTermMatcher matcher = new SearchTermMatcher(terms);
+
+        lock.writeLock().lock();
+        try {
+            for( Object id : new ArrayList<Object>(all(candidates(terms))) ) {
+                if( matcher.matches(cache, items.get(id)) ) {
+                    unindex(id);
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return items.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean accept(@Nullable JiteratorFilter<T> filter, @Nonnull T item) throws PersistenceException {
+        try {
+            return (filter == null || filter.filter(item));
+        }
+        catch( PersistenceException e ) {
+            throw e;
+        }
+        catch( Exception e ) {
+            throw new PersistenceException(e);
+        }
+        catch( Throwable t ) {
+            throw new PersistenceException(new RuntimeException(t));
+        }
+    }
+
+    private @Nonnull Collection<Object> all(@Nullable Collection<Object> ids) {
+        return (ids == null ? items.keySet() : ids);
+    }
+
+    /**
+     * Picks the smallest set of primary keys that an index can vouch for holding every match of the terms.
+     * @return the candidate keys or <code>null</code> if no term can use an index
+     */
+    private @Nullable Collection<Object> candidates(@Nonnull SearchTerm[] terms) {
+        Collection<Object> best = null;
+
+        for( Map.Entry<Key,Map<List<Object>,Set<Object>>> entry : hashes.entrySet() ) {
+            String[] fields = entry.getKey().getFields();
+            ArrayList<Object> tuple = new ArrayList<Object>(fields.length);
+
+            for( String field : fields ) {
+                for( SearchTerm term : terms ) {
+                    if( term.getOperator().equals(Operator.EQUALS) && field.equals(term.getColumn()) ) {
+                        tuple.add(normalize(cache.toJSONValue(term.getValue())));
+                        break;
+                    }
+                }
+            }
+            if( tuple.size() == fields.length ) {
+                Set<Object> ids = entry.getValue().get(tuple);
+
+                if( ids == null ) {
+                    return Collections.emptySet();
+                }
+                if( best == null || ids.size() < best.size() ) {
+                    best = ids;
+                }
+            }
+        }
+        for( SearchTerm term : terms ) {
+            Collection<Object> ids = candidates(term);
+
+            if( ids != null && (best == null || ids.size() < best.size()) ) {
+                best = ids;
+            }
+        }
+        return best;
+    }
+
+    private @Nullable Collection<Object> candidates(@Nonnull SearchTerm term) {
+        String column = term.getColumn();
+        Operator operator = term.getOperator();
+
+        if( primaryKey.equals(column) && (operator.equals(Operator.EQUALS) || operator.equals(Operator.IN)) ) {
+            LinkedHashSet<Object> ids = new LinkedHashSet<Object>();
+
+            for( Object value : term.getValues() ) {
+                Object id = normalize(cache.toJSONValue(value));
+
+                if( items.containsKey(id) ) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+        TreeMap<Object,Set<Object>> index = sorted.get(column);
+
+        if( index == null ) {
+            return null;
+        }
+        Object value = normalize(cache.toJSONValue(term.getValue()));
+
+        switch( operator ) {
+            case NULL: return nulls.get(column);
+            case EQUALS:
+                if( value == null ) {
+                    return nulls.get(column);
+                }
+                return (index.containsKey(value) ? index.get(value) : Collections.emptySet());
+            case IN:
+                LinkedHashSet<Object> ids = new LinkedHashSet<Object>();
+
+                for( Object v : term.getValues() ) {
+                    Set<Object> bucket = index.get(normalize(cache.toJSONValue(v)));
+
+                    if( bucket != null ) {
+                        ids.addAll(bucket);
+                    }
+                }
+                return ids;
+            case GREATER_THAN: return (value == null ? null : flatten(index.tailMap(value, false)));
+            case GREATER_THAN_OR_EQUAL_TO: return (value == null ? null : flatten(index.tailMap(value, true)));
+            case LESS_THAN: return (value == null ? null : flatten(index.headMap(value, false)));
+            case LESS_THAN_OR_EQUAL_TO: return (value == null ? null : flatten(index.headMap(value, true)));
+            default: return null;
+        }
+    }
+
+    private @Nonnull Collection<Object> flatten(@Nonnull NavigableMap<Object,Set<Object>> range) {
+        ArrayList<Object> ids = new ArrayList<Object>();
+
+        for( Set<Object> bucket : range.values() ) {
+            ids.addAll(bucket);
+        }
+        return ids;
+    }
+
+    private @Nonnull Collection<Object> inOrder(@Nonnull String field, boolean desc) {
+        TreeMap<Object,Set<Object>> index = sorted.get(field);
+        ArrayList<Object> ids = new ArrayList<Object>(items.size());
+
+        if( !desc ) {
+            ids.addAll(nulls.get(field));
+        }
+        ids.addAll(flatten(desc ? index.descendingMap() : index));
+        if( desc ) {
+            ids.addAll(nulls.get(field));
+        }
+        return ids;
+    }
+
+    private void unindex(@Nullable Object id) {
+        T item = items.remove(id);
+
+        if( item == null ) {
+            return;
+        }
+        for( Map.Entry<Key,Map<List<Object>,Set<Object>>> entry : hashes.entrySet() ) {
+            List<Object> tuple = tuple(entry.getKey(), item);
+            Set<Object> ids = entry.getValue().get(tuple);
+
+            if( ids != null ) {
+                ids.remove(id);
+                if( ids.isEmpty() ) {
+                    entry.getValue().remove(tuple);
+                }
+            }
+        }
+        for( Map.Entry<String,TreeMap<Object,Set<Object>>> entry : sorted.entrySet() ) {
+            Object value = normalize(valueOf(item, entry.getKey()));
+
+            if( value == null ) {
+                nulls.get(entry.getKey()).remove(id);
+            }
+            else {
+                Set<Object> ids = entry.getValue().get(value);
+
+                if( ids != null ) {
+                    ids.remove(id);
+                    if( ids.isEmpty() ) {
+                        entry.getValue().remove(value);
+                    }
+                }
+            }
+        }
+    }
+
+    private @Nonnull List<Object> tuple(@Nonnull Key key, @Nonnull T item) {
+        String[] fields = key.getFields();
+        ArrayList<Object> tuple = new ArrayList<Object>(fields.length);
+
+        for( String field : fields ) {
+            tuple.add(normalize(valueOf(item, field)));
+        }
+        return tuple;
+    }
+
+    private @Nullable Object valueOf(@Nonnull T item, @Nonnull String field) {
+        return cache.toJSONValue(cache.getValue(item, field));
+    }
+
+    public @Nonnull String toString() {
+        return "ResidentSet[" + cache.getEntityClassName() + ",size=" + size() + ",indexes=" + sorted.keySet() + "]";
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Writes objects that were read under an older schema version back to the data store under the current one,
+ * so each stored object pays for its {@link SchemaMapper} chain only once. The keys of upgraded objects are queued
+ * as they are read, and a single daemon thread reads each object again and writes it back at no more than a configured
+ * number of objects per second. Reading again keeps the write-back from undoing changes made since the first read.
+ * <p>Migration is enabled by setting <code>dasein.persist.migrate</code> (or
+ * <code>dasein.persist.migrate.&lt;package or class&gt;</code>) to <code>true</code>. The write-back rate comes
+ * from <code>dasein.persist.migrate.rate</code> and defaults to {@link #DEFAULT_RATE} objects per second.</p>
+ * @param <T> the type of object being migrated
+ */
+public class SchemaMigrator<T extends CachedItem> {
+    static private final Logger logger = Logger.getLogger(SchemaMigrator.class);
+
+    static public final int DEFAULT_RATE     = 10;
+    static public final int MAXIMUM_BACKLOG  = 10000;
+
+    /**
+     * Reads the migration configuration for the specified cache.
+     * @param cache the cache whose objects would be migrated
+     * @return a migrator for the cache or <code>null</code> if migration is not enabled for its entity
+     */
+    static public @Nullable <T extends CachedItem> SchemaMigrator<T> getInstance(@Nonnull PersistentCache<T> cache) {
+        Properties props = PersistentCache.getProperties();
+        String prop = PersistentCache.getEntityProperty("dasein.persist.migrate", cache.getEntityClassName());
+        boolean enabled = (prop != null && prop.equalsIgnoreCase("true"));
+
+        if( !enabled ) {
+            return null;
+        }
+        int rate = DEFAULT_RATE;
+
+        try {
+            rate = Integer.parseInt(props.getProperty("dasein.persist.migrate.rate", String.valueOf(DEFAULT_RATE)).trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid dasein.persist.migrate.rate, using " + DEFAULT_RATE);
+        }
+        return new SchemaMigrator<T>(cache, rate);
+    }
+
+    private PersistentCache<T>               cache;
+    private long                             interval;
+    private AtomicLong                       migrated  = new AtomicLong(0L);
+    private ConcurrentHashMap<String,Object> pending   = new ConcurrentHashMap<String,Object>();
+    private LinkedBlockingQueue<String>      queue     = new LinkedBlockingQueue<String>(MAXIMUM_BACKLOG);
+    private volatile String                  rereading = null;
+    private volatile boolean                 upgraded  = false;
+    private Thread                           writer;
+
+    public SchemaMigrator(@Nonnull PersistentCache<T> cache, int objectsPerSecond) {
+        this.cache = cache;
+        this.interval = (objectsPerSecond < 1 ? 0L : (1000000000L / objectsPerSecond));
+    }
+
+    /**
+     * @return the number of objects written back under the current schema version so far
+     */
+    public long getMigratedCount() {
+        return migrated.get();
+    }
+
+    /**
+     * @return the number of objects read under an older schema version that have not yet been written back
+     */
+    public int getOutstandingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Queues the key of an object that was just upgraded from an older schema version for write-back. Keys already
+     * waiting are not queued twice, and keys arriving while the backlog is full are left for a later read.
+     * @param item the upgraded object
+     */
+    public void queue(@Nonnull T item) {
+        String key;
+
+        try {
+            key = cache.getKeyValue(item);
+        }
+        catch( PersistenceException e ) {
+            logger.warn("Unable to identify " + item + " for migration: " + e.getMessage());
+            return;
+        }
+        if( key == null ) {
+            return;
+        }
+        if( key.equals(rereading) ) {
+            // the write-back is reading the object again and found it still stored under an older version
+            upgraded = true;
+            return;
+        }
+        Object value = cache.getValue(item, cache.getPrimaryKeyField());
+
+        if( value == null || pending.putIfAbsent(key, value) != null ) {
+            return;
+        }
+        if( !queue.offer(key) ) {
+            pending.remove(key);
+            return;
+        }
+        start();
+    }
+
+    private synchronized void start() {
+        if( writer != null ) {
+            return;
+        }
+        writer = new Thread() {
+            public void run() {
+                while( true ) {
+                    String key;
+
+                    try {
+                        key = queue.take();
+                    }
+                    catch( InterruptedException e ) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+
+                    try {
+                        writeBack(key);
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Unable to migrate " + cache.getEntityClassName() + " " + key + ": " + t.getMessage(), t);
+                    }
+                    long wait = interval - (System.nanoTime() - start);
+
+                    if( wait > 0L ) {
+                        try {
+                            Thread.sleep(wait/1000000L, (int)(wait % 1000000L));
+                        }
+                        catch( InterruptedException e ) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        writer.setName("SchemaMigrator: " + cache.getEntityClassName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Reads the object with the specified key from the data store again and writes it back under the current schema
+     * version, unless it was removed or already written under the current version since its key was queued.
+     * @param key the string form of the object's primary key value
+     * @throws PersistenceException the object could not be read or written
+     */
+    private void writeBack(@Nonnull String key) throws PersistenceException {
+        try {
+            Object value = pending.get(key);
+            T item = cache.getCache().find(cache.getPrimaryKeyField(), value);
+
+            // the cached copy was upgraded in memory, so only a fresh read shows the version in the data store
+            if( item != null ) {
+                cache.getCache().release(item);
+            }
+            upgraded = false;
+            rereading = key;
+            try {
+                item = cache.get(value);
+            }
+            finally {
+                rereading = null;
+            }
+            if( item == null || !upgraded ) {
+                return;
+            }
+            Transaction xaction = Transaction.getInstance();
+
+            try {
+                Memento<T> memento = new Memento<T>(item);
+
+                memento.save(new HashMap<String,Object>());
+                cache.update(xaction, item, memento.getState());
+                xaction.commit();
+                migrated.incrementAndGet();
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Migrated " + cache.getEntityClassName() + " " + key + " to " + cache.getSchemaVersion());
+                }
+            }
+            finally {
+                xaction.rollback();
+            }
+        }
+        finally {
+            pending.remove(key);
+        }
+    }
+}
@@ -18,10 +18,27 @@
 
 package org.dasein.persist;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
 import org.dasein.persist.jdbc.AutomatedSql.Operator;
 import org.dasein.util.CachedItem;
 
 public class SearchTerm {
+    /**
+     * Matches items that match any of the specified terms. Each alternative is a single term on a single column,
+     * which may itself be an {@link Operator#IN} term.
+     * @param alternatives the terms to match
+     * @return a term matching any of the alternatives
+     */
+    static public SearchTerm or(SearchTerm ... alternatives) {
+        return new SearchTerm(null, null, Operator.OR, alternatives);
+    }
+
     private String                      column;
     private Class<? extends CachedItem> joinEntity;
     private Operator                    operator;
@@ -42,6 +59,16 @@ public class SearchTerm {
         this.value = value;
     }
     
+    /**
+     * @return the alternatives of an {@link Operator#OR} term, or an empty array for any other term
+     */
+    public SearchTerm[] getAlternatives() {
+        if( !Operator.OR.equals(operator) || value == null ) {
+            return new SearchTerm[0];
+        }
+        return (SearchTerm[])value;
+    }
+
     public String getColumn() {
         return column;
     }
@@ -57,9 +84,53 @@ public class SearchTerm {
     public Object getValue() {
         return value;
     }
+
+    /**
+     * Provides the value of this term as a list, which for {@link Operator#IN} terms is each of the values
+     * supplied as a collection or array.
+     * @return the values of this term
+     */
+    public List<Object> getValues() {
+        if( value == null ) {
+            return Collections.emptyList();
+        }
+        if( value instanceof Collection ) {
+            return new ArrayList<Object>((Collection<?>)value);
+        }
+        if( value instanceof Object[] ) {
+            return Arrays.asList((Object[])value);
+        }
+        if( value.getClass().isArray() ) {
+            int len = Array.getLength(value);
+            ArrayList<Object> values = new ArrayList<Object>(len);
+
+            for( int i=0; i<len; i++ ) {
+                values.add(Array.get(value, i));
+            }
+            return values;
+        }
+        return Collections.singletonList(value);
+    }
     
     public String toString() {
         String cname;
+
+        if( Operator.OR.equals(operator) ) {
+            StringBuilder str = new StringBuilder();
+
+            str.append("(");
+            for( SearchTerm term : getAlternatives() ) {
+                if( str.length() > 1 ) {
+                    str.append(" OR ");
+                }
+                str.append(term.toString());
+            }
+            str.append(")");
+            return str.toString();
+        }
+        if( Operator.IN.equals(operator) ) {
+            return (column + " " + operator + " " + getValues());
+        }
         
         if( joinEntity == null ) {
             cname = "";
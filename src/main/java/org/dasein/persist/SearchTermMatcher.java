@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Evaluates a conjunction of search terms against objects in memory with the same semantics as the queries
+ * generated for the data stores. Values are compared in their JSON friendly form (see
+ * {@link PersistentCache#toJSONValue(Object)}): numbers numerically, everything else by its string form.
+ * <code>LIKE</code> terms are case-insensitive regular expressions, <code>IN</code> terms match any of their
+ * values and <code>OR</code> groups match if any of their alternatives match.
+ */
+public class SearchTermMatcher {
+    /**
+     * Compares two non-null values the way the data store queries order them.
+     * @param left the first value
+     * @param right the second value
+     * @return a negative number, zero or a positive number as the first value is less than, equal to or greater than the second
+     */
+    static public int compare(@Nonnull Object left, @Nonnull Object right) {
+        if( left instanceof Number && right instanceof Number ) {
+            return Double.compare(((Number)left).doubleValue(), ((Number)right).doubleValue());
+        }
+        return left.toString().compareTo(right.toString());
+    }
+
+    private SearchTermMatcher[][] alternatives;
+    private Pattern[]             patterns;
+    private SearchTerm[]          terms;
+
+    public SearchTermMatcher(@Nonnull SearchTerm ... terms) {
+        this.terms = terms;
+        this.patterns = new Pattern[terms.length];
+        this.alternatives = new SearchTermMatcher[terms.length][];
+        for( int i=0; i<terms.length; i++ ) {
+            if( terms[i].getOperator().equals(Operator.LIKE) && terms[i].getValue() != null ) {
+                patterns[i] = Pattern.compile(terms[i].getValue().toString().toLowerCase(), Pattern.CASE_INSENSITIVE);
+            }
+            else if( terms[i].getOperator().equals(Operator.OR) ) {
+                SearchTerm[] or = terms[i].getAlternatives();
+
+                alternatives[i] = new SearchTermMatcher[or.length];
+                for( int j=0; j<or.length; j++ ) {
+                    alternatives[i][j] = new SearchTermMatcher(or[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the columns referenced by the terms, including those of the alternatives of OR groups
+     */
+    public @Nonnull Set<String> getColumns() {
+        TreeSet<String> columns = new TreeSet<String>();
+
+        for( int i=0; i<terms.length; i++ ) {
+            if( alternatives[i] != null ) {
+                for( SearchTermMatcher alternative : alternatives[i] ) {
+                    columns.addAll(alternative.getColumns());
+                }
+            }
+            else {
+                columns.add(terms[i].getColumn());
+            }
+        }
+        return columns;
+    }
+
+    public @Nonnull SearchTerm[] getTerms() {
+        return terms;
+    }
+
+    /**
+     * @param cache the cache managing the object
+     * @param item the object being tested
+     * @return true if the object satisfies every term
+     * @throws PersistenceException one of the terms uses an operator that cannot be evaluated in memory
+     */
+    public <T extends CachedItem> boolean matches(@Nonnull PersistentCache<T> cache, @Nonnull T item) throws PersistenceException {
+        for( int i=0; i<terms.length; i++ ) {
+            if( alternatives[i] != null ) {
+                if( !matchesAny(alternatives[i], cache, item) ) {
+                    return false;
+                }
+            }
+            else if( !matches(i, cache, cache.toJSONValue(cache.getValue(item, terms[i].getColumn()))) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param cache the cache managing the object
+     * @param state the state of the object being tested
+     * @return true if the state satisfies every term
+     * @throws PersistenceException one of the terms uses an operator that cannot be evaluated in memory
+     */
+    public boolean matches(@Nonnull PersistentCache<?> cache, @Nonnull Map<String,Object> state) throws PersistenceException {
+        for( int i=0; i<terms.length; i++ ) {
+            if( alternatives[i] != null ) {
+                if( !matchesAny(alternatives[i], cache, state) ) {
+                    return false;
+                }
+            }
+            else if( !matches(i, cache, cache.toJSONValue(state.get(terms[i].getColumn()))) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private <T extends CachedItem> boolean matchesAny(@Nonnull SearchTermMatcher[] matchers, @Nonnull PersistentCache<T> cache, @Nonnull T item) throws PersistenceException {
+        for( SearchTermMatcher matcher : matchers ) {
+            if( matcher.matches(cache, item) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesAny(@Nonnull SearchTermMatcher[] matchers, @Nonnull PersistentCache<?> cache, @Nonnull Map<String,Object> state) throws PersistenceException {
+        for( SearchTermMatcher matcher : matchers ) {
+            if( matcher.matches(cache, state) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(int i, @Nonnull PersistentCache<?> cache, @Nullable Object value) throws PersistenceException {
+        if( terms[i].getOperator().equals(Operator.IN) ) {
+            for( Object v : terms[i].getValues() ) {
+                Object against = cache.toJSONValue(v);
+
+                if( value == null || against == null ? value == against : compare(value, against) == 0 ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Object against = cache.toJSONValue(terms[i].getValue());
+
+        switch( terms[i].getOperator() ) {
+            case NULL: return (value == null);
+            case NOT_NULL: return (value != null);
+            case LIKE: return (value != null && patterns[i] != null && patterns[i].matcher(value.toString().toLowerCase()).find());
+            case EQUALS: return (value == null || against == null ? value == against : compare(value, against) == 0);
+            case NOT_EQUAL: return (value == null || against == null ? value != against : compare(value, against) != 0);
+            case GREATER_THAN: return (value != null && against != null && compare(value, against) > 0);
+            case GREATER_THAN_OR_EQUAL_TO: return (value != null && against != null && compare(value, against) >= 0);
+            case LESS_THAN: return (value != null && against != null && compare(value, against) < 0);
+            case LESS_THAN_OR_EQUAL_TO: return (value != null && against != null && compare(value, against) <= 0);
+            default: throw new PersistenceException("Unsupported operator: " + terms[i].getOperator());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dasein.util.CacheLoader;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller to ask for a key runs the load; anyone asking
+ * for the same key while that load is in flight waits for it and receives the same object or the same failure.
+ * @param <T> the type of object being loaded
+ */
+public class SingleFlight<T> {
+    static private class Flight<T> {
+        public CountDownLatch   done = new CountDownLatch(1);
+        public Error            error;
+        public RuntimeException failure;
+        public T                result;
+    }
+
+    private AtomicLong                          coalesced = new AtomicLong(0L);
+    private AtomicLong                          failures  = new AtomicLong(0L);
+    private ConcurrentHashMap<Object,Flight<T>> flights   = new ConcurrentHashMap<Object,Flight<T>>();
+    private AtomicLong                          loads     = new AtomicLong(0L);
+
+    /**
+     * @return the number of callers that were handed the result of another caller's load instead of loading themselves
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of loads that failed
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of keys currently being loaded
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    /**
+     * @return the number of loads actually run
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Loads the object for the specified key, joining a load already in flight for it if there is one.
+     * @param key the key identifying the object
+     * @param loader the loader to run if no load is in flight
+     * @param args the arguments to the loader
+     * @return the loaded object
+     * @throws RuntimeException the load failed, whether run by this caller or another
+     */
+    public @Nullable T load(@Nullable Object key, @Nonnull CacheLoader<T> loader, Object ... args) {
+        if( key == null ) {
+            return loader.load(args);
+        }
+        Flight<T> flight = new Flight<T>();
+        Flight<T> current = flights.putIfAbsent(key, flight);
+
+        if( current != null ) {
+            coalesced.incrementAndGet();
+            return await(current);
+        }
+        loads.incrementAndGet();
+        try {
+            flight.result = loader.load(args);
+            return flight.result;
+        }
+        catch( RuntimeException e ) {
+            failures.incrementAndGet();
+            flight.failure = e;
+            throw e;
+        }
+        catch( Error e ) {
+            failures.incrementAndGet();
+            flight.error = e;
+            throw e;
+        }
+        finally {
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * Wraps a loader so that its loads are coalesced under the specified key.
+     * @param key the key identifying the object the loader loads
+     * @param loader the loader being wrapped
+     * @return a loader that joins any load in flight for the key
+     */
+    public @Nonnull CacheLoader<T> wrap(@Nullable final Object key, @Nonnull final CacheLoader<T> loader) {
+        return new CacheLoader<T>() {
+            public T load(Object ... args) {
+                return SingleFlight.this.load(key, loader, args);
+            }
+        };
+    }
+
+    private @Nullable T await(@Nonnull Flight<T> flight) {
+        boolean interrupted = false;
+
+        while( true ) {
+            try {
+                flight.done.await();
+                break;
+            }
+            catch( InterruptedException e ) {
+                interrupted = true;
+            }
+        }
+        if( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+        if( flight.failure != null ) {
+            throw flight.failure;
+        }
+        if( flight.error != null ) {
+            throw flight.error;
+        }
+        return flight.result;
+    }
+
+    public @Nonnull String toString() {
+        return "SingleFlight[loads=" + loads + ",coalesced=" + coalesced + ",failures=" + failures + ",inFlight=" + flights.size() + "]";
+    }
+}
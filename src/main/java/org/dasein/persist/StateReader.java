@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Reads the members of a stored entity document one at a time, independent of how the document is encoded.
+ * Values come back in the same shapes org.json would produce so they can be handed to a {@link ValueConverter}.
+ */
+public interface StateReader {
+    public void beginObject() throws IOException, JSONException;
+
+    public void endObject() throws IOException, JSONException;
+
+    /**
+     * @return true if the current object has another member
+     * @throws IOException an error occurred reading from the source
+     * @throws JSONException the source is malformed
+     */
+    public boolean hasNext() throws IOException, JSONException;
+
+    public @Nonnull String nextName() throws IOException, JSONException;
+
+    public @Nullable Object nextValue() throws IOException, JSONException;
+}
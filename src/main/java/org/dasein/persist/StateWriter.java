@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Writes the members of an entity document to its stored form, independent of how the document is encoded.
+ */
+public interface StateWriter {
+    public void beginObject() throws IOException;
+
+    public void endObject() throws IOException;
+
+    public void flush() throws IOException;
+
+    /**
+     * Writes a single member of the current object.
+     * @param name the member name
+     * @param value the JSON friendly value of the member (see {@link PersistentCache#toJSONValue(Object)})
+     * @throws IOException an error occurred writing to the destination
+     * @throws JSONException the value cannot be represented
+     */
+    public void member(@Nonnull String name, @Nullable Object value) throws IOException, JSONException;
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.util.ForwardCursor;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A forward cursor that holds at most a fixed number of unread items. A producer streaming rows into the
+ * cursor blocks in {@link #offer(Object)} once the buffer is full and resumes as the consumer reads, so a large
+ * result never has to sit in memory in its entirety. Consumers that stop reading early should {@link #close()}
+ * the cursor so the producer can stop and give back its connection.
+ * @param <T> the type of item in the cursor
+ */
+public class StreamingCursor<T> extends ForwardCursor<T> {
+    private int              capacity;
+    private volatile boolean closed   = false;
+    private Semaphore        permits;
+    private long             timeout;
+    private volatile boolean timedOut = false;
+
+    /**
+     * @param name a name for the cursor used in logging
+     * @param capacity the maximum number of unread items to buffer
+     * @param timeout the number of milliseconds a producer waits for buffer space before giving up
+     */
+    public StreamingCursor(@Nonnull String name, int capacity, long timeout) {
+        super(name, (TimePeriod<?>)null);
+        this.capacity = (capacity < 1 ? 1 : capacity);
+        this.permits = new Semaphore(this.capacity);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Stops the cursor. Items already buffered may still be read, but the producer is released and any further
+     * offers are refused.
+     */
+    public void close() {
+        if( !closed ) {
+            closed = true;
+            permits.release(capacity);
+        }
+    }
+
+    /**
+     * @return the maximum number of unread items this cursor buffers
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Tells a producer whose offer was refused whether the consumer closed the cursor or simply stopped reading.
+     * In the latter case the items already offered are not the full result, so the producer should end the cursor
+     * with {@link #error(Throwable)} rather than {@link #complete()}.
+     * @return true if an offer gave up waiting for buffer space or was interrupted while waiting
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public @Nonnull Iterator<T> iterator() {
+        final Iterator<T> it = super.iterator();
+
+        return new Iterator<T>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public T next() {
+                T item = it.next();
+
+                permits.release();
+                return item;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Streaming cursors are read only");
+            }
+        };
+    }
+
+    /**
+     * Adds an item to the cursor, waiting for the consumer to make room if the buffer is full.
+     * @param item the item to add
+     * @return true if the item was added, false if the cursor was closed or the consumer stopped reading
+     * (see {@link #isTimedOut()})
+     */
+    public boolean offer(@Nullable T item) {
+        if( closed ) {
+            return false;
+        }
+        try {
+            if( !permits.tryAcquire(timeout, TimeUnit.MILLISECONDS) ) {
+                timedOut = true;
+                close();
+                return false;
+            }
+        }
+        catch( InterruptedException e ) {
+            timedOut = true;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if( closed ) {
+            return false;
+        }
+        super.push(item);
+        return true;
+    }
+
+    public void push(@Nullable T item) {
+        offer(item);
+    }
+
+    public @Nonnull String toString() {
+        return "StreamingCursor[" + getName() + ",capacity=" + capacity + ",available=" + permits.availablePermits() + (timedOut ? ",timed out" : (closed ? ",closed" : "")) + "]";
+    }
+}
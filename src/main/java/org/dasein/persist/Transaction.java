@@ -27,6 +27,7 @@ import java.lang.management.MemoryMXBean;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.EmptyStackException;
 import java.util.HashMap;
@@ -196,6 +197,10 @@ public class Transaction {
      * A connection object for this transaction.
      */
     private volatile Connection connection = null;
+    /**
+     * Work waiting for this transaction to commit.
+     */
+    private final ArrayList<Runnable> commitTasks = new ArrayList<Runnable>();
     /**
      * Marks the transaction as dirty and no longer able to be used.
      */
@@ -279,6 +284,33 @@ public class Transaction {
         }
     }
 
+    /**
+     * Schedules work that must wait until the changes made so far in this transaction are committed, such as
+     * telling caches about them. The work runs on the committing thread once the commit succeeds and is dropped
+     * if the transaction rolls back. If the transaction holds no uncommitted changes, the work runs right away.
+     * @param task the work to run after commit
+     */
+    public void afterCommit(Runnable task) {
+        if( connection == null ) {
+            task.run();
+        }
+        else {
+            commitTasks.add(task);
+        }
+    }
+
+    private void runCommitTasks() {
+        for( Runnable task : commitTasks ) {
+            try {
+                task.run();
+            }
+            catch( Throwable t ) {
+                logger.error("Problem running post-commit task: " + t.getMessage(), t);
+            }
+        }
+        commitTasks.clear();
+    }
+
     /**
      * Commits the transaction to the database and closes the transaction.
      * The transaction should not be used or referenced after calling
@@ -308,6 +340,7 @@ public class Transaction {
                     connections.decrementAndGet();
                 }
                 close();
+                runCommitTasks();
             }
             catch( SQLException e ) {
                 throw new PersistenceException(e.getMessage());
@@ -317,6 +350,7 @@ public class Transaction {
                     logger.warn("Commit failed: " + transactionId);
                     rollback();
                 }
+                commitTasks.clear();
                 dirty = true;
             }
         }
@@ -458,6 +492,13 @@ public class Transaction {
                 if( !success ) {
                     logger.warn("FAILED TRANSACTION (" + transactionId + "): " + holder.toString());
                     rollback();
+                    // a failed event never reaches the event stack, so close() would not otherwise see it
+                    try {
+                        event.close();
+                    }
+                    catch( Throwable t ) {
+                        logger.error("Problem closing failed event: " + t.getMessage(), t);
+                    }
                 }
             }
         }
@@ -677,6 +718,7 @@ public class Transaction {
                 }
             }
             state = "ROLLING BACK";
+            commitTasks.clear();
             try {
                 connection.rollback();
             }
@@ -0,0 +1,498 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dasein.persist.annotations.AutoJSON;
+import org.dasein.util.uom.Measured;
+import org.dasein.util.uom.UnitOfMeasure;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Converts raw data store values into the declared type of an entity field. The conversion strategy
+ * for a field is chosen once from its declared and parameterized type, so hydrating an object is a
+ * straight walk over the converters of its fields.
+ */
+public abstract class ValueConverter {
+    static private final Map<Class<?>,ValueConverter> converters = new ConcurrentHashMap<Class<?>,ValueConverter>();
+
+    /**
+     * Provides the converter for values headed into fields of the specified type.
+     * @param toType the declared type of the field
+     * @param ptype the generic type of the field, if any
+     * @return a converter for the specified type
+     */
+    static public @Nonnull ValueConverter getInstance(@Nonnull Class<?> toType, @Nullable ParameterizedType ptype) {
+        if( ptype != null && Measured.class.isAssignableFrom(toType) ) {
+            // depends on the unit of measure, so not shared
+            return new MeasuredConverter(toType, ptype);
+        }
+        ValueConverter converter = converters.get(toType);
+
+        if( converter == null ) {
+            converter = compile(toType);
+            converters.put(toType, converter);
+        }
+        return converter;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static private @Nonnull ValueConverter compile(@Nonnull Class<?> toType) {
+        if( toType.equals(String.class) ) {
+            return new ValueConverter() {
+                public Object convert(@Nonnull String fieldName, @Nullable Object value) {
+                    return ((value == null || value instanceof String) ? value : value.toString());
+                }
+            };
+        }
+        else if( Enum.class.isAssignableFrom(toType) ) {
+            return new EnumConverter((Class<? extends Enum>)toType);
+        }
+        else if( toType.equals(Boolean.class) || toType.equals(boolean.class) ) {
+            return new ValueConverter() {
+                public Object convert(@Nonnull String fieldName, @Nullable Object value) {
+                    if( value == null ) {
+                        return false;
+                    }
+                    if( value instanceof Boolean ) {
+                        return value;
+                    }
+                    if( value instanceof Number ) {
+                        return (((Number)value).intValue() != 0);
+                    }
+                    String str = value.toString().trim();
+
+                    return (str.equalsIgnoreCase("true") || str.equalsIgnoreCase("y"));
+                }
+            };
+        }
+        else if( toType.equals(Integer.class) || toType.equals(int.class) ) {
+            return new NumericConverter(toType, Integer.class, 0) {
+                Object fromNumber(Number n) { return n.intValue(); }
+                Object fromString(String s) { return Integer.parseInt(s); }
+                Object fromBoolean(boolean b) { return (b ? 1 : 0); }
+            };
+        }
+        else if( toType.equals(Long.class) || toType.equals(long.class) ) {
+            return new NumericConverter(toType, Long.class, 0L) {
+                Object fromNumber(Number n) { return n.longValue(); }
+                Object fromString(String s) { return Long.parseLong(s); }
+                Object fromBoolean(boolean b) { return (b ? 1L : 0L); }
+            };
+        }
+        else if( toType.equals(Short.class) || toType.equals(short.class) ) {
+            return new NumericConverter(toType, Short.class, (short)0) {
+                Object fromNumber(Number n) { return n.shortValue(); }
+                Object fromString(String s) { return Short.parseShort(s); }
+                Object fromBoolean(boolean b) { return (short)(b ? 1 : 0); }
+            };
+        }
+        else if( toType.equals(Byte.class) || toType.equals(byte.class) ) {
+            return new NumericConverter(toType, Byte.class, (byte)0) {
+                Object fromNumber(Number n) { return n.byteValue(); }
+                Object fromString(String s) { return Byte.parseByte(s); }
+                Object fromBoolean(boolean b) { return (byte)(b ? 1 : 0); }
+            };
+        }
+        else if( toType.equals(Double.class) || toType.equals(double.class) ) {
+            return new NumericConverter(toType, Double.class, 0.0) {
+                Object fromNumber(Number n) { return n.doubleValue(); }
+                Object fromString(String s) { return Double.parseDouble(s); }
+                Object fromBoolean(boolean b) { return (b ? 1.0 : 0.0); }
+            };
+        }
+        else if( toType.equals(Float.class) || toType.equals(float.class) ) {
+            return new NumericConverter(toType, Float.class, 0.0f) {
+                Object fromNumber(Number n) { return n.floatValue(); }
+                Object fromString(String s) { return Float.parseFloat(s); }
+                Object fromBoolean(boolean b) { return (b ? 1.0f : 0.0f); }
+            };
+        }
+        else if( toType.equals(Number.class) ) {
+            return new NumericConverter(toType, Number.class, null) {
+                Object fromNumber(Number n) { return n; }
+                Object fromString(String s) { return Double.parseDouble(s); }
+                Object fromBoolean(boolean b) { return (b ? 1 : 0); }
+            };
+        }
+        else if( toType.equals(BigDecimal.class) ) {
+            return new NumericConverter(toType, BigDecimal.class, null) {
+                Object fromNumber(Number n) {
+                    if( n instanceof BigInteger ) {
+                        return new BigDecimal((BigInteger)n);
+                    }
+                    return BigDecimal.valueOf(n.doubleValue());
+                }
+                Object fromString(String s) { return new BigDecimal(s); }
+                Object fromBoolean(boolean b) { return (b ? BigDecimal.ONE : BigDecimal.ZERO); }
+            };
+        }
+        else if( toType.equals(BigInteger.class) ) {
+            return new NumericConverter(toType, BigInteger.class, null) {
+                Object fromNumber(Number n) {
+                    if( n instanceof BigDecimal ) {
+                        return ((BigDecimal)n).toBigInteger();
+                    }
+                    return BigInteger.valueOf(n.longValue());
+                }
+                Object fromString(String s) { return new BigDecimal(s).toBigInteger(); }
+                Object fromBoolean(boolean b) { return (b ? BigInteger.ONE : BigInteger.ZERO); }
+            };
+        }
+        else if( Number.class.isAssignableFrom(toType) ) {
+            final Class<?> t = toType;
+
+            return new ValueConverter() {
+                public Object convert(@Nonnull String fieldName, @Nullable Object value) throws PersistenceException {
+                    if( value == null ) {
+                        return null;
+                    }
+                    throw new PersistenceException("Unable to map " + fieldName + " as " + t + " using " + value);
+                }
+            };
+        }
+        else if( toType.equals(Locale.class) ) {
+            return new LocaleConverter();
+        }
+        else if( Measured.class.isAssignableFrom(toType) ) {
+            // without a unit of measure, there is nothing to convert to
+            return new ValueConverter() {
+                public Object convert(@Nonnull String fieldName, @Nullable Object value) {
+                    return value;
+                }
+            };
+        }
+        else if( toType.equals(UUID.class) ) {
+            return new ValueConverter() {
+                public Object convert(@Nonnull String fieldName, @Nullable Object value) {
+                    return ((value == null || value instanceof UUID) ? value : UUID.fromString(value.toString()));
+                }
+            };
+        }
+        else if( toType.equals(TimeZone.class) ) {
+            return new ValueConverter() {
+                public Object convert(@Nonnull String fieldName, @Nullable Object value) {
+                    return ((value == null || value instanceof TimeZone) ? value : TimeZone.getTimeZone(value.toString()));
+                }
+            };
+        }
+        else if( toType.equals(Currency.class) ) {
+            return new ValueConverter() {
+                public Object convert(@Nonnull String fieldName, @Nullable Object value) {
+                    return ((value == null || value instanceof Currency) ? value : Currency.getInstance(value.toString()));
+                }
+            };
+        }
+        else if( toType.isArray() ) {
+            return new ArrayConverter(toType);
+        }
+        return new ObjectConverter(toType);
+    }
+
+    /**
+     * Converts the specified data store value into the type this converter was compiled for.
+     * @param fieldName the name of the field being mapped, used for error reporting
+     * @param value the raw value from the data store
+     * @return the converted value
+     * @throws Exception an error occurred converting the value
+     */
+    public abstract @Nullable Object convert(@Nonnull String fieldName, @Nullable Object value) throws Exception;
+
+    static private abstract class NumericConverter extends ValueConverter {
+        private Object   defaultValue;
+        private Class<?> toType;
+        private Class<?> wrapper;
+
+        NumericConverter(@Nonnull Class<?> toType, @Nonnull Class<?> wrapper, @Nullable Object primitiveDefault) {
+            this.toType = toType;
+            this.wrapper = wrapper;
+            this.defaultValue = (toType.isPrimitive() ? primitiveDefault : null);
+        }
+
+        abstract Object fromNumber(Number n);
+
+        abstract Object fromString(String s);
+
+        abstract Object fromBoolean(boolean b);
+
+        public Object convert(@Nonnull String fieldName, @Nullable Object value) throws PersistenceException {
+            if( value == null ) {
+                return defaultValue;
+            }
+            if( value instanceof Number ) {
+                return (wrapper.isInstance(value) ? value : fromNumber((Number)value));
+            }
+            if( value instanceof String ) {
+                try {
+                    return fromString((String)value);
+                }
+                catch( NumberFormatException e ) {
+                    throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + value);
+                }
+            }
+            if( value instanceof Boolean ) {
+                return fromBoolean((Boolean)value);
+            }
+            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + value);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    static private class EnumConverter extends ValueConverter {
+        private Class<? extends Enum> toType;
+        private Map<String,Enum>      values = new HashMap<String,Enum>();
+
+        EnumConverter(@Nonnull Class<? extends Enum> toType) {
+            this.toType = toType;
+            for( Enum e : toType.getEnumConstants() ) {
+                values.put(e.name(), e);
+            }
+        }
+
+        public Object convert(@Nonnull String fieldName, @Nullable Object value) {
+            if( value == null || toType.isInstance(value) ) {
+                return value;
+            }
+            Enum e = values.get(value.toString());
+
+            if( e == null ) {
+                throw new IllegalArgumentException("No enum const " + toType.getName() + "." + value);
+            }
+            return e;
+        }
+    }
+
+    static private class LocaleConverter extends ValueConverter {
+        private Map<String,Locale> locales = new ConcurrentHashMap<String,Locale>();
+
+        public Object convert(@Nonnull String fieldName, @Nullable Object value) {
+            if( value == null || value instanceof Locale ) {
+                return value;
+            }
+            String str = value.toString();
+            Locale locale = locales.get(str);
+
+            if( locale == null ) {
+                String[] parts = str.split("_");
+
+                if( parts.length > 1 ) {
+                    locale = new Locale(parts[0], parts[1]);
+                }
+                else {
+                    locale = new Locale(parts[0]);
+                }
+                locales.put(str, locale);
+            }
+            return locale;
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static private class MeasuredConverter extends ValueConverter {
+        private Constructor<?>    constructor;
+        private ParameterizedType ptype;
+        private Class<?>          toType;
+        private UnitOfMeasure     uom;
+        private Method            valueOf;
+
+        MeasuredConverter(@Nonnull Class<?> toType, @Nonnull ParameterizedType ptype) {
+            this.toType = toType;
+            for( Constructor<?> c : toType.getDeclaredConstructors() ) {
+                Class[] args = c.getParameterTypes();
+
+                if( args != null && args.length == 2 && Number.class.isAssignableFrom(args[0]) && UnitOfMeasure.class.isAssignableFrom(args[1]) ) {
+                    constructor = c;
+                    break;
+                }
+            }
+            for( Method m : toType.getDeclaredMethods() ) {
+                if( Modifier.isStatic(m.getModifiers()) && m.getName().equals("valueOf") ) {
+                    if( m.getParameterTypes().length == 1 && m.getParameterTypes()[0].equals(String.class) ) {
+                        valueOf = m;
+                        break;
+                    }
+                }
+            }
+            this.ptype = ptype;
+            try {
+                uom = (UnitOfMeasure)((Class<?>)ptype.getActualTypeArguments()[0]).newInstance();
+            }
+            catch( Exception e ) {
+                uom = null;
+            }
+        }
+
+        public Object convert(@Nonnull String fieldName, @Nullable Object value) throws Exception {
+            if( value == null ) {
+                return null;
+            }
+            if( uom == null ) {
+                throw new PersistenceException("Unable to determine the unit of measure for " + fieldName + " from " + ptype);
+            }
+            if( value instanceof String ) {
+                try {
+                    value = Double.parseDouble((String)value);
+                }
+                catch( NumberFormatException e ) {
+                    if( valueOf == null ) {
+                        throw new PersistenceException("Don't know how to map " + value + " to " + toType);
+                    }
+                    value = valueOf.invoke(null, value);
+                }
+            }
+            if( value instanceof Number ) {
+                if( constructor == null ) {
+                    throw new PersistenceException("Unable to map with no proper constructor");
+                }
+                return constructor.newInstance(((Number)value).doubleValue(), uom);
+            }
+            if( value instanceof Measured ) {
+                Measured m = (Measured)value;
+
+                // just because we have a measured object doesn't mean we have the unit of measure right
+                if( !m.getUnitOfMeasure().equals(uom) ) {
+                    return m.convertTo(uom);
+                }
+                return m;
+            }
+            if( valueOf == null ) {
+                throw new PersistenceException("Don't know how to map " + value + " to " + toType);
+            }
+            return convert(fieldName, valueOf.invoke(null, value.toString()));
+        }
+    }
+
+    static private class ArrayConverter extends ValueConverter {
+        private Class<?>       componentType;
+        private ValueConverter componentConverter;
+
+        ArrayConverter(@Nonnull Class<?> toType) {
+            componentType = toType.getComponentType();
+        }
+
+        public Object convert(@Nonnull String fieldName, @Nullable Object value) throws Exception {
+            if( value == null ) {
+                return Array.newInstance(componentType, 0);
+            }
+            if( value instanceof JSONArray ) {
+                JSONArray arr = (JSONArray)value;
+                int len = arr.length();
+                Object replacement = Array.newInstance(componentType, len);
+
+                if( componentConverter == null ) {
+                    componentConverter = getInstance(componentType, null);
+                }
+                if( componentType.isPrimitive() ) {
+                    for( int i=0; i<len; i++ ) {
+                        Array.set(replacement, i, componentConverter.convert(fieldName, arr.get(i)));
+                    }
+                }
+                else {
+                    Object[] objects = (Object[])replacement;
+
+                    for( int i=0; i<len; i++ ) {
+                        objects[i] = componentConverter.convert(fieldName, arr.get(i));
+                    }
+                }
+                return replacement;
+            }
+            if( !value.getClass().isArray() ) {
+                throw new PersistenceException("Data store type=" + value.getClass().getName());
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Handles @AutoJSON classes and anything offering a static <code>valueOf(JSONObject)</code> or
+     * <code>valueOf(String)</code>.
+     */
+    static private class ObjectConverter extends ValueConverter {
+        private boolean  autoJSON;
+        private Class<?> toType;
+        private Method   valueOfJSON;
+        private Method   valueOfString;
+
+        ObjectConverter(@Nonnull Class<?> toType) {
+            this.toType = toType;
+            autoJSON = toType.isAnnotationPresent(AutoJSON.class);
+            try {
+                valueOfJSON = toType.getDeclaredMethod("valueOf", JSONObject.class);
+            }
+            catch( NoSuchMethodException ignore ) {
+                // ignore
+            }
+            try {
+                valueOfString = toType.getDeclaredMethod("valueOf", String.class);
+            }
+            catch( NoSuchMethodException ignore ) {
+                // ignore
+            }
+        }
+
+        public Object convert(@Nonnull String fieldName, @Nullable Object value) throws Exception {
+            if( value == null || toType.isInstance(value) ) {
+                return value;
+            }
+            if( autoJSON ) {
+                return fromAutoJSON((JSONObject)value);
+            }
+            if( valueOfJSON != null ) {
+                return valueOfJSON.invoke(null, value);
+            }
+            if( valueOfString != null ) {
+                return valueOfString.invoke(null, value.toString());
+            }
+            throw new PersistenceException("No valueOf() field in " + toType + " for mapping " + fieldName + " with " + value + ": (" + value.getClass().getName() + " vs " + toType.getName() + ")");
+        }
+
+        private @Nonnull Object fromAutoJSON(@Nonnull JSONObject ob) throws Exception {
+            EntityMetadata<?> metadata = EntityMetadata.forClass(toType);
+            Object item = metadata.newInstance();
+
+            for( EntityMetadata.PersistentField field : metadata.getFields() ) {
+                String name = field.getName();
+                Object value = field.getConverter().convert(name, ob.has(name) ? ob.get(name) : null);
+
+                if( value != null || !field.isPrimitive() ) {
+                    field.set(item, value);
+                }
+            }
+            return item;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Calculates the relative size of a cached object for caches bounded by total weight rather than entry count.
+ * Implementations need a public no-argument constructor to be named in configuration.
+ * @param <T> the type of object being weighed
+ */
+public interface Weigher<T> {
+    /**
+     * @param item the object being cached
+     * @return the weight of the object, which must not be negative
+     */
+    public int weigh(@Nonnull T item);
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist.apt;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import org.dasein.persist.EntityDescriptor;
+
+/**
+ * Generates an {@link EntityDescriptor} subclass for every concrete entity class being compiled so that
+ * {@link org.dasein.persist.PersistentCache} can skip reflecting over the entity's annotations at startup.
+ * An entity is any concrete {@link org.dasein.util.CachedItem} that carries a
+ * {@link org.dasein.persist.annotations.Schema} or has an {@link org.dasein.persist.annotations.Index}
+ * anywhere in its hierarchy.
+ * <p>The processor is not registered as a service, so it only runs when asked for, either with
+ * <code>javac -processor org.dasein.persist.apt.EntityProcessor</code> or through the
+ * <code>annotationProcessors</code> setting of the maven-compiler-plugin. Entities compiled without it are
+ * described through reflection as before.</p>
+ */
+@SupportedAnnotationTypes("*")
+public class EntityProcessor extends AbstractProcessor {
+    static private final String CACHED_ITEM = "org.dasein.util.CachedItem";
+    static private final String INDEX       = "org.dasein.persist.annotations.Index";
+    static private final String LOOKUP      = "org.dasein.persist.annotations.Lookup";
+    static private final String SCHEMA      = "org.dasein.persist.annotations.Schema";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+        TypeElement cachedItem = processingEnv.getElementUtils().getTypeElement(CACHED_ITEM);
+
+        if( cachedItem == null ) {
+            return false;
+        }
+        ArrayList<TypeElement> types = new ArrayList<TypeElement>();
+
+        for( TypeElement type : ElementFilter.typesIn(env.getRootElements()) ) {
+            collect(type, types);
+        }
+        for( TypeElement type : types ) {
+            if( type.getModifiers().contains(Modifier.ABSTRACT) || type.getModifiers().contains(Modifier.PRIVATE) ) {
+                continue;
+            }
+            if( !processingEnv.getTypeUtils().isAssignable(type.asType(), processingEnv.getTypeUtils().erasure(cachedItem.asType())) ) {
+                continue;
+            }
+            try {
+                generate(type);
+            }
+            catch( IOException e ) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to generate persistence metadata: " + e.getMessage(), type);
+            }
+        }
+        return false;
+    }
+
+    private void collect(@Nonnull TypeElement type, @Nonnull List<TypeElement> types) {
+        if( type.getKind() == ElementKind.CLASS ) {
+            types.add(type);
+        }
+        for( TypeElement member : ElementFilter.typesIn(type.getEnclosedElements()) ) {
+            if( member.getModifiers().contains(Modifier.STATIC) ) {
+                collect(member, types);
+            }
+        }
+    }
+
+    private void generate(@Nonnull TypeElement type) throws IOException {
+        StringBuilder body = new StringBuilder();
+        StringBuilder fields = new StringBuilder();
+        AnnotationMirror schema = find(type, SCHEMA);
+        String primaryKey = null;
+        boolean indexed = false;
+        int level = 0;
+
+        if( schema != null ) {
+            for( AnnotationValue mapper : list(value(schema, "mappers")) ) {
+                body.append("        mapper(").append(literal((TypeMirror)mapper.getValue())).append(");\n");
+            }
+        }
+        for( TypeElement current = type; current != null && !current.getQualifiedName().contentEquals("java.lang.Object"); current = superclass(current) ) {
+            for( VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements()) ) {
+                String name = field.getSimpleName().toString();
+                AnnotationMirror index = find(field, INDEX);
+
+                if( index != null ) {
+                    String indexType = ((VariableElement)value(index, "type")).getSimpleName().toString();
+                    List<? extends AnnotationValue> multi = list(value(index, "multi"));
+                    TypeMirror identifies = (TypeMirror)value(index, "identifies");
+
+                    indexed = true;
+                    if( indexType.equals("PRIMARY") ) {
+                        if( primaryKey == null ) {
+                            primaryKey = name;
+                        }
+                    }
+                    else if( !multi.isEmpty() ) {
+                        body.append("        index(").append(quote(name)).append(", ").append(value(index, "cascade"));
+                        for( AnnotationValue part : multi ) {
+                            body.append(", ").append(quote((String)part.getValue()));
+                        }
+                        body.append(");\n");
+                    }
+                    else if( indexType.equals("FOREIGN") && !processingEnv.getTypeUtils().erasure(identifies).toString().equals(CACHED_ITEM) ) {
+                        body.append("        key(").append(literal(identifies)).append(", ").append(quote(name)).append(");\n");
+                    }
+                    else {
+                        body.append("        key(").append(quote(name)).append(");\n");
+                    }
+                }
+                if( field.getModifiers().contains(Modifier.STATIC) || field.getModifiers().contains(Modifier.TRANSIENT) ) {
+                    continue;
+                }
+                AnnotationMirror lookup = find(field, LOOKUP);
+
+                fields.append("        field(").append(level).append(", ").append(quote(name)).append(", ");
+                fields.append(lookup == null ? "null" : literal((TypeMirror)value(lookup, "delegate"))).append(");\n");
+            }
+            level++;
+        }
+        if( schema == null && !indexed ) {
+            return;
+        }
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = (pkg.isUnnamed() ? binaryName : binaryName.substring(pkg.getQualifiedName().length() + 1)) + EntityDescriptor.SUFFIX;
+        PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(binaryName + EntityDescriptor.SUFFIX, type).openWriter());
+
+        try {
+            if( !pkg.isUnnamed() ) {
+                out.println("package " + pkg.getQualifiedName() + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Persistence metadata for {@link " + type.getQualifiedName() + "}, generated by " + getClass().getName() + ".");
+            out.println(" */");
+            out.println("public class " + simpleName + " extends " + EntityDescriptor.class.getName() + " {");
+            out.println("    public " + simpleName + "() {");
+            out.print("        super(" + literal(type.asType()) + ", ");
+            if( schema == null ) {
+                out.print("null, null, ");
+            }
+            else {
+                out.print(quote((String)value(schema, "entity")) + ", " + quote((String)value(schema, "value")) + ", ");
+            }
+            out.println((primaryKey == null ? "null" : quote(primaryKey)) + ");");
+            out.print(body);
+            out.print(fields);
+            out.println("    }");
+            out.println("}");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private @Nullable AnnotationMirror find(@Nonnull Element element, @Nonnull String annotation) {
+        for( AnnotationMirror mirror : element.getAnnotationMirrors() ) {
+            if( ((TypeElement)mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation) ) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private @Nonnull List<? extends AnnotationValue> list(@Nullable Object value) {
+        return (value == null ? new ArrayList<AnnotationValue>() : (List<? extends AnnotationValue>)value);
+    }
+
+    private @Nonnull String literal(@Nonnull TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString() + ".class";
+    }
+
+    private @Nonnull String quote(@Nonnull String str) {
+        StringBuilder quoted = new StringBuilder();
+
+        quoted.append('"');
+        for( int i=0; i<str.length(); i++ ) {
+            char c = str.charAt(i);
+
+            if( c == '"' || c == '\\' ) {
+                quoted.append('\\').append(c);
+            }
+            else if( c < ' ' || c > '~' ) {
+                String hex = Integer.toHexString(c);
+
+                quoted.append("\\u");
+                for( int j=hex.length(); j<4; j++ ) {
+                    quoted.append('0');
+                }
+                quoted.append(hex);
+            }
+            else {
+                quoted.append(c);
+            }
+        }
+        quoted.append('"');
+        return quoted.toString();
+    }
+
+    private @Nullable TypeElement superclass(@Nonnull TypeElement type) {
+        TypeMirror parent = type.getSuperclass();
+
+        if( parent.getKind() != TypeKind.DECLARED ) {
+            return null;
+        }
+        return (TypeElement)((DeclaredType)parent).asElement();
+    }
+
+    private @Nullable Object value(@Nonnull AnnotationMirror mirror, @Nonnull String name) {
+        for( Map.Entry<? extends ExecutableElement,? extends AnnotationValue> entry : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet() ) {
+            if( entry.getKey().getSimpleName().contentEquals(name) ) {
+                return entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.dasein.persist.Aggregate;
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.PersistentCache;
+import org.dasein.persist.Transaction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Computes an aggregate function in the database, grouping by zero or more columns. The results come back as a list
+ * of rows under {@link Loader#LISTING}; each row holds the raw group-by values keyed by column name and the raw
+ * aggregate value under {@link PersistentCache#AGGREGATE}.
+ */
+public class Aggregator extends AutomatedSql {
+    // no initializers: init() runs from the superclass constructor, before they would be applied
+    private String       column;
+    private Aggregate    function;
+    private List<String> groups;
+    private String       sql;
+
+    public Aggregator() {
+        super();
+    }
+
+    /**
+     * Sets the aggregate to compute. Called from {@link #init()}.
+     * @param function the aggregate function
+     * @param column the column being aggregated, or <code>null</code> to count rows
+     * @param groupBy the columns on which to group
+     */
+    protected void setAggregate(@Nonnull Aggregate function, @Nullable String column, @Nullable String ... groupBy) {
+        this.function = function;
+        this.column = column;
+        this.groups = (groupBy == null ? Collections.<String>emptyList() : Arrays.asList(groupBy));
+    }
+
+    private @Nonnull List<String> getGroups() {
+        if( groups == null ) {
+            return Collections.emptyList();
+        }
+        return groups;
+    }
+
+    public synchronized String getStatement() throws SQLException {
+        if( sql == null ) {
+            StringBuilder str = new StringBuilder();
+
+            str.append("SELECT ");
+            for( String group : getGroups() ) {
+                str.append(getIdentifier(getTableName(), getSqlName(group)));
+                str.append(", ");
+            }
+            str.append(function == null ? Aggregate.COUNT.name() : function.name());
+            str.append("( ");
+            str.append(column == null ? "*" : getIdentifier(getTableName(), getSqlName(column)));
+            str.append(" ) FROM ");
+            str.append(getIdentifier(getTableName()));
+            if( !getCriteria().isEmpty() ) {
+                Iterator<Criterion> criteria;
+
+                str.append(" WHERE ");
+                criteria = getCriteria().iterator();
+                while( criteria.hasNext() ) {
+                    appendCriterion(str, criteria.next());
+                    if( criteria.hasNext() ) {
+                        str.append(" ");
+                        str.append(getJoin().toString());
+                        str.append(" ");
+                    }
+                }
+            }
+            if( !getGroups().isEmpty() ) {
+                Iterator<String> it = getGroups().iterator();
+
+                str.append(" GROUP BY ");
+                while( it.hasNext() ) {
+                    str.append(getIdentifier(getTableName(), getSqlName(it.next())));
+                    if( it.hasNext() ) {
+                        str.append(", ");
+                    }
+                }
+            }
+            sql = str.toString();
+        }
+        return sql;
+    }
+
+    public void prepare(Map<String,Object> params) throws SQLException {
+        prepareCriteria(params, 1);
+    }
+
+    public Map<String,Object> run(Transaction xaction, Map<String,Object> params) throws SQLException, PersistenceException {
+        ArrayList<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        HashMap<String,Object> map = new HashMap<String,Object>();
+
+        prepare(params);
+        ResultSet results = statement.executeQuery();
+
+        try {
+            while( results.next() ) {
+                HashMap<String,Object> row = new HashMap<String,Object>();
+                int i = 1;
+
+                for( String group : getGroups() ) {
+                    row.put(group, results.getObject(i++));
+                }
+                row.put(PersistentCache.AGGREGATE, results.getObject(i));
+                rows.add(row);
+            }
+        }
+        finally {
+            try { results.close(); }
+            catch( SQLException e ) { }
+        }
+        map.put(Loader.LISTING, rows);
+        return map;
+    }
+}
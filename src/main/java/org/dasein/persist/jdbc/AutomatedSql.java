@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -39,6 +40,7 @@ import org.apache.log4j.Logger;
 import org.dasein.persist.Execution;
 import org.dasein.persist.PersistenceException;
 import org.dasein.persist.PersistentFactory;
+import org.dasein.persist.SearchTerm;
 import org.dasein.persist.Transaction;
 import org.dasein.persist.PersistentCache.EntityJoin;
 import org.dasein.persist.l10n.LocalizationGroup;
@@ -48,7 +50,7 @@ import org.dasein.util.uom.Measured;
 
 public class AutomatedSql extends Execution {
     static public enum Operator {
-        EQUALS, LIKE, NOT_EQUAL, GREATER_THAN, GREATER_THAN_OR_EQUAL_TO, LESS_THAN, LESS_THAN_OR_EQUAL_TO, NULL, NOT_NULL;
+        EQUALS, LIKE, NOT_EQUAL, GREATER_THAN, GREATER_THAN_OR_EQUAL_TO, LESS_THAN, LESS_THAN_OR_EQUAL_TO, NULL, NOT_NULL, IN, OR;
 
         public String toString() {
             switch( this ) {
@@ -61,6 +63,8 @@ public class AutomatedSql extends Execution {
             case LESS_THAN_OR_EQUAL_TO: return "<=";
             case NULL: return "IS";
             case NOT_NULL: return "IS NOT";
+            case IN: return "IN";
+            case OR: return "OR";
             default: return "=";
             }
         }
@@ -71,7 +75,9 @@ public class AutomatedSql extends Execution {
     }
 
     static public class Criterion {
+        public Criterion[]                   alternatives = null;
         public String                        column   = null;
+        public int                           count    = 1;
         public Class<? extends CachedItem>   entity   = null;
 
         public Operator operator = Operator.EQUALS;
@@ -90,6 +96,57 @@ public class AutomatedSql extends Execution {
             this.column = column;
             this.operator = operator;
         }
+
+        /**
+         * Mirrors a search term, including the number of values of an IN term and the alternatives of an OR group.
+         * @param term the search term
+         */
+        public Criterion(SearchTerm term) {
+            this(term.getJoinEntity(), term.getColumn(), term.getOperator());
+            if( operator.equals(Operator.IN) ) {
+                count = term.getValues().size();
+            }
+            else if( operator.equals(Operator.OR) ) {
+                SearchTerm[] terms = term.getAlternatives();
+
+                alternatives = new Criterion[terms.length];
+                for( int i=0; i<terms.length; i++ ) {
+                    alternatives[i] = new Criterion(terms[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The parameter holding the values of the criteria in the order they are bound, as built by
+     * {@link #toValues(SearchTerm...)}. When present, criteria are bound by position rather than by column name,
+     * so several criteria may share a column.
+     */
+    static public final String VALUES = "--values--";
+
+    /**
+     * Flattens the values of the specified terms into the order in which their criteria bind them: one value per
+     * term, each value of an IN term and the values of each alternative of an OR group.
+     * @param terms the search terms
+     * @return the values to supply under {@link #VALUES}
+     */
+    static public List<Object> toValues(SearchTerm ... terms) {
+        ArrayList<Object> values = new ArrayList<Object>();
+
+        if( terms != null ) {
+            for( SearchTerm term : terms ) {
+                if( term.getOperator().equals(Operator.OR) ) {
+                    values.addAll(toValues(term.getAlternatives()));
+                }
+                else if( term.getOperator().equals(Operator.IN) ) {
+                    values.addAll(term.getValues());
+                }
+                else {
+                    values.add(term.getValue());
+                }
+            }
+        }
+        return values;
     }
 
     static public enum TranslationMethod { NONE, STANDARD, CUSTOM };
@@ -106,11 +163,27 @@ public class AutomatedSql extends Execution {
     private Collection<String>       translators       = new ArrayList<String>();
     private HashMap<String,Class<?>> types             = new HashMap<String,Class<?>>();
     private HashMap<String,ParameterizedType> ptypes             = new HashMap<String,ParameterizedType>();
+    private transient String         templateKey       = null;
+    private transient QueryTemplates templates         = null;
     
     public AutomatedSql() {
         init();
     }
 
+    /**
+     * Executions registered with {@link QueryTemplates} go back to their templates instead of the shared stack.
+     */
+    public void close() {
+        if( templates == null ) {
+            super.close();
+        }
+        else {
+            connection = null;
+            data = null;
+            templates.release(templateKey, this);
+        }
+    }
+
     protected void init() {
         // NO-OP
     }
@@ -246,6 +319,90 @@ public class AutomatedSql extends Execution {
         }
     }
 
+    /**
+     * Appends the SQL for a single criterion. IN criteria get one placeholder per value and OR criteria are
+     * parenthesized disjunctions of their alternatives.
+     * @param str the statement being built
+     * @param criterion the criterion to append
+     * @throws SQLException the column identifiers could not be determined
+     */
+    protected void appendCriterion(StringBuilder str, Criterion criterion) throws SQLException {
+        if( criterion.operator.equals(Operator.OR) ) {
+            str.append("(");
+            for( int i=0; i<criterion.alternatives.length; i++ ) {
+                if( i > 0 ) {
+                    str.append(" OR ");
+                }
+                appendCriterion(str, criterion.alternatives[i]);
+            }
+            str.append(")");
+            return;
+        }
+        if( criterion.operator.equals(Operator.IN) && criterion.count < 1 ) {
+            // nothing is in an empty list
+            str.append("1 = 0");
+            return;
+        }
+        if( criterion.entity == null ) {
+            str.append(getIdentifier(getTableName(), getSqlName(criterion.column)));
+        }
+        else {
+            str.append(getIdentifier(getSqlName(criterion.entity), getSqlName(criterion.column)));
+        }
+        str.append(" ");
+        str.append(criterion.operator.toString());
+        if( criterion.operator.equals(Operator.IN) ) {
+            str.append(" (");
+            for( int i=0; i<criterion.count; i++ ) {
+                str.append(i == 0 ? "?" : ", ?");
+            }
+            str.append(")");
+        }
+        else {
+            str.append(" ?");
+        }
+    }
+
+    /**
+     * Binds the values of all criteria, by position if {@link #VALUES} is among the parameters and by column
+     * name otherwise.
+     * @param params the parameters of the execution
+     * @param i the index of the first placeholder to bind
+     * @return the index of the next unbound placeholder
+     * @throws SQLException a value could not be bound
+     */
+    protected int prepareCriteria(Map<String,Object> params, int i) throws SQLException {
+        List<?> values = (List<?>)params.get(VALUES);
+
+        if( values == null ) {
+            for( Criterion criterion : getCriteria() ) {
+                prepare(criterion.column, i++, params.get(criterion.column));
+            }
+            return i;
+        }
+        Iterator<?> it = values.iterator();
+
+        for( Criterion criterion : getCriteria() ) {
+            i = prepareCriterion(criterion, it, i);
+        }
+        return i;
+    }
+
+    private int prepareCriterion(Criterion criterion, Iterator<?> values, int i) throws SQLException {
+        if( criterion.operator.equals(Operator.OR) ) {
+            for( Criterion alternative : criterion.alternatives ) {
+                i = prepareCriterion(alternative, values, i);
+            }
+            return i;
+        }
+        int count = (criterion.operator.equals(Operator.IN) ? criterion.count : 1);
+
+        for( int c=0; c<count; c++ ) {
+            prepare(criterion.column, i++, values.next());
+        }
+        return i;
+    }
+
     public void prepare(String col, int i, Object ob) throws SQLException {
         Class<?> t;
 
@@ -528,6 +685,11 @@ public class AutomatedSql extends Execution {
         translationMethod = TranslationMethod.CUSTOM;
     }
 
+    void setTemplate(QueryTemplates templates, String key) {
+        this.templates = templates;
+        this.templateKey = key;
+    }
+
     protected void setTarget(String cname) {
         try {
             setTarget(Class.forName(cname));
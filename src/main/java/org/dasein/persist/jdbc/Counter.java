@@ -48,12 +48,7 @@ public class Counter extends AutomatedSql {
                 str.append(" WHERE ");
                 criteria = getCriteria().iterator();
                 while( criteria.hasNext() ) {
-                    Criterion criterion = criteria.next();
-                    
-                    str.append(getIdentifier(getTableName(), getSqlName(criterion.column)));
-                    str.append(" ");
-                    str.append(criterion.operator.toString());
-                    str.append(" ?");
+                    appendCriterion(str, criteria.next());
                     if( criteria.hasNext() ) {
                         str.append(" ");
                         str.append(getJoin().toString());
@@ -67,11 +62,7 @@ public class Counter extends AutomatedSql {
     }
     
     public void prepare(Map<String,Object> params) throws SQLException {
-        int i = 1;
-        
-        for( Criterion criterion : getCriteria() ) {
-            prepare(criterion.column, i++, params.get(criterion.column));
-        }
+        prepareCriteria(params, 1);
     }
     
     public Map<String,Object> run(Transaction xaction, Map<String,Object> params) throws SQLException, PersistenceException {
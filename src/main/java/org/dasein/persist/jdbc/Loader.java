@@ -26,8 +26,10 @@ import java.lang.reflect.ParameterizedType;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
@@ -44,10 +46,37 @@ import org.dasein.util.uom.UnitOfMeasure;
 public class Loader extends AutomatedSql {
     static public final Logger logger = Logger.getLogger(Loader.class);
     
-    static public final String LISTING = "listing";
+    static public final String FETCH_SIZE  = "--fetchSize--";
+    static public final String KEYS        = "--keys--";
+    static public final String LIMIT       = "--limit--";
+    static public final String LISTING     = "listing";
+    static public final String OFFSET      = "--offset--";
+    static public final String ROW_ARRAYS  = "--rowArrays--";
+    static public final String ROW_HANDLER = "--rowHandler--";
+    static public final String SEEK        = "--seek--";
+
+    /**
+     * Receives rows as they are read from the result set instead of having them collected into
+     * the {@link #LISTING}. Supply one under {@link #ROW_HANDLER} in the parameters to stream a query.
+     * Untranslated rows are handed over as {@link RowLayout.Row} instances.
+     */
+    static public interface RowHandler {
+        /**
+         * @param row the state of the row just read
+         * @return true to keep reading, false to stop and close the result set
+         * @throws PersistenceException the row could not be handled, which aborts the query
+         */
+        public boolean handle(Map<String,Object> row) throws PersistenceException;
+    }
     
     private boolean                                     descending;
+    private String                                      keyColumn;
+    private int                                         keyCount;
+    private RowLayout                                   layout;
+    private boolean                                     limited;
     private ArrayList<String>                           order;
+    private List<String>                                projection;
+    private boolean                                     seeking;
     private String                                      sql;
     
     public Loader() {
@@ -59,7 +88,7 @@ public class Loader extends AutomatedSql {
         try {
             if( sql == null ) {
                 StringBuilder str = new StringBuilder();
-                Iterator<String> it = getColumns().iterator();
+                Iterator<String> it = getSelectedColumns().iterator();
     
                 str.append("SELECT ");
                 while( it.hasNext() ) {
@@ -72,22 +101,11 @@ public class Loader extends AutomatedSql {
                 }
                 str.append(" FROM ");
                 str.append(getIdentifier(getTableName()));
-                if( !getCriteria().isEmpty() ) {
+                if( !getCriteria().isEmpty() || seeking || keyCount > 0 ) {
                     ArrayList<Class<? extends CachedItem>> joins = new ArrayList<Class<? extends CachedItem>>();
                     Iterator<Criterion> criteria;
 
-                    criteria = getCriteria().iterator();
-                    while( criteria.hasNext() ) {
-                        Criterion c = criteria.next();
-                        
-                        if( c.entity != null && !joins.contains(c.entity) ) {
-                            EntityJoin j = getEntityJoin(c.entity);
-                                
-                            if( j != null ) { 
-                                joins.add(c.entity);
-                            }
-                        }
-                    }
+                    collectJoins(getCriteria(), joins);
                     if( joins.size() > 0 ) {
                         for( Class<? extends CachedItem> c : joins ) {
                             str.append(",");
@@ -109,24 +127,34 @@ public class Loader extends AutomatedSql {
                         str.append(" WHERE ");
                     }
                     criteria = getCriteria().iterator();
+                    if( (seeking || keyCount > 0) && criteria.hasNext() ) {
+                        str.append("(");
+                    }
                     while( criteria.hasNext() ) {
-                        Criterion criterion = criteria.next();
-
-                        if( criterion.entity == null ) {
-                            str.append(getIdentifier(getTableName(), getSqlName(criterion.column)));
-                        }
-                        else {
-                            str.append(getIdentifier(getSqlName(criterion.entity), getSqlName(criterion.column)));
-                        }
-                        str.append(" ");
-                        str.append(criterion.operator.toString());
-                        str.append(" ?");
+                        appendCriterion(str, criteria.next());
                         if( criteria.hasNext() ) {
                             str.append(" ");
                             str.append(getJoin().toString());
                             str.append(" ");
                         }
                     }
+                    if( (seeking || keyCount > 0) && !getCriteria().isEmpty() ) {
+                        str.append(") AND ");
+                    }
+                    if( seeking ) {
+                        appendSeek(str);
+                        if( keyCount > 0 ) {
+                            str.append(" AND ");
+                        }
+                    }
+                    if( keyCount > 0 ) {
+                        str.append(getIdentifier(getTableName(), getSqlName(keyColumn)));
+                        str.append(" IN (");
+                        for( int i=0; i<keyCount; i++ ) {
+                            str.append(i == 0 ? "?" : ", ?");
+                        }
+                        str.append(")");
+                    }
                 }
                 if( order != null && order.size() > 0 ) {
                     str.append(" ORDER BY ");
@@ -135,14 +163,21 @@ public class Loader extends AutomatedSql {
                         String col = it.next();
                         
                         str.append(getIdentifier(getTableName(), getSqlName(col)));
+                        // pages must agree with the keyset predicate, which runs every column the same way
+                        if( limited && descending ) {
+                            str.append(" DESC");
+                        }
                         if( it.hasNext() ) {
                             str.append(", ");
                         }
                     }
-                    if( descending ) {
+                    if( descending && !limited ) {
                         str.append(" DESC ");
                     }
                 }
+                if( limited ) {
+                    str.append(" LIMIT ? OFFSET ?");
+                }
                 sql = str.toString();
             }
             return sql;
@@ -151,7 +186,73 @@ public class Loader extends AutomatedSql {
             logger.debug("exit - getStatement()");
         }
     }
-    
+
+    private void collectJoins(List<Criterion> criteria, List<Class<? extends CachedItem>> joins) {
+        for( Criterion c : criteria ) {
+            if( c.alternatives != null ) {
+                collectJoins(Arrays.asList(c.alternatives), joins);
+            }
+            else if( c.entity != null && !joins.contains(c.entity) ) {
+                EntityJoin j = getEntityJoin(c.entity);
+
+                if( j != null ) {
+                    joins.add(c.entity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the keyset predicate that picks up after the last row of the previous page: for ordering columns
+     * c1..cn, <code>(c1 &gt; ? OR (c1 = ? AND c2 &gt; ?) OR ...)</code>, with the comparisons flipped when descending.
+     * @param str the statement being built
+     */
+    private void appendSeek(StringBuilder str) throws SQLException {
+        String cmp = (descending ? " < ?" : " > ?");
+
+        str.append("(");
+        for( int i=0; i<order.size(); i++ ) {
+            if( i > 0 ) {
+                str.append(" OR (");
+            }
+            for( int j=0; j<i; j++ ) {
+                str.append(getIdentifier(getTableName(), getSqlName(order.get(j))));
+                str.append(" = ? AND ");
+            }
+            str.append(getIdentifier(getTableName(), getSqlName(order.get(i))));
+            str.append(cmp);
+            if( i > 0 ) {
+                str.append(")");
+            }
+        }
+        str.append(")");
+    }
+
+    /**
+     * @return the layout of the rows this loader reads
+     */
+    public synchronized RowLayout getLayout() {
+        if( layout == null ) {
+            layout = new RowLayout(getSelectedColumns(), getTypes(), getParameterizedTypes());
+        }
+        return layout;
+    }
+
+    private List<String> getSelectedColumns() {
+        return (projection == null ? getColumns() : projection);
+    }
+
+    /**
+     * Narrows the columns this loader selects to just the specified fields.
+     * @param fields the fields to select
+     */
+    protected void setProjection(String ... fields) {
+        projection = new ArrayList<String>();
+        for( String field : fields ) {
+            projection.add(field);
+        }
+    }
+
     protected void setOrder(boolean desc, String... cols) {
         if( order == null ) {
             order = new ArrayList<String>();
@@ -164,35 +265,103 @@ public class Loader extends AutomatedSql {
         }
     }
     
+    /**
+     * Restricts this loader to the rows whose value for the specified column is one of a batch of keys. The
+     * loader expects exactly that many key values, as a {@link List}, under {@link #KEYS} among its parameters.
+     * @param column the key column
+     * @param count the number of keys in each batch
+     */
+    protected void setKeys(String column, int count) {
+        keyColumn = column;
+        keyCount = count;
+    }
+
+    /**
+     * Restricts this loader to a single page of results. A limited loader expects {@link #LIMIT} and {@link #OFFSET}
+     * among its parameters; a seeking loader also expects the ordering values of the last row already seen, in
+     * order, under {@link #SEEK}.
+     * @param limited true to add LIMIT and OFFSET clauses
+     * @param seeking true to add a keyset predicate on the ordering columns
+     */
+    protected void setPaging(boolean limited, boolean seeking) {
+        this.limited = limited;
+        this.seeking = seeking;
+    }
+
     public void prepare(Map<String,Object> params) throws SQLException {
-        int i = 1;
-        
-        for( Criterion criterion : getCriteria() ) {
-            prepare(criterion.column, i++, params.get(criterion.column));
+        int i = prepareCriteria(params, 1);
+
+        if( seeking ) {
+            Object[] seek = (Object[])params.get(SEEK);
+
+            for( int c=0; c<order.size(); c++ ) {
+                for( int j=0; j<=c; j++ ) {
+                    prepare(order.get(j), i++, seek[j]);
+                }
+            }
+        }
+        if( keyCount > 0 ) {
+            List<?> keys = (List<?>)params.get(KEYS);
+
+            for( int k=0; k<keyCount; k++ ) {
+                prepare(keyColumn, i++, keys.get(k));
+            }
+        }
+        if( limited ) {
+            Number limit = (Number)params.get(LIMIT);
+            Number offset = (Number)params.get(OFFSET);
+
+            statement.setInt(i++, limit == null ? Integer.MAX_VALUE : limit.intValue());
+            statement.setInt(i, offset == null ? 0 : offset.intValue());
         }
     }
     
     public Map<String,Object> run(Transaction xaction, Map<String,Object> params) throws SQLException, PersistenceException {
         ArrayList<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
         HashMap<String,Object> map = new HashMap<String,Object>();
-        int count = getColumns().size();
+        RowHandler handler = (RowHandler)params.get(ROW_HANDLER);
+        // translations need their own queries, which cannot run while this result set is still open
+        boolean streaming = (handler != null && !isTranslating());
+        // translated rows get extra values merged in, so they must stay mutable maps
+        boolean arrays = (!isTranslating() && (streaming || Boolean.TRUE.equals(params.get(ROW_ARRAYS))));
+        RowLayout layout = getLayout();
+        int count = layout.getColumnCount();
         long startTimestamp = System.currentTimeMillis();
+        long rows = 0L;
         
         map.put(LISTING, list);
         prepare(params);
+        if( params.get(FETCH_SIZE) instanceof Integer ) {
+            statement.setFetchSize((Integer)params.get(FETCH_SIZE));
+        }
         ResultSet results = statement.executeQuery();
         long queryStopTimestamp = System.currentTimeMillis();
 
         try {
             while( results.next() ) {
-                HashMap<String,Object> state = new HashMap<String,Object>();
-                
-                for( int i=1; i<=count; i++) {
-                    Object ob = getValue(getColumns().get(i-1), i, results);
-                    
-                    state.put(getColumns().get(i-1), ob);
+                Map<String,Object> state;
+
+                if( arrays ) {
+                    Object[] values = new Object[count];
+
+                    for( int i=0; i<count; i++ ) {
+                        values[i] = getValue(layout.getType(i), layout.getParameterizedType(i), i+1, results);
+                    }
+                    state = new RowLayout.Row(layout, values);
+                }
+                else {
+                    state = new HashMap<String,Object>(count * 2);
+                    for( int i=0; i<count; i++ ) {
+                        state.put(layout.getColumn(i), getValue(layout.getType(i), layout.getParameterizedType(i), i+1, results));
+                    }
+                }
+                rows++;
+                if( !streaming ) {
+                    list.add(state);
+                }
+                else if( !handler.handle(state) ) {
+                    break;
                 }
-                list.add(state);
             }
         }
         finally {
@@ -204,7 +373,7 @@ public class Loader extends AutomatedSql {
 
         long endTimestamp = System.currentTimeMillis();
 
-        if( (endTimestamp - startTimestamp) > (2000L) ) {
+        if( !streaming && (endTimestamp - startTimestamp) > (2000L) ) {
             String queryTime = Long.toString((queryStopTimestamp - startTimestamp));
             String totalRsTime = Long.toString((endTimestamp - queryStopTimestamp));
 
@@ -212,6 +381,9 @@ public class Loader extends AutomatedSql {
 
             logger.warn("SLOW QUERY: " + sql + " "+ debugTiming);
         }
+        else if( streaming && (queryStopTimestamp - startTimestamp) > (2000L) ) {
+            logger.warn("SLOW QUERY: " + sql + " [query: " + (queryStopTimestamp - startTimestamp) + ",rows: " + rows + "]");
+        }
         if( isTranslating() ) {
             for( Map<String,Object> item : list ) {
                 Object key = item.get((String)params.get("--key--"));
@@ -219,12 +391,23 @@ public class Loader extends AutomatedSql {
                 item.putAll(loadStringTranslations(xaction, getTarget(), key.toString()));
             }            
         }
+        if( handler != null && !streaming ) {
+            for( Map<String,Object> item : list ) {
+                if( !handler.handle(item) ) {
+                    break;
+                }
+            }
+            list.clear();
+        }
         return map;
     }
     
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public Object getValue(String col, int i, ResultSet rs) throws SQLException {
-        Class<?> type = getTypes().get(col);
+        return getValue(getTypes().get(col), getParameterizedTypes().get(col), i, rs);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Object getValue(Class<?> type, ParameterizedType pt, int i, ResultSet rs) throws SQLException {
         Object ob;
 
         if( type.equals(String.class) ) {
@@ -270,7 +453,6 @@ public class Loader extends AutomatedSql {
             }
         }
         else if( Measured.class.isAssignableFrom(type) ) {
-            ParameterizedType pt = getParameterizedTypes().get(col);
             Number num;
             
             try {
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist.jdbc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dasein.persist.SearchTerm;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps idle, already compiled executions for reuse by queries of the same shape. An execution's field layout is
+ * parsed when it is constructed and its SQL is built the first time it runs, so a reused execution only binds
+ * parameters. Executions are not thread-safe: each one is checked out by {@link #acquire(String)} and comes back
+ * here when the transaction that ran it closes.
+ */
+public class QueryTemplates {
+    static public final int DEFAULT_MAX_IDLE      = 16;
+    static public final int DEFAULT_MAX_TEMPLATES = 256;
+
+    /**
+     * Identifies the shape of a query: the kind of execution, the column, operator and join entity of each term
+     * (with the number of values of IN terms and the alternatives of OR groups) and any other settings that
+     * change the generated SQL. Values of the terms are not part of the key.
+     * @param kind the kind of execution
+     * @param terms the search terms, if any
+     * @param settings the other settings that affect the SQL
+     * @return the template key
+     */
+    static public @Nonnull String getKey(@Nonnull String kind, @Nullable SearchTerm[] terms, @Nullable Object ... settings) {
+        StringBuilder key = new StringBuilder();
+
+        key.append(kind);
+        key.append(':');
+        if( terms != null ) {
+            appendTerms(key, terms);
+        }
+        if( settings != null ) {
+            for( Object setting : settings ) {
+                key.append('|');
+                if( setting instanceof Object[] ) {
+                    for( Object ob : (Object[])setting ) {
+                        key.append(ob);
+                        key.append(',');
+                    }
+                }
+                else {
+                    key.append(setting);
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    static private void appendTerms(@Nonnull StringBuilder key, @Nonnull SearchTerm[] terms) {
+        for( SearchTerm term : terms ) {
+            if( term.getJoinEntity() != null ) {
+                key.append(term.getJoinEntity().getName());
+                key.append('.');
+            }
+            key.append(term.getColumn());
+            key.append(' ');
+            key.append(term.getOperator().name());
+            switch( term.getOperator() ) {
+                case IN: key.append('#'); key.append(term.getValues().size()); break;
+                case OR: key.append('('); appendTerms(key, term.getAlternatives()); key.append(')'); break;
+                default: break;
+            }
+            key.append(';');
+        }
+    }
+
+    private final Map<String,List<AutomatedSql>> idle;
+    private final int                            maxIdle;
+
+    public QueryTemplates() {
+        this(DEFAULT_MAX_TEMPLATES, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param maxTemplates the most query shapes for which idle executions are kept, least recently used first out
+     * @param maxIdle the most idle executions kept for any one shape
+     */
+    @SuppressWarnings("serial")
+    public QueryTemplates(final int maxTemplates, int maxIdle) {
+        this.maxIdle = maxIdle;
+        this.idle = new LinkedHashMap<String,List<AutomatedSql>>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,List<AutomatedSql>> eldest) {
+                return (size() > maxTemplates);
+            }
+        };
+    }
+
+    /**
+     * @param key the key identifying the shape of the query
+     * @return an idle execution for the query or <code>null</code> if a new one must be constructed and {@link #register(String, AutomatedSql) registered}
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized @Nullable <E extends AutomatedSql> E acquire(@Nonnull String key) {
+        List<AutomatedSql> executions = idle.get(key);
+
+        if( executions == null || executions.isEmpty() ) {
+            return null;
+        }
+        return (E)executions.remove(executions.size()-1);
+    }
+
+    /**
+     * Ties a newly constructed execution to the specified key so that it returns here once it is closed.
+     * @param key the key identifying the shape of the query
+     * @param execution the execution constructed for the query
+     */
+    public void register(@Nonnull String key, @Nonnull AutomatedSql execution) {
+        execution.setTemplate(this, key);
+    }
+
+    synchronized void release(@Nonnull String key, @Nonnull AutomatedSql execution) {
+        List<AutomatedSql> executions = idle.get(key);
+
+        if( executions == null ) {
+            executions = new ArrayList<AutomatedSql>();
+            idle.put(key, executions);
+        }
+        if( executions.size() < maxIdle && !executions.contains(execution) ) {
+            executions.add(execution);
+        }
+    }
+
+    public synchronized int size() {
+        return idle.size();
+    }
+
+    public @Nonnull String toString() {
+        return "QueryTemplates[templates=" + size() + ",maxIdle=" + maxIdle + "]";
+    }
+}
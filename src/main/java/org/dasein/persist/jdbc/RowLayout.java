@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist.jdbc;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The column layout shared by every row of a query result. Rows read with a layout are plain value arrays
+ * in column order; {@link Row} presents one as a read-only map for code that still wants to look values up
+ * by field name.
+ */
+public class RowLayout {
+    /**
+     * A single row of a result, backed directly by its value array.
+     */
+    static public class Row extends AbstractMap<String,Object> {
+        private RowLayout layout;
+        private Object[]  values;
+
+        public Row(@Nonnull RowLayout layout, @Nonnull Object[] values) {
+            this.layout = layout;
+            this.values = values;
+        }
+
+        public boolean containsKey(Object key) {
+            return (key instanceof String && layout.indexOf((String)key) > -1);
+        }
+
+        public @Nonnull Set<Map.Entry<String,Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String,Object>>() {
+                public @Nonnull Iterator<Map.Entry<String,Object>> iterator() {
+                    return new Iterator<Map.Entry<String,Object>>() {
+                        private int i = 0;
+
+                        public boolean hasNext() {
+                            return (i < values.length);
+                        }
+
+                        public Map.Entry<String,Object> next() {
+                            if( i >= values.length ) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String,Object> entry = new SimpleImmutableEntry<String,Object>(layout.columns[i], values[i]);
+
+                            i++;
+                            return entry;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException("Rows are read only");
+                        }
+                    };
+                }
+
+                public int size() {
+                    return values.length;
+                }
+            };
+        }
+
+        public @Nullable Object get(Object key) {
+            int i = (key instanceof String ? layout.indexOf((String)key) : -1);
+
+            return (i < 0 ? null : values[i]);
+        }
+
+        public @Nonnull RowLayout getLayout() {
+            return layout;
+        }
+
+        /**
+         * @return the values of this row in column order; the array is shared, not copied
+         */
+        public @Nonnull Object[] getValues() {
+            return values;
+        }
+
+        public int size() {
+            return values.length;
+        }
+    }
+
+    private String[]                columns;
+    private HashMap<String,Integer> positions;
+    private ParameterizedType[]     ptypes;
+    private Class<?>[]              types;
+
+    /**
+     * @param columns the names of the columns in the order they are selected
+     * @param types the field type of each column by name
+     * @param ptypes the generic field type of each column by name, where there is one
+     */
+    public RowLayout(@Nonnull List<String> columns, @Nonnull Map<String,Class<?>> types, @Nonnull Map<String,ParameterizedType> ptypes) {
+        int count = columns.size();
+
+        this.columns = columns.toArray(new String[count]);
+        this.types = new Class<?>[count];
+        this.ptypes = new ParameterizedType[count];
+        positions = new HashMap<String,Integer>(count * 2);
+        for( int i=0; i<count; i++ ) {
+            this.types[i] = types.get(this.columns[i]);
+            this.ptypes[i] = ptypes.get(this.columns[i]);
+            positions.put(this.columns[i], i);
+        }
+    }
+
+    public @Nonnull String getColumn(int i) {
+        return columns[i];
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public @Nullable ParameterizedType getParameterizedType(int i) {
+        return ptypes[i];
+    }
+
+    public @Nonnull Class<?> getType(int i) {
+        return types[i];
+    }
+
+    /**
+     * @param column the name of the desired column
+     * @return the position of the column in each row or -1 if it is not part of this layout
+     */
+    public int indexOf(@Nonnull String column) {
+        Integer i = positions.get(column);
+
+        return (i == null ? -1 : i);
+    }
+
+    public @Nonnull String toString() {
+        return "RowLayout" + positions.keySet();
+    }
+}
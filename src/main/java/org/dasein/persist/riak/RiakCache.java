@@ -18,9 +18,13 @@
 
 package org.dasein.persist.riak;
                                
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;                                                
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;                                                
 import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
@@ -30,27 +34,40 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.apache.log4j.Logger;
-import org.dasein.persist.DaseinSequencer;
+import org.dasein.persist.Aggregate;
+import org.dasein.persist.CacheMetrics;
+import org.dasein.persist.EntityMetadata;
+import org.dasein.persist.JSONStreamReader;
 import org.dasein.persist.Key;
 import org.dasein.persist.Memento;
+import org.dasein.persist.Page;
 import org.dasein.persist.PersistenceException;
 import org.dasein.persist.PersistentCache;
 import org.dasein.persist.SearchTerm;
+import org.dasein.persist.SearchTermMatcher;
 import org.dasein.persist.Transaction;
 import org.dasein.persist.jdbc.AutomatedSql.Operator;
 import org.dasein.util.CacheLoader;
@@ -73,29 +90,41 @@ import javax.annotation.Nullable;
 public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
     static private final Logger std  = Logger.getLogger("org.dasein.persist.riak.RiakCache");
     static private final Logger wire = Logger.getLogger("org.dasein.persist.wire.riak");
-    
-    private String  proxyHost;
-    private int     proxyPort;
-    private String  riakHost;
-    private int     riakPort;
-    private boolean useSsl;
+
+    /**
+     * The content type under which values written in the compact binary encoding are stored.
+     */
+    static public final String BINARY_CONTENT_TYPE = "application/x-dasein-binary";
+
+    /**
+     * The most keys fed to a single keyed MapReduce job by {@link #loadAll(List)}.
+     */
+    static public final int MAX_KEY_BATCH = 100;
+
+    /**
+     * The validators Riak sent with the stored copy of a cached object.
+     */
+    static private class Validator {
+        public String etag;
+        public String lastModified;
+        public String vclock;
+    }
+
+    private boolean          binary;
+    private AtomicLong       notModified   = new AtomicLong(0L);
+    private String           proxyHost;
+    private int              proxyPort;
+    private AtomicLong       revalidations = new AtomicLong(0L);
+    private String           riakHost;
+    private int              riakPort;
+    private boolean          useSsl;
+    private Map<T,Validator> validators    = Collections.synchronizedMap(new WeakHashMap<T,Validator>());
     
     public RiakCache() { }
 
     @Override
     protected void init(Class<T> cls, Key ... keys) {
-        Properties props = new Properties();
-
-        try {
-            InputStream is = DaseinSequencer.class.getResourceAsStream(DaseinSequencer.PROPERTIES);
-
-            if( is != null ) {
-                props.load(is);
-            }
-        }
-        catch( Exception e ) {
-            std.error("Problem reading " + DaseinSequencer.PROPERTIES + ": " + e.getMessage(), e);
-        }
+        Properties props = getProperties();
         useSsl = false;
         proxyPort = 0;
         riakPort = Integer.parseInt(props.getProperty("dasein.persist.riak.port", "8089").trim());
@@ -136,6 +165,25 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         if( riakHost == null ) {
             riakHost = props.getProperty("dasein.persist.riak.host", "localhost").trim();
         }
+        // values are written in the compact binary encoding when dasein.persist.riak.binary[.package or class] is true
+        binary = props.getProperty("dasein.persist.riak.binary", "false").trim().equalsIgnoreCase("true");
+        cname = cls.getName();
+        while( cname != null ) {
+            String prop = props.getProperty("dasein.persist.riak.binary." + cname);
+
+            if( prop != null && prop.trim().length() > 0 ) {
+                binary = prop.trim().equalsIgnoreCase("true");
+                break;
+            }
+            int idx = cname.lastIndexOf(".");
+
+            if( idx < 1 ) {
+                cname = null;
+            }
+            else {
+                cname = cname.substring(0, idx);
+            }
+        }
         if( props.containsKey("dasein.persist.riak.proxyHost") ) {
             proxyHost = props.getProperty("dasein.persist.riak.proxyHost");
             if( props.containsKey("dasein.persist.riak.proxyPort") ) {
@@ -196,6 +244,26 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         return client;
     }
     
+    /**
+     * Executes an HTTP call against Riak, counting it and its payload sizes in this cache's metrics.
+     * @param client the client making the call
+     * @param method the call
+     * @return the HTTP status code
+     * @throws IOException an error occurred talking to Riak
+     */
+    private int execute(@Nonnull HttpClient client, @Nonnull HttpMethodBase method) throws IOException {
+        int code = client.executeMethod(method);
+        long written = -1L;
+
+        if( method instanceof EntityEnclosingMethod ) {
+            RequestEntity entity = ((EntityEnclosingMethod)method).getRequestEntity();
+
+            written = (entity == null ? -1L : entity.getContentLength());
+        }
+        getMetrics().backendCall(written, method.getResponseContentLength());
+        return code;
+    }
+
     private String getEndpoint() {
         if( endpoint == null ) {
             StringBuilder str = new StringBuilder();
@@ -210,60 +278,61 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
     }
     
     private String buildMapFunction(boolean forCounting, SearchTerm ... terms) throws PersistenceException {
-        StringBuilder script = new StringBuilder();
+        return buildMapFunction(forCounting, null, terms);
+    }
+
+    private String buildMapFunction(boolean forCounting, @Nullable String[] fields, SearchTerm ... terms) throws PersistenceException {
+        String emit = (forCounting ? "1" : "v");
+
+        if( !forCounting && fields != null ) {
+            StringBuilder projection = new StringBuilder();
+
+            projection.append("{");
+            for( int i=0; i<fields.length; i++ ) {
+                if( i > 0 ) {
+                    projection.append(",");
+                }
+                projection.append(fields[i]);
+                projection.append(":v.");
+                projection.append(fields[i]);
+            }
+            projection.append("}");
+            emit = projection.toString();
+        }
+        return buildMapFunction(emit, terms);
+    }
 
+    /**
+     * Builds a map function that emits the specified JavaScript expression for each object matching the terms.
+     * @param emit the expression to emit, in which <code>v</code> is the object's JSON value
+     * @param terms the search criteria
+     * @return the map function source
+     * @throws PersistenceException one of the terms uses an unsupported operator
+     */
+    private String buildMapFunction(@Nonnull String emit, SearchTerm ... terms) throws PersistenceException {
+        StringBuilder script = new StringBuilder();
 
-        script.append("function(ob) { ");
+        // keyed inputs name objects that may not exist
+        script.append("function(ob) { if( ob.not_found ) { return []; } ");
         if( terms == null || terms.length < 1 ) {
-            if( forCounting ) {
+            if( emit.equals("1") ) {
                 script.append(" return [ 1 ]; }");
             }
-            else {
+            else if( emit.equals("v") ) {
                 script.append(" return [ Riak.mapValuesJson(ob)[0] ]; }");
             }
+            else {
+                script.append(" var v = Riak.mapValuesJson(ob)[0]; return [" + emit + "]; }");
+            }
         }
         else {
-            boolean declare = true;
-
+            script.append(" var v = Riak.mapValuesJson(ob)[0]; ");
             for( SearchTerm t : terms ) {
-                boolean useVal = true;
-                if( declare ) {
-                    script.append(" var v = Riak.mapValuesJson(ob)[0]; ");
-                    declare = false;
-                }
-                script.append("if( v.");
-                script.append(t.getColumn());
-                switch( t.getOperator() ) {
-                    case EQUALS: script.append(" == "); break;
-                    case GREATER_THAN: script.append(" > "); break;
-                    case GREATER_THAN_OR_EQUAL_TO: script.append(" >= "); break;
-                    case LESS_THAN: script.append(" < "); break;
-                    case LESS_THAN_OR_EQUAL_TO: script.append(" <= "); break;
-                    case NOT_EQUAL: script.append(" != "); break;
-                    case LIKE: script.append(".toLowerCase().match(/" + t.getValue().toString().toLowerCase() + "/i)"); useVal = false; break;
-                    case NOT_NULL: script.append(" != null"); useVal = false; break;
-                    case NULL: script.append(" == null"); useVal = false; break;
-                    default: throw new PersistenceException("Unsupported operator: " + t.getOperator());
-                }
-                if( useVal ) {
-                    Object value = toJSONValue(t.getValue());
-
-                    if( value instanceof Long || value instanceof Short || value instanceof Integer || value instanceof Byte ) {
-                        script.append(String.valueOf(((Number)value).longValue()));
-                    }
-                    else if( value instanceof Double || value instanceof Float ) {
-                        script.append(String.valueOf(((Number)value).doubleValue()));
-                    }
-                    else if( value instanceof BigInteger || value instanceof BigDecimal ) {
-                        script.append(value.toString());
-                    }
-                    else {
-                        script.append("'" + value.toString() + "'");
-                    }
-                }
+                script.append("if( ");
+                script.append(buildCondition(t));
                 script.append(" ) { ");
             }
-            script.append(" return [" + (forCounting ? "1" : "v") + "]; ");
+            script.append(" return [" + emit + "]; ");
             for( @SuppressWarnings("unused") SearchTerm t : terms ) {
                 script.append(" } ");
             }
@@ -271,7 +340,201 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         }
         return script.toString();
     }
-    
+
+    /**
+     * @param t a search term
+     * @return a JavaScript expression that is true when the object value <code>v</code> satisfies the term
+     * @throws PersistenceException the term uses an unsupported operator
+     */
+    private @Nonnull String buildCondition(@Nonnull SearchTerm t) throws PersistenceException {
+        StringBuilder script = new StringBuilder();
+        boolean useVal = true;
+
+        if( t.getOperator().equals(Operator.OR) ) {
+            SearchTerm[] alternatives = t.getAlternatives();
+
+            if( alternatives.length < 1 ) {
+                return "false";
+            }
+            script.append("(");
+            for( int i=0; i<alternatives.length; i++ ) {
+                if( i > 0 ) {
+                    script.append(" || ");
+                }
+                script.append(buildCondition(alternatives[i]));
+            }
+            script.append(")");
+            return script.toString();
+        }
+        if( t.getOperator().equals(Operator.IN) ) {
+            script.append("[");
+            for( Object value : t.getValues() ) {
+                if( script.length() > 1 ) {
+                    script.append(",");
+                }
+                script.append(toScriptValue(value));
+            }
+            script.append("].indexOf(v.");
+            script.append(t.getColumn());
+            script.append(") > -1");
+            return script.toString();
+        }
+        script.append("v.");
+        script.append(t.getColumn());
+        switch( t.getOperator() ) {
+            case EQUALS: script.append(" == "); break;
+            case GREATER_THAN: script.append(" > "); break;
+            case GREATER_THAN_OR_EQUAL_TO: script.append(" >= "); break;
+            case LESS_THAN: script.append(" < "); break;
+            case LESS_THAN_OR_EQUAL_TO: script.append(" <= "); break;
+            case NOT_EQUAL: script.append(" != "); break;
+            case LIKE: script.append(".toLowerCase().match(/" + t.getValue().toString().toLowerCase() + "/i)"); useVal = false; break;
+            case NOT_NULL: script.append(" != null"); useVal = false; break;
+            case NULL: script.append(" == null"); useVal = false; break;
+            default: throw new PersistenceException("Unsupported operator: " + t.getOperator());
+        }
+        if( useVal ) {
+            script.append(toScriptValue(t.getValue()));
+        }
+        return script.toString();
+    }
+
+    private @Nonnull String toScriptValue(@Nullable Object ob) {
+        Object value = toJSONValue(ob);
+
+        if( value instanceof Long || value instanceof Short || value instanceof Integer || value instanceof Byte ) {
+            return String.valueOf(((Number)value).longValue());
+        }
+        else if( value instanceof Double || value instanceof Float ) {
+            return String.valueOf(((Number)value).doubleValue());
+        }
+        else if( value instanceof BigInteger || value instanceof BigDecimal ) {
+            return value.toString();
+        }
+        else {
+            return "'" + value + "'";
+        }
+    }
+
+    /**
+     * Builds a MapReduce request that selects the matching objects and, if ordered, sorts them in a reduce phase.
+     * @param terms the search criteria
+     * @param fields the fields to emit for a projection or <code>null</code> to emit whole objects
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return the JSON for the request
+     * @throws PersistenceException the request could not be built for the specified terms
+     */
+    private @Nonnull String buildMapReduce(@Nonnull SearchTerm[] terms, @Nullable String[] fields, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        HashMap<String,Object> request = new HashMap<String,Object>();
+        ArrayList<Map<String,Object>> query = new ArrayList<Map<String,Object>>();
+        HashMap<String,Object> maps = new HashMap<String,Object>();
+        HashMap<String,Object> map = new HashMap<String,Object>();
+
+        terms = setInputs(request, terms);
+        map.put("language", "javascript");
+        map.put("source", buildMapFunction(false, fields, terms));
+        map.put("keep", true);
+        maps.put("map", map);
+        
+        query.add(maps);
+        if( orderFields != null && orderFields.length > 0 ) {
+            HashMap<String,Object> reduces = new HashMap<String,Object>();
+            HashMap<String,Object> reduce = new HashMap<String,Object>();
+
+            reduce.put("language", "javascript");
+            reduce.put("keep", true);
+            reduce.put("source", buildReduceSort(orderDesc != null && orderDesc, orderFields));
+            reduces.put("reduce", reduce);
+        
+            query.add(reduces);
+        }
+        request.put("query", query);
+        return (new JSONObject(request)).toString();
+    }
+
+    /**
+     * Builds a MapReduce request for an aggregate. The map phase emits <code>[group, value]</code> pairs for the
+     * matching objects and the reduce phase folds them into one partial result per group holding a count
+     * (<code>c</code>), a sum (<code>s</code>) and an extreme value (<code>m</code>). Because the reduce phase
+     * accepts its own partial results as input, Riak is free to re-reduce them.
+     * @param terms the search criteria
+     * @param function the aggregate function
+     * @param field the field being aggregated, or <code>null</code> to count objects
+     * @param groupBy the fields on which to group the results
+     * @return the JSON for the request
+     * @throws PersistenceException the request could not be built for the specified terms
+     */
+    private @Nonnull String buildAggregateMapReduce(@Nonnull SearchTerm[] terms, @Nonnull Aggregate function, @Nullable String field, @Nullable String ... groupBy) throws PersistenceException {
+        HashMap<String,Object> request = new HashMap<String,Object>();
+        ArrayList<Map<String,Object>> query = new ArrayList<Map<String,Object>>();
+        HashMap<String,Object> maps = new HashMap<String,Object>();
+        HashMap<String,Object> map = new HashMap<String,Object>();
+        HashMap<String,Object> reduces = new HashMap<String,Object>();
+        HashMap<String,Object> reduce = new HashMap<String,Object>();
+        StringBuilder emit = new StringBuilder();
+
+        terms = setInputs(request, terms);
+        emit.append("[[");
+        if( groupBy != null ) {
+            for( int i=0; i<groupBy.length; i++ ) {
+                if( i > 0 ) {
+                    emit.append(",");
+                }
+                emit.append("v.");
+                emit.append(groupBy[i]);
+            }
+        }
+        emit.append("],");
+        emit.append(field == null ? "1" : ("v." + field));
+        emit.append("]");
+        map.put("language", "javascript");
+        map.put("source", buildMapFunction(emit.toString(), terms));
+        map.put("keep", false);
+        maps.put("map", map);
+        query.add(maps);
+
+        reduce.put("language", "javascript");
+        reduce.put("keep", true);
+        reduce.put("source", buildReduceAggregate(function));
+        reduces.put("reduce", reduce);
+        query.add(reduces);
+
+        request.put("query", query);
+        return (new JSONObject(request)).toString();
+    }
+
+    private String buildReduceAggregate(@Nonnull Aggregate function) {
+        StringBuilder script = new StringBuilder();
+
+        script.append("function(vs) { ");
+        script.append("var acc = {}; var out = []; ");
+        script.append("for( var i=0; i<vs.length; i++ ) { ");
+        script.append("var e = vs[i]; ");
+        script.append("var p = e; ");
+        script.append("if( e instanceof Array ) { ");
+        script.append("var n = (e[1] === undefined || e[1] === null); ");
+        script.append("p = { g: e[0], c: (n ? 0 : 1), s: null, m: null }; ");
+        if( function.isNumeric() ) {
+            script.append("if( !n ) { p.s = Number(e[1]); } ");
+        }
+        else if( function == Aggregate.MIN || function == Aggregate.MAX ) {
+            script.append("if( !n ) { p.m = e[1]; } ");
+        }
+        script.append("} ");
+        script.append("var k = JSON.stringify(p.g); ");
+        script.append("var a = acc[k]; ");
+        script.append("if( a === undefined ) { acc[k] = p; out.push(p); continue; } ");
+        script.append("a.c += p.c; ");
+        script.append("if( p.s !== null ) { a.s = (a.s === null ? p.s : a.s + p.s); } ");
+        script.append("if( p.m !== null && (a.m === null || p.m ");
+        script.append(function == Aggregate.MAX ? ">" : "<");
+        script.append(" a.m) ) { a.m = p.m; } ");
+        script.append("} ");
+        script.append("return out; }");
+        return script.toString();
+    }
+
     private String buildReduceSort(boolean desc, String ... fields) throws PersistenceException {
         StringBuilder script = new StringBuilder();
         
@@ -303,6 +566,11 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
     
     @Override 
     public long count() throws PersistenceException {
+        long cached = getCachedCount();
+
+        if( cached > -1L ) {
+            return cached;
+        }
         JSONObject ob = findKeysInBucketAsJSON();
         
         if( ob.has("keys") ) {
@@ -321,6 +589,19 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         if( terms == null || terms.length < 1 ) {
             return count();
         }
+        long cached = getCachedCount(terms);
+
+        if( cached > -1L ) {
+            return cached;
+        }
+        if( binary ) {
+            long count = 0L;
+
+            for( @SuppressWarnings("unused") T item : findByScan(false, terms, null, null) ) {
+                count++;
+            }
+            return count;
+        }
         if( wire.isDebugEnabled() ) {
             startCall("count");
         }
@@ -328,16 +609,8 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
             String mapFunction = buildMapFunction(true, terms);
             
             HashMap<String,Object> request = new HashMap<String,Object>();
-            HashMap<String,Object> inputs = new HashMap<String,Object>();
 
-            terms = matchKeys(inputs, terms);
-            if( inputs.size() < 1 ) {
-                request.put("inputs", getBucket());
-            }
-            else {
-                inputs.put("bucket", getBucket());
-                request.put("inputs", inputs);
-            }
+            terms = setInputs(request, terms);
 
             ArrayList<Map<String,Object>> query = new ArrayList<Map<String,Object>>();
             HashMap<String,Object> maps = new HashMap<String,Object>();
@@ -384,7 +657,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                         // ignore
                     }
                 }
-                code = client.executeMethod(post);
+                code = execute(client, post);
             }
             catch( HttpException e ) {
                 throw new PersistenceException("HttpException during POST: " + e.getMessage());
@@ -433,6 +706,88 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         }
     }
 
+    /**
+     * Computes the aggregate with a MapReduce job so that objects never leave Riak. Sums and averages are computed
+     * in JavaScript and therefore in double precision. Binary buckets fall back to looping over a full find.
+     * @param terms the search criteria
+     * @param function the aggregate function
+     * @param field the field being aggregated, which may be <code>null</code> only for {@link Aggregate#COUNT}
+     * @param groupBy the fields on which to group the results
+     * @return one read-only row per group, in no particular order
+     * @throws PersistenceException an error occurred talking to Riak or the fields are not valid for the function
+     */
+    @Override
+    public @Nonnull Collection<Map<String,Object>> aggregate(@Nonnull SearchTerm[] terms, @Nonnull Aggregate function, @Nullable String field, @Nullable String ... groupBy) throws PersistenceException {
+        if( binary ) {
+            return super.aggregate(terms, function, field, groupBy);
+        }
+        long start = System.nanoTime();
+
+        startCall("aggregate");
+        try {
+            checkAggregate(function, field, groupBy);
+            String json = buildAggregateMapReduce(terms, function, field, groupBy);
+            PostMethod post = new PostMethod(getEndpoint() + "mapred");
+            ArrayList<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
+            int code;
+
+            if( wire.isDebugEnabled() ) {
+                wire.debug(post.getName() + " " + getEndpoint() + "mapred");
+                wire.debug(json);
+            }
+            try {
+                post.setRequestEntity(new StringRequestEntity(json, "application/json", "utf-8"));
+                code = execute(getClient(), post);
+                if( code != HttpStatus.SC_OK && code != HttpStatus.SC_NOT_FOUND ) {
+                    throw new PersistenceException(code + ": " + post.getResponseBodyAsString());
+                }
+                if( code == HttpStatus.SC_OK ) {
+                    String body = post.getResponseBodyAsString();
+                    JSONArray partials = new JSONArray(body);
+
+                    if( wire.isDebugEnabled() ) {
+                        wire.debug(body);
+                    }
+                    for( int i=0; i<partials.length(); i++ ) {
+                        JSONObject p = partials.getJSONObject(i);
+                        JSONArray g = p.getJSONArray("g");
+                        HashMap<String,Object> raw = new HashMap<String,Object>();
+                        long count = p.getLong("c");
+
+                        for( int j=0; groupBy != null && j<groupBy.length; j++ ) {
+                            raw.put(groupBy[j], (j < g.length() && !g.isNull(j)) ? g.get(j) : null);
+                        }
+                        switch( function ) {
+                            case COUNT: raw.put(AGGREGATE, count); break;
+                            case SUM: raw.put(AGGREGATE, p.isNull("s") ? null : p.get("s")); break;
+                            case AVG: raw.put(AGGREGATE, (p.isNull("s") || count < 1) ? null : p.getDouble("s")/count); break;
+                            default: raw.put(AGGREGATE, p.isNull("m") ? null : p.get("m")); break;
+                        }
+                        results.add(toAggregateRow(function, field, groupBy, raw));
+                    }
+                }
+                if( results.isEmpty() && (groupBy == null || groupBy.length < 1) ) {
+                    results.add(toAggregateRow(function, field, groupBy, new HashMap<String,Object>()));
+                }
+                getMetrics().results(results.size());
+                return results;
+            }
+            catch( HttpException e ) {
+                throw new PersistenceException("HttpException during POST: " + e.getMessage());
+            }
+            catch( IOException e ) {
+                throw new PersistenceException("IOException during POST: " + e.getMessage());
+            }
+            catch( JSONException e ) {
+                throw new PersistenceException(e);
+            }
+        }
+        finally {
+            endCall("aggregate");
+            getMetrics().record(CacheMetrics.Operation.AGGREGATE, start);
+        }
+    }
+
     private class KeyMap {
         public String keyName;
         public Object keyValue;
@@ -552,6 +907,8 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         if( std.isTraceEnabled() ) {
             std.trace("ENTER: " + RiakCache.class.getName() + ".create(" + xaction + "," + state + ")");
         }
+        long start = System.nanoTime();
+
         try {
             if( wire.isDebugEnabled() ) {
                 startCall("create");
@@ -572,8 +929,18 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                 int code;
 
                 try {
-                    String json = toDataStoreJSONFromCurrentState(state);
-                    
+                    ByteArrayOutputStream json = new ByteArrayOutputStream();
+
+                    if( binary ) {
+                        writeDataStoreBinary(state, json);
+                    }
+                    else {
+                        OutputStreamWriter out = new OutputStreamWriter(json, "utf-8");
+
+                        writeDataStoreJSON(state, out);
+                        out.close();
+                    }
+
                     for( Key secondaryKey : getSecondaryKeys() ) {
                         if( secondaryKey.getFields().length > 1 ) {
                             int len = secondaryKey.getFields().length;
@@ -665,7 +1032,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             }
                         }
                     }
-                    post.setRequestEntity(new StringRequestEntity(json, "application/json", "utf-8"));
+                    post.setRequestEntity(new ByteArrayRequestEntity(json.toByteArray(), binary ? BINARY_CONTENT_TYPE : "application/json; charset=utf-8"));
                     if( wire.isDebugEnabled() ) {
                         try {
                             wire.debug(post.getName() + " " + url.toString());
@@ -676,14 +1043,14 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             wire.debug("Content-length: " + post.getRequestEntity().getContentLength());
                             wire.debug("Content-type: " + post.getRequestEntity().getContentType());
                             wire.debug("");
-                            wire.debug(((StringRequestEntity)post.getRequestEntity()).getContent());
+                            wire.debug(binary ? ("[" + json.size() + " bytes binary]") : json.toString("utf-8"));
                             wire.debug("");
                         }
                         catch( Throwable ignore ) {
                             // ignore
                         }
                     }
-                    code = client.executeMethod(post);
+                    code = execute(client, post);
                 }
                 catch( HttpException e ) {
                     std.error("HTTP exception during POST: " + e.getMessage());
@@ -715,6 +1082,8 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                         std.warn("Failed attempt to create Riak object (" + code + "): " + body);
                         throw new PersistenceException(code + ": " + body);
                     }
+                    // Riak writes are visible as soon as they return
+                    created(null, state);
                     return get(keyValue);
                 }
                 catch( IOException e ) {
@@ -727,6 +1096,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
             }
         }
         finally {
+            getMetrics().record(CacheMetrics.Operation.CREATE, start);
             if( std.isTraceEnabled() ) {
                 std.trace("EXIT: " + RiakCache.class.getName() + ".create()");
             }
@@ -735,7 +1105,19 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
 
     @Override
     public @Nonnull Collection<T> find(@Nonnull SearchTerm[] terms, @Nullable final JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String... orderFields) throws PersistenceException {
-        return (Collection<T>)execFind(false, terms, filter, orderDesc, orderFields);
+        long start = System.nanoTime();
+
+        try {
+            Collection<T> cached = getCachedResults(terms, filter, orderDesc, orderFields);
+
+            if( cached != null ) {
+                return cached;
+            }
+            return cacheResults(terms, filter, orderDesc, orderFields, (Collection<T>)execFind(false, terms, filter, orderDesc, orderFields));
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+        }
     }
 
     @Override
@@ -743,121 +1125,292 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         return (ForwardCursor<T>)execFind(true, terms, filter, orderDesc, orderFields);
     }
 
-    private Iterable<T> execFind(boolean cursor, @Nonnull SearchTerm[] terms, @Nullable final JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
-        if( std.isTraceEnabled() ) {
-            std.trace("ENTER: " + RiakCache.class.getName() + ".find(" + Arrays.toString(terms) + "," + filter + "," + orderDesc + "," + Arrays.toString(orderFields) + ")");
+    /**
+     * Runs a MapReduce job whose map phase emits only the specified fields (plus any ordering fields, which the
+     * sort needs), so whole objects never leave Riak and nothing is cached. Values are converted to their field
+     * types but are not passed through schema mappers. Binary buckets fall back to a full find.
+     * @param terms the search criteria
+     * @param fields the fields to read
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return one read-only map of field values per matching object
+     * @throws PersistenceException an error occurred talking to Riak or a field does not exist
+     */
+    @Override
+    public @Nonnull Collection<Map<String,Object>> project(@Nonnull SearchTerm[] terms, @Nonnull String[] fields, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        long start = System.nanoTime();
+
+        try {
+            if( binary ) {
+                return super.project(terms, fields, orderDesc, orderFields);
+            }
+            ArrayList<String> emitted = new ArrayList<String>();
+
+            checkProjection(fields);
+            emitted.addAll(Arrays.asList(fields));
+            if( orderFields != null ) {
+                for( String field : orderFields ) {
+                    if( !emitted.contains(field) ) {
+                        emitted.add(field);
+                    }
+                }
+            }
+            startCall("project");
+            try {
+                String json = buildMapReduce(terms, emitted.toArray(new String[emitted.size()]), orderDesc, orderFields);
+                PostMethod post = new PostMethod(getEndpoint() + "mapred");
+                ArrayList<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
+                JSONStreamReader reader;
+                int code;
+
+                if( wire.isDebugEnabled() ) {
+                    wire.debug(post.getName() + " " + getEndpoint() + "mapred");
+                    wire.debug(json);
+                }
+                try {
+                    post.setRequestEntity(new StringRequestEntity(json, "application/json", "utf-8"));
+                    code = execute(getClient(), post);
+                    if( code == HttpStatus.SC_NOT_FOUND ) {
+                        return results;
+                    }
+                    if( code != HttpStatus.SC_OK ) {
+                        throw new PersistenceException(code + ": " + post.getResponseBodyAsString());
+                    }
+                    reader = new JSONStreamReader(new InputStreamReader(post.getResponseBodyAsStream(), "utf-8"));
+                    reader.beginArray();
+                    if( orderFields != null && orderFields.length > 0 ) {
+                        // sorted results are wrapped by the reduce phase
+                        reader.beginArray();
+                    }
+                    while( reader.hasNext() ) {
+                        Object value = reader.nextValue();
+                        HashMap<String,Object> row = new HashMap<String,Object>();
+
+                        if( !(value instanceof JSONObject) ) {
+                            continue;
+                        }
+                        JSONObject ob = (JSONObject)value;
+
+                        for( String field : emitted ) {
+                            EntityMetadata.PersistentField f = getMetadata().getField(field);
+                            Object v = (ob.has(field) && !ob.isNull(field) ? ob.get(field) : null);
+
+                            row.put(field, f.getConverter().convert(field, v));
+                        }
+                        results.add(Collections.unmodifiableMap(row));
+                    }
+                    getMetrics().results(results.size());
+                    return results;
+                }
+                catch( HttpException e ) {
+                    throw new PersistenceException("HttpException during POST: " + e.getMessage());
+                }
+                catch( IOException e ) {
+                    throw new PersistenceException("IOException during POST: " + e.getMessage());
+                }
+                catch( PersistenceException e ) {
+                    throw e;
+                }
+                catch( Exception e ) {
+                    throw new PersistenceException(e);
+                }
+            }
+            finally {
+                endCall("project");
+            }
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
         }
+    }
+
+    /**
+     * Pages through secondary index matches with Riak's <code>max_results</code> and <code>continuation</code>
+     * parameters (Riak 1.4 and later). Searches that cannot be answered from an index, and ordered searches,
+     * fall back to paging the full result in memory.
+     * @param terms the search criteria
+     * @param limit the maximum number of objects in the page, or 0 for no limit
+     * @param continuation the continuation token from the previous page or <code>null</code> for the first page
+     * @param orderDesc true if the results should be in descending order
+     * @param orderFields the fields on which the results are ordered
+     * @return the page of results
+     * @throws PersistenceException an error occurred talking to Riak or the continuation is not valid
+     */
+    @Override
+    public @Nonnull Page<T> findPage(@Nonnull SearchTerm[] terms, int limit, @Nullable String continuation, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        long start = System.nanoTime();
+
         try {
-            if( (orderFields == null || orderFields.length < 1) && (terms.length == 1 || (terms.length == 2 && terms[1].getValue() != null && terms[0].getValue() != null && Number.class.isAssignableFrom(terms[0].getValue().getClass()) && (terms[1].getValue() instanceof Boolean))) ) {
-                boolean equals = true;
-                
-                for( SearchTerm t : terms ) {
-                    if( !t.getOperator().equals(Operator.EQUALS) ) {
-                        equals = false;
-                        break;
+            String index = (limit > 0 ? getIndexEndpoint(terms, orderFields) : null);
+
+            if( index == null || (continuation != null && !Page.isNative(continuation)) ) {
+                return super.findPage(terms, limit, continuation, orderDesc, orderFields);
+            }
+            startCall("findPage");
+            try {
+                StringBuilder url = new StringBuilder();
+                GetMethod get;
+                String body;
+                int code;
+
+                url.append(index);
+                url.append("?max_results=");
+                url.append(limit);
+                if( continuation != null ) {
+                    url.append("&continuation=");
+                    url.append(URLEncoder.encode(Page.toNative(continuation), "utf-8"));
+                }
+                get = new GetMethod(url.toString());
+                if( wire.isDebugEnabled() ) {
+                    wire.debug(get.getName() + " " + url);
+                }
+                try {
+                    code = execute(getClient(), get);
+                    body = get.getResponseBodyAsString();
+                }
+                catch( HttpException e ) {
+                    throw new PersistenceException("HttpException during GET: " + e.getMessage());
+                }
+                catch( IOException e ) {
+                    throw new PersistenceException("IOException during GET: " + e.getMessage());
+                }
+                if( wire.isDebugEnabled() ) {
+                    wire.debug(code + " " + body);
+                }
+                if( code == HttpStatus.SC_NOT_FOUND ) {
+                    return new Page<T>(new ArrayList<T>(), null);
+                }
+                if( code != HttpStatus.SC_OK ) {
+                    throw new PersistenceException(code + ": " + body);
+                }
+                JSONObject ob = new JSONObject(body);
+                JSONArray keys = (ob.has("keys") ? ob.getJSONArray("keys") : new JSONArray());
+                ArrayList<Object> values = new ArrayList<Object>();
+                ArrayList<T> items = new ArrayList<T>();
+
+                for( int i=0; i<keys.length(); i++ ) {
+                    values.add(keys.getString(i));
+                }
+                for( T item : getAll(values) ) {
+                    if( item != null ) {
+                        items.add(item);
                     }
                 }
-                if( equals ) {
-                    Key key = matchKeys(terms);
+                return new Page<T>(items, (ob.has("continuation") && !ob.isNull("continuation") ? Page.forNative(ob.getString("continuation")) : null));
+            }
+            catch( UnsupportedEncodingException e ) {
+                throw new PersistenceException(e);
+            }
+            catch( JSONException e ) {
+                throw new PersistenceException(e);
+            }
+            finally {
+                endCall("findPage");
+            }
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.FIND, start);
+        }
+    }
+
+    /**
+     * Works out the secondary index query that answers a search, if there is one.
+     * @param terms the search criteria
+     * @param orderFields the fields on which the results are to be ordered
+     * @return the URL of the 2i query or <code>null</code> if the search cannot be answered from an index
+     * @throws PersistenceException the index value could not be encoded
+     */
+    private @Nullable String getIndexEndpoint(@Nonnull SearchTerm[] terms, @Nullable String ... orderFields) throws PersistenceException {
+        if( (orderFields == null || orderFields.length < 1) && (terms.length == 1 || (terms.length == 2 && terms[1].getValue() != null && terms[0].getValue() != null && Number.class.isAssignableFrom(terms[0].getValue().getClass()) && (terms[1].getValue() instanceof Boolean))) ) {
+            boolean equals = true;
+            
+            for( SearchTerm t : terms ) {
+                if( !t.getOperator().equals(Operator.EQUALS) ) {
+                    equals = false;
+                    break;
+                }
+            }
+            if( equals ) {
+                Key key = matchKeys(terms);
+                
+                if( key != null ) {
+                    StringBuilder url = new StringBuilder();
+                    String value;
                     
-                    if( key != null ) {
-                        StringBuilder url = new StringBuilder();
-                        String value;
-                        
-                        url.append(getEndpoint());
-                        url.append("buckets/");
-                        url.append(getBucket());
-                        url.append("/index/");
-                        for( int i=0; i<key.getFields().length; i++ ) {
-                            url.append(key.getFields()[i].toLowerCase());
-                            if( i < key.getFields().length-1 ) {
-                                url.append("-");
-                            }
+                    url.append(getEndpoint());
+                    url.append("buckets/");
+                    url.append(getBucket());
+                    url.append("/index/");
+                    for( int i=0; i<key.getFields().length; i++ ) {
+                        url.append(key.getFields()[i].toLowerCase());
+                        if( i < key.getFields().length-1 ) {
+                            url.append("-");
                         }
-                        url.append("_");
-                        try {
-                            if( key.getFields().length > 1 ) {
-                                StringBuilder v = new StringBuilder();
+                    }
+                    url.append("_");
+                    try {
+                        if( key.getFields().length > 1 ) {
+                            StringBuilder v = new StringBuilder();
+                            
+                            url.append("bin");
+                            for( int i=0; i<key.getFields().length; i++ ) {
+                                String f = key.getFields()[i];
                                 
-                                url.append("bin");
-                                for( int i=0; i<key.getFields().length; i++ ) {
-                                    String f = key.getFields()[i];
-                                    
-                                    for( SearchTerm t : terms ) {
-                                        if( t.getColumn().equalsIgnoreCase(f) ) {
-                                            Object ob = t.getValue();
-
-                                            if( ob == null ) {
-                                                ob = "=*=";
-                                            }
-                                            v.append(ob.toString());
-                                            if( i < key.getFields().length-1 ) {
-                                                v.append("\n");
-                                            }
-                                            break;
+                                for( SearchTerm t : terms ) {
+                                    if( t.getColumn().equalsIgnoreCase(f) ) {
+                                        Object ob = t.getValue();
+
+                                        if( ob == null ) {
+                                            ob = "=*=";
                                         }
+                                        v.append(ob.toString());
+                                        if( i < key.getFields().length-1 ) {
+                                            v.append("\n");
+                                        }
+                                        break;
                                     }
                                 }
-                                value = Base64.encodeBase64String(v.toString().getBytes("utf-8"));
-                            }
-                            else if( terms[0].getValue() == null || (!(terms[0].getValue() instanceof Long) && !(terms[0].getValue() instanceof Integer) && !(terms[0].getValue() instanceof Short)) ) {
-                                url.append("bin");
-                                value = Base64.encodeBase64String((terms[0].getValue() == null ? "" : terms[0].getValue().toString()).getBytes("utf-8"));
-                            }
-                            else {
-                                url.append("int");
-                                value = String.valueOf(((Number)terms[0].getValue()).longValue());
                             }
+                            value = Base64.encodeBase64String(v.toString().getBytes("utf-8"));
                         }
-                        catch( UnsupportedEncodingException e ) {
-                            throw new PersistenceException(e);
-                        }
-                        url.append("/");
-                        url.append(value);
-                        if( filter == null ) {
-                            return list(cursor, url.toString(), null);
+                        else if( terms[0].getValue() == null || (!(terms[0].getValue() instanceof Long) && !(terms[0].getValue() instanceof Integer) && !(terms[0].getValue() instanceof Short)) ) {
+                            url.append("bin");
+                            value = Base64.encodeBase64String((terms[0].getValue() == null ? "" : terms[0].getValue().toString()).getBytes("utf-8"));
                         }
                         else {
-                            return list(cursor, url.toString(), filter);
+                            url.append("int");
+                            value = String.valueOf(((Number)terms[0].getValue()).longValue());
                         }
                     }
+                    catch( UnsupportedEncodingException e ) {
+                        throw new PersistenceException(e);
+                    }
+                    url.append("/");
+                    url.append(value);
+                    return url.toString();
                 }
             }
+        }
+        return null;
+    }
+
+    private Iterable<T> execFind(boolean cursor, @Nonnull SearchTerm[] terms, @Nullable final JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        if( std.isTraceEnabled() ) {
+            std.trace("ENTER: " + RiakCache.class.getName() + ".find(" + Arrays.toString(terms) + "," + filter + "," + orderDesc + "," + Arrays.toString(orderFields) + ")");
+        }
+        try {
+            String index = getIndexEndpoint(terms, orderFields);
+
+            if( index != null ) {
+                return list(cursor, index, filter);
+            }
+            if( binary ) {
+                // binary values are opaque to the JavaScript map phase
+                return findByScan(cursor, terms, filter, orderDesc, orderFields);
+            }
             startCall("findWithMapReduce");
             try {
-                HashMap<String,Object> request = new HashMap<String,Object>();
-                ArrayList<Map<String,Object>> query = new ArrayList<Map<String,Object>>();
-                HashMap<String,Object> maps = new HashMap<String,Object>();
-                HashMap<String,Object> map = new HashMap<String,Object>();
-                HashMap<String,Object> inputs = new HashMap<String, Object>();
-
-                terms = matchKeys(inputs, terms);
-                if( inputs.size() < 1 ) {
-                    request.put("inputs", getBucket());
-                }
-                else {
-                    inputs.put("bucket", getBucket());
-                    request.put("inputs", inputs);
-                }
-                map.put("language", "javascript");
-                map.put("source", buildMapFunction(false, terms));
-                map.put("keep", true);
-                maps.put("map", map);
-                
-                query.add(maps);
-                if( orderFields != null && orderFields.length > 0 ) {
-                    HashMap<String,Object> reduces = new HashMap<String,Object>();
-                    HashMap<String,Object> reduce = new HashMap<String,Object>();
-
-                    reduce.put("language", "javascript");
-                    reduce.put("keep", true);
-                    reduce.put("source", buildReduceSort(orderDesc != null && orderDesc, orderFields));
-                    reduces.put("reduce", reduce);
-                
-                    query.add(reduces);
-                }
-                request.put("query", query);
-                String json = (new JSONObject(request)).toString();
+                String json = buildMapReduce(terms, null, orderDesc, orderFields);
 
                 HttpClient client = getClient();
                 PostMethod post = new PostMethod(getEndpoint() + "mapred");
@@ -882,7 +1435,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             // ignore
                         }
                     }
-                    code = client.executeMethod(post);
+                    code = execute(client, post);
                 }
                 catch( HttpException e ) {
                     throw new PersistenceException("HttpException during POST: " + e.getMessage());
@@ -891,31 +1444,47 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                     throw new PersistenceException("IOException during POST: " + e.getMessage());
                 }
                 try {
-                    String body = post.getResponseBodyAsString();
+                    final ArrayList<T> results = new ArrayList<T>();
+                    JSONStreamReader reader;
 
-                    try {
-                        if( wire.isDebugEnabled() ) {
-                            wire.debug("----------------------------------------");
-                            wire.debug("");
-                            wire.debug(post.getStatusLine().getStatusCode() + " " + post.getStatusLine().getReasonPhrase());
-                            wire.debug("");
-                            if( body != null ) {
-                                wire.debug(body);
+                    if( code == HttpStatus.SC_OK && !wire.isDebugEnabled() ) {
+                        reader = new JSONStreamReader(new InputStreamReader(post.getResponseBodyAsStream(), "utf-8"));
+                    }
+                    else {
+                        String body = post.getResponseBodyAsString();
+
+                        try {
+                            if( wire.isDebugEnabled() ) {
+                                wire.debug("----------------------------------------");
+                                wire.debug("");
+                                wire.debug(post.getStatusLine().getStatusCode() + " " + post.getStatusLine().getReasonPhrase());
                                 wire.debug("");
+                                if( body != null ) {
+                                    wire.debug(body);
+                                    wire.debug("");
+                                }
                             }
                         }
-                    }
-                    catch( Throwable ignore ) {
-                        // ignore
-                    }
-                    if( code != HttpStatus.SC_OK ) {
-                        if( code == HttpStatus.SC_NOT_FOUND ) {
-                            return Collections.emptyList();
+                        catch( Throwable ignore ) {
+                            // ignore
+                        }
+                        if( code != HttpStatus.SC_OK ) {
+                            if( code == HttpStatus.SC_NOT_FOUND ) {
+                                return Collections.emptyList();
+                            }
+                            throw new PersistenceException(code + ": " + body);
                         }
-                        throw new PersistenceException(code + ": " + body);
+                        reader = new JSONStreamReader(new StringReader(body));
+                    }
+                    reader.beginArray();
+                    if( orderFields != null && orderFields.length > 0 ) {
+                        // sorted results are wrapped by the reduce phase
+                        reader.beginArray();
+                    }
+                    while( reader.hasNext() ) {
+                        results.add(toTargetFromJSON(reader));
                     }
-                    final JSONArray results = ((orderFields != null && orderFields.length > 0) ? (new JSONArray(body)).getJSONArray(0) : new JSONArray(body));
-                    final int len = results.length();
+                    final int len = results.size();
 
                     if( cursor ) {
                         CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".find", null) {
@@ -923,26 +1492,22 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             public void populate(ForwardCursor<T> cursor) {
                                 try {
                                     for( int i=0; i<len; i++ ) {
-                                        JSONObject ob = results.getJSONObject(i);
+                                        T item = results.get(i);
+                                        Object keyValue = getValue(item, getPrimaryKeyField());
 
                                         if( std.isDebugEnabled() ) {
-                                            std.debug("find - checking cache for " + ob.get(getPrimaryKeyField()));
+                                            std.debug("find - checking cache for " + keyValue);
                                         }
-                                        T item = getCache().find(getPrimaryKeyField(), ob.get(getPrimaryKeyField()));
+                                        T cached = getCache().find(getPrimaryKeyField(), keyValue);
 
-                                        if( item == null ) {
+                                        if( cached == null ) {
                                             if( std.isDebugEnabled() ) {
-                                                std.debug("find - cache miss, loading " + ob.get(getPrimaryKeyField()));
-                                            }
-                                            String version = "0";
-
-                                            if( ob.has("SCHEMA_VERSION") ) {
-                                                version = ob.getString("SCHEMA_VERSION");
-                                            }
-                                            item = toTargetFromJSON(version, ob);
-                                            if( item != null ) {
-                                                getCache().cache(item);
+                                                std.debug("find - cache miss, caching " + keyValue);
                                             }
+                                            getCache().cache(item);
+                                        }
+                                        else {
+                                            item = cached;
                                         }
                                         if( item != null ) {
                                             try {
@@ -973,26 +1538,22 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             @Override
                             public void populate(@Nonnull Jiterator<T> iterator) throws Exception {
                                 for( int i=0; i<len; i++ ) {
-                                    JSONObject ob = results.getJSONObject(i);
+                                    T item = results.get(i);
+                                    Object keyValue = getValue(item, getPrimaryKeyField());
 
                                     if( std.isDebugEnabled() ) {
-                                        std.debug("find - checking cache for " + ob.get(getPrimaryKeyField()));
+                                        std.debug("find - checking cache for " + keyValue);
                                     }
-                                    T item = getCache().find(getPrimaryKeyField(), ob.get(getPrimaryKeyField()));
+                                    T cached = getCache().find(getPrimaryKeyField(), keyValue);
 
-                                    if( item == null ) {
+                                    if( cached == null ) {
                                         if( std.isDebugEnabled() ) {
-                                            std.debug("find - cache miss, loading " + ob.get(getPrimaryKeyField()));
-                                        }
-                                        String version = "0";
-
-                                        if( ob.has("SCHEMA_VERSION") ) {
-                                            version = ob.getString("SCHEMA_VERSION");
-                                        }
-                                        item = toTargetFromJSON(version, ob);
-                                        if( item != null ) {
-                                            getCache().cache(item);
+                                            std.debug("find - cache miss, caching " + keyValue);
                                         }
+                                        getCache().cache(item);
+                                    }
+                                    else {
+                                        item = cached;
                                     }
                                     if( item != null ) {
                                         try {
@@ -1030,6 +1591,88 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         }
     }
 
+    /**
+     * Answers a query in this JVM rather than through MapReduce. Candidates are narrowed with the same secondary
+     * index matching MapReduce uses for its inputs, loaded through {@link #get(Object)} and then matched and
+     * sorted with the semantics of the generated JavaScript map and reduce functions.
+     */
+    private @Nonnull Iterable<T> findByScan(boolean cursor, @Nonnull SearchTerm[] terms, @Nullable final JiteratorFilter<T> filter, @Nullable Boolean orderDesc, @Nullable String ... orderFields) throws PersistenceException {
+        HashMap<String,Object> inputs = new HashMap<String,Object>();
+        SearchTerm[] remaining = matchKeys(inputs, terms);
+        StringBuilder url = new StringBuilder();
+
+        url.append(getEndpoint());
+        url.append("buckets/");
+        url.append(getBucket());
+        url.append("/index/");
+        if( inputs.size() < 1 ) {
+            url.append("$bucket/");
+            url.append(getBucket());
+            remaining = terms;
+        }
+        else {
+            url.append(inputs.get("index"));
+            url.append("/");
+            if( inputs.containsKey("key") ) {
+                url.append(inputs.get("key"));
+            }
+            else {
+                url.append(inputs.get("start"));
+                url.append("/");
+                url.append(inputs.get("end"));
+            }
+        }
+        final SearchTermMatcher conditions = new SearchTermMatcher(remaining == null ? new SearchTerm[0] : remaining);
+        JiteratorFilter<T> matcher = new JiteratorFilter<T>() {
+            public boolean filter(T item) throws Throwable {
+                return (conditions.matches(RiakCache.this, item) && (filter == null || filter.filter(item)));
+            }
+        };
+
+        if( orderFields == null || orderFields.length < 1 ) {
+            return list(cursor, url.toString(), matcher);
+        }
+        final ArrayList<T> results = new ArrayList<T>();
+        final String[] fields = orderFields;
+        final boolean desc = (orderDesc != null && orderDesc);
+
+        for( T item : list(false, url.toString(), matcher) ) {
+            results.add(item);
+        }
+        Collections.sort(results, new Comparator<T>() {
+            public int compare(T left, T right) {
+                for( String field : fields ) {
+                    Object l = toJSONValue(getValue(left, field));
+                    Object r = toJSONValue(getValue(right, field));
+
+                    if( l != null && r != null ) {
+                        int c = SearchTermMatcher.compare(l, r);
+
+                        if( c != 0 ) {
+                            return (desc ? -c : c);
+                        }
+                    }
+                }
+                return 0;
+            }
+        });
+        if( !cursor ) {
+            return results;
+        }
+        CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".find", null) {
+            @Override
+            public void populate(ForwardCursor<T> cursor) {
+                for( T item : results ) {
+                    cursor.push(item);
+                }
+            }
+        };
+
+        populator.populate();
+        populator.setSize(results.size());
+        return populator.getCursor();
+    }
+
     /*
     private JSONString findKeysInBucket() throws PersistenceException {
         return new JSONString() {
@@ -1151,7 +1794,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                 }
             }
             try {
-                code = client.executeMethod(get);
+                code = execute(client, get);
             }
             catch( HttpException e ) {
                 throw new PersistenceException("HttpException during GET: " + e.getMessage());
@@ -1200,108 +1843,198 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         } 
     }
     
-    @Override
-    public T get(Object keyValue) throws PersistenceException {
-        if( keyValue == null ) {
-            return null;
-        }
+    /**
+     * Creates the loader that reads a single object from Riak. If the object is still cached and its ETag or
+     * Last-Modified time is known, the GET is conditional and a 304 response hands back the cached object without
+     * transferring or decoding it again.
+     * @param keyValue the primary key value of the object
+     * @return a loader for the object
+     */
+    private @Nonnull CacheLoader<T> newObjectLoader(@Nonnull final Object keyValue) {
         final String primaryKey = keyValue.toString();
-        
-        try {
-            CacheLoader<T> loader;
-            
-            loader = new CacheLoader<T>() {
-                public T load(Object ... args ) {
-                    startCall("loadObject");
-                    try {
-                        if( std.isDebugEnabled() ) {
-                            std.debug("get - cache miss, loading " + primaryKey);
+
+        return new CacheLoader<T>() {
+            public T load(Object ... args ) {
+                startCall("loadObject");
+                try {
+                    if( std.isDebugEnabled() ) {
+                        std.debug("get - cache miss, loading " + primaryKey);
+                    }
+                    StringBuilder url = new StringBuilder();
+                    
+                    url.append(getEndpoint());
+                    url.append("buckets/");
+                    url.append(getBucket());
+                    url.append("/keys/");
+                    url.append(primaryKey);
+
+                    HttpClient client = getClient();
+                    GetMethod get = new GetMethod(url.toString());
+                    T current = getCache().find(getPrimaryKeyField(), keyValue);
+                    Validator validator = (current == null ? null : validators.get(current));
+                    int code;
+                    
+                    if( validator != null ) {
+                        if( validator.etag != null ) {
+                            get.setRequestHeader("If-None-Match", validator.etag);
                         }
-                        StringBuilder url = new StringBuilder();
-                        
-                        url.append(getEndpoint());
-                        url.append("buckets/");
-                        url.append(getBucket());
-                        url.append("/keys/");
-                        url.append(primaryKey);
-
-                        HttpClient client = getClient();
-                        GetMethod get = new GetMethod(url.toString());
-                        int code;
-                        
-                        try {
-                            if( wire.isDebugEnabled() ) {
-                                try {
-                                    wire.debug(get.getName() + " " + url.toString());
-                                    wire.debug("");
-                                    for( Header h : get.getRequestHeaders() ) {
-                                        wire.debug(h.getName() + ": " + h.getValue());
-                                    }
-                                    wire.debug("");
-                                }
-                                catch( Throwable ignore ) {
-                                    // ignore
+                        if( validator.lastModified != null ) {
+                            get.setRequestHeader("If-Modified-Since", validator.lastModified);
+                        }
+                        revalidations.incrementAndGet();
+                    }
+                    try {
+                        if( wire.isDebugEnabled() ) {
+                            try {
+                                wire.debug(get.getName() + " " + url.toString());
+                                wire.debug("");
+                                for( Header h : get.getRequestHeaders() ) {
+                                    wire.debug(h.getName() + ": " + h.getValue());
                                 }
+                                wire.debug("");
+                            }
+                            catch( Throwable ignore ) {
+                                // ignore
                             }
-                            code = client.executeMethod(get);
-                        }
-                        catch( HttpException e ) {
-                            throw new RuntimeException("HttpException during GET: " + e.getMessage());
                         }
-                        catch( IOException e ) {
-                            throw new RuntimeException("IOException during GET: " + e.getMessage());
+                        code = execute(client, get);
+                    }
+                    catch( HttpException e ) {
+                        throw new RuntimeException("HttpException during GET: " + e.getMessage());
+                    }
+                    catch( IOException e ) {
+                        throw new RuntimeException("IOException during GET: " + e.getMessage());
+                    }
+                    if( code == HttpStatus.SC_NOT_MODIFIED && current != null ) {
+                        if( wire.isDebugEnabled() ) {
+                            wire.debug("----------------------------------------");
+                            wire.debug("");
+                            wire.debug(code + " " + get.getStatusLine().getReasonPhrase());
+                            wire.debug("");
                         }
-                        try {
-                            final String body = get.getResponseBodyAsString();
-                            
+                        notModified.incrementAndGet();
+                        return current;
+                    }
+                    try {
+                        if( code == HttpStatus.SC_OK && isBinary(get) ) {
                             if( wire.isDebugEnabled() ) {
-                                try {
-                                    wire.debug("----------------------------------------");
-                                    wire.debug("");
-                                    wire.debug(get.getStatusLine().getStatusCode() + " " + get.getStatusLine().getReasonPhrase());
-                                    wire.debug("");
-                                    if( body != null ) {
-                                        wire.debug(body);
-                                        wire.debug("");
-                                    }
-                                }
-                                catch( Throwable ignore ) {
-                                    // ignore
-                                }
+                                wire.debug("----------------------------------------");
+                                wire.debug("");
+                                wire.debug(get.getStatusLine().getStatusCode() + " " + get.getStatusLine().getReasonPhrase());
+                                wire.debug("");
+                                wire.debug("[binary content]");
+                                wire.debug("");
                             }
-                            if( code != HttpStatus.SC_OK ) {
-                                if( code == HttpStatus.SC_NOT_FOUND ) {
-                                    return null;
+                            return remember(toTargetFromBinary(get.getResponseBodyAsStream()), get);
+                        }
+                        if( code == HttpStatus.SC_OK && !wire.isDebugEnabled() ) {
+                            return remember(toTargetFromJSON(get.getResponseBodyAsStream()), get);
+                        }
+                        final String body = get.getResponseBodyAsString();
+                        
+                        if( wire.isDebugEnabled() ) {
+                            try {
+                                wire.debug("----------------------------------------");
+                                wire.debug("");
+                                wire.debug(get.getStatusLine().getStatusCode() + " " + get.getStatusLine().getReasonPhrase());
+                                wire.debug("");
+                                if( body != null ) {
+                                    wire.debug(body);
+                                    wire.debug("");
                                 }
-                                throw new RuntimeException(code + ": " + body);
                             }
-                            JSONObject ob = new JSONObject(body);
-                            String version = "0";
-
-                            if( ob.has("SCHEMA_VERSION") ) {
-                                version = ob.getString("SCHEMA_VERSION");
+                            catch( Throwable ignore ) {
+                                // ignore
                             }
-                            return toTargetFromJSON(version, ob);
                         }
-                        catch( IOException e ) {
-                            throw new RuntimeException(e);
-                        }  
-                        catch( PersistenceException e ) {
-                            throw new RuntimeException(e);
-                        }
-                        catch( JSONException e ) {
-                            throw new RuntimeException(e);
+                        if( code != HttpStatus.SC_OK ) {
+                            if( code == HttpStatus.SC_NOT_FOUND ) {
+                                return null;
+                            }
+                            throw new RuntimeException(code + ": " + body);
                         }
+                        return remember(toTargetFromJSON(new JSONStreamReader(new StringReader(body))), get);
                     }
-                    finally {
-                        endCall("loadObject");
+                    catch( IOException e ) {
+                        throw new RuntimeException(e);
+                    }  
+                    catch( PersistenceException e ) {
+                        throw new RuntimeException(e);
                     }
                 }
-            };
+                finally {
+                    endCall("loadObject");
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of object loads sent as conditional GETs
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return the number of conditional GETs answered with 304, each saving the transfer and decoding of an object
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * @param item a cached object
+     * @return the Riak vector clock of the stored copy of the object or <code>null</code> if it is not known
+     */
+    public @Nullable String getVclock(@Nonnull T item) {
+        Validator validator = validators.get(item);
+
+        return (validator == null ? null : validator.vclock);
+    }
+
+    /**
+     * Checks the cached copy of an object against Riak, fetching the stored copy only if it changed. The object
+     * is cached afresh either way, restarting its expiry.
+     * @param keyValue the primary key value of the object
+     * @return the current object or <code>null</code> if it no longer exists
+     * @throws PersistenceException an error occurred talking to Riak
+     */
+    public @Nullable T revalidate(@Nonnull Object keyValue) throws PersistenceException {
+        T current = getCache().find(getPrimaryKeyField(), keyValue);
+
+        if( current == null ) {
+            return get(keyValue);
+        }
+        T item;
+
+        try {
+            item = newObjectLoader(keyValue).load(getPrimaryKeyField(), keyValue);
+        }
+        catch( RuntimeException e ) {
+            Throwable t = e.getCause();
+
+            if( t != null && t instanceof PersistenceException ) {
+                throw (PersistenceException)t;
+            }
+            throw new PersistenceException(e);
+        }
+        getCache().release(current);
+        return (item == null ? null : getCache().cache(item));
+    }
+
+    @Override
+    public T get(Object keyValue) throws PersistenceException {
+        if( keyValue == null ) {
+            return null;
+        }
+        long start = System.nanoTime();
+        
+        try {
             if( std.isDebugEnabled() ) {
                 std.debug("get - looking in cache for " + keyValue);
             }
-            return getCache().find(getPrimaryKeyField(), keyValue, loader, getPrimaryKeyField(), keyValue);
+            return getCache().find(getPrimaryKeyField(), keyValue, coalesce(keyValue, newObjectLoader(keyValue)), getPrimaryKeyField(), keyValue);
         }
         catch( CacheManagementException e ) {
             throw new PersistenceException(e);
@@ -1314,6 +2047,101 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
             }
             throw new PersistenceException(e);
         }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.GET, start);
+        }
+    }
+
+    /**
+     * Reads the objects with keyed MapReduce jobs of up to {@link #MAX_KEY_BATCH} keys each instead of one GET
+     * per key. Binary buckets fall back to individual GETs.
+     * @param keys the primary key values of objects known not to be in the cache
+     * @return the objects that exist, in any order
+     * @throws PersistenceException an error occurred talking to Riak
+     */
+    @Override
+    protected @Nonnull Collection<T> loadAll(@Nonnull List<Object> keys) throws PersistenceException {
+        if( binary ) {
+            return super.loadAll(keys);
+        }
+        ArrayList<T> items = new ArrayList<T>();
+
+        startCall("loadAll");
+        try {
+            for( int i=0; i<keys.size(); i += MAX_KEY_BATCH ) {
+                HashMap<String,Object> request = new HashMap<String,Object>();
+                ArrayList<Map<String,Object>> query = new ArrayList<Map<String,Object>>();
+                HashMap<String,Object> maps = new HashMap<String,Object>();
+                HashMap<String,Object> map = new HashMap<String,Object>();
+                JSONArray inputs = new JSONArray();
+
+                for( Object key : keys.subList(i, Math.min(keys.size(), i + MAX_KEY_BATCH)) ) {
+                    JSONArray input = new JSONArray();
+
+                    input.put(getBucket());
+                    input.put(key.toString());
+                    inputs.put(input);
+                }
+                request.put("inputs", inputs);
+                map.put("language", "javascript");
+                map.put("source", "function(ob) { if( ob.not_found ) { return []; } return [ Riak.mapValuesJson(ob)[0] ]; }");
+                map.put("keep", true);
+                maps.put("map", map);
+                query.add(maps);
+                request.put("query", query);
+
+                String json = (new JSONObject(request)).toString();
+                PostMethod post = new PostMethod(getEndpoint() + "mapred");
+                int code;
+
+                if( wire.isDebugEnabled() ) {
+                    wire.debug(post.getName() + " " + getEndpoint() + "mapred");
+                    wire.debug(json);
+                }
+                try {
+                    post.setRequestEntity(new StringRequestEntity(json, "application/json", "utf-8"));
+                    code = execute(getClient(), post);
+                    if( code == HttpStatus.SC_NOT_FOUND ) {
+                        continue;
+                    }
+                    if( code != HttpStatus.SC_OK ) {
+                        throw new PersistenceException(code + ": " + post.getResponseBodyAsString());
+                    }
+                    JSONStreamReader reader = new JSONStreamReader(new InputStreamReader(post.getResponseBodyAsStream(), "utf-8"));
+
+                    reader.beginArray();
+                    while( reader.hasNext() ) {
+                        T item = toTargetFromJSON(reader);
+                        T cached = getCache().find(getPrimaryKeyField(), getValue(item, getPrimaryKeyField()));
+
+                        items.add(cached == null ? getCache().cache(item) : cached);
+                    }
+                }
+                catch( HttpException e ) {
+                    throw new PersistenceException("HttpException during POST: " + e.getMessage());
+                }
+                catch( IOException e ) {
+                    throw new PersistenceException("IOException during POST: " + e.getMessage());
+                }
+                catch( JSONException e ) {
+                    throw new PersistenceException(e);
+                }
+            }
+            getMetrics().results(items.size());
+            return items;
+        }
+        finally {
+            endCall("loadAll");
+        }
+    }
+
+    private @Nonnull List<Object> toKeyBatch(@Nonnull JSONArray keys, int offset) throws JSONException {
+        ArrayList<Object> batch = new ArrayList<Object>();
+
+        for( int i=offset; i<keys.length() && i<offset + MAX_KEY_BATCH; i++ ) {
+            batch.add(keys.getString(i));
+        }
+        return batch;
     }
 
     @Override
@@ -1483,7 +2311,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                     }
                 }
                 try {
-                    code = client.executeMethod(get);
+                    code = execute(client, get);
                 }
                 catch( HttpException e ) {
                     throw new PersistenceException("HttpException during GET: " + e.getMessage());
@@ -1526,19 +2354,17 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                                 @Override
                                 public void populate(ForwardCursor<T> cursor) {
                                     try {
-                                        for( int i=0; i<len; i++ ) {
-                                            String key = keys.getString(i);
-
-                                            T item = get(key);
-
-                                            if( item != null ) {
-                                                try {
-                                                    if( filter == null || filter.filter(item) ) {
-                                                        cursor.push(item);
+                                        for( int i=0; i<len; i += MAX_KEY_BATCH ) {
+                                            for( T item : getAll(toKeyBatch(keys, i)) ) {
+                                                if( item != null ) {
+                                                    try {
+                                                        if( filter == null || filter.filter(item) ) {
+                                                            cursor.push(item);
+                                                        }
+                                                    }
+                                                    catch( Throwable t ) {
+                                                        throw new JiteratorLoadException(t);
                                                     }
-                                                }
-                                                catch( Throwable t ) {
-                                                    throw new JiteratorLoadException(t);
                                                 }
                                             }
                                         }
@@ -1563,19 +2389,17 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
 
                             populator = new PopulatorThread<T>(new JiteratorPopulator<T>() {
                                 public void populate(@Nonnull Jiterator<T> iterator) throws Exception {
-                                    for( int i=0; i<len; i++ ) {
-                                        String key = keys.getString(i);
-
-                                        T item = get(key);
-
-                                        if( item != null ) {
-                                            try {
-                                                if( filter == null || filter.filter(item) ) {
-                                                    iterator.push(item);
+                                    for( int i=0; i<len; i += MAX_KEY_BATCH ) {
+                                        for( T item : getAll(toKeyBatch(keys, i)) ) {
+                                            if( item != null ) {
+                                                try {
+                                                    if( filter == null || filter.filter(item) ) {
+                                                        iterator.push(item);
+                                                    }
+                                                }
+                                                catch( Throwable t ) {
+                                                    throw new RuntimeException(t);
                                                 }
-                                            }
-                                            catch( Throwable t ) {
-                                                throw new RuntimeException(t);
                                             }
                                         }
                                     }
@@ -1608,6 +2432,48 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         }
     }
 
+    /**
+     * Chooses the inputs of a MapReduce request. An IN term on a single field primary key names the objects
+     * directly, equality and range terms on keys go through the matching index and everything else scans
+     * the bucket.
+     * @param request the request being built
+     * @param terms the search criteria
+     * @return the terms the map phase must still test
+     * @throws PersistenceException an index value could not be encoded
+     */
+    private @Nullable SearchTerm[] setInputs(@Nonnull Map<String,Object> request, @Nullable SearchTerm[] terms) throws PersistenceException {
+        Key pk = getPrimaryKey();
+
+        if( terms != null && terms.length == 1 && terms[0].getOperator().equals(Operator.IN) && pk.getFields().length == 1 && pk.getFields()[0].equals(terms[0].getColumn()) ) {
+            List<Object> values = terms[0].getValues();
+
+            if( !values.isEmpty() ) {
+                JSONArray inputs = new JSONArray();
+
+                for( Object value : values ) {
+                    JSONArray input = new JSONArray();
+
+                    input.put(getBucket());
+                    input.put(value.toString());
+                    inputs.put(input);
+                }
+                request.put("inputs", inputs);
+                return null;
+            }
+        }
+        HashMap<String,Object> inputs = new HashMap<String,Object>();
+
+        terms = matchKeys(inputs, terms);
+        if( inputs.size() < 1 ) {
+            request.put("inputs", getBucket());
+        }
+        else {
+            inputs.put("bucket", getBucket());
+            request.put("inputs", inputs);
+        }
+        return terms;
+    }
+
     private @Nullable SearchTerm[] matchKeys(@Nonnull Map<String,Object> input, @Nullable SearchTerm[] terms) throws PersistenceException {
         if( terms == null ) {
             return null;
@@ -1694,7 +2560,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                 boolean match = true;
 
                 for( int idx=0; idx<indexFields.length; idx++ ) {
-                    if( !terms[idx].getOperator().equals(Operator.EQUALS) || !terms[idx].getColumn().equals(indexFields[idx])) {
+                    if( !terms[idx].getOperator().equals(Operator.EQUALS) || !indexFields[idx].equals(terms[idx].getColumn())) {
                         match = false;
                         break;
                     }
@@ -1711,7 +2577,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
 
             for( String field : bestKey.getFields() ) {
                 for( SearchTerm term : terms ) {
-                    if( term.getColumn().equals(field) ) {
+                    if( field.equals(term.getColumn()) ) {
                         values[i++] = term.getValue();
                         break;
                     }
@@ -1721,7 +2587,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                 boolean part = false;
 
                 for( String field : bestKey.getFields() ) {
-                    if( term.getColumn().equals(field) ) {
+                    if( field.equals(term.getColumn()) ) {
                         part = true;
                         break;
                     }
@@ -1742,6 +2608,8 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
     @Override
     public void remove(Transaction xaction, T item) throws PersistenceException {
         startCall("remove");
+        long start = System.nanoTime();
+
         try {
             StringBuilder url = new StringBuilder();
             
@@ -1769,7 +2637,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                         // ignore
                     }
                 }
-                code = client.executeMethod(delete);
+                code = execute(client, delete);
             }
             catch( HttpException e ) {
                 throw new PersistenceException("HttpException during GET: " + e.getMessage());
@@ -1798,6 +2666,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                 if( code != HttpStatus.SC_NO_CONTENT && code != HttpStatus.SC_NOT_FOUND ) {
                     throw new PersistenceException(code + ": " + body);
                 }
+                removed(null, item);
                 getCache().release(item);
             }
             catch( IOException e ) {
@@ -1805,14 +2674,22 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
             }        
         }
         finally {
+            getMetrics().record(CacheMetrics.Operation.REMOVE, start);
             endCall("remove");
         }
     }
 
     @Override
     public void remove(Transaction xaction, SearchTerm... terms) throws PersistenceException {
-        for( T item : find(terms) ) {
-            remove(xaction, item);
+        long start = System.nanoTime();
+
+        try {
+            for( T item : find(terms) ) {
+                remove(xaction, item);
+            }
+        }
+        finally {
+            getMetrics().record(CacheMetrics.Operation.REMOVE, start);
         }
     }
 
@@ -1849,7 +2726,7 @@ todo: remap
                     // ignore
                 }
             }
-            code = client.executeMethod(get);
+            code = execute(client, get);
         }
         catch( HttpException e ) {
             throw new RuntimeException("HttpException during GET: " + e.getMessage());
@@ -1905,20 +2782,28 @@ todo: remap
 
     @Override
     public void update(Transaction xaction, T item, Map<String, Object> state) throws PersistenceException {
-        String newKey = getKeyValue(state, getPrimaryKey());
-        String oldKey = getKeyValue(item);
-        
-        if( newKey == null || newKey.equals(oldKey) ) {
-            if( newKey == null ) {
-                state.put(getPrimaryKeyField(), getValue(item, getPrimaryKeyField()));                
+        long start = System.nanoTime();
+
+        try {
+            String newKey = getKeyValue(state, getPrimaryKey());
+            String oldKey = getKeyValue(item);
+
+            if( newKey == null || newKey.equals(oldKey) ) {
+                if( newKey == null ) {
+                    state.put(getPrimaryKeyField(), getValue(item, getPrimaryKeyField()));                
+                }
+                create(xaction, state);
+            }
+            else {
+                remove(xaction, item);
+                create(xaction, state);
             }
-            create(xaction, state);
+            updated(null, item, state);
+            getCache().release(item);
         }
-        else {
-            remove(xaction, item);
-            create(xaction, state);
+        finally {
+            getMetrics().record(CacheMetrics.Operation.UPDATE, start);
         }
-        getCache().release(item);
     }
     
     private void endCall(String f) {
@@ -1936,6 +2821,36 @@ todo: remap
         }
     }
     
+    /**
+     * Keeps the validators of a freshly loaded object for later conditional GETs.
+     * @param item the loaded object
+     * @param get the GET that loaded it
+     * @return the object
+     */
+    private @Nullable T remember(@Nullable T item, @Nonnull GetMethod get) {
+        if( item != null ) {
+            Header etag = get.getResponseHeader("ETag");
+            Header lastModified = get.getResponseHeader("Last-Modified");
+            Header vclock = get.getResponseHeader("X-Riak-Vclock");
+
+            if( etag != null || lastModified != null || vclock != null ) {
+                Validator validator = new Validator();
+
+                validator.etag = (etag == null ? null : etag.getValue());
+                validator.lastModified = (lastModified == null ? null : lastModified.getValue());
+                validator.vclock = (vclock == null ? null : vclock.getValue());
+                validators.put(item, validator);
+            }
+        }
+        return item;
+    }
+
+    private boolean isBinary(@Nonnull GetMethod get) {
+        Header type = get.getResponseHeader("Content-Type");
+
+        return (type != null && type.getValue() != null && type.getValue().startsWith(BINARY_CONTENT_TYPE));
+    }
+
     private void startCall(String f) {
         if( wire.isDebugEnabled() ) {
             StringBuilder output = new StringBuilder();
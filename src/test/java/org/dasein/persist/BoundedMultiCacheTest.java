@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.dasein.util.CacheLoader;
+import org.junit.Test;
+
+public class BoundedMultiCacheTest extends TestCase {
+    /**
+     * Stores an object off the heap as its primary key, name and rank.
+     */
+    static private class TrackedCodec implements BoundedMultiCache.Codec<TrackedObject> {
+        private TrackingCache cache = new TrackingCache();
+
+        public TrackedObject decode(byte[] data) throws PersistenceException {
+            String[] parts = new String(data).split(":");
+
+            return cache.toTargetFromMap(cache.getSchemaVersion(), TrackingCache.state(Long.parseLong(parts[0]), parts[1], Integer.parseInt(parts[2])));
+        }
+
+        public byte[] encode(TrackedObject item) throws PersistenceException {
+            return (item.getTrackedObjectId() + ":" + item.getName() + ":" + item.getRank()).getBytes();
+        }
+    }
+
+    /**
+     * Loads a new copy of an object on each call, ranked by the call number, holding each load until released.
+     */
+    static private class CountingLoader implements CacheLoader<TrackedObject> {
+        public AtomicInteger  calls   = new AtomicInteger(0);
+        public CountDownLatch release = new CountDownLatch(0);
+        public TrackingCache  source  = new TrackingCache();
+
+        public TrackedObject load(Object ... args) {
+            int call = calls.incrementAndGet();
+
+            try {
+                release.await(10, TimeUnit.SECONDS);
+                return source.toTargetFromMap(source.getSchemaVersion(), TrackingCache.state((Long)args[0], "object " + args[0], call));
+            }
+            catch( Exception e ) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static private class RankWeigher implements Weigher<TrackedObject> {
+        public int weigh(TrackedObject item) {
+            return item.getRank();
+        }
+    }
+
+    private TrackingCache source = new TrackingCache();
+
+    private TrackedObject object(long id, int rank) throws PersistenceException {
+        return source.toTargetFromMap(source.getSchemaVersion(), TrackingCache.state(id, "object " + id, rank));
+    }
+
+    private BoundedMultiCache<TrackedObject> bounded(EvictionPolicy policy, long maxEntries) {
+        return new BoundedMultiCache<TrackedObject>(TrackedObject.class, Arrays.asList("trackedObjectId", "name"), policy, maxEntries);
+    }
+
+    private boolean holds(BoundedMultiCache<TrackedObject> cache, long id) {
+        return (cache.find("trackedObjectId", id) != null);
+    }
+
+    @Test
+    public void testLRUPolicyOrder() {
+        LRUPolicy policy = new LRUPolicy();
+
+        assertNull(policy.victim());
+        policy.added(1L);
+        policy.added(2L);
+        policy.added(3L);
+        assertEquals(1L, policy.victim());
+        policy.accessed(1L);
+        assertEquals(2L, policy.victim());
+        policy.removed(2L);
+        assertEquals(3L, policy.victim());
+        assertTrue(policy.admit(4L, 3L));
+        policy.clear();
+        assertNull(policy.victim());
+    }
+
+    @Test
+    public void testLFUPolicyOrder() {
+        LFUPolicy policy = new LFUPolicy();
+
+        for( long key=1L; key<=3L; key++ ) {
+            policy.accessed(key);
+            policy.added(key);
+        }
+        policy.accessed(1L);
+        policy.accessed(3L);
+        assertEquals("Victim is the least used, oldest first", 2L, policy.victim());
+        assertFalse("Admitted a key seen once over one seen once", policy.admit(4L, 2L));
+        policy.accessed(4L);
+        policy.accessed(4L);
+        assertTrue(policy.admit(4L, 2L));
+        policy.removed(2L);
+        assertEquals(1L, policy.victim());
+        policy.clear();
+        assertNull(policy.victim());
+    }
+
+    @Test
+    public void testLRUEviction() throws PersistenceException {
+        BoundedMultiCache<TrackedObject> cache = bounded(new LRUPolicy(), 3L);
+
+        cache.cache(object(1L, 1));
+        cache.cache(object(2L, 1));
+        cache.cache(object(3L, 1));
+        assertTrue(holds(cache, 1L));
+        cache.cache(object(4L, 1));
+        assertEquals(3, cache.size());
+        assertEquals(1L, cache.getEvictionCount());
+        assertFalse("Evicted the wrong entry", holds(cache, 2L));
+        assertNull("Evicted entry still indexed on its secondary key", cache.find("name", "object 2"));
+        assertTrue(holds(cache, 1L));
+        assertTrue(holds(cache, 3L));
+        assertTrue(holds(cache, 4L));
+    }
+
+    @Test
+    public void testLFUResistsScans() throws PersistenceException {
+        BoundedMultiCache<TrackedObject> cache = bounded(new LFUPolicy(), 3L);
+
+        for( long id=1L; id<=3L; id++ ) {
+            cache.cache(object(id, 1));
+        }
+        for( int i=0; i<3; i++ ) {
+            for( long id=1L; id<=3L; id++ ) {
+                holds(cache, id);
+            }
+        }
+        // a scan touching each new key once must not displace the working set
+        for( long id=10L; id<20L; id++ ) {
+            assertNotNull(cache.cache(object(id, 1)));
+        }
+        assertEquals(10L, cache.getRejectionCount());
+        assertEquals(0L, cache.getEvictionCount());
+        for( long id=1L; id<=3L; id++ ) {
+            assertTrue(holds(cache, id));
+        }
+        // a key asked for often enough earns its place
+        for( int i=0; i<8; i++ ) {
+            holds(cache, 99L);
+        }
+        cache.cache(object(99L, 1));
+        assertTrue(holds(cache, 99L));
+        assertEquals(1L, cache.getEvictionCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testWeightBound() throws PersistenceException {
+        BoundedMultiCache<TrackedObject> cache = new BoundedMultiCache<TrackedObject>(TrackedObject.class, Arrays.asList("trackedObjectId", "name"), new LRUPolicy(), 0L, new RankWeigher(), 10L);
+        TrackedObject second = object(2L, 4);
+
+        cache.cache(object(1L, 4));
+        cache.cache(second);
+        assertEquals(8L, cache.getWeight());
+        cache.cache(object(3L, 4));
+        assertEquals(8L, cache.getWeight());
+        assertFalse(holds(cache, 1L));
+        cache.cache(object(4L, 11));
+        assertFalse("Cached an object heavier than the whole cache", holds(cache, 4L));
+        assertEquals(1L, cache.getRejectionCount());
+        cache.release(second);
+        assertEquals(4L, cache.getWeight());
+        assertEquals(1, cache.size());
+        assertNull(cache.find("name", "object 2"));
+    }
+
+    @Test
+    public void testEvictedEntriesMoveOffHeap() throws PersistenceException {
+        BoundedMultiCache<TrackedObject> cache = bounded(new LRUPolicy(), 2L);
+        OffHeapStore store = new OffHeapStore(1024L, 256);
+        TrackedObject restored;
+
+        cache.setOffHeapStore(store, new TrackedCodec());
+        cache.cache(object(1L, 5));
+        cache.cache(object(2L, 6));
+        cache.cache(object(3L, 7));
+        assertEquals(2, cache.size());
+        assertEquals(Arrays.<Object>asList(1L), store.keys());
+        restored = cache.find("trackedObjectId", 1L);
+        assertNotNull(restored);
+        assertEquals(5, restored.getRank());
+        assertEquals("object 1", restored.getName());
+        assertEquals(Arrays.<Object>asList(2L), store.keys());
+        assertSame(restored, cache.find("trackedObjectId", 1L));
+        cache.release(restored);
+        assertNull(cache.find("trackedObjectId", 1L));
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        BoundedMultiCache<TrackedObject> cache = bounded(new LRUPolicy(), 10L);
+        CountingLoader loader = new CountingLoader();
+        TrackedObject first;
+
+        cache.setExpiry(50L, 0L);
+        first = cache.find("trackedObjectId", 1L, loader, 1L);
+        assertEquals(1, first.getRank());
+        assertSame(first, cache.find("trackedObjectId", 1L, loader, 1L));
+        Thread.sleep(80L);
+        assertNull("Returned an expired entry", cache.find("trackedObjectId", 1L));
+        assertEquals(1L, cache.getExpirationCount());
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.find("trackedObjectId", 1L, loader, 1L).getRank());
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void testExpiryCountsFromWrite() throws Exception {
+        BoundedMultiCache<TrackedObject> cache = bounded(new LRUPolicy(), 10L);
+
+        cache.setExpiry(100L, 0L);
+        cache.cache(object(1L, 1));
+        // reads do not extend the lifetime of an entry
+        for( int i=0; i<4; i++ ) {
+            Thread.sleep(30L);
+            holds(cache, 1L);
+        }
+        assertFalse(holds(cache, 1L));
+        assertEquals(1L, cache.getExpirationCount());
+    }
+
+    @Test
+    public void testRefreshServesOldValueWhileReloading() throws Exception {
+        BoundedMultiCache<TrackedObject> cache = bounded(new LRUPolicy(), 10L);
+        CountingLoader loader = new CountingLoader();
+        TrackedObject first;
+        long until;
+
+        cache.setExpiry(0L, 50L);
+        first = cache.find("trackedObjectId", 1L, loader, 1L);
+        Thread.sleep(80L);
+        loader.release = new CountDownLatch(1);
+        // the stale read returns at once and the reload waits in the background
+        assertSame(first, cache.find("trackedObjectId", 1L, loader, 1L));
+        assertSame("Started a second refresh of the same entry", first, cache.find("trackedObjectId", 1L, loader, 1L));
+        until = System.currentTimeMillis() + 10000L;
+        while( loader.calls.get() < 2 && System.currentTimeMillis() < until ) {
+            Thread.sleep(5L);
+        }
+        assertEquals(2, loader.calls.get());
+        assertEquals(0L, cache.getRefreshCount());
+        loader.release.countDown();
+        while( cache.getRefreshCount() < 1L && System.currentTimeMillis() < until ) {
+            Thread.sleep(5L);
+        }
+        assertEquals(1L, cache.getRefreshCount());
+        assertEquals(2, cache.find("trackedObjectId", 1L).getRank());
+        assertEquals("Refreshed object not indexed on its secondary key", 2, cache.find("name", "object 1").getRank());
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void testRefreshNeedsALoader() throws Exception {
+        BoundedMultiCache<TrackedObject> cache = bounded(new LRUPolicy(), 10L);
+        TrackedObject first = object(1L, 1);
+
+        cache.setExpiry(0L, 30L);
+        cache.cache(first);
+        Thread.sleep(50L);
+        assertSame(first, cache.find("trackedObjectId", 1L));
+        assertEquals(0L, cache.getRefreshCount());
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class CacheMetricsTest extends TestCase {
+    private TrackingCache cache = new TrackingCache();
+
+    @Test
+    public void testRecording() throws Exception {
+        CacheMetrics metrics = new CacheMetrics(cache);
+
+        metrics.lookup();
+        metrics.lookup();
+        metrics.lookup();
+        metrics.lookup();
+        metrics.miss();
+        metrics.backendCall(100L, 200L);
+        metrics.backendCall(-1L, 50L);
+        metrics.results(5);
+        metrics.results(7);
+        metrics.record(CacheMetrics.Operation.GET, System.nanoTime() - 2000000L);
+        assertEquals(4L, metrics.getLookupCount());
+        assertEquals(1L, metrics.getMissCount());
+        assertEquals(3L, metrics.getHitCount());
+        assertEquals(2L, metrics.getBackendCallCount());
+        assertEquals(100L, metrics.getBytesWritten());
+        assertEquals(250L, metrics.getBytesRead());
+        assertEquals(2L, metrics.getResultSizes().getCount());
+        assertEquals(1L, metrics.getLatency(CacheMetrics.Operation.GET).getCount());
+        assertTrue("Latency is not in microseconds", metrics.getLatency(CacheMetrics.Operation.GET).getMax() >= 2000L);
+        assertEquals(0L, metrics.getLatency(CacheMetrics.Operation.FIND).getCount());
+
+        assertEquals(0.75, metrics.getAttribute("HitRatio"));
+        assertEquals(1L, metrics.getAttribute("GetCount"));
+        assertEquals(metrics.getLatency(CacheMetrics.Operation.GET).getMax(), metrics.getAttribute("GetMaxMicros"));
+        assertEquals(7L, metrics.getAttribute("ResultSizeMax"));
+        assertEquals(6.0, metrics.getAttribute("ResultSizeMean"));
+        assertEquals(TrackedObject.class.getName(), metrics.getAttribute("Entity"));
+        try {
+            metrics.getAttribute("NoSuchAttribute");
+            fail("Read an attribute that does not exist");
+        }
+        catch( AttributeNotFoundException expected ) {
+            // the attribute does not exist
+        }
+
+        metrics.reset();
+        assertEquals(0L, metrics.getLookupCount());
+        assertEquals(0L, metrics.getBackendCallCount());
+        assertEquals(0L, metrics.getResultSizes().getCount());
+        assertEquals(0L, metrics.getLatency(CacheMetrics.Operation.GET).getCount());
+    }
+
+    @Test
+    public void testRegistration() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        CacheMetrics metrics = new CacheMetrics(cache);
+        CacheMetrics other = new CacheMetrics(cache);
+
+        try {
+            ObjectName name;
+
+            metrics.register();
+            other.register();
+            name = metrics.getObjectName();
+            assertNotNull(name);
+            assertEquals(CacheMetrics.DOMAIN, name.getDomain());
+            assertEquals("PersistentCache", name.getKeyProperty("type"));
+            assertNotNull(other.getObjectName());
+            assertFalse("Caches of the same entity share a name", name.equals(other.getObjectName()));
+            assertTrue(server.isRegistered(name));
+            assertEquals(TrackedObject.class.getName(), server.getAttribute(name, "Entity"));
+            metrics.lookup();
+            assertEquals(1L, server.getAttribute(name, "LookupCount"));
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            assertEquals(0L, metrics.getLookupCount());
+
+            metrics.unregister();
+            assertNull(metrics.getObjectName());
+            assertFalse(server.isRegistered(name));
+            metrics.unregister();
+        }
+        finally {
+            metrics.unregister();
+            other.unregister();
+        }
+    }
+
+    @Test
+    public void testRegistrationDisabled() {
+        Properties props = PersistentCache.getProperties();
+        CacheMetrics metrics = new CacheMetrics(cache);
+
+        props.setProperty("dasein.persist.jmx", "false");
+        try {
+            metrics.register();
+            assertNull(metrics.getObjectName());
+        }
+        finally {
+            props.remove("dasein.persist.jmx");
+            metrics.unregister();
+        }
+    }
+
+    @Test
+    public void testCacheRegistersItsMetrics() {
+        ObjectName name = cache.getMetrics().getObjectName();
+
+        assertNotNull(name);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        cache.getMetrics().unregister();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheSnapshotTest extends TestCase {
+    private File directory = null;
+    private File file      = null;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        directory = File.createTempFile("snapshot", ".d");
+        assertTrue(directory.delete() && directory.mkdir());
+        file = new File(directory, "tracked.snapshot");
+    }
+
+    @After
+    @Override
+    public void tearDown() {
+        File[] files = directory.listFiles();
+
+        if( files != null ) {
+            for( File f : files ) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private byte[] bytes(String str) throws Exception {
+        return str.getBytes("utf-8");
+    }
+
+    private void write(String schemaVersion, Object ... keys) throws Exception {
+        CacheSnapshot.Output out = new CacheSnapshot(file, schemaVersion, 0L).open();
+
+        for( Object key : keys ) {
+            out.write(key, bytes("object " + key), 1000L);
+        }
+        out.commit();
+    }
+
+    @Test
+    public void testCommitRenamesIntoPlace() throws Exception {
+        CacheSnapshot snapshot = new CacheSnapshot(file, "2012-08", 0L);
+        CacheSnapshot.Output out = snapshot.open();
+        OffHeapStore.Record record;
+
+        out.write(1L, bytes("one"), 100L);
+        out.write(2L, bytes("two"), 200L);
+        out.write(1L, bytes("one again"), 300L);
+        assertFalse("Wrote to the snapshot before the commit", file.exists());
+        assertEquals(1, directory.listFiles().length);
+        out.commit();
+        assertTrue(file.exists());
+        assertEquals("Left a temporary file behind", 1, directory.listFiles().length);
+
+        snapshot = new CacheSnapshot(file, "2012-08", 0L);
+        assertEquals(2, snapshot.keys().size());
+        record = snapshot.peek(1L);
+        assertNotNull(record);
+        assertTrue("Kept a later record for a key already written", Arrays.equals(bytes("one"), record.getData()));
+        assertEquals(100L, record.getStamp());
+        assertEquals(200L, snapshot.peek("2").getStamp());
+    }
+
+    @Test
+    public void testCommitReplacesEarlierSnapshot() throws Exception {
+        write("2012-08", 1L, 2L);
+        write("2012-08", 3L);
+
+        CacheSnapshot snapshot = new CacheSnapshot(file, "2012-08", 0L);
+
+        assertEquals(Arrays.asList("3"), snapshot.keys());
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void testCloseWithoutCommit() throws Exception {
+        write("2012-08", 1L);
+        CacheSnapshot.Output out = new CacheSnapshot(file, "2012-08", 0L).open();
+
+        out.write(2L, bytes("two"), 1000L);
+        out.close();
+        assertEquals("Left a temporary file behind", 1, directory.listFiles().length);
+        assertEquals(Arrays.asList("1"), new CacheSnapshot(file, "2012-08", 0L).keys());
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        write("2012-08", 1L);
+        Thread.sleep(30L);
+        assertTrue("Used a snapshot older than its maximum age", new CacheSnapshot(file, "2012-08", 10L).keys().isEmpty());
+        assertNull(new CacheSnapshot(file, "2012-08", 10L).take(1L));
+        assertEquals(1, new CacheSnapshot(file, "2012-08", 60000L).keys().size());
+        assertEquals(1, new CacheSnapshot(file, "2012-08", 0L).keys().size());
+    }
+
+    @Test
+    public void testSchemaVersion() throws Exception {
+        write("2012-08", 1L);
+        assertTrue("Used a snapshot of another schema version", new CacheSnapshot(file, "2012-09", 0L).keys().isEmpty());
+        assertNull(new CacheSnapshot(file, null, 0L).take(1L));
+        assertNotNull(new CacheSnapshot(file, "2012-08", 0L).take(1L));
+    }
+
+    @Test
+    public void testNotASnapshot() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+
+        out.write(bytes("not a snapshot at all"));
+        out.close();
+        assertTrue(new CacheSnapshot(file, "2012-08", 0L).keys().isEmpty());
+        assertTrue(new CacheSnapshot(new File(directory, "missing"), "2012-08", 0L).keys().isEmpty());
+    }
+
+    @Test
+    public void testTakeHandsOutOnce() throws Exception {
+        write("2012-08", 1L, 2L);
+
+        CacheSnapshot snapshot = new CacheSnapshot(file, "2012-08", 0L);
+
+        assertNotNull(snapshot.peek(1L));
+        assertNotNull(snapshot.peek(1L));
+        assertEquals(0L, snapshot.getRestoreCount());
+        assertTrue(Arrays.equals(bytes("object 1"), snapshot.take(1L).getData()));
+        assertNull("Handed out a record twice", snapshot.take(1L));
+        assertNull(snapshot.peek(1L));
+        assertEquals(1L, snapshot.getRestoreCount());
+        assertNotNull(snapshot.take(2L));
+        assertTrue(snapshot.keys().isEmpty());
+        assertEquals(2L, snapshot.getRestoreCount());
+    }
+
+    @Test
+    public void testDiscardAfterWrite() throws Exception {
+        write("2012-08", 1L, 2L, 3L);
+
+        CacheSnapshot snapshot = new CacheSnapshot(file, "2012-08", 0L);
+
+        // the object changes before anything was looked up in the snapshot
+        snapshot.discard(1L);
+        assertNull("Handed out a discarded record", snapshot.take(1L));
+        assertNotNull(snapshot.peek(2L));
+        snapshot.discard(2L);
+        assertNull(snapshot.take(2L));
+        assertEquals(Arrays.asList("3"), snapshot.keys());
+        snapshot.discardAll();
+        assertNull(snapshot.take(3L));
+        assertEquals(0L, snapshot.getRestoreCount());
+    }
+}
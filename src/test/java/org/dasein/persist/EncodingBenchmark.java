@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Map;
+
+import org.dasein.persist.test.MockPersistentCache;
+
+/**
+ * Compares the stored size and decode cost of {@link WideObject} values in the JSON and compact binary encodings.
+ * <p>Run with <code>java -cp ... org.dasein.persist.EncodingBenchmark [iterations]</code>. Not part of the test suite.</p>
+ */
+public class EncodingBenchmark {
+    static public void main(String ... args) throws Exception {
+        int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+        MockPersistentCache<WideObject> cache = new MockPersistentCache<WideObject>();
+        Map<String,Object> state;
+
+        cache.initBase(WideObject.class, null, "2012-08", null, new Key("keyField"));
+        state = cache.toMapFromJSON(cache.toDataStoreJSONFromCurrentState(MappingBenchmark.sampleState(42L)));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        OutputStreamWriter out = new OutputStreamWriter(json, "utf-8");
+
+        cache.writeDataStoreJSON(state, out);
+        out.close();
+        cache.writeDataStoreBinary(state, binary);
+        System.out.println("Payload: json=" + json.size() + " bytes, binary=" + binary.size() + " bytes");
+        for( int round=0; round<3; round++ ) {
+            System.out.println("Round " + (round + 1) + ":");
+            run("  json  ", iterations, cache, json.toByteArray(), false);
+            run("  binary", iterations, cache, binary.toByteArray(), true);
+        }
+    }
+
+    static private void run(String label, int iterations, MockPersistentCache<WideObject> cache, byte[] payload, boolean binary) throws Exception {
+        long start = System.nanoTime();
+        long check = 0L;
+
+        for( int i=0; i<iterations; i++ ) {
+            ByteArrayInputStream in = new ByteArrayInputStream(payload);
+            WideObject ob = (binary ? cache.toTargetFromBinary(in) : cache.toTargetFromJSON(in));
+
+            check += ob.getKeyField();
+        }
+        long nanos = System.nanoTime() - start;
+
+        System.out.println(label + ": " + (nanos/iterations) + " ns/decode (" + check + ")");
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.RecordingDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GetAllTest extends TestCase {
+    /**
+     * Records each batch of keys it is asked to load and returns what it finds in reverse order.
+     */
+    static private class BatchingCache extends TrackingCache {
+        public List<List<Object>> batches = new ArrayList<List<Object>>();
+
+        @Override
+        protected Collection<TrackedObject> loadAll(List<Object> keys) throws PersistenceException {
+            ArrayList<TrackedObject> items = new ArrayList<TrackedObject>();
+
+            batches.add(new ArrayList<Object>(keys));
+            for( Object key : keys ) {
+                TrackedObject item = get(key);
+
+                if( item != null ) {
+                    items.add(getCache().cache(item));
+                }
+            }
+            Collections.reverse(items);
+            return items;
+        }
+    }
+
+    private RecordingDataSource ds = null;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        ds = TrackingCache.getDataSource();
+    }
+
+    /**
+     * Turns negative caching of {@link TrackedObject} on or off for caches initialized from now on.
+     * @param on true to remember missing keys
+     */
+    private void negativeCaching(boolean on) {
+        Properties props = PersistentCache.getProperties();
+        String property = "dasein.persist.cache.negative." + TrackedObject.class.getName();
+
+        if( on ) {
+            props.setProperty(property, "true");
+        }
+        else {
+            props.remove(property);
+        }
+    }
+
+    private RelationalCache<TrackedObject> relational(boolean negative) {
+        RelationalCache<TrackedObject> cache = new RelationalCache<TrackedObject>();
+
+        negativeCaching(negative);
+        try {
+            cache.initBase(TrackedObject.class, null, "2012-08", null, new Key("trackedObjectId"), new Key("name"));
+        }
+        finally {
+            negativeCaching(false);
+        }
+        return cache;
+    }
+
+    private BatchingCache populated() throws Exception {
+        BatchingCache cache;
+
+        negativeCaching(true);
+        try {
+            cache = new BatchingCache();
+        }
+        finally {
+            negativeCaching(false);
+        }
+        for( long id=1L; id<=5L; id++ ) {
+            cache.create(null, TrackingCache.state(id, "object " + id, (int)id));
+        }
+        return cache;
+    }
+
+    private List<Long> ids(List<TrackedObject> items) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+
+        for( TrackedObject item : items ) {
+            ids.add(item == null ? null : item.getTrackedObjectId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testKeepsOrder() throws Exception {
+        BatchingCache cache = populated();
+        List<TrackedObject> items;
+
+        cache.getAll(Arrays.asList(2L));
+        items = cache.getAll(Arrays.asList(5L, 2L, 3L, 1L));
+        assertEquals(Arrays.asList(5L, 2L, 3L, 1L), ids(items));
+        assertEquals("Loaded an object that was already cached", Arrays.asList((Object)5L, 3L, 1L), cache.batches.get(1));
+        assertEquals(2, cache.batches.size());
+        assertSame(items.get(1), cache.getAll(Arrays.asList(2L)).get(0));
+        assertEquals(2, cache.batches.size());
+    }
+
+    @Test
+    public void testMissingKeys() throws Exception {
+        BatchingCache cache = populated();
+        List<TrackedObject> items = cache.getAll(Arrays.asList(9L, 1L, null, 8L));
+
+        assertEquals(4, items.size());
+        assertEquals(Arrays.asList(null, 1L, null, null), ids(items));
+        assertEquals(Arrays.asList((Object)9L, 1L, 8L), cache.batches.get(0));
+        assertTrue(cache.getAll(new ArrayList<Object>()).isEmpty());
+    }
+
+    @Test
+    public void testDuplicateKeys() throws Exception {
+        BatchingCache cache = populated();
+        List<TrackedObject> items = cache.getAll(Arrays.asList((Object)3L, 4L, 3L, "3"));
+
+        assertEquals(Arrays.asList(3L, 4L, 3L, 3L), ids(items));
+        assertSame(items.get(0), items.get(2));
+        assertSame("Equal keys of another type are not the same object", items.get(0), items.get(3));
+        assertEquals("Loaded a key more than once", Arrays.asList((Object)3L, 4L), cache.batches.get(0));
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        BatchingCache cache = populated();
+
+        assertEquals(Arrays.asList(1L, null), ids(cache.getAll(Arrays.asList(1L, 9L))));
+        assertEquals(Arrays.asList(null, 2L), ids(cache.getAll(Arrays.asList(9L, 2L))));
+        assertEquals("Loaded a key recently found missing", Arrays.asList((Object)2L), cache.batches.get(1));
+        assertTrue(cache.getAll(Arrays.asList(9L)).get(0) == null);
+        assertEquals(2, cache.batches.size());
+        assertEquals(2L, cache.getNegativeHitCount());
+
+        cache.create(null, TrackingCache.state(9L, "created", 9));
+        assertEquals("A created object stayed missing", Arrays.asList(9L), ids(cache.getAll(Arrays.asList(9L))));
+    }
+
+    @Test
+    public void testBatchesOfKeys() throws Exception {
+        RelationalCache<TrackedObject> cache = relational(false);
+        int count = 2*RelationalCache.MAX_KEY_BATCH + 1;
+        ArrayList<Object> keys = new ArrayList<Object>();
+        int first = ds.getStatements().size();
+        List<String> statements;
+        List<TrackedObject> items;
+
+        for( long id=1L; id<=count; id++ ) {
+            keys.add(id);
+        }
+        items = cache.getAll(keys);
+        assertEquals(count, items.size());
+        assertTrue(items.get(0) == null && items.get(count - 1) == null);
+        statements = ds.getStatements().subList(first, ds.getStatements().size());
+        assertEquals(3, statements.size());
+        assertTrue(statements.get(0), statements.get(0).contains("IN ("));
+        assertEquals(keys.subList(0, RelationalCache.MAX_KEY_BATCH), ds.getParameters(first));
+        assertEquals(keys.subList(RelationalCache.MAX_KEY_BATCH, 2*RelationalCache.MAX_KEY_BATCH), ds.getParameters(first + 1));
+        assertEquals(Arrays.asList((Object)(long)count), ds.getParameters(first + 2));
+    }
+
+    @Test
+    public void testBatchesSkipNegativeCachedKeys() throws Exception {
+        RelationalCache<TrackedObject> cache = relational(true);
+        int first = ds.getStatements().size();
+
+        assertEquals(Arrays.asList(null, null), ids(cache.getAll(Arrays.asList(1L, 2L))));
+        assertEquals(first + 1, ds.getStatements().size());
+        assertEquals(Arrays.asList((Object)1L, 2L), ds.getParameters(first));
+        assertEquals(Arrays.asList(null, null, null), ids(cache.getAll(Arrays.asList(2L, 3L, 1L))));
+        assertEquals(first + 2, ds.getStatements().size());
+        assertEquals("Queried keys recently found missing", Arrays.asList((Object)3L), ds.getParameters(first + 1));
+    }
+}
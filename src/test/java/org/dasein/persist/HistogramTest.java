@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class HistogramTest extends TestCase {
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0.0, histogram.getMean());
+        assertEquals(0L, histogram.getPercentile(0.5));
+        assertEquals(0L, histogram.getMax());
+    }
+
+    @Test
+    public void testRecording() {
+        Histogram histogram = new Histogram();
+
+        for( long value=1L; value<=100L; value++ ) {
+            histogram.record(value);
+        }
+        assertEquals(100L, histogram.getCount());
+        assertEquals(5050L, histogram.getTotal());
+        assertEquals(50.5, histogram.getMean());
+        assertEquals(100L, histogram.getMax());
+        // percentiles are the upper bound of a power-of-two bucket
+        assertEquals(63L, histogram.getPercentile(0.5));
+        assertEquals(100L, histogram.getPercentile(0.99));
+        assertEquals(1L, histogram.getPercentile(0.0));
+    }
+
+    @Test
+    public void testPercentileWithinFactorOfTwo() {
+        Histogram histogram = new Histogram();
+
+        for( int i=0; i<99; i++ ) {
+            histogram.record(10L);
+        }
+        histogram.record(100000L);
+        assertTrue(histogram.getPercentile(0.5) >= 10L && histogram.getPercentile(0.5) < 20L);
+        assertTrue(histogram.getPercentile(0.99) >= 10L && histogram.getPercentile(0.99) < 20L);
+        assertEquals(100000L, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void testNegativeValuesRecordedAsZero() {
+        Histogram histogram = new Histogram();
+
+        histogram.record(-5L);
+        histogram.record(0L);
+        assertEquals(2L, histogram.getCount());
+        assertEquals(0L, histogram.getTotal());
+        assertEquals(0L, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void testReset() {
+        Histogram histogram = new Histogram();
+
+        histogram.record(42L);
+        histogram.reset();
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.getTotal());
+        assertEquals(0L, histogram.getMax());
+        assertEquals(0L, histogram.getPercentile(0.99));
+    }
+}
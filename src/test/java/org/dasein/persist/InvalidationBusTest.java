@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.RecordingDataSource;
+import org.junit.Test;
+
+public class InvalidationBusTest extends TestCase {
+    /**
+     * Delivers packets to every bus on the same loop, including the sender.
+     */
+    static public class LoopbackBus extends InvalidationBus {
+        private List<LoopbackBus> loop    = Collections.singletonList(this);
+        private List<byte[]>      packets = new CopyOnWriteArrayList<byte[]>();
+
+        protected void send(byte[] packet) {
+            packets.add(packet);
+            for( LoopbackBus bus : loop ) {
+                bus.receive(packet, 0, packet.length);
+            }
+        }
+    }
+
+    static private class Recorder implements InvalidationBus.Listener {
+        private List<String> keys = new CopyOnWriteArrayList<String>();
+
+        public void invalidated(String key) {
+            keys.add(key);
+        }
+    }
+
+    private LoopbackBus[] connect(int count) {
+        List<LoopbackBus> loop = new ArrayList<LoopbackBus>();
+
+        for( int i=0; i<count; i++ ) {
+            LoopbackBus bus = new LoopbackBus();
+
+            bus.loop = loop;
+            loop.add(bus);
+        }
+        return loop.toArray(new LoopbackBus[count]);
+    }
+
+    @Test
+    public void testOtherNodesHearChanges() {
+        LoopbackBus[] buses = connect(2);
+        Recorder local = new Recorder();
+        Recorder remote = new Recorder();
+
+        buses[0].subscribe("Entity", local);
+        buses[1].subscribe("Entity", remote);
+        buses[1].subscribe("Other", new Recorder());
+        buses[0].publish("Entity", 1L);
+        buses[0].publish("Entity", "two");
+        buses[0].close();
+        assertEquals(Arrays.asList("1", "two"), remote.keys);
+        assertTrue("A node heard its own changes", local.keys.isEmpty());
+        assertEquals(2, buses[1].getReceivedCount());
+    }
+
+    @Test
+    public void testCoalescing() {
+        LoopbackBus[] buses = connect(2);
+        Recorder remote = new Recorder();
+
+        buses[1].subscribe("Entity", remote);
+        buses[0].publish("Entity", 1L);
+        buses[0].publish("Entity", 1L);
+        buses[0].publish("Entity", 2L);
+        buses[0].publish("Entity", null);
+        buses[0].publish("Entity", 3L);
+        buses[0].close();
+        assertEquals(5, buses[0].getPublishedCount());
+        assertEquals(Collections.singletonList((String)null), remote.keys);
+        assertEquals(1, buses[0].getSentCount());
+    }
+
+    @Test
+    public void testLargeBatchesAreSplit() {
+        LoopbackBus[] buses = connect(2);
+        Recorder remote = new Recorder();
+        List<String> expected = new ArrayList<String>();
+
+        buses[1].subscribe("Entity", remote);
+        for( int i=0; i<500; i++ ) {
+            String key = "a fairly long primary key value number " + i;
+
+            expected.add(key);
+            buses[0].publish("Entity", key);
+        }
+        buses[0].close();
+        assertEquals(expected, remote.keys);
+        assertTrue(buses[0].getSentCount() > 1);
+        for( byte[] packet : buses[0].packets ) {
+            assertTrue(packet.length <= InvalidationBus.MAXIMUM_PACKET);
+        }
+    }
+
+    @Test
+    public void testPublishingWhileFlushing() throws Exception {
+        final LoopbackBus[] buses = connect(2);
+        Recorder remote = new Recorder();
+        Thread[] publishers = new Thread[4];
+
+        buses[1].subscribe("Entity", remote);
+        buses[0].start();
+        for( int i=0; i<publishers.length; i++ ) {
+            final int publisher = i;
+
+            publishers[i] = new Thread() {
+                public void run() {
+                    for( int j=0; j<2000; j++ ) {
+                        buses[0].publish("Entity", publisher + "-" + j);
+                    }
+                }
+            };
+            publishers[i].start();
+        }
+        for( Thread publisher : publishers ) {
+            publisher.join();
+        }
+        buses[0].close();
+        assertEquals("Lost events published during a flush", 8000, new HashSet<String>(remote.keys).size());
+        assertEquals(8000, remote.keys.size());
+    }
+
+    @Test
+    public void testMalformedPacketsAreIgnored() {
+        LoopbackBus bus = connect(1)[0];
+        Recorder recorder = new Recorder();
+
+        bus.subscribe("Entity", recorder);
+        bus.receive(new byte[] { 1, 2, 3 }, 0, 3);
+        bus.close();
+        assertTrue(recorder.keys.isEmpty());
+    }
+
+    @Test
+    public void testPublishWaitsForCommit() throws Exception {
+        String dsn = getClass().getName() + "." + getName();
+        TrackingCache cache = new TrackingCache();
+        InvalidationBus bus = InvalidationBus.getInstance(LoopbackBus.class.getName());
+        long published = bus.getPublishedCount();
+        Transaction xaction;
+
+        RecordingDataSource.bind(dsn);
+        xaction = TrackingCache.begin(dsn);
+        cache.create(xaction, TrackingCache.state(1L, "one", 1));
+        assertEquals("Published before commit", published, bus.getPublishedCount());
+        xaction.commit();
+        assertEquals(published + 1, bus.getPublishedCount());
+
+        xaction = TrackingCache.begin(dsn);
+        cache.update(xaction, cache.get(1L), TrackingCache.state(1L, "uno", 1));
+        xaction.rollback();
+        assertEquals("Published after rollback", published + 1, bus.getPublishedCount());
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.persist.test.MockPersistentCache;
+import org.dasein.util.uom.Measured;
+
+/**
+ * Compares hydrating {@link WideObject} instances through the compiled per-field converters against the
+ * <code>mapValue</code> type cascade they replaced, both driven from the same entity metadata.
+ * <p>Run with <code>java -cp ... org.dasein.persist.MappingBenchmark [iterations]</code>. Not part of the test suite.</p>
+ */
+public class MappingBenchmark {
+    static public void main(String ... args) throws Exception {
+        int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+        MockPersistentCache<WideObject> cache = new MockPersistentCache<WideObject>();
+        Map<String,Object> state = sampleState(42L);
+
+        cache.initBase(WideObject.class, null, "2012-08", null, new Key("keyField"));
+        for( int round=0; round<3; round++ ) {
+            System.out.println("Round " + (round + 1) + ":");
+            run("  mapValue", iterations, cache, false, state);
+            run("  compiled", iterations, cache, true, state);
+        }
+    }
+
+    static private void run(String label, int iterations, MockPersistentCache<WideObject> cache, boolean compiled, Map<String,Object> state) throws Exception {
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        long check = 0L;
+
+        for( int i=0; i<iterations; i++ ) {
+            WideObject ob = (compiled ? cache.toTargetFromMap("2012-08", state) : legacy(cache, state));
+
+            check += ob.getKeyField();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - bytes;
+
+        System.out.println(label + ": " + (nanos/iterations) + " ns/object" + (bytes < 0 ? "" : ", " + (allocated/iterations) + " bytes/object") + " (" + check + ")");
+    }
+
+    /**
+     * @return the bytes allocated so far by this thread or -1 if the JVM cannot tell us
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        try {
+            Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+
+            return (Long)m.invoke(bean, Thread.currentThread().getId());
+        }
+        catch( Throwable t ) {
+            return -1L;
+        }
+    }
+
+    static public Map<String,Object> sampleState(long key) {
+        HashMap<String,Object> state = new HashMap<String,Object>();
+
+        state.put("keyField", key);
+        for( int i=0; i<8; i++ ) {
+            state.put("s" + i, "String value " + i);
+        }
+        for( int i=0; i<5; i++ ) {
+            state.put("i" + i, i * 1000);
+            state.put("l" + i, Integer.valueOf(i));
+        }
+        for( int i=0; i<2; i++ ) {
+            state.put("bi" + i, String.valueOf(i));
+            state.put("bl" + i, Long.valueOf(i * 1000000000000L));
+            state.put("loc" + i, "en_US");
+            state.put("u" + i, UUID.randomUUID().toString());
+            state.put("bd" + i, "12345.678");
+        }
+        for( int i=0; i<4; i++ ) {
+            state.put("d" + i, i + 0.5);
+            state.put("b" + i, (i % 2 == 0 ? "true" : Boolean.FALSE));
+            state.put("e" + i, IndexType.values()[i % IndexType.values().length].name());
+        }
+        return state;
+    }
+
+    /**
+     * The mapping path that the compiled converters replaced: the metadata field loop of
+     * <code>toTargetFromMap</code> calling the <code>mapValue</code> type cascade for every field of every object.
+     */
+    static private WideObject legacy(MockPersistentCache<WideObject> cache, Map<String,Object> state) throws Exception {
+        WideObject item = cache.getMetadata().newInstance();
+
+        for( EntityMetadata.PersistentField field : cache.getMetadata().getFields() ) {
+            field.set(item, mapValue(cache, field.getName(), state.get(field.getName()), field.getType(), field.getParameterizedType()));
+        }
+        return item;
+    }
+
+    /**
+     * A copy of the removed <code>PersistentCache.mapValue</code> cascade, kept in branch order so each type pays
+     * for the same checks it used to. The array, {@link Measured} and <code>valueOf()</code> branches are reduced
+     * to their type tests because {@link WideObject} has no such fields.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static private Object mapValue(MockPersistentCache<WideObject> cache, String fieldName, Object dataStoreValue, Class<?> toType, ParameterizedType ptype) throws PersistenceException {
+        LookupDelegate delegate = cache.getLookupDelegate(fieldName);
+
+        if( dataStoreValue != null && delegate != null && !delegate.validate(dataStoreValue.toString()) ) {
+            throw new PersistenceException("Value " + dataStoreValue + " for " + fieldName + " is not valid.");
+        }
+        try {
+            if( toType.equals(String.class) ) {
+                if( dataStoreValue != null && !(dataStoreValue instanceof String) ) {
+                    dataStoreValue = dataStoreValue.toString();
+                }
+            }
+            else if( Enum.class.isAssignableFrom(toType) ) {
+                if( dataStoreValue != null ) {
+                    Enum e = Enum.valueOf((Class<? extends Enum>)toType, dataStoreValue.toString());
+
+                    dataStoreValue = e;
+                }
+            }
+            else if( toType.equals(Boolean.class) || toType.equals(boolean.class) ) {
+                if( dataStoreValue == null ) {
+                    dataStoreValue = false;
+                }
+                else if( !(dataStoreValue instanceof Boolean) ) {
+                    if( Number.class.isAssignableFrom(dataStoreValue.getClass()) ) {
+                        dataStoreValue = (((Number)dataStoreValue).intValue() != 0);
+                    }
+                    else {
+                        dataStoreValue = (dataStoreValue.toString().trim().equalsIgnoreCase("true") || dataStoreValue.toString().trim().equalsIgnoreCase("y"));
+                    }
+                }
+            }
+            else if( Number.class.isAssignableFrom(toType) || toType.equals(byte.class) || toType.equals(short.class) ||
+                    toType.equals(long.class) || toType.equals(int.class) || toType.equals(float.class) || toType.equals(double.class) ) {
+                if( dataStoreValue == null ) {
+                    if( toType.equals(int.class) || toType.equals(short.class) || toType.equals(long.class) ) {
+                        dataStoreValue = 0;
+                    }
+                    else if( toType.equals(float.class) || toType.equals(double.class) ) {
+                        dataStoreValue = 0.0f;
+                    }
+                }
+                else if( toType.equals(Number.class) ) {
+                    if( !(dataStoreValue instanceof Number) ) {
+                        if( dataStoreValue instanceof String ) {
+                            dataStoreValue = Double.parseDouble((String)dataStoreValue);
+                        }
+                        else if( dataStoreValue instanceof Boolean ) {
+                            dataStoreValue = (((Boolean)dataStoreValue) ? 1 : 0);
+                        }
+                        else {
+                            throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
+                        }
+                    }
+                }
+                else if( toType.equals(Integer.class) || toType.equals(int.class) ) {
+                    if( dataStoreValue instanceof Number ) {
+                        if( !(dataStoreValue instanceof Integer) ) {
+                            dataStoreValue = ((Number)dataStoreValue).intValue();
+                        }
+                    }
+                    else if( dataStoreValue instanceof String ) {
+                        dataStoreValue = Integer.parseInt((String)dataStoreValue);
+                    }
+                    else if( dataStoreValue instanceof Boolean ) {
+                        dataStoreValue = (((Boolean)dataStoreValue) ? 1 : 0);
+                    }
+                    else {
+                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
+                    }
+                }
+                else if( toType.equals(Long.class) || toType.equals(long.class) ) {
+                    if( dataStoreValue instanceof Number ) {
+                        if( !(dataStoreValue instanceof Long) ) {
+                            dataStoreValue = ((Number)dataStoreValue).longValue();
+                        }
+                    }
+                    else if( dataStoreValue instanceof String ) {
+                        dataStoreValue = Long.parseLong((String)dataStoreValue);
+                    }
+                    else if( dataStoreValue instanceof Boolean ) {
+                        dataStoreValue = (((Boolean)dataStoreValue) ? 1L : 0L);
+                    }
+                    else {
+                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
+                    }
+                }
+                else if( toType.equals(Byte.class) || toType.equals(byte.class) ) {
+                    throw new PersistenceException("WideObject has no byte fields");
+                }
+                else if( toType.equals(Short.class) || toType.equals(short.class) ) {
+                    throw new PersistenceException("WideObject has no short fields");
+                }
+                else if( toType.equals(Double.class) || toType.equals(double.class) ) {
+                    if( dataStoreValue instanceof Number ) {
+                        if( !(dataStoreValue instanceof Double) ) {
+                            dataStoreValue = ((Number)dataStoreValue).doubleValue();
+                        }
+                    }
+                    else if( dataStoreValue instanceof String ) {
+                        dataStoreValue = Double.parseDouble((String)dataStoreValue);
+                    }
+                    else if( dataStoreValue instanceof Boolean ) {
+                        dataStoreValue = (((Boolean)dataStoreValue) ? 1.0 : 0.0);
+                    }
+                    else {
+                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
+                    }
+                }
+                else if( toType.equals(Float.class) || toType.equals(float.class) ) {
+                    throw new PersistenceException("WideObject has no float fields");
+                }
+                else if( toType.equals(BigDecimal.class) ) {
+                    if( dataStoreValue instanceof Number ) {
+                        if( !(dataStoreValue instanceof BigDecimal) ) {
+                            if( dataStoreValue instanceof BigInteger ) {
+                                dataStoreValue = new BigDecimal((BigInteger)dataStoreValue);
+                            }
+                            else {
+                                dataStoreValue = BigDecimal.valueOf(((Number)dataStoreValue).doubleValue());
+                            }
+                        }
+                    }
+                    else if( dataStoreValue instanceof String ) {
+                        dataStoreValue = new BigDecimal((String)dataStoreValue);
+                    }
+                    else if( dataStoreValue instanceof Boolean ) {
+                        dataStoreValue = new BigDecimal((((Boolean)dataStoreValue) ? 1.0 : 0.0));
+                    }
+                    else {
+                        throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
+                    }
+                }
+                else if( toType.equals(BigInteger.class) ) {
+                    throw new PersistenceException("WideObject has no BigInteger fields");
+                }
+                else if( dataStoreValue != null ) {
+                    throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + dataStoreValue);
+                }
+            }
+            else if( toType.equals(Locale.class )) {
+                if( dataStoreValue != null && !(dataStoreValue instanceof Locale) ) {
+                    String[] parts = dataStoreValue.toString().split("_");
+
+                    if( parts != null && parts.length > 1 ) {
+                        dataStoreValue = new Locale(parts[0], parts[1]);
+                    }
+                    else {
+                        dataStoreValue = new Locale(parts[0]);
+                    }
+                }
+            }
+            else if( Measured.class.isAssignableFrom(toType) ) {
+                throw new PersistenceException("WideObject has no measured fields");
+            }
+            else if( toType.equals(UUID.class) ) {
+                if( dataStoreValue != null && !(dataStoreValue instanceof UUID) ) {
+                    dataStoreValue = UUID.fromString(dataStoreValue.toString());
+                }
+            }
+            else if( toType.equals(TimeZone.class) ) {
+                if( dataStoreValue != null && !(dataStoreValue instanceof TimeZone) ) {
+                    dataStoreValue = TimeZone.getTimeZone(dataStoreValue.toString());
+                }
+            }
+            else if( toType.equals(Currency.class) ) {
+                if( dataStoreValue != null && !(dataStoreValue instanceof Currency) ) {
+                    dataStoreValue = Currency.getInstance(dataStoreValue.toString());
+                }
+            }
+            else if( toType.isArray() || (dataStoreValue != null && !toType.isAssignableFrom(dataStoreValue.getClass())) ) {
+                throw new PersistenceException("WideObject has no array or valueOf() fields");
+            }
+        }
+        catch( Exception e ) {
+            throw new PersistenceException("Error mapping field in " + toType + " for " + fieldName + ": " + e.getMessage());
+        }
+        return dataStoreValue;
+    }
+}
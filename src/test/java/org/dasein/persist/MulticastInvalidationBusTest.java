@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Runs {@link MulticastInvalidationBus} over the loopback interface, between two buses in this JVM and between
+ * this JVM and a second one started for the purpose.
+ */
+public class MulticastInvalidationBusTest extends TestCase {
+    static private final String GROUP = "239.255.43.99";
+
+    /**
+     * Publishes invalidations from a second JVM.
+     * @param args the port, then the entity, then each key to publish
+     * @throws Exception the bus could not be started
+     */
+    static public void main(String ... args) throws Exception {
+        MulticastInvalidationBus bus = new MulticastInvalidationBus(InetAddress.getByName(GROUP), Integer.parseInt(args[0]), 0);
+
+        bus.start();
+        for( int i=2; i<args.length; i++ ) {
+            bus.publish(args[1], args[i]);
+        }
+        bus.close();
+    }
+
+    static private class Recorder implements InvalidationBus.Listener {
+        private List<String> keys = new CopyOnWriteArrayList<String>();
+
+        public void invalidated(String key) {
+            keys.add(key);
+        }
+
+        public boolean await(int count) throws InterruptedException {
+            long until = System.currentTimeMillis() + 10000L;
+
+            while( keys.size() < count && System.currentTimeMillis() < until ) {
+                Thread.sleep(10L);
+            }
+            return (keys.size() >= count);
+        }
+    }
+
+    private int port = 0;
+
+    @Override
+    public void setUp() {
+        port = 46000 + (int)(System.nanoTime() % 1000L);
+    }
+
+    private MulticastInvalidationBus start() throws IOException {
+        MulticastInvalidationBus bus = new MulticastInvalidationBus(InetAddress.getByName(GROUP), port, 0);
+
+        bus.start();
+        return bus;
+    }
+
+    @Test
+    public void testBusesInOneJVM() throws Exception {
+        MulticastInvalidationBus sender = start();
+        MulticastInvalidationBus receiver = start();
+
+        try {
+            Recorder heard = new Recorder();
+            Recorder own = new Recorder();
+
+            receiver.subscribe("Entity", heard);
+            sender.subscribe("Entity", own);
+            sender.publish("Entity", 17L);
+            assertTrue("The other bus heard nothing", heard.await(1));
+            assertEquals("17", heard.keys.get(0));
+            Thread.sleep(100L);
+            assertTrue("A bus heard its own invalidation", own.keys.isEmpty());
+        }
+        finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testBusInAnotherJVM() throws Exception {
+        MulticastInvalidationBus receiver = start();
+
+        try {
+            Recorder heard = new Recorder();
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            Process other;
+
+            receiver.subscribe("Entity", heard);
+            other = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), getClass().getName(), String.valueOf(port), "Entity", "a", "b").redirectErrorStream(true).start();
+            other.getInputStream().close();
+            assertEquals(0, other.waitFor());
+            assertTrue("Heard " + heard.keys + " from the other JVM", heard.await(2));
+            assertTrue(heard.keys.contains("a"));
+            assertTrue(heard.keys.contains("b"));
+        }
+        finally {
+            receiver.close();
+        }
+    }
+}
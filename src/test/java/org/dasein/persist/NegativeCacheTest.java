@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.RecordingDataSource;
+import org.dasein.util.CacheLoader;
+import org.junit.Test;
+
+public class NegativeCacheTest extends TestCase {
+    @Test
+    public void testRemembersMisses() {
+        NegativeCache cache = new NegativeCache(10, 60000L);
+
+        cache.add(1L, cache.getGeneration());
+        assertTrue(cache.contains(1L));
+        assertTrue("Keys are compared by their string form", cache.contains("1"));
+        assertFalse(cache.contains(2L));
+        assertFalse(cache.contains(null));
+        assertEquals(2L, cache.getHitCount());
+        cache.add(null, cache.getGeneration());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testCreateForgetsMiss() {
+        NegativeCache cache = new NegativeCache(10, 60000L);
+
+        cache.add(1L, cache.getGeneration());
+        cache.remove(1L);
+        assertFalse(cache.contains(1L));
+    }
+
+    @Test
+    public void testLookupRacingCreate() {
+        NegativeCache cache = new NegativeCache(10, 60000L);
+        long generation = cache.getGeneration();
+
+        // the object is created while the lookup that missed it is still in flight
+        cache.remove(1L);
+        cache.add(1L, generation);
+        assertFalse(cache.contains(1L));
+        cache.add(1L, cache.getGeneration());
+        assertTrue(cache.contains(1L));
+
+        generation = cache.getGeneration();
+        cache.clear();
+        cache.add(2L, generation);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        NegativeCache cache = new NegativeCache(10, 30L);
+
+        cache.add(1L, cache.getGeneration());
+        assertTrue(cache.contains(1L));
+        Thread.sleep(60L);
+        assertFalse(cache.contains(1L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testOldestMissesMakeWay() {
+        NegativeCache cache = new NegativeCache(3, 60000L);
+
+        for( long key=1L; key<=4L; key++ ) {
+            cache.add(key, cache.getGeneration());
+        }
+        assertEquals(3, cache.size());
+        assertFalse(cache.contains(1L));
+        assertTrue(cache.contains(4L));
+    }
+
+    static private CacheLoader<TrackedObject> loading(final TrackedObject item) {
+        return new CacheLoader<TrackedObject>() {
+            public TrackedObject load(Object ... args) {
+                return item;
+            }
+        };
+    }
+
+    @Test
+    public void testLookupRacingCommit() throws Exception {
+        Properties props = PersistentCache.getProperties();
+        String property = "dasein.persist.cache.negative." + TrackedObject.class.getName();
+        String dsn = getClass().getName() + "." + getName();
+
+        RecordingDataSource.bind(dsn);
+        props.setProperty(property, "true");
+        try {
+            TrackingCache cache = new TrackingCache();
+            Transaction xaction = TrackingCache.begin(dsn);
+            TrackedObject item = cache.create(xaction, TrackingCache.state(1L, "racing", 1));
+
+            // a lookup between the insert and its commit does not see the object yet
+            assertNull(cache.coalesce(1L, loading(null)).load(1L));
+            assertNull(cache.coalesce(1L, loading(item)).load(1L));
+            xaction.commit();
+            assertSame("Miss recorded before the commit hid the new object", item, cache.coalesce(1L, loading(item)).load(1L));
+        }
+        finally {
+            props.remove(property);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class OffHeapStoreTest extends TestCase {
+    private byte[] bytes(int length, int fill) {
+        byte[] data = new byte[length];
+
+        Arrays.fill(data, (byte)fill);
+        return data;
+    }
+
+    @Test
+    public void testPutAndGet() {
+        OffHeapStore store = new OffHeapStore(4096L, 1024);
+        OffHeapStore.Record record;
+
+        assertTrue(store.put("a", bytes(10, 1), 100L));
+        assertTrue(store.put("b", bytes(20, 2), 200L));
+        record = store.get("a");
+        assertNotNull(record);
+        assertTrue(Arrays.equals(bytes(10, 1), record.getData()));
+        assertEquals(100L, record.getStamp());
+        assertNull(store.get("c"));
+        assertEquals(1L, store.getHitCount());
+        assertEquals(1L, store.getMissCount());
+        assertNotNull(store.peek("b"));
+        assertEquals(1L, store.getHitCount());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        OffHeapStore store = new OffHeapStore(4096L, 1024);
+
+        store.put("a", bytes(10, 1), 1L);
+        store.put("a", bytes(5, 9), 2L);
+        assertTrue(Arrays.equals(bytes(5, 9), store.get("a").getData()));
+        assertEquals(2L, store.get("a").getStamp());
+        assertEquals(1, store.size());
+        store.remove("a");
+        assertNull(store.get("a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testOversizedRecord() {
+        OffHeapStore store = new OffHeapStore(4096L, 1024);
+
+        store.put("a", bytes(10, 1), 1L);
+        assertFalse(store.put("a", bytes(1025, 1), 2L));
+        assertNull("Kept the record an oversized put replaced", store.get("a"));
+    }
+
+    @Test
+    public void testOldestSegmentIsRecycled() {
+        OffHeapStore store = new OffHeapStore(300L, 100);
+
+        assertEquals(300L, store.getCapacity());
+        // two records fill each segment
+        for( int i=0; i<6; i++ ) {
+            assertTrue(store.put(i, bytes(50, i), i));
+        }
+        assertEquals(6, store.size());
+        assertEquals(0L, store.getEvictionCount());
+        store.put(6, bytes(50, 6), 6L);
+        assertEquals(2L, store.getEvictionCount());
+        assertNull(store.get(0));
+        assertNull(store.get(1));
+        for( int i=2; i<7; i++ ) {
+            assertTrue(Arrays.equals(bytes(50, i), store.get(i).getData()));
+        }
+    }
+
+    @Test
+    public void testReplacedRecordsAreNotEvictedTwice() {
+        OffHeapStore store = new OffHeapStore(200L, 100);
+
+        store.put("a", bytes(50, 1), 1L);
+        store.put("b", bytes(50, 2), 2L);
+        // rewrites "a" into the second segment
+        store.put("a", bytes(50, 3), 3L);
+        store.put("c", bytes(50, 4), 4L);
+        // recycles the first segment, which only still holds "b"
+        store.put("d", bytes(50, 5), 5L);
+        assertEquals(1L, store.getEvictionCount());
+        assertNull(store.get("b"));
+        assertTrue(Arrays.equals(bytes(50, 3), store.get("a").getData()));
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void testClear() {
+        OffHeapStore store = new OffHeapStore(4096L, 1024);
+
+        store.put("a", bytes(10, 1), 1L);
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get("a"));
+        assertTrue(store.put("b", bytes(10, 2), 2L));
+        assertTrue(store.keys().contains("b"));
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.test.MockPersistentCache;
+import org.junit.Test;
+
+public class PageTest extends TestCase {
+    @Test
+    public void testKeysetToken() throws Exception {
+        String token = Page.forKeys("alpha", 42L, 1.5);
+
+        assertTrue(Page.isKeys(token));
+        assertFalse(Page.isOffset(token));
+        assertFalse(Page.isNative(token));
+
+        Object[] values = Page.toKeys(token);
+
+        assertEquals(3, values.length);
+        assertEquals("alpha", values[0]);
+        assertEquals(42L, ((Number)values[1]).longValue());
+        assertEquals(1.5, ((Number)values[2]).doubleValue());
+    }
+
+    @Test
+    public void testOffsetToken() throws Exception {
+        String token = Page.forOffset(250);
+
+        assertTrue(Page.isOffset(token));
+        assertFalse(Page.isKeys(token));
+        assertEquals(250, Page.toOffset(token));
+    }
+
+    @Test
+    public void testNativeToken() throws Exception {
+        String token = Page.forNative("abc==");
+
+        assertTrue(Page.isNative(token));
+        assertEquals("abc==", Page.toNative(token));
+    }
+
+    @Test
+    public void testInvalidTokens() {
+        try {
+            Page.toOffset(Page.forKeys(1L));
+            fail("Read a keyset token as an offset");
+        }
+        catch( PersistenceException expected ) {
+            // expected
+        }
+        try {
+            Page.toKeys("k!!not json!!");
+            fail("Read a corrupt keyset token");
+        }
+        catch( PersistenceException expected ) {
+            // expected
+        }
+        try {
+            Page.toOffset("oNaN");
+            fail("Read a corrupt offset token");
+        }
+        catch( PersistenceException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPagesCoverResults() throws Exception {
+        MockPersistentCache<PersistentObject> cache = new MockPersistentCache<PersistentObject>();
+        ArrayList<Long> seen = new ArrayList<Long>();
+        String continuation = null;
+        int pages = 0;
+
+        cache.initBase(PersistentObject.class, null, "2012-08", null, new Key("keyField"));
+        for( long i=0; i<7; i++ ) {
+            HashMap<String,Object> state = new HashMap<String,Object>();
+
+            state.put("keyField", i);
+            state.put("name", "Name " + i);
+            cache.create(null, state);
+        }
+        do {
+            Page<PersistentObject> page = cache.findPage(new SearchTerm[0], 3, continuation, false, "keyField");
+
+            for( PersistentObject ob : page ) {
+                seen.add(ob.getKeyField());
+            }
+            continuation = page.getContinuation();
+            pages++;
+        } while( continuation != null );
+        assertEquals(3, pages);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L), seen);
+        assertEquals(2, cache.findPage(new SearchTerm[0], 2, 5, false, "keyField").size());
+    }
+}
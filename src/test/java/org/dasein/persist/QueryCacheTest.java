@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.dasein.persist.jdbc.RecordingDataSource;
+import org.junit.Test;
+
+public class QueryCacheTest extends TestCase {
+    static private final SearchTerm[] BETA = new SearchTerm[] { new SearchTerm("name", "beta") };
+
+    private TrackingCache tracking = new TrackingCache();
+
+    private String key(SearchTerm ... terms) {
+        return QueryCache.getKey(terms, false, "trackedObjectId");
+    }
+
+    private List<Object> ids(Object ... ids) {
+        return Arrays.asList(ids);
+    }
+
+    /**
+     * Builds a cache that answers searches from its query cache rather than from resident objects.
+     * @return the cache
+     */
+    private TrackingCache querying() {
+        Properties props = PersistentCache.getProperties();
+        String cname = TrackedObject.class.getName();
+        String resident = props.getProperty("dasein.persist.cache.resident." + cname);
+
+        props.setProperty("dasein.persist.cache.queries." + cname, "true");
+        props.setProperty("dasein.persist.cache.resident." + cname, "false");
+        try {
+            return new TrackingCache();
+        }
+        finally {
+            props.remove("dasein.persist.cache.queries." + cname);
+            if( resident == null ) {
+                props.remove("dasein.persist.cache.resident." + cname);
+            }
+            else {
+                props.setProperty("dasein.persist.cache.resident." + cname, resident);
+            }
+        }
+    }
+
+    /**
+     * Runs a search the way a store would, recording the specified results as what it read from the data store.
+     * @param cache the cache searched
+     * @param terms the search terms
+     * @param read the objects the search read or <code>null</code> to only look in the query cache
+     * @return the cached results or <code>null</code> if the search was not answered from the query cache
+     * @throws PersistenceException the search failed
+     */
+    private Collection<TrackedObject> search(TrackingCache cache, SearchTerm[] terms, Collection<TrackedObject> read) throws PersistenceException {
+        Collection<TrackedObject> results = cache.getCachedResults(terms, null, false, "trackedObjectId");
+
+        if( results == null && read != null ) {
+            cache.cacheResults(terms, null, false, new String[] { "trackedObjectId" }, read);
+        }
+        return results;
+    }
+
+    private QueryCache cached(String key, SearchTerm[] terms, List<Object> ids) {
+        QueryCache cache = new QueryCache(10, 60000L);
+
+        assertNull(cache.get(key));
+        cache.put(key, terms, ids);
+        return cache;
+    }
+
+    @Test
+    public void testKeys() {
+        SearchTerm name = new SearchTerm("name", "beta");
+        SearchTerm rank = new SearchTerm("rank", Operator.GREATER_THAN, 2);
+
+        assertEquals(key(name, rank), key(rank, name));
+        assertFalse(key(name).equals(key(rank)));
+        assertFalse(key(name).equals(QueryCache.getKey(new SearchTerm[] { name }, true, "trackedObjectId")));
+        assertFalse("Values of different types share a key", key(new SearchTerm("rank", 2)).equals(key(new SearchTerm("rank", "2"))));
+        assertEquals(key(new SearchTerm("rank", Operator.IN, Arrays.asList(1, 2))), key(new SearchTerm("rank", Operator.IN, new Object[] { 1, 2 })));
+        assertFalse(key(new SearchTerm("rank", Operator.IN, Arrays.asList(1, 2))).equals(key(new SearchTerm("rank", Operator.IN, Arrays.asList("1", "2")))));
+        assertNull(key(SearchTerm.or(name, rank)));
+        assertNull(key(new SearchTerm(TrackedObject.class, "name", Operator.EQUALS, "beta")));
+    }
+
+    @Test
+    public void testHit() {
+        QueryCache cache = cached(key(BETA), BETA, ids(2L, 5L));
+
+        assertEquals(ids(2L, 5L), cache.get(key(BETA)));
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testPutWithoutMissIsIgnored() {
+        QueryCache cache = new QueryCache(10, 60000L);
+
+        cache.put(key(BETA), BETA, ids(2L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSearchRacingWrite() throws PersistenceException {
+        QueryCache cache = new QueryCache(10, 60000L);
+
+        assertNull(cache.get(key(BETA)));
+        // an unrelated object changes while the search is running
+        cache.invalidate(tracking, TrackingCache.state(9L, "zeta", 1));
+        cache.put(key(BETA), BETA, ids(2L));
+        assertEquals("Recorded results that may have missed a write", 0, cache.size());
+        assertNull(cache.get(key(BETA)));
+        cache.put(key(BETA), BETA, ids(2L));
+        assertEquals(ids(2L), cache.get(key(BETA)));
+
+        assertNull(cache.get(key(new SearchTerm("name", "gamma"))));
+        cache.clear();
+        cache.put(key(new SearchTerm("name", "gamma")), new SearchTerm[] { new SearchTerm("name", "gamma") }, ids(3L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidateByState() throws PersistenceException {
+        QueryCache cache = cached(key(BETA), BETA, ids(2L));
+        Map<String,Object> partial = TrackingCache.state(7L, "gamma", 1);
+
+        cache.invalidate(tracking, TrackingCache.state(7L, "gamma", 1));
+        assertEquals("Dropped a search the object does not match", 1, cache.size());
+        cache.invalidate(tracking, TrackingCache.state(7L, "beta", 1));
+        assertEquals(0, cache.size());
+        assertEquals(1L, cache.getInvalidationCount());
+
+        cache = cached(key(BETA), BETA, ids(2L));
+        partial.remove("name");
+        cache.invalidate(tracking, partial);
+        assertEquals("Kept a search a partial state cannot rule out", 0, cache.size());
+    }
+
+    @Test
+    public void testInvalidateByItem() throws PersistenceException {
+        QueryCache cache = cached(key(BETA), BETA, ids(2L));
+
+        cache.invalidate(tracking, tracking.toTargetFromMap(tracking.getSchemaVersion(), TrackingCache.state(2L, "beta", 1)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiryAndEviction() throws InterruptedException {
+        QueryCache cache = new QueryCache(2, 30L);
+        SearchTerm[] gamma = new SearchTerm[] { new SearchTerm("name", "gamma") };
+        SearchTerm[] delta = new SearchTerm[] { new SearchTerm("name", "delta") };
+
+        cache.get(key(BETA));
+        cache.put(key(BETA), BETA, ids(2L));
+        Thread.sleep(60L);
+        assertNull(cache.get(key(BETA)));
+
+        cache = new QueryCache(2, 60000L);
+        for( SearchTerm[] terms : new SearchTerm[][] { BETA, gamma, delta } ) {
+            cache.get(key(terms));
+            cache.put(key(terms), terms, ids(1L));
+        }
+        assertEquals(2, cache.size());
+        assertNull(cache.get(key(BETA)));
+        cache.evict(key(gamma));
+        assertNull(cache.get(key(gamma)));
+    }
+
+    @Test
+    public void testSearchRacingCreateCommit() throws Exception {
+        String dsn = getClass().getName() + "." + getName();
+        TrackingCache cache = querying();
+        Transaction xaction;
+
+        RecordingDataSource.bind(dsn);
+        xaction = TrackingCache.begin(dsn);
+        cache.create(xaction, TrackingCache.state(2L, "beta", 1));
+        // a search between the insert and its commit does not see the new object
+        assertNull(search(cache, BETA, new ArrayList<TrackedObject>()));
+        assertNotNull(search(cache, BETA, null));
+        xaction.commit();
+        assertNull("Kept results read before the commit", search(cache, BETA, null));
+    }
+
+    @Test
+    public void testSearchRacingUpdateCommit() throws Exception {
+        String dsn = getClass().getName() + "." + getName();
+        TrackingCache cache = querying();
+        TrackedObject item = cache.create(null, TrackingCache.state(2L, "beta", 1));
+        Transaction xaction;
+
+        RecordingDataSource.bind(dsn);
+        xaction = TrackingCache.begin(dsn);
+        cache.update(xaction, item, TrackingCache.state(2L, "gamma", 1));
+        assertNull(search(cache, BETA, Arrays.asList(item)));
+        assertNotNull(search(cache, BETA, null));
+        xaction.commit();
+        assertNull("Kept results read before the commit", search(cache, BETA, null));
+    }
+
+    @Test
+    public void testSearchRacingRemoveCommit() throws Exception {
+        String dsn = getClass().getName() + "." + getName();
+        TrackingCache cache = querying();
+        TrackedObject item = cache.create(null, TrackingCache.state(2L, "beta", 1));
+        Transaction xaction;
+
+        cache.create(null, TrackingCache.state(3L, "delta", 5));
+        RecordingDataSource.bind(dsn);
+        xaction = TrackingCache.begin(dsn);
+        // objects removed by their terms are not known, so no search can be checked against them
+        cache.remove(xaction, new SearchTerm("rank", 5));
+        assertNull(search(cache, BETA, Arrays.asList(item)));
+        assertNotNull(search(cache, BETA, null));
+        xaction.commit();
+        assertNull("Kept results read before the commit", search(cache, BETA, null));
+    }
+
+    @Test
+    public void testRolledBackWriteKeepsLaterResults() throws Exception {
+        String dsn = getClass().getName() + "." + getName();
+        TrackingCache cache = querying();
+        Transaction xaction;
+
+        RecordingDataSource.bind(dsn);
+        xaction = TrackingCache.begin(dsn);
+        cache.create(xaction, TrackingCache.state(2L, "beta", 1));
+        assertNull(search(cache, BETA, new ArrayList<TrackedObject>()));
+        xaction.rollback();
+        assertNotNull(search(cache, BETA, null));
+    }
+}
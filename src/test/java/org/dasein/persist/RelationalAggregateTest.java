@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.dasein.persist.jdbc.RecordingDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link RelationalCache#aggregate(SearchTerm[], Aggregate, String, String...)} against a data source that
+ * records each statement and returns no rows.
+ */
+public class RelationalAggregateTest extends TestCase {
+    private RelationalCache<TrackedObject> cache = null;
+    private RecordingDataSource            ds    = null;
+    private int                            first = 0;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        ds = TrackingCache.getDataSource();
+        first = ds.getStatements().size();
+        cache = new RelationalCache<TrackedObject>();
+        cache.initBase(TrackedObject.class, null, "2012-08", null, new Key("trackedObjectId"), new Key("name"));
+    }
+
+    /**
+     * @return the statements issued by this test without their table qualifiers
+     */
+    private List<String> statements() {
+        List<String> statements = ds.getStatements().subList(first, ds.getStatements().size());
+
+        for( int i=0; i<statements.size(); i++ ) {
+            statements.set(i, statements.get(i).replace("tracked_object.", ""));
+        }
+        return statements;
+    }
+
+    @Test
+    public void testGroupedSql() throws Exception {
+        SearchTerm[] terms = new SearchTerm[] { new SearchTerm("description", "d"), new SearchTerm("rank", Operator.GREATER_THAN, 2) };
+        Collection<Map<String,Object>> rows = cache.aggregate(terms, Aggregate.SUM, "rank", "name", "description");
+
+        assertEquals(Arrays.asList("SELECT name, description, SUM( rank ) FROM tracked_object WHERE description = ? AND rank > ? GROUP BY name, description"), statements());
+        assertEquals(Arrays.asList((Object)"d", 2), ds.getParameters(first));
+        assertTrue("Grouped aggregate of no objects returned a row", rows.isEmpty());
+    }
+
+    @Test
+    public void testRepeatedAggregateBindsNewValues() throws Exception {
+        cache.aggregate(new SearchTerm[] { new SearchTerm("name", "a") }, Aggregate.MAX, "rank", "description");
+        cache.aggregate(new SearchTerm[] { new SearchTerm("name", "b") }, Aggregate.MAX, "rank", "description");
+        assertEquals(2, statements().size());
+        assertEquals(statements().get(0), statements().get(1));
+        assertEquals("SELECT description, MAX( rank ) FROM tracked_object WHERE name = ? GROUP BY description", statements().get(0));
+        assertEquals(Arrays.asList((Object)"a"), ds.getParameters(first));
+        assertEquals(Arrays.asList((Object)"b"), ds.getParameters(first + 1));
+    }
+
+    @Test
+    public void testCountWithoutGrouping() throws Exception {
+        Collection<Map<String,Object>> rows = cache.aggregate(new SearchTerm[0], Aggregate.COUNT, null);
+
+        assertEquals(Arrays.asList("SELECT COUNT( * ) FROM tracked_object"), statements());
+        assertEquals(1, rows.size());
+        assertEquals(0L, rows.iterator().next().get(PersistentCache.AGGREGATE));
+    }
+
+    @Test
+    public void testEmptyRowWithoutGrouping() throws Exception {
+        SearchTerm[] terms = new SearchTerm[] { new SearchTerm("name", "nobody") };
+
+        for( Aggregate function : new Aggregate[] { Aggregate.SUM, Aggregate.AVG, Aggregate.MIN, Aggregate.MAX } ) {
+            Collection<Map<String,Object>> rows = cache.aggregate(terms, function, "rank");
+            Map<String,Object> row;
+
+            assertEquals(function + " of no objects", 1, rows.size());
+            row = rows.iterator().next();
+            assertTrue(row.containsKey(PersistentCache.AGGREGATE));
+            assertNull(function + " of no objects", row.get(PersistentCache.AGGREGATE));
+            assertEquals(1, row.size());
+        }
+        assertEquals(1, cache.aggregate(terms, Aggregate.COUNT, "description").size());
+        assertEquals(0L, cache.aggregate(terms, Aggregate.COUNT, "description").iterator().next().get(PersistentCache.AGGREGATE));
+    }
+
+    @Test
+    public void testInvalidFields() throws Exception {
+        try {
+            cache.aggregate(new SearchTerm[0], Aggregate.SUM, "name");
+            fail("Summed a text field");
+        }
+        catch( PersistenceException expected ) {
+            // sums need numbers
+        }
+        try {
+            cache.aggregate(new SearchTerm[0], Aggregate.MAX, null);
+            fail("Took the maximum of nothing");
+        }
+        catch( PersistenceException expected ) {
+            // only counts need no field
+        }
+        assertTrue("Issued a query for an invalid aggregate", statements().isEmpty());
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.dasein.persist.jdbc.RecordingDataSource;
+import org.junit.Test;
+
+public class ResidentSetTest extends TestCase {
+    private TrackingCache             cache = new TrackingCache();
+    private ResidentSet<TrackedObject> set  = null;
+
+    private TrackedObject object(long id, String name, int rank) throws PersistenceException {
+        return cache.toTargetFromMap(cache.getSchemaVersion(), TrackingCache.state(id, name, rank));
+    }
+
+    private List<Long> ids(Collection<TrackedObject> items) {
+        List<Long> ids = new ArrayList<Long>();
+
+        for( TrackedObject item : items ) {
+            ids.add(item.getTrackedObjectId());
+        }
+        return ids;
+    }
+
+    private List<Long> ids(long ... values) {
+        List<Long> ids = new ArrayList<Long>();
+
+        for( long value : values ) {
+            ids.add(value);
+        }
+        return ids;
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        List<TrackedObject> contents = new ArrayList<TrackedObject>();
+
+        contents.add(object(1L, "alpha", 3));
+        contents.add(object(2L, "beta", 1));
+        contents.add(object(3L, "gamma", 2));
+        contents.add(object(4L, null, 5));
+        contents.add(object(5L, "beta", 4));
+        set = new ResidentSet<TrackedObject>(cache, "trackedObjectId", new Key[] { new Key("name") }, contents);
+    }
+
+    @Test
+    public void testEquals() throws PersistenceException {
+        assertEquals(ids(2L, 5L), ids(set.find(new SearchTerm[] { new SearchTerm("name", "beta") }, null, false, "trackedObjectId")));
+        assertEquals(2L, set.count(new SearchTerm("name", "beta")));
+        assertEquals(ids(3L), ids(set.find(new SearchTerm[] { new SearchTerm("trackedObjectId", 3L) }, null, null)));
+        assertEquals(0L, set.count(new SearchTerm("name", "delta")));
+    }
+
+    @Test
+    public void testNull() throws PersistenceException {
+        assertEquals(ids(4L), ids(set.find(new SearchTerm[] { new SearchTerm("name", Operator.NULL, null) }, null, null)));
+        assertEquals(4L, set.count(new SearchTerm("name", Operator.NOT_NULL, null)));
+    }
+
+    @Test
+    public void testNullsOrderFirst() throws PersistenceException {
+        assertEquals(ids(4L, 1L, 2L, 5L, 3L), ids(set.find(new SearchTerm[0], null, false, "name", "trackedObjectId")));
+        assertEquals(ids(3L, 5L, 2L, 1L, 4L), ids(set.find(new SearchTerm[0], null, true, "name", "trackedObjectId")));
+    }
+
+    @Test
+    public void testIn() throws PersistenceException {
+        SearchTerm term = new SearchTerm("name", Operator.IN, Arrays.asList("alpha", "gamma", "delta"));
+
+        assertEquals(ids(1L, 3L), ids(set.find(new SearchTerm[] { term }, null, false, "trackedObjectId")));
+        assertEquals(2L, set.count(new SearchTerm("trackedObjectId", Operator.IN, new Object[] { 2, 4L, 9L })));
+    }
+
+    @Test
+    public void testOr() throws PersistenceException {
+        SearchTerm term = SearchTerm.or(new SearchTerm("name", "alpha"), new SearchTerm("rank", Operator.GREATER_THAN, 3));
+
+        assertEquals(ids(1L, 4L, 5L), ids(set.find(new SearchTerm[] { term }, null, false, "trackedObjectId")));
+    }
+
+    @Test
+    public void testRange() throws PersistenceException {
+        SearchTerm[] terms = new SearchTerm[] {
+                new SearchTerm("name", Operator.GREATER_THAN_OR_EQUAL_TO, "beta"),
+                new SearchTerm("name", Operator.LESS_THAN, "gamma")
+        };
+
+        assertEquals(ids(2L, 5L), ids(set.find(terms, null, false, "trackedObjectId")));
+        assertEquals(ids(2L, 3L), ids(set.find(new SearchTerm[] { new SearchTerm("rank", Operator.LESS_THAN_OR_EQUAL_TO, 2) }, null, false, "rank")));
+    }
+
+    @Test
+    public void testPutReindexes() throws PersistenceException {
+        set.put(object(2L, "gamma", 1));
+        set.put(object(6L, "beta", 6));
+        assertEquals(ids(5L, 6L), ids(set.find(new SearchTerm[] { new SearchTerm("name", "beta") }, null, false, "trackedObjectId")));
+        assertEquals(ids(2L, 3L), ids(set.find(new SearchTerm[] { new SearchTerm("name", "gamma") }, null, false, "trackedObjectId")));
+        assertEquals(6, set.size());
+    }
+
+    @Test
+    public void testRemove() throws PersistenceException {
+        set.remove(5L);
+        assertEquals(ids(2L), ids(set.find(new SearchTerm[] { new SearchTerm("name", "beta") }, null, null)));
+        set.removeAll(new SearchTerm("rank", Operator.LESS_THAN, 3));
+        assertEquals(ids(1L, 4L), ids(set.find(new SearchTerm[0], null, false, "trackedObjectId")));
+        assertEquals(0L, set.count(new SearchTerm("name", Operator.IN, Arrays.asList("beta", "gamma"))));
+    }
+
+    @Test
+    public void testWritesWaitForCommit() throws Exception {
+        String dsn = getClass().getName() + "." + getName();
+        ResidentSet<TrackedObject> resident;
+        Transaction xaction;
+
+        RecordingDataSource.bind(dsn);
+        cache.create(Transaction.getInstance(), TrackingCache.state(1L, "one", 1));
+        resident = cache.getResidentSet();
+        assertNotNull(resident);
+        assertEquals(1, resident.size());
+
+        xaction = TrackingCache.begin(dsn);
+        cache.create(xaction, TrackingCache.state(2L, "two", 2));
+        cache.update(xaction, cache.get(1L), TrackingCache.state(1L, "uno", 1));
+        xaction.rollback();
+        assertSame(resident, cache.getResidentSet());
+        assertEquals(1, resident.size());
+        assertEquals(1L, resident.count(new SearchTerm("name", "one")));
+
+        xaction = TrackingCache.begin(dsn);
+        cache.create(xaction, TrackingCache.state(3L, "three", 3));
+        assertEquals("Applied before commit", 0L, resident.count(new SearchTerm("name", "three")));
+        xaction.commit();
+        assertSame(resident, cache.getResidentSet());
+        assertEquals(1L, resident.count(new SearchTerm("name", "three")));
+    }
+
+    @Test
+    public void testResidentObjectsAreCached() throws Exception {
+        String dsn = getClass().getName() + "." + getName();
+        int searches;
+        Transaction xaction;
+
+        RecordingDataSource.bind(dsn);
+        cache.create(Transaction.getInstance(), TrackingCache.state(1L, "one", 1));
+        assertNotNull(cache.getResidentSet());
+        searches = cache.getBackendSearches();
+
+        xaction = TrackingCache.begin(dsn);
+        cache.create(xaction, TrackingCache.state(2L, "two", 2));
+        cache.update(xaction, cache.get(1L), TrackingCache.state(1L, "uno", 7));
+        xaction.commit();
+
+        TrackedObject created = cache.find(new SearchTerm("name", "two")).iterator().next();
+        TrackedObject updated = cache.find(new SearchTerm("name", "uno")).iterator().next();
+
+        assertSame(cache.getCache().find("trackedObjectId", 2L), created);
+        assertSame(cache.getCache().find("trackedObjectId", 1L), updated);
+        assertEquals(7, updated.getRank());
+        assertEquals(0L, cache.count(new SearchTerm("name", "one")));
+        assertEquals("Searched the data store", searches, cache.getBackendSearches());
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.persist.riak.RiakCache;
+import org.dasein.util.CachedItem;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the MapReduce jobs {@link RiakCache} sends for aggregates against a stub Riak, and runs their reduce
+ * phase in the JVM's JavaScript engine, both directly and re-reducing its own partial results as Riak may.
+ */
+public class RiakAggregateTest extends TestCase {
+    static public class Scored implements CachedItem {
+        @Index(type=IndexType.PRIMARY)
+        private long   scoredId;
+        private int    points;
+        private String team;
+
+        public Scored() { }
+
+        public int getPoints() {
+            return points;
+        }
+
+        public long getScoredId() {
+            return scoredId;
+        }
+
+        public String getTeam() {
+            return team;
+        }
+
+        public boolean isValidForCache() {
+            return true;
+        }
+    }
+
+    /**
+     * Answers every MapReduce job with the same partial results.
+     */
+    static private class StubRiak implements HttpHandler {
+        public List<JSONObject> jobs     = new CopyOnWriteArrayList<JSONObject>();
+        public volatile String  partials = "[]";
+        public volatile int     status   = 200;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[1024];
+            int count;
+
+            while( (count = in.read(buffer)) > -1 ) {
+                request.write(buffer, 0, count);
+            }
+            try {
+                jobs.add(new JSONObject(new String(request.toByteArray(), "utf-8")));
+            }
+            catch( Exception e ) {
+                throw new IOException(e.getMessage());
+            }
+            byte[] body = partials.getBytes("utf-8");
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private RiakCache<Scored> cache  = null;
+    private HttpServer        server = null;
+    private StubRiak          stub   = null;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        Properties props = PersistentCache.getProperties();
+        String cname = Scored.class.getName();
+
+        stub = new StubRiak();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", stub);
+        server.start();
+        props.setProperty("dasein.persist.riak.host." + cname, "127.0.0.1");
+        props.setProperty("dasein.persist.riak.port." + cname, String.valueOf(server.getAddress().getPort()));
+        cache = new RiakCache<Scored>();
+        cache.initBase(Scored.class, "scored", "2012-08", null, new Key("scoredId"));
+    }
+
+    @After
+    @Override
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private JSONObject phase(int job, int index, String type) throws Exception {
+        return stub.jobs.get(job).getJSONArray("query").getJSONObject(index).getJSONObject(type);
+    }
+
+    private Map<Object,Object> byGroup(Collection<Map<String,Object>> rows, String field) {
+        HashMap<Object,Object> values = new HashMap<Object,Object>();
+
+        for( Map<String,Object> row : rows ) {
+            values.put(row.get(field), row.get(PersistentCache.AGGREGATE));
+        }
+        return values;
+    }
+
+    /**
+     * Loads the reduce phase Riak was sent for the specified aggregate into a JavaScript engine as <code>reduce</code>.
+     * @param function the aggregate function
+     * @return the engine or <code>null</code> if this JVM has no JavaScript engine
+     * @throws Exception the aggregate or the script failed
+     */
+    private ScriptEngine reducer(Aggregate function) throws Exception {
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("javascript");
+
+        cache.aggregate(new SearchTerm[0], function, "points", "team");
+        if( engine == null ) {
+            // Java 6 through 8 ship with one; later JVMs need one on the class path
+            return null;
+        }
+        engine.eval("var reduce = " + phase(stub.jobs.size() - 1, 1, "reduce").getString("source") + ";");
+        return engine;
+    }
+
+    private String run(ScriptEngine engine, String script) throws Exception {
+        return (String)engine.eval("JSON.stringify(" + script + ")");
+    }
+
+    @Test
+    public void testGroupedJob() throws Exception {
+        Collection<Map<String,Object>> rows;
+
+        stub.partials = "[{\"g\":[\"red\"],\"c\":2,\"s\":7,\"m\":null},{\"g\":[\"blue\"],\"c\":1,\"s\":3,\"m\":null}]";
+        rows = cache.aggregate(new SearchTerm[0], Aggregate.AVG, "points", "team");
+        assertEquals(2, rows.size());
+        assertEquals(3.5, byGroup(rows, "team").get("red"));
+        assertEquals(3.0, byGroup(rows, "team").get("blue"));
+
+        JSONObject map = phase(0, 0, "map");
+        JSONObject reduce = phase(0, 1, "reduce");
+
+        assertFalse("Kept the output of the map phase", map.getBoolean("keep"));
+        assertTrue(map.getString("source"), map.getString("source").contains("[[v.team],v.points]"));
+        assertTrue(reduce.getBoolean("keep"));
+        assertEquals("javascript", reduce.getString("language"));
+    }
+
+    @Test
+    public void testDecodesEachFunction() throws Exception {
+        stub.partials = "[{\"g\":[\"red\"],\"c\":2,\"s\":7,\"m\":5}]";
+        assertEquals(2L, byGroup(cache.aggregate(new SearchTerm[0], Aggregate.COUNT, "points", "team"), "team").get("red"));
+        assertEquals(7L, byGroup(cache.aggregate(new SearchTerm[0], Aggregate.SUM, "points", "team"), "team").get("red"));
+        assertEquals(5, byGroup(cache.aggregate(new SearchTerm[0], Aggregate.MAX, "points", "team"), "team").get("red"));
+        stub.partials = "[{\"g\":[\"red\"],\"c\":0,\"s\":null,\"m\":null}]";
+        assertNull(byGroup(cache.aggregate(new SearchTerm[0], Aggregate.AVG, "points", "team"), "team").get("red"));
+    }
+
+    @Test
+    public void testEmptyRowWithoutGrouping() throws Exception {
+        Collection<Map<String,Object>> rows = cache.aggregate(new SearchTerm[0], Aggregate.COUNT, null);
+
+        assertEquals(1, rows.size());
+        assertEquals(0L, rows.iterator().next().get(PersistentCache.AGGREGATE));
+        assertTrue(phase(0, 0, "map").getString("source").contains("[[],1]"));
+
+        stub.status = 404;
+        rows = cache.aggregate(new SearchTerm[0], Aggregate.SUM, "points");
+        assertEquals(1, rows.size());
+        assertNull(rows.iterator().next().get(PersistentCache.AGGREGATE));
+        assertTrue("Grouped aggregate of no objects returned a row", cache.aggregate(new SearchTerm[0], Aggregate.SUM, "points", "team").isEmpty());
+    }
+
+    @Test
+    public void testReduce() throws Exception {
+        ScriptEngine engine = reducer(Aggregate.SUM);
+
+        if( engine == null ) {
+            return;
+        }
+        assertEquals("[{\"g\":[\"red\"],\"c\":2,\"s\":7,\"m\":null},{\"g\":[\"blue\"],\"c\":0,\"s\":null,\"m\":null}]", run(engine, "reduce([[['red'],3],[['blue'],null],[['red'],4]])"));
+        assertEquals("[]", run(engine, "reduce([])"));
+    }
+
+    @Test
+    public void testReReduce() throws Exception {
+        ScriptEngine engine = reducer(Aggregate.SUM);
+        String once;
+
+        if( engine == null ) {
+            return;
+        }
+        engine.eval("function first() { return [[['red'],3],[['blue'],1]]; } function second() { return [[['red'],4],[['green'],null],[['blue'],2]]; }");
+        once = run(engine, "reduce(first().concat(second()))");
+        assertEquals("[{\"g\":[\"red\"],\"c\":2,\"s\":7,\"m\":null},{\"g\":[\"blue\"],\"c\":2,\"s\":3,\"m\":null},{\"g\":[\"green\"],\"c\":0,\"s\":null,\"m\":null}]", once);
+        assertEquals("Partial results reduced again changed the result", once, run(engine, "reduce(reduce(first()).concat(reduce(second())))"));
+        assertEquals("Partial results mixed with new values changed the result", once, run(engine, "reduce(reduce(first()).concat(second()))"));
+        assertEquals(once, run(engine, "reduce(reduce(reduce(first().concat(second()))))"));
+    }
+
+    @Test
+    public void testReReduceExtremes() throws Exception {
+        ScriptEngine max = reducer(Aggregate.MAX);
+        ScriptEngine min = reducer(Aggregate.MIN);
+
+        if( max == null || min == null ) {
+            return;
+        }
+        assertEquals("[{\"g\":[\"red\"],\"c\":3,\"s\":null,\"m\":9}]", run(max, "reduce(reduce([[['red'],3],[['red'],9]]).concat(reduce([[['red'],5]])))"));
+        assertEquals("[{\"g\":[\"red\"],\"c\":3,\"s\":null,\"m\":3}]", run(min, "reduce(reduce([[['red'],3],[['red'],9]]).concat(reduce([[['red'],5]])))"));
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.persist.riak.RiakCache;
+import org.dasein.util.CachedItem;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the conditional GETs {@link RiakCache} sends for objects it already holds against a stub Riak that
+ * answers 304 while the stored copy keeps its ETag.
+ */
+public class RiakRevalidationTest extends TestCase {
+    static public class Stored implements CachedItem {
+        @Index(type=IndexType.PRIMARY)
+        private long   storedId;
+        private String name;
+
+        public Stored() { }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStoredId() {
+            return storedId;
+        }
+
+        public boolean isValidForCache() {
+            return true;
+        }
+    }
+
+    /**
+     * Serves a single stored object, answering 304 to requests that already hold its current ETag.
+     */
+    static private class StubRiak implements HttpHandler {
+        public List<String>    conditional = new CopyOnWriteArrayList<String>();
+        public volatile String etag        = "\"v1\"";
+        public volatile String name        = "one";
+        public List<String>    paths       = new CopyOnWriteArrayList<String>();
+
+        public void handle(HttpExchange exchange) throws IOException {
+            String match = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String tag = etag;
+
+            paths.add(exchange.getRequestURI().getPath());
+            if( match != null ) {
+                conditional.add(match);
+            }
+            if( tag.equals(match) ) {
+                exchange.sendResponseHeaders(304, -1L);
+                exchange.close();
+                return;
+            }
+            byte[] body = ("{\"storedId\":1,\"name\":\"" + name + "\",\"SCHEMA_VERSION\":\"2012-08\"}").getBytes("utf-8");
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("ETag", tag);
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private RiakCache<Stored> cache  = null;
+    private HttpServer        server = null;
+    private StubRiak          stub   = null;
+
+    @Override
+    public void setUp() throws Exception {
+        Properties props = PersistentCache.getProperties();
+        String cname = Stored.class.getName();
+
+        stub = new StubRiak();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", stub);
+        server.start();
+        props.setProperty("dasein.persist.riak.host." + cname, "127.0.0.1");
+        props.setProperty("dasein.persist.riak.port." + cname, String.valueOf(server.getAddress().getPort()));
+        props.setProperty("dasein.persist.cache.refreshAfter." + cname, "1");
+        cache = new RiakCache<Stored>();
+        cache.initBase(Stored.class, "stored", "2012-08", null, new Key("storedId"));
+    }
+
+    @Override
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testRevalidateNotModified() throws Exception {
+        Stored item = cache.get(1L);
+
+        assertNotNull(item);
+        assertEquals("one", item.getName());
+        assertEquals("/buckets/stored/keys/1", stub.paths.get(0));
+        assertTrue("The first GET was conditional", stub.conditional.isEmpty());
+        assertSame(item, cache.revalidate(1L));
+        assertEquals(1L, cache.getRevalidationCount());
+        assertEquals(1L, cache.getNotModifiedCount());
+        assertEquals("\"v1\"", stub.conditional.get(0));
+        assertSame(item, cache.get(1L));
+    }
+
+    @Test
+    public void testRevalidateModified() throws Exception {
+        Stored item = cache.get(1L);
+        Stored changed;
+
+        stub.etag = "\"v2\"";
+        stub.name = "uno";
+        changed = cache.revalidate(1L);
+        assertNotSame(item, changed);
+        assertEquals("uno", changed.getName());
+        assertEquals(0L, cache.getNotModifiedCount());
+        assertSame(changed, cache.get(1L));
+
+        // the new ETag is used from now on
+        assertSame(changed, cache.revalidate(1L));
+        assertEquals("\"v2\"", stub.conditional.get(1));
+        assertEquals(1L, cache.getNotModifiedCount());
+    }
+
+    @Test
+    public void testRefreshAheadNotModified() throws Exception {
+        Stored item = cache.get(1L);
+        long until;
+
+        Thread.sleep(1100L);
+        // a stale read still answers from the cache and hands the reload to a background thread
+        assertSame(item, cache.get(1L));
+        until = System.currentTimeMillis() + 10000L;
+        while( cache.getNotModifiedCount() < 1L && System.currentTimeMillis() < until ) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1L, cache.getRevalidationCount());
+        assertEquals(1L, cache.getNotModifiedCount());
+        assertEquals(2, stub.paths.size());
+        assertSame(item, cache.get(1L));
+    }
+}
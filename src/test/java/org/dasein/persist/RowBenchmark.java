@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.persist.jdbc.Loader;
+import org.dasein.persist.jdbc.RowLayout;
+
+/**
+ * Compares reading and hydrating wide {@link WideObject} rows as one {@link HashMap} per row against the
+ * shared {@link RowLayout} with a value array per row. The result set is simulated in memory, so the numbers
+ * cover only the work done by the loader and the cache, not the driver.
+ * <p>Run with <code>java -cp ... org.dasein.persist.RowBenchmark [rows] [rounds]</code>. Not part of the test suite.</p>
+ */
+public class RowBenchmark {
+    static public void main(String ... args) throws Exception {
+        int rows = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+        int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 5);
+        RelationalCache<WideObject> cache = new RelationalCache<WideObject>();
+        Method toTarget = null;
+        Method getRowMapper = null;
+
+        cache.initBase(WideObject.class, null, "2012-08", null, new Key("keyField"));
+        for( Method m : RelationalCache.class.getDeclaredMethods() ) {
+            if( m.getName().equals("toTarget") && m.getParameterTypes().length == 2 ) {
+                toTarget = m;
+            }
+            else if( m.getName().equals("getRowMapper") ) {
+                getRowMapper = m;
+            }
+        }
+        toTarget.setAccessible(true);
+        getRowMapper.setAccessible(true);
+        for( int round=0; round<rounds; round++ ) {
+            System.out.println("Round " + (round + 1) + " (" + rows + " rows):");
+            run("  maps  ", rows, false, cache, toTarget, getRowMapper);
+            run("  arrays", rows, true, cache, toTarget, getRowMapper);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static private void run(String label, int rows, boolean arrays, RelationalCache<WideObject> cache, Method toTarget, Method getRowMapper) throws Exception {
+        Loader loader = newLoader(rows);
+        HashMap<String,Object> params = new HashMap<String,Object>();
+        long bytes, start, read, check = 0L;
+        Object mapper = null;
+
+        if( arrays ) {
+            params.put(Loader.ROW_ARRAYS, true);
+        }
+        cache.releaseAll();
+        System.gc();
+        bytes = MappingBenchmark.allocatedBytes();
+        start = System.nanoTime();
+        Collection<Map<String,Object>> listing = (Collection<Map<String,Object>>)loader.run(null, params).get(Loader.LISTING);
+
+        read = System.nanoTime();
+        for( Map<String,Object> row : listing ) {
+            if( mapper == null && row instanceof RowLayout.Row ) {
+                mapper = getRowMapper.invoke(cache, ((RowLayout.Row)row).getLayout());
+            }
+            check += ((WideObject)toTarget.invoke(cache, row, mapper)).getKeyField();
+        }
+        long end = System.nanoTime();
+        long allocated = MappingBenchmark.allocatedBytes() - bytes;
+
+        System.out.println(label + ": read " + ((read - start)/rows) + " ns/row, hydrate " + ((end - read)/rows) + " ns/row" + (bytes < 0 ? "" : ", " + (allocated/rows) + " bytes/row") + " (" + check + ")");
+    }
+
+    static private Loader newLoader(int rows) {
+        Loader loader = new Loader() {
+            public void init() {
+                setTarget(WideObject.class.getName());
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+
+        loader.statement = statement(loader.getLayout(), rows);
+        return loader;
+    }
+
+    /**
+     * @return a prepared statement whose query produces the specified number of rows of sample data
+     */
+    static private PreparedStatement statement(final RowLayout layout, final int rows) {
+        final Object[] sample = new Object[layout.getColumnCount()];
+
+        for( int i=0; i<sample.length; i++ ) {
+            sample[i] = sample(layout.getType(i), i);
+        }
+        final ResultSet results = (ResultSet)Proxy.newProxyInstance(RowBenchmark.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            private int row = 0;
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+
+                if( name.equals("next") ) {
+                    return (row++ < rows);
+                }
+                else if( name.equals("wasNull") ) {
+                    return false;
+                }
+                else if( name.equals("close") ) {
+                    return null;
+                }
+                int i = (Integer)args[0] - 1;
+                Object value = (layout.getColumn(i).equals("keyField") ? Long.valueOf(row) : sample[i]);
+
+                if( name.equals("getString") ) {
+                    return value.toString();
+                }
+                else if( name.equals("getLong") ) {
+                    return ((Number)value).longValue();
+                }
+                else if( name.equals("getInt") ) {
+                    return ((Number)value).intValue();
+                }
+                else if( name.equals("getDouble") ) {
+                    return ((Number)value).doubleValue();
+                }
+                else if( name.equals("getFloat") ) {
+                    return ((Number)value).floatValue();
+                }
+                else if( name.equals("getBigDecimal") ) {
+                    return new BigDecimal(value.toString());
+                }
+                return value;
+            }
+        });
+
+        return (PreparedStatement)Proxy.newProxyInstance(RowBenchmark.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return (method.getName().equals("executeQuery") ? results : null);
+            }
+        });
+    }
+
+    static private Object sample(Class<?> type, int i) {
+        if( type.equals(String.class) ) {
+            return "String value " + i;
+        }
+        else if( type.equals(boolean.class) || type.equals(Boolean.class) ) {
+            return (i % 2 == 0 ? "Y" : "N");
+        }
+        else if( type.equals(double.class) || type.equals(Double.class) ) {
+            return i + 0.5;
+        }
+        else if( type.equals(BigDecimal.class) ) {
+            return "12345.678";
+        }
+        else if( type.equals(UUID.class) ) {
+            return UUID.randomUUID().toString();
+        }
+        else if( type.equals(IndexType.class) ) {
+            return IndexType.values()[i % IndexType.values().length].name();
+        }
+        else if( type.getName().equals("java.util.Locale") ) {
+            return "en_US";
+        }
+        return Long.valueOf(i * 1000L);
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.test.MockPersistentCache;
+import org.dasein.util.CacheLoader;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class SchemaMigratorTest extends TestCase {
+    static private final String CURRENT = "2012-08";
+    static private final String LEGACY  = "2012-07";
+
+    /**
+     * Upgrades objects stored before descriptions were required.
+     */
+    static public class LegacyMapper implements SchemaMapper {
+        public String getSourceVersion() {
+            return LEGACY;
+        }
+
+        public String getTargetVersion() {
+            return CURRENT;
+        }
+
+        public Map<String,Object> map(String sourceVersion, Map<String,Object> sourceData) {
+            if( sourceData.get("description") == null ) {
+                sourceData.put("description", "migrated");
+            }
+            return sourceData;
+        }
+
+        public JSONObject map(String sourceVersion, JSONObject sourceData) throws JSONException {
+            if( !sourceData.has("description") ) {
+                sourceData.put("description", "migrated");
+            }
+            return sourceData;
+        }
+    }
+
+    /**
+     * Keeps each object's state with the schema version it was stored under and reads objects through the cache,
+     * holding reads made by the migrator until they are released.
+     */
+    static private class StoredCache extends MockPersistentCache<TrackedObject> {
+        public CountDownLatch                    gate     = new CountDownLatch(0);
+        public CountDownLatch                    held     = new CountDownLatch(1);
+        public Map<Object,Map<String,Object>>    rows     = new ConcurrentHashMap<Object,Map<String,Object>>();
+        public Map<Object,String>                versions = new ConcurrentHashMap<Object,String>();
+        public AtomicInteger                     writes   = new AtomicInteger(0);
+
+        public StoredCache() {
+            initBase(TrackedObject.class, null, CURRENT, new SchemaMapper[] { new LegacyMapper() }, new Key("trackedObjectId"), new Key("name"));
+        }
+
+        @Override
+        public TrackedObject get(final Object key) throws PersistenceException {
+            return getCache().find("trackedObjectId", key, new CacheLoader<TrackedObject>() {
+                public TrackedObject load(Object ... args) {
+                    try {
+                        if( Thread.currentThread().getName().startsWith("SchemaMigrator") ) {
+                            held.countDown();
+                            gate.await(10, TimeUnit.SECONDS);
+                        }
+                        Map<String,Object> row = rows.get(key);
+
+                        return (row == null ? null : toTargetFromMap(versions.get(key), new HashMap<String,Object>(row)));
+                    }
+                    catch( Exception e ) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        public void store(String version, Map<String,Object> state) {
+            rows.put(state.get("trackedObjectId"), state);
+            versions.put(state.get("trackedObjectId"), version);
+        }
+
+        @Override
+        public void update(Transaction xaction, TrackedObject item, Map<String,Object> state) throws PersistenceException {
+            HashMap<String,Object> row = new HashMap<String,Object>(rows.get(item.getTrackedObjectId()));
+
+            row.putAll(state);
+            store(CURRENT, row);
+            getCache().release(item);
+            writes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Builds a cache that queues upgraded objects with its own migrator, writing them back as fast as possible.
+     * @return the cache
+     */
+    private StoredCache migrating() {
+        Properties props = PersistentCache.getProperties();
+        String property = "dasein.persist.migrate." + TrackedObject.class.getName();
+
+        props.setProperty(property, "true");
+        props.setProperty("dasein.persist.migrate.rate", "0");
+        try {
+            return new StoredCache();
+        }
+        finally {
+            props.remove(property);
+            props.remove("dasein.persist.migrate.rate");
+        }
+    }
+
+    private void await(StoredCache cache, long migrated) throws InterruptedException {
+        long until = System.currentTimeMillis() + 10000L;
+
+        while( (cache.getMigratedCount() < migrated || cache.getOutstandingMigrationCount() > 0) && System.currentTimeMillis() < until ) {
+            Thread.sleep(5L);
+        }
+    }
+
+    @Test
+    public void testWritesBackUpgradedObjects() throws Exception {
+        StoredCache cache = migrating();
+
+        cache.store(LEGACY, TrackingCache.state(1L, "legacy", 1));
+        cache.store(CURRENT, TrackingCache.state(2L, "current", 2));
+        assertEquals("migrated", cache.get(1L).getDescription());
+        assertNull(cache.get(2L).getDescription());
+        await(cache, 1L);
+        assertEquals(1L, cache.getMigratedCount());
+        assertEquals(1, cache.writes.get());
+        assertEquals(CURRENT, cache.versions.get(1L));
+        assertEquals("migrated", cache.rows.get(1L).get("description"));
+        assertEquals(CURRENT, cache.versions.get(2L));
+    }
+
+    @Test
+    public void testUpdateAfterReadIsKept() throws Exception {
+        StoredCache cache = migrating();
+        TrackedObject item;
+
+        cache.store(LEGACY, TrackingCache.state(1L, "legacy", 1));
+        cache.gate = new CountDownLatch(1);
+        item = cache.get(1L);
+        assertEquals(1, cache.getOutstandingMigrationCount());
+        // the object changes while its key waits for write-back
+        cache.update(null, item, TrackingCache.state(1L, "changed", 5));
+        cache.gate.countDown();
+        await(cache, 0L);
+        assertEquals("An object already at the current version was written back", 0L, cache.getMigratedCount());
+        assertEquals(1, cache.writes.get());
+        assertEquals("changed", cache.rows.get(1L).get("name"));
+        assertEquals(5, cache.rows.get(1L).get("rank"));
+    }
+
+    @Test
+    public void testWriteBackUsesFreshCopy() throws Exception {
+        StoredCache cache = migrating();
+
+        cache.store(LEGACY, TrackingCache.state(1L, "legacy", 1));
+        cache.gate = new CountDownLatch(1);
+        cache.get(1L);
+        // another node changes the object without upgrading it
+        cache.store(LEGACY, TrackingCache.state(1L, "elsewhere", 7));
+        cache.gate.countDown();
+        await(cache, 1L);
+        assertEquals(1L, cache.getMigratedCount());
+        assertEquals(CURRENT, cache.versions.get(1L));
+        assertEquals("elsewhere", cache.rows.get(1L).get("name"));
+        assertEquals(7, cache.rows.get(1L).get("rank"));
+        assertEquals("migrated", cache.rows.get(1L).get("description"));
+    }
+
+    @Test
+    public void testQueueDeduplicates() throws Exception {
+        StoredCache cache = new StoredCache();
+        SchemaMigrator<TrackedObject> migrator = new SchemaMigrator<TrackedObject>(cache, 0);
+        TrackedObject item = cache.toTargetFromMap(CURRENT, TrackingCache.state(1L, "one", 1));
+
+        cache.gate = new CountDownLatch(1);
+        migrator.queue(item);
+        migrator.queue(item);
+        migrator.queue(cache.toTargetFromMap(CURRENT, TrackingCache.state(1L, "one", 2)));
+        assertEquals(1, migrator.getOutstandingCount());
+        migrator.queue(cache.toTargetFromMap(CURRENT, TrackingCache.state(2L, "two", 1)));
+        migrator.queue(cache.toTargetFromMap(CURRENT, TrackingCache.state(2L, "two", 1)));
+        assertEquals(2, migrator.getOutstandingCount());
+        cache.gate.countDown();
+    }
+
+    @Test
+    public void testBacklogIsCapped() throws Exception {
+        StoredCache cache = new StoredCache();
+        SchemaMigrator<TrackedObject> migrator = new SchemaMigrator<TrackedObject>(cache, 0);
+        long until = System.currentTimeMillis() + 10000L;
+        long dropped = SchemaMigrator.MAXIMUM_BACKLOG + 1L;
+
+        cache.gate = new CountDownLatch(1);
+        migrator.queue(cache.toTargetFromMap(CURRENT, TrackingCache.state(0L, "held", 1)));
+        // the writer keeps the first key while it waits to read the object again
+        assertTrue(cache.held.await(10, TimeUnit.SECONDS));
+        for( long i=1; i<=dropped; i++ ) {
+            migrator.queue(cache.toTargetFromMap(CURRENT, TrackingCache.state(i, "object " + i, 1)));
+        }
+        assertEquals("Backlog grew past its limit", SchemaMigrator.MAXIMUM_BACKLOG + 1, migrator.getOutstandingCount());
+        cache.gate.countDown();
+        while( migrator.getOutstandingCount() > 0 && System.currentTimeMillis() < until ) {
+            Thread.sleep(5L);
+        }
+        assertEquals(0, migrator.getOutstandingCount());
+        assertEquals("Wrote back objects that are gone", 0L, migrator.getMigratedCount());
+        cache.gate = new CountDownLatch(1);
+        migrator.queue(cache.toTargetFromMap(CURRENT, TrackingCache.state(dropped, "dropped", 1)));
+        assertEquals("A key dropped from a full backlog was not accepted later", 1, migrator.getOutstandingCount());
+        cache.gate.countDown();
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.dasein.util.CacheLoader;
+import org.junit.Test;
+
+public class SingleFlightTest extends TestCase {
+    static private final int CALLERS = 8;
+
+    /**
+     * Counts its loads and holds each one until released.
+     */
+    static private class GatedLoader implements CacheLoader<String> {
+        public AtomicInteger    calls   = new AtomicInteger(0);
+        public CountDownLatch   release = new CountDownLatch(1);
+        public RuntimeException failure;
+        public Error            error;
+
+        public String load(Object ... args) {
+            calls.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch( InterruptedException e ) {
+                throw new RuntimeException(e);
+            }
+            if( failure != null ) {
+                throw failure;
+            }
+            if( error != null ) {
+                throw error;
+            }
+            return "loaded " + args[0];
+        }
+    }
+
+    private ExecutorService pool = null;
+
+    @Override
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @Override
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private List<Future<String>> start(final SingleFlight<String> flight, final GatedLoader loader) throws InterruptedException {
+        List<Future<String>> results = new ArrayList<Future<String>>();
+
+        for( int i=0; i<CALLERS; i++ ) {
+            results.add(pool.submit(new Callable<String>() {
+                public String call() {
+                    return flight.load("key", loader, "key");
+                }
+            }));
+        }
+        long until = System.currentTimeMillis() + 10000L;
+
+        // every caller must have joined before the load is allowed to finish
+        while( flight.getCoalescedCount() < CALLERS - 1 && System.currentTimeMillis() < until ) {
+            Thread.sleep(5L);
+        }
+        assertEquals(CALLERS - 1, flight.getCoalescedCount());
+        return results;
+    }
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<String>();
+        GatedLoader loader = new GatedLoader();
+        List<Future<String>> results = start(flight, loader);
+
+        assertEquals(1, flight.getInFlightCount());
+        loader.release.countDown();
+        for( Future<String> result : results ) {
+            assertEquals("loaded key", result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loader.calls.get());
+        assertEquals(1L, flight.getLoadCount());
+        assertEquals(0, flight.getInFlightCount());
+    }
+
+    @Test
+    public void testFailureReachesEveryCaller() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<String>();
+        GatedLoader loader = new GatedLoader();
+        List<Future<String>> results;
+
+        loader.failure = new IllegalStateException("Simulated failure");
+        results = start(flight, loader);
+        loader.release.countDown();
+        for( Future<String> result : results ) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("A caller did not see the failure");
+            }
+            catch( ExecutionException e ) {
+                assertSame(loader.failure, e.getCause());
+            }
+        }
+        assertEquals(1, loader.calls.get());
+        assertEquals(1L, flight.getFailureCount());
+        assertEquals(0, flight.getInFlightCount());
+
+        // a failed load is not remembered
+        loader.failure = null;
+        assertEquals("loaded key", flight.load("key", loader, "key"));
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void testErrorReachesEveryCaller() throws Exception {
+        SingleFlight<String> flight = new SingleFlight<String>();
+        GatedLoader loader = new GatedLoader();
+        List<Future<String>> results;
+
+        loader.error = new AssertionError("Simulated error");
+        results = start(flight, loader);
+        loader.release.countDown();
+        for( Future<String> result : results ) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("A caller did not see the error");
+            }
+            catch( ExecutionException e ) {
+                assertSame(loader.error, e.getCause());
+            }
+        }
+        assertEquals(1L, flight.getFailureCount());
+        assertEquals(0, flight.getInFlightCount());
+    }
+
+    @Test
+    public void testNullKeysAreNotCoalesced() {
+        SingleFlight<String> flight = new SingleFlight<String>();
+        GatedLoader loader = new GatedLoader();
+
+        loader.release.countDown();
+        assertEquals("loaded a", flight.load(null, loader, "a"));
+        assertEquals("loaded b", flight.wrap(null, loader).load("b"));
+        assertEquals(2, loader.calls.get());
+        assertEquals(0L, flight.getLoadCount());
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.test.MockPersistentCache;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class StateCodecTest extends TestCase {
+    static private final String TRICKY = "quote \" slash \\ tag </script> tab \t line \n nul \u0000 accent é euro €";
+
+    private MockPersistentCache<WideObject> cache = null;
+
+    @Override
+    public void setUp() throws Exception {
+        cache = new MockPersistentCache<WideObject>();
+        cache.initBase(WideObject.class, null, "2012-08", null, new Key("keyField"));
+    }
+
+    private Map<String,Object> state() throws PersistenceException {
+        return cache.toMapFromJSON(cache.toDataStoreJSONFromCurrentState(MappingBenchmark.sampleState(42L)));
+    }
+
+    private String json(WideObject item) throws Exception {
+        StringWriter out = new StringWriter();
+
+        cache.writeDataStoreJSON(item, out);
+        return out.toString();
+    }
+
+    private Map<String,Object> members() {
+        LinkedHashMap<String,Object> members = new LinkedHashMap<String,Object>();
+        HashMap<String,Object> nested = new HashMap<String,Object>();
+
+        nested.put("inner", "value");
+        nested.put("count", 3);
+        members.put("string", TRICKY);
+        members.put("empty", "");
+        members.put("yes", true);
+        members.put("no", false);
+        members.put("zero", 0);
+        members.put("negative", -17);
+        members.put("max", Long.MAX_VALUE);
+        members.put("min", Long.MIN_VALUE);
+        members.put("double", 1234.5);
+        members.put("decimal", new BigDecimal("12345678901234567890.123456789"));
+        members.put("array", new Object[] { 1, "two", null, 4.5 });
+        members.put("object", nested);
+        members.put("missing", null);
+        return members;
+    }
+
+    private void write(StateWriter writer, Map<String,Object> members) throws Exception {
+        writer.beginObject();
+        for( Map.Entry<String,Object> member : members.entrySet() ) {
+            writer.member(member.getKey(), member.getValue());
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    private Map<String,Object> read(StateReader reader) throws Exception {
+        LinkedHashMap<String,Object> members = new LinkedHashMap<String,Object>();
+
+        reader.beginObject();
+        while( reader.hasNext() ) {
+            String name = reader.nextName();
+
+            members.put(name, reader.nextValue());
+        }
+        reader.endObject();
+        return members;
+    }
+
+    private void assertMembers(Map<String,Object> read) {
+        assertEquals(Arrays.asList("string", "empty", "yes", "no", "zero", "negative", "max", "min", "double", "decimal", "array", "object", "missing"), Arrays.asList(read.keySet().toArray()));
+        assertEquals(TRICKY, read.get("string"));
+        assertEquals("", read.get("empty"));
+        assertEquals(Boolean.TRUE, read.get("yes"));
+        assertEquals(Boolean.FALSE, read.get("no"));
+        assertEquals(0L, ((Number)read.get("zero")).longValue());
+        assertEquals(-17L, ((Number)read.get("negative")).longValue());
+        assertEquals(Long.MAX_VALUE, ((Number)read.get("max")).longValue());
+        assertEquals(Long.MIN_VALUE, ((Number)read.get("min")).longValue());
+        assertEquals(1234.5, ((Number)read.get("double")).doubleValue());
+        assertNull(read.get("missing"));
+
+        JSONArray array = (JSONArray)read.get("array");
+        JSONObject object = (JSONObject)read.get("object");
+
+        assertEquals(4, array.length());
+        assertEquals(1, array.optInt(0));
+        assertEquals("two", array.optString(1));
+        assertTrue(array.isNull(2));
+        assertEquals(4.5, array.optDouble(3));
+        assertEquals("value", object.optString("inner"));
+        assertEquals(3, object.optInt("count"));
+    }
+
+    @Test
+    public void testJSONMembers() throws Exception {
+        StringWriter out = new StringWriter();
+
+        Map<String,Object> read;
+
+        write(new JSONStreamWriter(out), members());
+        read = read(new JSONStreamReader(new StringReader(out.toString())));
+        assertMembers(read);
+        // numbers are typed as org.json types them, so a long decimal comes back as a double
+        assertEquals(new JSONObject(out.toString()).get("decimal"), read.get("decimal"));
+        assertEquals(TRICKY, new JSONObject(out.toString()).getString("string"));
+    }
+
+    @Test
+    public void testBinaryMembers() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Map<String,Object> read;
+
+        write(new BinaryStreamWriter(out), members());
+        read = read(new BinaryStreamReader(new ByteArrayInputStream(out.toByteArray())));
+        assertMembers(read);
+        assertEquals(new BigDecimal("12345678901234567890.123456789"), read.get("decimal"));
+    }
+
+    @Test
+    public void testLongStrings() throws Exception {
+        StringBuilder str = new StringBuilder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String,Object> members = new LinkedHashMap<String,Object>();
+
+        // longer than the writer's buffer and its one byte length prefix
+        for( int i=0; i<5000; i++ ) {
+            str.append((char)('a' + (i % 26))).append('€');
+        }
+        members.put("long", str.toString());
+        members.put("after", 1);
+        write(new BinaryStreamWriter(out), members);
+
+        Map<String,Object> read = read(new BinaryStreamReader(new ByteArrayInputStream(out.toByteArray())));
+
+        assertEquals(str.toString(), read.get("long"));
+        assertEquals(1, ((Number)read.get("after")).intValue());
+    }
+
+    @Test
+    public void testJSONRoundTrip() throws Exception {
+        StringWriter out = new StringWriter();
+        WideObject item;
+
+        cache.writeDataStoreJSON(state(), out);
+        item = cache.toTargetFromJSON(new ByteArrayInputStream(out.toString().getBytes("utf-8")));
+        assertEquals(42L, item.getKeyField());
+        assertEquals("String value 0", item.getS0());
+        assertEquals(new JSONObject(out.toString()).toString(), new JSONObject(json(item)).toString());
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        Map<String,Object> state = state();
+        StringWriter expected = new StringWriter();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        WideObject item;
+
+        cache.writeDataStoreJSON(state, expected);
+        cache.writeDataStoreBinary(state, binary);
+        assertTrue(binary.size() < expected.toString().length());
+        item = cache.toTargetFromBinary(new ByteArrayInputStream(binary.toByteArray()));
+        assertEquals(42L, item.getKeyField());
+        assertEquals(new JSONObject(expected.toString()).toString(), new JSONObject(json(item)).toString());
+
+        ByteArrayOutputStream again = new ByteArrayOutputStream();
+
+        cache.writeDataStoreBinary(item, again);
+        assertTrue(Arrays.equals(binary.toByteArray(), again.toByteArray()));
+    }
+
+    @Test
+    public void testNullsAreLeftOut() throws Exception {
+        Map<String,Object> state = state();
+        StringWriter out = new StringWriter();
+
+        state.remove("s1");
+        state.put("s2", null);
+        cache.writeDataStoreJSON(state, out);
+
+        JSONObject json = new JSONObject(out.toString());
+
+        assertFalse(json.has("s1"));
+        assertFalse(json.has("s2"));
+        assertEquals("2012-08", json.getString("SCHEMA_VERSION"));
+    }
+
+    @Test
+    public void testTruncatedBinary() throws Exception {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        byte[] bytes;
+
+        cache.writeDataStoreBinary(state(), binary);
+        bytes = Arrays.copyOf(binary.toByteArray(), binary.size()/2);
+        try {
+            cache.toTargetFromBinary(new ByteArrayInputStream(bytes));
+            fail("Decoded a truncated document");
+        }
+        catch( PersistenceException expected ) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class StreamingCursorTest extends TestCase {
+    @Test
+    public void testConsumerMakesRoom() throws Exception {
+        final StreamingCursor<Integer> cursor = new StreamingCursor<Integer>("test", 2, 5000L);
+        Thread producer = new Thread() {
+            public void run() {
+                for( int i=0; i<10; i++ ) {
+                    cursor.offer(i);
+                }
+                cursor.complete();
+            }
+        };
+        ArrayList<Integer> read = new ArrayList<Integer>();
+
+        producer.start();
+        for( Integer i : cursor ) {
+            read.add(i);
+        }
+        producer.join();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), read);
+        assertFalse(cursor.isTimedOut());
+    }
+
+    @Test
+    public void testCloseIsNotTimeout() {
+        StreamingCursor<Integer> cursor = new StreamingCursor<Integer>("test", 1, 5000L);
+
+        assertTrue(cursor.offer(1));
+        cursor.close();
+        assertFalse(cursor.offer(2));
+        assertTrue(cursor.isClosed());
+        assertFalse(cursor.isTimedOut());
+    }
+
+    @Test
+    public void testStalledConsumerTimesOut() {
+        StreamingCursor<Integer> cursor = new StreamingCursor<Integer>("test", 1, 50L);
+
+        assertTrue(cursor.offer(1));
+        assertFalse(cursor.offer(2));
+        assertTrue(cursor.isClosed());
+        assertTrue(cursor.isTimedOut());
+        assertFalse(cursor.offer(3));
+    }
+
+    @Test
+    public void testTimeoutErrorReachesConsumer() {
+        StreamingCursor<Integer> cursor = new StreamingCursor<Integer>("test", 1, 50L);
+        List<Integer> read = new ArrayList<Integer>();
+
+        cursor.offer(1);
+        cursor.offer(2);
+        cursor.error(new PersistenceException("gave up"));
+        try {
+            Iterator<Integer> it = cursor.iterator();
+
+            while( it.hasNext() ) {
+                read.add(it.next());
+            }
+            fail("The consumer saw a clean end of results after a timeout");
+        }
+        catch( RuntimeException expected ) {
+            // the buffered item is still delivered before the error
+            assertEquals(Arrays.asList(1), read);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.persist.annotations.Schema;
+import org.dasein.util.CachedItem;
+
+/**
+ * An entity configured in the test <code>dasein-persistence.properties</code> to be resident and to publish
+ * invalidations on {@link InvalidationBusTest.LoopbackBus}.
+ */
+@Schema("2012-08")
+public class TrackedObject implements CachedItem {
+    @Index(type=IndexType.PRIMARY)
+    private long    trackedObjectId;
+    @Index(type=IndexType.SECONDARY)
+    private String  name;
+    private int     rank;
+    private String  description;
+
+    public TrackedObject() { }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public long getTrackedObjectId() {
+        return trackedObjectId;
+    }
+
+    public boolean isValidForCache() {
+        return true;
+    }
+
+    public String toString() {
+        return trackedObjectId + ":" + name;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.dasein.persist.jdbc.RecordingDataSource;
+import org.dasein.persist.test.MockPersistentCache;
+import org.dasein.util.JiteratorFilter;
+
+/**
+ * A mock cache of {@link TrackedObject} that reports its writes to the {@link PersistentCache} hooks the way the
+ * relational caches do and answers searches from memory when the entity is resident. Writes take part in a
+ * {@link Transaction} against a {@link RecordingDataSource} so tests can commit or roll them back.
+ */
+public class TrackingCache extends MockPersistentCache<TrackedObject> {
+    static private RecordingDataSource dataSource = null;
+
+    /**
+     * Provides the data source that dasein-persistence.properties names for {@link TrackedObject}, so that
+     * relational caches of the entity can run against it. Transactions remember data sources by name, so it is
+     * bound only once.
+     * @return the data source
+     * @throws Exception the data source could not be bound
+     */
+    static public synchronized RecordingDataSource getDataSource() throws Exception {
+        if( dataSource == null ) {
+            dataSource = RecordingDataSource.bind(TrackedObject.class.getName());
+        }
+        return dataSource;
+    }
+
+    /**
+     * Starts a transaction that already holds a connection, as it would after a write.
+     * @param dsn the name under which a {@link RecordingDataSource} is bound
+     * @return the transaction
+     * @throws PersistenceException the transaction could not be started
+     */
+    static public Transaction begin(String dsn) throws PersistenceException {
+        Transaction xaction = Transaction.getInstance();
+
+        xaction.execute(new Execution() {
+            public String getStatement() {
+                return "UPDATE tracked_object SET rank = rank";
+            }
+        }, new HashMap<String,Object>(), dsn);
+        return xaction;
+    }
+
+    static public Map<String,Object> state(long id, String name, int rank) {
+        HashMap<String,Object> state = new HashMap<String,Object>();
+
+        state.put("trackedObjectId", id);
+        state.put("name", name);
+        state.put("rank", rank);
+        return state;
+    }
+
+    private int backendSearches = 0;
+
+    public TrackingCache() {
+        initBase(TrackedObject.class, null, "2012-08", null, new Key("trackedObjectId"), new Key("name"));
+    }
+
+    @Override
+    public long count(SearchTerm ... terms) throws PersistenceException {
+        long count = getCachedCount(terms);
+
+        return (count > -1L ? count : super.count(terms));
+    }
+
+    @Override
+    public TrackedObject create(Transaction xaction, Map<String,Object> state) throws PersistenceException {
+        TrackedObject item = super.create(xaction, state);
+
+        created(xaction, state);
+        return item;
+    }
+
+    @Override
+    public Collection<TrackedObject> find(SearchTerm[] terms, JiteratorFilter<TrackedObject> filter, Boolean orderDesc, String ... orderFields) throws PersistenceException {
+        Collection<TrackedObject> results = getCachedResults(terms, filter, orderDesc, orderFields);
+
+        if( results != null ) {
+            return results;
+        }
+        backendSearches++;
+        return super.find(terms, filter, orderDesc, orderFields);
+    }
+
+    /**
+     * @return the number of searches that were not answered from memory
+     */
+    public int getBackendSearches() {
+        return backendSearches;
+    }
+
+    @Override
+    public ResidentSet<TrackedObject> getResidentSet() throws PersistenceException {
+        return super.getResidentSet();
+    }
+
+    @Override
+    public void remove(Transaction xaction, TrackedObject item) throws PersistenceException {
+        super.remove(xaction, item);
+        removed(xaction, item);
+    }
+
+    @Override
+    public void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException {
+        super.remove(xaction, terms);
+        removed(xaction, terms);
+    }
+
+    @Override
+    public void update(Transaction xaction, TrackedObject item, Map<String,Object> state) throws PersistenceException {
+        super.update(xaction, item, state);
+        updated(xaction, item, state);
+    }
+}
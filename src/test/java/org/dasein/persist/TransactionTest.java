@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.RecordingDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionTest extends TestCase {
+    private String dsn = null;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        dsn = getClass().getName() + "." + getName();
+        RecordingDataSource.bind(dsn);
+    }
+
+    private Runnable record(final List<String> log, final String entry) {
+        return new Runnable() {
+            public void run() {
+                log.add(entry);
+            }
+        };
+    }
+
+    @Test
+    public void testAfterCommitRunsOnCommit() throws Exception {
+        Transaction xaction = TrackingCache.begin(dsn);
+        List<String> log = new ArrayList<String>();
+
+        xaction.afterCommit(record(log, "first"));
+        xaction.afterCommit(record(log, "second"));
+        assertTrue(log.isEmpty());
+        xaction.commit();
+        assertEquals(Arrays.asList("first", "second"), log);
+    }
+
+    @Test
+    public void testAfterCommitDroppedOnRollback() throws Exception {
+        Transaction xaction = TrackingCache.begin(dsn);
+        List<String> log = new ArrayList<String>();
+
+        xaction.afterCommit(record(log, "rolled back"));
+        xaction.rollback();
+        assertTrue(log.isEmpty());
+    }
+
+    @Test
+    public void testAfterCommitWithNothingPending() throws Exception {
+        Transaction xaction = Transaction.getInstance();
+        List<String> log = new ArrayList<String>();
+
+        xaction.afterCommit(record(log, "now"));
+        assertEquals(Arrays.asList("now"), log);
+        xaction.commit();
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopOthers() throws Exception {
+        Transaction xaction = TrackingCache.begin(dsn);
+        List<String> log = new ArrayList<String>();
+
+        xaction.afterCommit(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("Simulated failure");
+            }
+        });
+        xaction.afterCommit(record(log, "after failure"));
+        xaction.commit();
+        assertEquals(Arrays.asList("after failure"), log);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.persist.annotations.Schema;
+import org.dasein.util.CachedItem;
+
+/**
+ * A 40 field entity of mixed types used by the mapping benchmarks.
+ */
+@Schema("2012-08")
+public class WideObject implements CachedItem {
+    @Index(type=IndexType.PRIMARY)
+    private long keyField;
+    private String s0;
+    private String s1;
+    private String s2;
+    private String s3;
+    private String s4;
+    private String s5;
+    private String s6;
+    private String s7;
+    private int i0;
+    private int i1;
+    private int i2;
+    private int i3;
+    private int i4;
+    private Integer bi0;
+    private Integer bi1;
+    private long l0;
+    private long l1;
+    private long l2;
+    private long l3;
+    private long l4;
+    private Long bl0;
+    private Long bl1;
+    private double d0;
+    private double d1;
+    private double d2;
+    private double d3;
+    private boolean b0;
+    private boolean b1;
+    private boolean b2;
+    private boolean b3;
+    private IndexType e0;
+    private IndexType e1;
+    private IndexType e2;
+    private IndexType e3;
+    private Locale loc0;
+    private Locale loc1;
+    private UUID u0;
+    private UUID u1;
+    private BigDecimal bd0;
+    private BigDecimal bd1;
+
+    public WideObject() { }
+
+    public long getKeyField() {
+        return keyField;
+    }
+
+    public String getS0() {
+        return s0;
+    }
+
+    public boolean isValidForCache() {
+        return true;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.PersistentObject;
+import org.dasein.persist.SearchTerm;
+import org.dasein.persist.Transaction;
+import org.dasein.persist.jdbc.AutomatedSql.Criterion;
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CriteriaBindingTest extends TestCase {
+    private RecordingDataSource ds  = null;
+    private String              dsn = null;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        // transactions remember data sources by name
+        dsn = getClass().getName() + "." + getName();
+        ds = RecordingDataSource.bind(dsn);
+    }
+
+    private Criterion[] criteria(SearchTerm ... terms) {
+        List<Criterion> criteria = new ArrayList<Criterion>();
+
+        for( SearchTerm term : terms ) {
+            criteria.add(new Criterion(term));
+        }
+        return criteria.toArray(new Criterion[criteria.size()]);
+    }
+
+    private void run(AutomatedSql sql, Map<String,Object> params, SearchTerm ... terms) throws PersistenceException {
+        Transaction xaction = Transaction.getInstance(true);
+
+        params.put(AutomatedSql.VALUES, AutomatedSql.toValues(terms));
+        try {
+            xaction.execute(sql, params, dsn);
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+    }
+
+    private void load(final boolean paged, Map<String,Object> params, final SearchTerm ... terms) throws PersistenceException {
+        run(new Loader() {
+            public void init() {
+                setTarget(PersistentObject.class.getName());
+                setCriteria(criteria(terms));
+                setPaging(paged, false);
+            }
+        }, params, terms);
+    }
+
+    private void count(final SearchTerm ... terms) throws PersistenceException {
+        run(new Counter() {
+            public void init() {
+                setTarget(PersistentObject.class.getName());
+                setCriteria(criteria(terms));
+            }
+        }, new HashMap<String,Object>(), terms);
+    }
+
+    /**
+     * @return the WHERE clause of the first statement without its table qualifiers
+     */
+    private String where() {
+        String sql = ds.getStatements().get(0);
+
+        return sql.substring(sql.indexOf(" WHERE ") + 7).replace("persistent_object.", "");
+    }
+
+    @Test
+    public void testInBindsEachValue() throws Exception {
+        load(false, new HashMap<String,Object>(), new SearchTerm("name", "first"), new SearchTerm("keyField", Operator.IN, Arrays.asList(3L, 4L, 5L)), new SearchTerm("description", "last"));
+        assertEquals("name = ? AND key_field IN (?, ?, ?) AND description = ?", where());
+        assertEquals(Arrays.asList((Object)"first", 3L, 4L, 5L, "last"), ds.getParameters(0));
+    }
+
+    @Test
+    public void testOrGroup() throws Exception {
+        SearchTerm group = SearchTerm.or(new SearchTerm("name", "first"), new SearchTerm("keyField", Operator.IN, new Object[] { 7L, 8L }));
+
+        count(group, new SearchTerm("indexA", "a"));
+        assertEquals("(name = ? OR key_field IN (?, ?)) AND index_a = ?", where());
+        assertEquals(Arrays.asList((Object)"first", 7L, 8L, "a"), ds.getParameters(0));
+    }
+
+    @Test
+    public void testNestedOrGroups() throws Exception {
+        SearchTerm inner = SearchTerm.or(new SearchTerm("indexB", "b"), new SearchTerm("indexC", "c"));
+
+        count(new SearchTerm("keyField", Operator.GREATER_THAN, 1L), SearchTerm.or(new SearchTerm("indexA", "a"), inner));
+        assertEquals("key_field > ? AND (index_a = ? OR (index_b = ? OR index_c = ?))", where());
+        assertEquals(Arrays.asList((Object)1L, "a", "b", "c"), ds.getParameters(0));
+    }
+
+    @Test
+    public void testColumnRepeated() throws Exception {
+        count(new SearchTerm("keyField", Operator.GREATER_THAN_OR_EQUAL_TO, 10L), new SearchTerm("keyField", Operator.LESS_THAN, 20L));
+        assertEquals("key_field >= ? AND key_field < ?", where());
+        assertEquals(Arrays.asList((Object)10L, 20L), ds.getParameters(0));
+    }
+
+    @Test
+    public void testEmptyIn() throws Exception {
+        count(new SearchTerm("keyField", Operator.IN, new ArrayList<Object>()), new SearchTerm("name", "first"));
+        assertEquals("1 = 0 AND name = ?", where());
+        assertEquals(Arrays.asList((Object)"first"), ds.getParameters(0));
+    }
+
+    @Test
+    public void testPagingFollowsCriteria() throws Exception {
+        Map<String,Object> params = new HashMap<String,Object>();
+
+        params.put(Loader.LIMIT, 25);
+        params.put(Loader.OFFSET, 50);
+        load(true, params, new SearchTerm("keyField", Operator.IN, Arrays.asList(1L, 2L)));
+        assertEquals("key_field IN (?, ?) LIMIT ? OFFSET ?", where());
+        assertEquals(Arrays.asList((Object)1L, 2L, 25, 50), ds.getParameters(0));
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.PersistentObject;
+import org.dasein.persist.SearchTerm;
+import org.dasein.persist.Transaction;
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryTemplatesTest extends TestCase {
+    private RecordingDataSource ds        = null;
+    private String              dsn       = null;
+    private QueryTemplates      templates = null;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        // transactions remember data sources by name
+        dsn = getClass().getName() + "." + getName();
+        ds = RecordingDataSource.bind(dsn);
+        templates = new QueryTemplates(2, 2);
+    }
+
+    private Loader acquire(final SearchTerm ... terms) {
+        String key = QueryTemplates.getKey("load", terms);
+        Loader loader = templates.acquire(key);
+
+        if( loader != null ) {
+            return loader;
+        }
+        loader = new Loader() {
+            public void init() {
+                ArrayList<Criterion> criteria = new ArrayList<Criterion>();
+
+                setTarget(PersistentObject.class.getName());
+                for( SearchTerm term : terms ) {
+                    criteria.add(new Criterion(term));
+                }
+                setCriteria(criteria.toArray(new Criterion[criteria.size()]));
+            }
+        };
+        templates.register(key, loader);
+        return loader;
+    }
+
+    private void run(Loader loader, SearchTerm ... terms) throws PersistenceException {
+        Transaction xaction = Transaction.getInstance(true);
+        Map<String,Object> params = new HashMap<String,Object>();
+
+        params.put(AutomatedSql.VALUES, AutomatedSql.toValues(terms));
+        try {
+            xaction.execute(loader, params, dsn);
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+    }
+
+    private SearchTerm in(Object ... values) {
+        return new SearchTerm("keyField", Operator.IN, Arrays.asList(values));
+    }
+
+    @Test
+    public void testBusyExecutionsAreNotShared() {
+        Loader first = acquire(in(1L, 2L));
+
+        assertNotSame(first, acquire(in(3L, 4L)));
+    }
+
+    @Test
+    public void testReuseAfterClose() throws Exception {
+        Loader loader = acquire(in(1L, 2L));
+
+        run(loader, in(1L, 2L));
+
+        Loader again = acquire(in(5L, 6L));
+
+        assertSame(loader, again);
+        run(again, in(5L, 6L));
+        assertEquals(2, ds.getStatements().size());
+        assertEquals(ds.getStatements().get(0), ds.getStatements().get(1));
+        assertEquals(Arrays.asList((Object)1L, 2L), ds.getParameters(0));
+        assertEquals(Arrays.asList((Object)5L, 6L), ds.getParameters(1));
+    }
+
+    @Test
+    public void testReleaseOnFailure() throws Exception {
+        Loader loader = acquire(in(1L, 2L));
+
+        ds.setFailing(true);
+        try {
+            run(loader, in(1L, 2L));
+            fail("The simulated failure did not surface");
+        }
+        catch( PersistenceException expected ) {
+            // expected
+        }
+        ds.setFailing(false);
+
+        Loader again = acquire(in(3L, 4L));
+
+        assertSame(loader, again);
+        run(again, in(3L, 4L));
+        assertEquals(Arrays.asList((Object)3L, 4L), ds.getParameters(1));
+    }
+
+    @Test
+    public void testDifferentInCounts() throws Exception {
+        assertFalse(QueryTemplates.getKey("load", new SearchTerm[] { in(1L, 2L) }).equals(QueryTemplates.getKey("load", new SearchTerm[] { in(1L, 2L, 3L) })));
+        assertEquals(QueryTemplates.getKey("load", new SearchTerm[] { in(1L, 2L) }), QueryTemplates.getKey("load", new SearchTerm[] { in(7L, 8L) }));
+
+        Loader two = acquire(in(1L, 2L));
+
+        run(two, in(1L, 2L));
+
+        Loader three = acquire(in(1L, 2L, 3L));
+
+        assertNotSame(two, three);
+        run(three, in(1L, 2L, 3L));
+        assertTrue(ds.getStatements().get(0), ds.getStatements().get(0).contains("IN (?, ?)"));
+        assertTrue(ds.getStatements().get(1), ds.getStatements().get(1).contains("IN (?, ?, ?)"));
+        assertSame(two, acquire(in(4L, 5L)));
+        assertSame(three, acquire(in(4L, 5L, 6L)));
+    }
+
+    @Test
+    public void testIdleExecutionsAreBounded() throws Exception {
+        Loader[] loaders = new Loader[3];
+
+        for( int i=0; i<loaders.length; i++ ) {
+            loaders[i] = acquire(in(1L));
+        }
+        for( Loader loader : loaders ) {
+            loader.close();
+        }
+        assertNotNull(acquire(in(1L)));
+        assertNotNull(templates.acquire(QueryTemplates.getKey("load", new SearchTerm[] { in(1L) })));
+        assertNull(templates.acquire(QueryTemplates.getKey("load", new SearchTerm[] { in(1L) })));
+    }
+
+    @Test
+    public void testTemplatesAreBounded() throws Exception {
+        acquire(in(1L)).close();
+        acquire(in(1L, 2L)).close();
+        acquire(in(1L, 2L, 3L)).close();
+        assertEquals(2, templates.size());
+        assertNull(templates.acquire(QueryTemplates.getKey("load", new SearchTerm[] { in(1L) })));
+    }
+}
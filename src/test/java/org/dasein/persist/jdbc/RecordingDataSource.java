@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.persist.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+
+/**
+ * A JDBC data source for tests that records the SQL prepared and the parameters bound to it. Queries return
+ * no rows, and every statement fails while {@link #setFailing(boolean)} is on.
+ */
+public class RecordingDataSource implements InvocationHandler {
+    /**
+     * Binds a new recording data source in an in-memory JNDI context.
+     * @param name the name to bind it under
+     * @return the data source
+     * @throws Exception the data source could not be bound
+     */
+    static public RecordingDataSource bind(String name) throws Exception {
+        RecordingDataSource ds = new RecordingDataSource();
+
+        System.setProperty("org.osjava.sj.jndi.shared", "true");
+        System.setProperty("java.naming.factory.initial", "org.osjava.sj.memory.MemoryContextFactory");
+        new InitialContext().rebind(name, ds.getDataSource());
+        return ds;
+    }
+
+    private volatile boolean                    failing    = false;
+    private final List<TreeMap<Integer,Object>> parameters = new ArrayList<TreeMap<Integer,Object>>();
+    private final List<String>                  statements = new ArrayList<String>();
+
+    public DataSource getDataSource() {
+        return (DataSource)proxy(DataSource.class, this);
+    }
+
+    /**
+     * @param index the position of the statement, starting from 0
+     * @return the parameters bound to the statement in positional order
+     */
+    public synchronized List<Object> getParameters(int index) {
+        return new ArrayList<Object>(parameters.get(index).values());
+    }
+
+    public synchronized List<String> getStatements() {
+        return new ArrayList<String>(statements);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+
+        if( name.equals("getConnection") ) {
+            return proxy(Connection.class, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+
+                    if( name.equals("prepareStatement") ) {
+                        return prepare((String)args[0]);
+                    }
+                    else if( name.equals("getMetaData") ) {
+                        return proxy(DatabaseMetaData.class, new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                                if( method.getName().equals("getIdentifierQuoteString") ) {
+                                    return "";
+                                }
+                                else if( method.getName().equals("getDatabaseProductName") ) {
+                                    return "MySQL";
+                                }
+                                return defaultValue(method);
+                            }
+                        });
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+        return defaultValue(method);
+    }
+
+    private synchronized PreparedStatement prepare(String sql) {
+        final TreeMap<Integer,Object> bound = new TreeMap<Integer,Object>();
+
+        statements.add(sql);
+        parameters.add(bound);
+        return (PreparedStatement)proxy(PreparedStatement.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+
+                if( name.startsWith("set") && args != null && args.length > 1 && args[0] instanceof Integer ) {
+                    synchronized( RecordingDataSource.this ) {
+                        bound.put((Integer)args[0], args[1]);
+                    }
+                    return null;
+                }
+                if( name.startsWith("execute") ) {
+                    if( failing ) {
+                        throw new SQLException("Simulated failure");
+                    }
+                    if( name.equals("executeQuery") ) {
+                        return proxy(ResultSet.class, new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                                if( method.getName().equals("getMetaData") ) {
+                                    return proxy(ResultSetMetaData.class, this);
+                                }
+                                return defaultValue(method);
+                            }
+                        });
+                    }
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    static private Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(RecordingDataSource.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    static private Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+
+        if( type.equals(boolean.class) ) {
+            return false;
+        }
+        else if( type.equals(int.class) ) {
+            return 0;
+        }
+        else if( type.equals(long.class) ) {
+            return 0L;
+        }
+        else if( type.isPrimitive() && !type.equals(void.class) ) {
+            throw new UnsupportedOperationException(method.getName());
+        }
+        return null;
+    }
+}